@@ -3,7 +3,9 @@ package org.specksensor.applications;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import edu.cmu.ri.createlab.device.CreateLabDevicePingFailureEventListener;
 import edu.cmu.ri.createlab.util.commandline.BaseCommandLineApplication;
@@ -15,6 +17,7 @@ import org.specksensor.Speck;
 import org.specksensor.SpeckConfig;
 import org.specksensor.SpeckConstants;
 import org.specksensor.SpeckFactory;
+import org.specksensor.SpeckSimulator;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -27,16 +30,37 @@ public final class CommandLineSpeck extends BaseCommandLineApplication
 
    private static final String BOOTLOADER_SWITCH = "--bootloader";
    private static final String SET_INTERVAL_SWITCH = "--set-interval=";
+   private static final String SIMULATE_SWITCH = "--simulate";
 
    public static void main(final String[] args)
       {
-      if (args.length > 0 && BOOTLOADER_SWITCH.equals(args[0]))
+      // the simulate switch may be combined with the others, so handle it first
+      final List<String> remainingArgs = new ArrayList<String>(args.length);
+      for (final String arg : args)
+         {
+         if (SIMULATE_SWITCH.equals(arg) || arg.startsWith(SIMULATE_SWITCH + "="))
+            {
+            final String pathToConfigFile = arg.length() > SIMULATE_SWITCH.length() ? arg.substring(SIMULATE_SWITCH.length() + 1) : null;
+            if (!SpeckSimulator.enable(pathToConfigFile))
+               {
+               println("ERROR: Failed to read the simulator config file [" + pathToConfigFile + "].  Aborting.");
+               System.exit(0);
+               }
+            }
+         else
+            {
+            remainingArgs.add(arg);
+            }
+         }
+      final String firstArg = remainingArgs.isEmpty() ? null : remainingArgs.get(0);
+
+      if (BOOTLOADER_SWITCH.equals(firstArg))
          {
          new CommandLineSpeck().runBootloaderModeHelper();
          }
-      else if (args.length > 0 && args[0].startsWith(SET_INTERVAL_SWITCH))
+      else if (firstArg != null && firstArg.startsWith(SET_INTERVAL_SWITCH))
          {
-         final String[] argParts = args[0].split("=");
+         final String[] argParts = firstArg.split("=");
          if (argParts.length >= 2)
             {
             try
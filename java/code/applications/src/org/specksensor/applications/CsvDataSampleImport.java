@@ -0,0 +1,195 @@
+package org.specksensor.applications;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.specksensor.ApiSupport;
+import org.specksensor.CsvDataSampleImporter;
+import org.specksensor.InitializationException;
+import org.specksensor.SpeckConfig;
+import org.specksensor.SpeckConstants;
+
+/**
+ * <p>
+ * <code>CsvDataSampleImport</code> loads CSV files written by the gateway back into a Speck's database, using
+ * {@link CsvDataSampleImporter}, and reports how many samples were imported and how fast.  The gateway must not be
+ * running for that Speck at the same time.
+ * </p>
+ * <p>
+ * Usage: <code>CsvDataSampleImport --speck=ID [--uploaded-before=TIME|all] FILE ...</code>
+ * </p>
+ * <p>
+ * The Speck's ID is the part of its data directory's name after <code>Speck</code>.  Samples taken before the given
+ * time (in seconds since the epoch), or all samples if <code>all</code> is given, are marked as already uploaded.  By
+ * default, none are, so the gateway will upload all the imported samples.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class CsvDataSampleImport
+   {
+   private static final String SPECK_SWITCH = "--speck";
+   private static final String UPLOADED_BEFORE_SWITCH = "--uploaded-before";
+   private static final String UPLOADED_BEFORE_ALL = "all";
+
+   public static void main(final String[] args)
+      {
+      String speckId = null;
+      int uploadedBeforeTime = Integer.MIN_VALUE;
+      final List<File> files = new ArrayList<File>();
+      for (final String arg : args)
+         {
+         if (arg.startsWith(SPECK_SWITCH + "="))
+            {
+            speckId = arg.substring(SPECK_SWITCH.length() + 1).trim();
+            }
+         else if (arg.startsWith(UPLOADED_BEFORE_SWITCH + "="))
+            {
+            final String value = arg.substring(UPLOADED_BEFORE_SWITCH.length() + 1).trim();
+            if (UPLOADED_BEFORE_ALL.equalsIgnoreCase(value))
+               {
+               uploadedBeforeTime = Integer.MAX_VALUE;
+               }
+            else
+               {
+               try
+                  {
+                  uploadedBeforeTime = Integer.parseInt(value);
+                  }
+               catch (NumberFormatException ignored)
+                  {
+                  System.err.println("Invalid time [" + value + "], expected seconds since the epoch or [" + UPLOADED_BEFORE_ALL + "]");
+                  System.exit(1);
+                  }
+               }
+            }
+         else
+            {
+            files.add(new File(arg));
+            }
+         }
+
+      if (speckId == null || speckId.length() == 0 || files.isEmpty())
+         {
+         System.err.println("Usage: CsvDataSampleImport " + SPECK_SWITCH + "=ID [" + UPLOADED_BEFORE_SWITCH + "=TIME|" + UPLOADED_BEFORE_ALL + "] FILE ...");
+         System.exit(1);
+         }
+
+      final CsvDataSampleImporter importer;
+      try
+         {
+         importer = new CsvDataSampleImporter(createSpeckConfig(speckId), uploadedBeforeTime);
+         }
+      catch (InitializationException e)
+         {
+         System.err.println("Failed to open the database for Speck [" + speckId + "].  Is the gateway still running? " + e);
+         System.exit(1);
+         return;
+         }
+
+      boolean wasSuccessful = true;
+      long totalLines = 0;
+      long totalMillis = 0;
+      int numLoaded = 0;
+      try
+         {
+         for (final File file : files)
+            {
+            try
+               {
+               final CsvDataSampleImporter.Result result = importer.readFile(file);
+               System.out.println(String.format("%s: %,d lines, %,d new, %,d duplicates, %,d malformed, read in %,d ms (%,.0f lines/sec)",
+                                                file,
+                                                result.getNumLines(),
+                                                result.getNumNew(),
+                                                result.getNumDuplicates(),
+                                                result.getNumMalformed(),
+                                                result.getElapsedMillis(),
+                                                result.getLinesPerSecond()));
+               totalLines += result.getNumLines();
+               totalMillis += result.getElapsedMillis();
+               }
+            catch (IOException e)
+               {
+               System.out.println(file + ": " + e.getMessage());
+               wasSuccessful = false;
+               }
+            }
+
+         final long startTime = System.currentTimeMillis();
+         try
+            {
+            numLoaded = importer.load();
+            final long loadMillis = System.currentTimeMillis() - startTime;
+            totalMillis += loadMillis;
+            System.out.println(String.format("Loaded %,d samples in %,d ms (%,.0f rows/sec)", numLoaded, loadMillis, numLoaded * 1000.0 / Math.max(1, loadMillis)));
+            }
+         catch (IOException e)
+            {
+            System.out.println(e.getMessage());
+            wasSuccessful = false;
+            }
+         }
+      finally
+         {
+         importer.close();
+         }
+
+      System.out.println(String.format("Total: %,d lines, %,d imported, in %,d ms (%,.0f lines/sec)", totalLines, numLoaded, totalMillis, totalLines * 1000.0 / Math.max(1, totalMillis)));
+      System.exit(wasSuccessful ? 0 : 1);
+      }
+
+   @NotNull
+   private static SpeckConfig createSpeckConfig(@NotNull final String speckId)
+      {
+      // the protocol version doesn't matter, since each file's header determines how it's parsed
+      final ApiSupport apiSupport = ApiSupport.DEFAULT;
+      return new SpeckConfig()
+      {
+      @NotNull
+      @Override
+      public String getId()
+         {
+         return speckId;
+         }
+
+      @Override
+      public int getProtocolVersion()
+         {
+         return apiSupport.getProtocolVersion();
+         }
+
+      @Override
+      public int getHardwareVersion()
+         {
+         return UNKNOWN_VERSION;
+         }
+
+      @Override
+      public int getFirmwareVersion()
+         {
+         return UNKNOWN_VERSION;
+         }
+
+      @Override
+      public int getLoggingInterval()
+         {
+         return SpeckConstants.LoggingInterval.DEFAULT;
+         }
+
+      @NotNull
+      @Override
+      public ApiSupport getApiSupport()
+         {
+         return apiSupport;
+         }
+      };
+      }
+
+   private CsvDataSampleImport()
+      {
+      // private to prevent instantiation
+      }
+   }
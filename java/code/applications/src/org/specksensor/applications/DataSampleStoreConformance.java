@@ -0,0 +1,452 @@
+package org.specksensor.applications;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.specksensor.ApiSupport;
+import org.specksensor.DataSample;
+import org.specksensor.DataSampleSet;
+import org.specksensor.DataSampleStore;
+import org.specksensor.DataSampleStoreProvider;
+import org.specksensor.InitializationException;
+import org.specksensor.SampleHistory;
+import org.specksensor.Speck;
+import org.specksensor.SpeckConfig;
+import org.specksensor.SpeckConstants;
+
+/**
+ * <p>
+ * <code>DataSampleStoreConformance</code> checks {@link DataSampleStore} implementations against the store contract,
+ * and then measures their throughput, so that a new {@link DataSampleStoreProvider} can be compared with the built-in
+ * stores.  Every store it's given (or, by default, every store found on the classpath) is checked and measured in a
+ * fresh data directory of its own, which is deleted afterwards.  Stores which can be the primary store are also
+ * checked for duplicate detection and the upload lifecycle, and stores which also implement {@link SampleHistory} are
+ * checked for time-range scans and rollups.
+ * </p>
+ * <p>
+ * Usage: <code>DataSampleStoreConformance [--samples=N] [store name ...]</code>
+ * </p>
+ * <p>
+ * Each throughput figure is the best of several timed rounds, after an untimed warm-up round, so that the JIT has
+ * compiled the store's code before it's measured.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DataSampleStoreConformance
+   {
+   private static final String SAMPLES_SWITCH = "--samples";
+   private static final int DEFAULT_NUM_SAMPLES = 100000;
+   private static final int GROUP_SIZE = 50;
+   private static final int UPLOAD_SET_SIZE = 500;
+   private static final int NUM_TIMED_ROUNDS = 3;
+
+   /** Single saves are so much slower than group saves that they're measured on a tenth as many samples */
+   private static final int SINGLE_SAVE_DIVISOR = 10;
+
+   private static final int PROTOCOL_VERSION = 3;
+   private static final int FIRST_SAMPLE_TIME = 1400000000;
+   private static final String DERBY_SYSTEM_HOME_PROPERTY_KEY = "derby.system.home";
+
+   public static void main(final String[] args)
+      {
+      int numSamples = DEFAULT_NUM_SAMPLES;
+      final List<String> storeNames = new ArrayList<String>();
+      for (final String arg : args)
+         {
+         if (arg.startsWith(SAMPLES_SWITCH + "="))
+            {
+            try
+               {
+               numSamples = Math.max(SINGLE_SAVE_DIVISOR * GROUP_SIZE, Integer.parseInt(arg.substring(SAMPLES_SWITCH.length() + 1)));
+               }
+            catch (NumberFormatException ignored)
+               {
+               System.err.println("Invalid number of samples [" + arg + "], using " + numSamples);
+               }
+            }
+         else
+            {
+            storeNames.add(arg.toLowerCase());
+            }
+         }
+
+      // otherwise the database store points Derby's home (and log) at the first run's data directory, which is deleted
+      if (System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) == null)
+         {
+         System.setProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY, new File(System.getProperty("java.io.tmpdir")).getAbsolutePath());
+         }
+
+      final Map<String, DataSampleStoreProvider> providers = new LinkedHashMap<String, DataSampleStoreProvider>();
+      for (final DataSampleStoreProvider provider : ServiceLoader.load(DataSampleStoreProvider.class))
+         {
+         if (!providers.containsKey(provider.getName().toLowerCase()))
+            {
+            providers.put(provider.getName().toLowerCase(), provider);
+            }
+         }
+      if (storeNames.isEmpty())
+         {
+         storeNames.addAll(providers.keySet());
+         }
+
+      boolean didAllPass = true;
+      for (final String storeName : storeNames)
+         {
+         final DataSampleStoreProvider provider = providers.get(storeName);
+         if (provider == null)
+            {
+            System.out.println("Unknown store [" + storeName + "].  Known stores: " + providers.keySet());
+            didAllPass = false;
+            }
+         else
+            {
+            didAllPass &= new DataSampleStoreConformance(provider, numSamples).run();
+            }
+         }
+
+      System.exit(didAllPass ? 0 : 1);
+      }
+
+   @NotNull
+   private final DataSampleStoreProvider provider;
+   private final int numSamples;
+   private int runNumber = 0;
+   private int numFailedChecks = 0;
+
+   private DataSampleStoreConformance(@NotNull final DataSampleStoreProvider provider, final int numSamples)
+      {
+      this.provider = provider;
+      this.numSamples = numSamples;
+      }
+
+   /** Checks and then measures the store, returning <code>true</code> if it passed every check. */
+   private boolean run()
+      {
+      System.out.println();
+      System.out.println("Store [" + provider.getName() + "] (" + provider.getClass().getName() + ")" + (provider.canBePrimaryStore() ? ", can be the primary store" : ", secondary only"));
+      try
+         {
+         if (provider.canBePrimaryStore())
+            {
+            checkPrimaryStore();
+            }
+         else
+            {
+            checkSecondaryStore();
+            }
+         }
+      catch (Exception e)
+         {
+         System.out.println("   FAIL  unexpected exception: " + e);
+         e.printStackTrace(System.out);
+         numFailedChecks++;
+         }
+
+      if (numFailedChecks > 0)
+         {
+         System.out.println("   " + numFailedChecks + " check(s) failed, so skipping the throughput measurements");
+         return false;
+         }
+
+      try
+         {
+         measureThroughput();
+         }
+      catch (Exception e)
+         {
+         System.out.println("   Exception while measuring throughput: " + e);
+         e.printStackTrace(System.out);
+         return false;
+         }
+      return true;
+      }
+
+   private void checkPrimaryStore() throws InitializationException, IOException
+      {
+      final SpeckConfig speckConfig = createSpeckConfig();
+      try
+         {
+         DataSampleStore store = provider.createDataSampleStore(speckConfig);
+
+         check("a new sample is saved", store.save(createDataSample(1000)) == DataSampleStore.SaveResult.SUCCESS);
+         check("saving the same sample again is a duplicate", store.save(createDataSample(1000)) == DataSampleStore.SaveResult.FAILURE_DUPLICATE);
+
+         final List<DataSampleStore.SaveResult> results = store.save(Arrays.asList(createDataSample(1001), createDataSample(1000), createDataSample(1002), createDataSample(1003)));
+         check("a group save returns one result per sample, in order",
+               results.equals(Arrays.asList(DataSampleStore.SaveResult.SUCCESS, DataSampleStore.SaveResult.FAILURE_DUPLICATE, DataSampleStore.SaveResult.SUCCESS, DataSampleStore.SaveResult.SUCCESS)));
+
+         DataSampleSet set = store.getDataSamplesToUpload(2);
+         check("samples to upload are the oldest, up to the number requested", getSampleTimes(set).equals(Arrays.asList(1000, 1001)));
+         check("samples to upload have the values they were saved with", haveSavedValues(set));
+         final DataSampleSet failedSet = set;
+
+         set = store.getDataSamplesToUpload(10);
+         check("samples being uploaded aren't returned again", getSampleTimes(set).equals(Arrays.asList(1002, 1003)));
+         store.markDataSamplesAsUploaded(set, System.currentTimeMillis());
+
+         store.markDataSamplesAsFailed(failedSet);
+         set = store.getDataSamplesToUpload(10);
+         check("samples which failed to upload are returned again", getSampleTimes(set).equals(Arrays.asList(1000, 1001)));
+
+         store.resetStateOfUploadingSamples();
+         set = store.getDataSamplesToUpload(10);
+         check("resetting returns samples being uploaded", getSampleTimes(set).equals(Arrays.asList(1000, 1001)));
+         store.markDataSamplesAsUploaded(set, System.currentTimeMillis());
+         check("uploaded samples are never returned again", store.getDataSamplesToUpload(10).isEmpty());
+
+         check("saving the next sample succeeds", store.save(createDataSample(1004)) == DataSampleStore.SaveResult.SUCCESS);
+         check("maintenance returns a result", store.performMaintenance() != null);
+         store.shutdown();
+
+         store = provider.createDataSampleStore(speckConfig);
+         check("uploaded samples are still uploaded after reopening", getSampleTimes(store.getDataSamplesToUpload(10)).equals(Arrays.asList(1004)));
+         check("saved samples are still duplicates after reopening", store.save(createDataSample(1003)) == DataSampleStore.SaveResult.FAILURE_DUPLICATE);
+         checkSampleHistory(store);
+         store.shutdown();
+         }
+      finally
+         {
+         deleteDataDirectory(speckConfig);
+         }
+      }
+
+   private void checkSecondaryStore() throws InitializationException, IOException
+      {
+      final SpeckConfig speckConfig = createSpeckConfig();
+      try
+         {
+         DataSampleStore store = provider.createDataSampleStore(speckConfig);
+
+         check("a new sample is saved", store.save(createDataSample(1000)).wasSuccessful());
+
+         final List<DataSampleStore.SaveResult> results = store.save(Arrays.asList(createDataSample(1001), createDataSample(1002), createDataSample(1003)));
+         check("a group save returns one successful result per sample", results.size() == 3 && results.get(0).wasSuccessful() && results.get(1).wasSuccessful() && results.get(2).wasSuccessful());
+         check("no samples are offered for upload", store.getDataSamplesToUpload(10).isEmpty());
+         check("maintenance returns a result", store.performMaintenance() != null);
+         store.shutdown();
+
+         store = provider.createDataSampleStore(speckConfig);
+         check("saving after reopening succeeds", store.save(createDataSample(1004)).wasSuccessful());
+         checkSampleHistory(store);
+         store.shutdown();
+         }
+      finally
+         {
+         deleteDataDirectory(speckConfig);
+         }
+      }
+
+   /** If the store also implements {@link SampleHistory}, checks that it finds the samples 1000 through 1004. */
+   private void checkSampleHistory(@NotNull final DataSampleStore store) throws IOException
+      {
+      if (store instanceof SampleHistory)
+         {
+         final SampleHistory sampleHistory = (SampleHistory)store;
+         final List<Integer> sampleTimes = new ArrayList<Integer>();
+         sampleHistory.scan(1001, 1004,
+                            new SampleHistory.SampleVisitor()
+                            {
+                            @Override
+                            public void visit(final int sampleTime,
+                                              final int rawParticleCount,
+                                              final int particleCountOrConcentration,
+                                              final int temperatureInTenthsOfDegreeF,
+                                              final int humidity)
+                               {
+                               sampleTimes.add(sampleTime);
+                               }
+                            });
+         check("a history scan finds the samples in the time range", sampleTimes.equals(Arrays.asList(1001, 1002, 1003)));
+
+         // samples 1000 through 1004 are all in the minute starting at 960
+         final List<SampleHistory.Rollup> rollups = sampleHistory.getRollups(SampleHistory.Resolution.MINUTE, 0, 2000);
+         check("rollups cover every saved sample",
+               rollups.size() == 1 &&
+               rollups.get(0).getStartTime() == 960 &&
+               rollups.get(0).getCount() == 5 &&
+               rollups.get(0).getMin(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION) == 0 &&
+               rollups.get(0).getMax(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION) == 4 &&
+               rollups.get(0).getMean(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION) == 2.0);
+         }
+      }
+
+   private void check(@NotNull final String description, final boolean passed)
+      {
+      System.out.println("   " + (passed ? "pass" : "FAIL") + "  " + description);
+      if (!passed)
+         {
+         numFailedChecks++;
+         }
+      }
+
+   private void measureThroughput() throws InitializationException, IOException
+      {
+      final int numSingleSaves = numSamples / SINGLE_SAVE_DIVISOR;
+      double bestSingleSaveRate = 0;
+      double bestGroupSaveRate = 0;
+      double bestUploadRate = 0;
+      for (int round = 0; round <= NUM_TIMED_ROUNDS; round++)
+         {
+         final SpeckConfig speckConfig = createSpeckConfig();
+         try
+            {
+            final DataSampleStore store = provider.createDataSampleStore(speckConfig);
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numSingleSaves; i++)
+               {
+               store.save(createDataSample(FIRST_SAMPLE_TIME + i));
+               }
+            final double singleSaveRate = computeRate(numSingleSaves, startTime);
+
+            startTime = System.nanoTime();
+            for (int i = numSingleSaves; i < numSingleSaves + numSamples; i += GROUP_SIZE)
+               {
+               final List<Speck.DataSample> group = new ArrayList<Speck.DataSample>(GROUP_SIZE);
+               for (int j = i; j < i + GROUP_SIZE; j++)
+                  {
+                  group.add(createDataSample(FIRST_SAMPLE_TIME + j));
+                  }
+               store.save(group);
+               }
+            final double groupSaveRate = computeRate(numSamples, startTime);
+
+            double uploadRate = 0;
+            if (provider.canBePrimaryStore())
+               {
+               int numUploaded = 0;
+               startTime = System.nanoTime();
+               DataSampleSet set;
+               while (!(set = store.getDataSamplesToUpload(UPLOAD_SET_SIZE)).isEmpty())
+                  {
+                  store.markDataSamplesAsUploaded(set, System.currentTimeMillis());
+                  numUploaded += set.size();
+                  }
+               uploadRate = computeRate(numUploaded, startTime);
+               }
+
+            store.shutdown();
+
+            // the first round only warms up the JIT
+            if (round > 0)
+               {
+               bestSingleSaveRate = Math.max(bestSingleSaveRate, singleSaveRate);
+               bestGroupSaveRate = Math.max(bestGroupSaveRate, groupSaveRate);
+               bestUploadRate = Math.max(bestUploadRate, uploadRate);
+               }
+            }
+         finally
+            {
+            deleteDataDirectory(speckConfig);
+            }
+         }
+
+      System.out.println(String.format("   %,12.0f samples/sec saved one at a time (%,d samples)", bestSingleSaveRate, numSingleSaves));
+      System.out.println(String.format("   %,12.0f samples/sec saved in groups of %d (%,d samples)", bestGroupSaveRate, GROUP_SIZE, numSamples));
+      if (provider.canBePrimaryStore())
+         {
+         System.out.println(String.format("   %,12.0f samples/sec found and marked as uploaded, in sets of %d", bestUploadRate, UPLOAD_SET_SIZE));
+         }
+      }
+
+   private static double computeRate(final int numSamples, final long startTimeNanos)
+      {
+      final long elapsedNanos = Math.max(1, System.nanoTime() - startTimeNanos);
+      return numSamples * 1e9 / elapsedNanos;
+      }
+
+   @NotNull
+   private static Speck.DataSample createDataSample(final int sampleTime)
+      {
+      return new DataSample(null, sampleTime, sampleTime % 1000, sampleTime % 500, sampleTime % 900, sampleTime % 100);
+      }
+
+   @NotNull
+   private static List<Integer> getSampleTimes(@NotNull final DataSampleSet dataSampleSet)
+      {
+      final List<Integer> sampleTimes = new ArrayList<Integer>(dataSampleSet.size());
+      for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+         {
+         sampleTimes.add(dataSample.getSampleTime());
+         }
+      return sampleTimes;
+      }
+
+   private static boolean haveSavedValues(@NotNull final DataSampleSet dataSampleSet)
+      {
+      for (final Speck.DataSample actual : dataSampleSet.getDataSamples())
+         {
+         final Speck.DataSample expected = createDataSample(actual.getSampleTime());
+         if (actual.getRawParticleCount() != expected.getRawParticleCount() ||
+             actual.getParticleCountOrConcentration() != expected.getParticleCountOrConcentration() ||
+             actual.getTemperatureInTenthsOfADegreeF() != expected.getTemperatureInTenthsOfADegreeF() ||
+             actual.getHumidity() != expected.getHumidity())
+            {
+            return false;
+            }
+         }
+      return true;
+      }
+
+   /** Returns a config for a made-up Speck, so that each run gets a new, empty data directory. */
+   @NotNull
+   private SpeckConfig createSpeckConfig()
+      {
+      final String id = "Conformance" + provider.getName() + System.currentTimeMillis() + "_" + (runNumber++);
+      final ApiSupport apiSupport = ApiSupport.getInstance(PROTOCOL_VERSION);
+      return new SpeckConfig()
+      {
+      @NotNull
+      @Override
+      public String getId()
+         {
+         return id;
+         }
+
+      @Override
+      public int getProtocolVersion()
+         {
+         return apiSupport.getProtocolVersion();
+         }
+
+      @Override
+      public int getHardwareVersion()
+         {
+         return UNKNOWN_VERSION;
+         }
+
+      @Override
+      public int getFirmwareVersion()
+         {
+         return UNKNOWN_VERSION;
+         }
+
+      @Override
+      public int getLoggingInterval()
+         {
+         return SpeckConstants.LoggingInterval.DEFAULT;
+         }
+
+      @NotNull
+      @Override
+      public ApiSupport getApiSupport()
+         {
+         return apiSupport;
+         }
+      };
+      }
+
+   private static void deleteDataDirectory(@NotNull final SpeckConfig speckConfig) throws IOException
+      {
+      final File directory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
+      FileUtils.deleteDirectory(directory);
+      }
+   }
@@ -18,6 +18,7 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.specksensor.SpeckSimulator;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -32,6 +33,8 @@ public final class SpeckGateway extends JPanel
    private static final String LOGGING_LEVEL_SWITCH = "--logging-level";
    private static final String COMMAND_LINE_SWITCH = "--command-line";
    private static final String CONFIG_SWITCH = "--config";
+   private static final String ALL_DEVICES_SWITCH = "--all-devices";
+   private static final String SIMULATE_SWITCH = "--simulate";
 
    public static void main(final String[] args)
       {
@@ -79,10 +82,31 @@ public final class SpeckGateway extends JPanel
       logInfo("Log file logging level is '" + loggingLevel + "'");
       arguments.remove(LOGGING_LEVEL_SWITCH);
 
+      // connect to simulated Specks instead of real ones, if requested
+      if (arguments.containsKey(SIMULATE_SWITCH))
+         {
+         if (SpeckSimulator.enable(arguments.get(SIMULATE_SWITCH)))
+            {
+            logInfo("Using simulated Specks instead of scanning for real ones");
+            }
+         else
+            {
+            CONSOLE_LOG.error("Failed to read the simulator config file.  Aborting.");
+            System.exit(1);
+            }
+         }
+
       // see whether we should launch the command-line version of the app, or the GUI
       if (arguments.containsKey(COMMAND_LINE_SWITCH))
          {
-         new SpeckGatewayCommandLine(arguments.get(CONFIG_SWITCH)).run();
+         if (arguments.containsKey(ALL_DEVICES_SWITCH))
+            {
+            new SpeckGatewayMultiDeviceCommandLine().run();
+            }
+         else
+            {
+            new SpeckGatewayCommandLine(arguments.get(CONFIG_SWITCH)).run();
+            }
          }
       else
          {
@@ -1,7 +1,12 @@
 package org.specksensor.applications;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
 import edu.cmu.ri.createlab.util.commandline.BaseCommandLineApplication;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
@@ -10,6 +15,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.specksensor.RemoteStorageCredentials;
 import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.SampleHistory;
 import org.specksensor.SpeckConfig;
 
 /**
@@ -78,6 +84,53 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
             }
          };
 
+   private final Runnable printHourlyHistoryAction =
+         new Runnable()
+         {
+         public void run()
+            {
+            final SampleHistory sampleHistory = helper.getSampleHistory();
+            if (sampleHistory == null)
+               {
+               println("You are not connected to a Speck, or no sample store with a local history is configured.");
+               return;
+               }
+
+            final int now = (int)(System.currentTimeMillis() / 1000);
+            final int hourInSeconds = SampleHistory.Resolution.HOUR.getSeconds();
+            final int endOfCurrentHour = (now / hourInSeconds + 1) * hourInSeconds;
+            try
+               {
+               final List<SampleHistory.Rollup> rollups = sampleHistory.getRollups(SampleHistory.Resolution.HOUR, endOfCurrentHour - 24 * hourInSeconds, endOfCurrentHour);
+               if (rollups.isEmpty())
+                  {
+                  println("No samples were saved in the last 24 hours.");
+                  return;
+                  }
+
+               final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+               dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+               println("Hour (UTC)         Samples   Particles (min/mean/max)   Temp (F)   Humidity (%)");
+               for (final SampleHistory.Rollup rollup : rollups)
+                  {
+                  println(String.format("%-16s   %7d   %6d / %8.1f / %6d   %8.1f   %12.1f",
+                                        dateFormat.format(new Date(rollup.getStartTime() * 1000L)),
+                                        rollup.getCount(),
+                                        rollup.getMin(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION),
+                                        rollup.getMean(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION),
+                                        rollup.getMax(SampleHistory.Field.PARTICLE_COUNT_OR_CONCENTRATION),
+                                        rollup.getMean(SampleHistory.Field.TEMPERATURE_IN_TENTHS_OF_A_DEGREE_F) / 10,
+                                        rollup.getMean(SampleHistory.Field.HUMIDITY)));
+                  }
+               }
+            catch (IOException e)
+               {
+               LOG.error("SpeckGatewayCommandLine.printHourlyHistoryAction.run(): IOException while reading the sample history", e);
+               println("Failed to read the sample history: " + e.getMessage());
+               }
+            }
+         };
+
    private final Runnable setLoggingLevelAction =
          new Runnable()
          {
@@ -261,6 +314,7 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
       registerAction("c", connectToSpeckAction);
       registerAction("u", defineDataStorageCredentials);
       registerAction("s", printStatisticsAction);
+      registerAction("h", printHourlyHistoryAction);
       registerAction("l", setLoggingLevelAction);
       registerAction("d", disconnectFromDeviceAction);
 
@@ -287,6 +341,7 @@ final class SpeckGatewayCommandLine extends BaseCommandLineApplication
       println("c         Connect to the Speck");
       println("u         Specify host and login credentials for uploads");
       println("s         Print statistics for samples downloaded, uploaded, and deleted");
+      println("h         Print hourly summaries of the samples saved in the last 24 hours");
       println("l         Set the logging level for the log file (has no effect on console logging)");
       println("d         Disconnect from the device");
       println("");
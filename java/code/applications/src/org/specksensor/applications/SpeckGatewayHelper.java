@@ -17,6 +17,7 @@ import org.specksensor.DataSampleUploader;
 import org.specksensor.InitializationException;
 import org.specksensor.RemoteStorageCredentials;
 import org.specksensor.RemoteStorageCredentialsValidator;
+import org.specksensor.SampleHistory;
 import org.specksensor.Speck;
 import org.specksensor.SpeckConfig;
 import org.specksensor.SpeckConstants;
@@ -230,6 +231,16 @@ final class SpeckGatewayHelper
       return null;
       }
 
+   @Nullable
+   public SampleHistory getSampleHistory()
+      {
+      if (isConnected() && dataSampleManager != null)
+         {
+         return dataSampleManager.getSampleHistory();
+         }
+      return null;
+      }
+
    public void addStatisticsListener(@Nullable final DataSampleManager.Statistics.Listener listener)
       {
       if (dataSampleManager != null)
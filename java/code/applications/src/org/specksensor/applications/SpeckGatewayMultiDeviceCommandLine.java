@@ -0,0 +1,224 @@
+package org.specksensor.applications;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+import edu.cmu.ri.createlab.util.commandline.BaseCommandLineApplication;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.specksensor.MultiSpeckManager;
+import org.specksensor.RemoteStorageCredentials;
+import org.specksensor.RemoteStorageCredentialsImpl;
+import org.specksensor.RemoteStorageCredentialsValidator;
+import org.specksensor.SpeckConfig;
+
+/**
+ * <p>
+ * <code>SpeckGatewayMultiDeviceCommandLine</code> is a command line version of the gateway which serves every Speck
+ * attached to the computer at once, connecting to Specks as they are plugged in.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class SpeckGatewayMultiDeviceCommandLine extends BaseCommandLineApplication
+   {
+   private static final Logger LOG = Logger.getLogger(SpeckGatewayMultiDeviceCommandLine.class);
+
+   @NotNull
+   private final MultiSpeckManager multiSpeckManager;
+
+   SpeckGatewayMultiDeviceCommandLine()
+      {
+      super(new BufferedReader(new InputStreamReader(System.in)));
+
+      multiSpeckManager = new MultiSpeckManager(
+            new MultiSpeckManager.EventListener()
+            {
+            @Override
+            public void handleConnectionEvent(@NotNull final SpeckConfig speckConfig, @NotNull final String portName)
+               {
+               // nothing to do
+               }
+
+            @Override
+            public void handleDisconnectionEvent(@NotNull final SpeckConfig speckConfig)
+               {
+               // nothing to do
+               }
+            });
+
+      registerActions();
+      }
+
+   private static void logInfo(@NotNull final String message)
+      {
+      LOG.info(message);
+      println(message);
+      }
+
+   private final Runnable listSpecksAction =
+         new Runnable()
+         {
+         public void run()
+            {
+            final List<String> speckIds = multiSpeckManager.getSpeckIds();
+            if (speckIds.isEmpty())
+               {
+               println("No Specks are connected.");
+               }
+            else
+               {
+               println("Connected Specks:");
+               for (final String speckId : speckIds)
+                  {
+                  println("   " + speckId);
+                  }
+               }
+            }
+         };
+
+   private final Runnable printStatisticsAction =
+         new Runnable()
+         {
+         public void run()
+            {
+            println(multiSpeckManager.getStatisticsAsString());
+            }
+         };
+
+   private final Runnable defineDataStorageCredentials =
+         new Runnable()
+         {
+         public void run()
+            {
+            if (multiSpeckManager.areRemoteStorageCredentialsSet())
+               {
+               println("The host and login credentials can only be defined once.");
+               return;
+               }
+
+            final String hostNameAndPortStr = readString("Host name (and optional port, colon delimited): ");
+            if (!isNotNullAndNotEmpty(hostNameAndPortStr))
+               {
+               println("Invalid host name and port.");
+               return;
+               }
+
+            final String hostName;
+            final String hostPortStr;
+            if (hostNameAndPortStr.contains(":"))
+               {
+               final String[] hostNameAndPort = hostNameAndPortStr.split(":");
+               hostName = hostNameAndPort[0].trim();
+               hostPortStr = hostNameAndPort[1].trim();
+               }
+            else
+               {
+               hostName = hostNameAndPortStr.trim();
+               hostPortStr = "80";
+               }
+
+            int hostPort = -1;
+            try
+               {
+               hostPort = Integer.parseInt(hostPortStr, 10);
+               }
+            catch (NumberFormatException ignored)
+               {
+               LOG.error("NumberFormatException while trying to convert port [" + hostPortStr + "] to an integer");
+               }
+
+            if (hostName.length() <= 0 || hostPort <= 0)
+               {
+               println("Invalid host name and/or port.");
+               return;
+               }
+
+            final String usernameStr = readString("Username: ");
+            if (!isNotNullAndNotEmpty(usernameStr))
+               {
+               println("Invalid username.");
+               return;
+               }
+
+            final String passwordStr = readString("Password: ");
+            if (!isNotNullAndNotEmpty(passwordStr))
+               {
+               println("Invalid password.");
+               return;
+               }
+
+            final String deviceNameStr = readString("Device Name Prefix (each Speck's ID will be appended): ");
+            if (!isNotNullAndNotEmpty(deviceNameStr))
+               {
+               println("Invalid device name prefix.");
+               return;
+               }
+
+            final RemoteStorageCredentials remoteStorageCredentials = new RemoteStorageCredentialsImpl(hostName, hostPort, usernameStr.trim(), passwordStr.trim(), deviceNameStr.trim());
+            logInfo("Validating host and login credentials...");
+            if (RemoteStorageCredentialsValidator.isValid(remoteStorageCredentials) && multiSpeckManager.setRemoteStorageCredentials(remoteStorageCredentials))
+               {
+               println("Login credentials set successfully.");
+               }
+            else
+               {
+               println("Failed to set login credentials.");
+               }
+            }
+         };
+
+   private final Runnable quitAction =
+         new Runnable()
+         {
+         public void run()
+            {
+            LOG.debug("SpeckGatewayMultiDeviceCommandLine.run(): Quit requested by user.");
+            multiSpeckManager.shutdown();
+            println("Bye!");
+            }
+         };
+
+   private boolean isNotNullAndNotEmpty(@Nullable final String str)
+      {
+      if (str != null)
+         {
+         final String trimmedStr = str.trim();
+         return trimmedStr.length() > 0;
+         }
+      return false;
+      }
+
+   private void registerActions()
+      {
+      registerAction("v", listSpecksAction);
+      registerAction("u", defineDataStorageCredentials);
+      registerAction("s", printStatisticsAction);
+
+      registerAction(QUIT_COMMAND, quitAction);
+      }
+
+   @Override
+   protected void startup()
+      {
+      println("");
+      println(SpeckGatewayHelper.APPLICATION_NAME_AND_VERSION_NUMBER);
+      println("");
+
+      multiSpeckManager.startup();
+      }
+
+   protected final void menu()
+      {
+      println("COMMANDS -----------------------------------");
+      println("");
+      println("v         List the connected Specks");
+      println("u         Specify host and login credentials for uploads");
+      println("s         Print statistics for samples downloaded, uploaded, and deleted for each Speck");
+      println("");
+      println("q         Quit");
+      println("");
+      println("--------------------------------------------");
+      }
+   }
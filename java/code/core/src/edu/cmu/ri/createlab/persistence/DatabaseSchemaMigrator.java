@@ -0,0 +1,180 @@
+package edu.cmu.ri.createlab.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>DatabaseSchemaMigrator</code> brings a database's schema up to date by running, in order, each
+ * {@link Migration} whose version is newer than the database's current schema version.  The current version is
+ * tracked in the <code>SchemaVersion</code> table, which is created if necessary, and which gets a row for every
+ * migration applied.  Each migration runs in its own transaction together with the insert of its version row, so a
+ * failed migration leaves the database at the previous version, and will simply be attempted again next time.
+ * </p>
+ * <p>
+ * Migrations must never be changed or reordered once released, since databases in the wild have already run them.
+ * Schema changes must always be made by adding a new migration with a higher version number.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DatabaseSchemaMigrator
+   {
+   private static final Logger LOG = Logger.getLogger(DatabaseSchemaMigrator.class);
+
+   private static final String SCHEMA_VERSION_TABLE_NAME = "SchemaVersion";
+
+   public interface Migration
+      {
+      /** Returns the schema version which this migration produces.  Versions must be positive. */
+      int getVersion();
+
+      /** Returns a short, human-readable description of what this migration does. */
+      @NotNull
+      String getDescription();
+
+      /**
+       * Migrates the schema from the previous version to this migration's version.  Called within a transaction, so
+       * implementations must not commit, roll back, or change the connection's auto commit mode.
+       */
+      void migrate(@NotNull final Connection connection) throws SQLException;
+      }
+
+   @NotNull
+   private final List<Migration> migrations;
+
+   /**
+    * Creates a <code>DatabaseSchemaMigrator</code> for the given migrations, which must have strictly increasing
+    * versions.
+    *
+    * @throws IllegalArgumentException if the migrations' versions aren't positive and strictly increasing
+    */
+   public DatabaseSchemaMigrator(@NotNull final List<Migration> migrations)
+      {
+      int previousVersion = 0;
+      for (final Migration migration : migrations)
+         {
+         if (migration.getVersion() <= previousVersion)
+            {
+            throw new IllegalArgumentException("Migration versions must be positive and strictly increasing, but version " + migration.getVersion() + " follows version " + previousVersion);
+            }
+         previousVersion = migration.getVersion();
+         }
+      this.migrations = Collections.unmodifiableList(new ArrayList<Migration>(migrations));
+      }
+
+   /** Returns the version of the newest migration, or 0 if there are no migrations. */
+   public int getLatestVersion()
+      {
+      return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).getVersion();
+      }
+
+   /**
+    * Runs every migration newer than the database's current schema version, and returns the resulting version.
+    *
+    * @throws SQLException if a migration fails, or if the database's schema is newer than any known migration (i.e.
+    * the database was created by a newer version of the software)
+    */
+   public int migrate(@NotNull final Connection connection) throws SQLException
+      {
+      if (!DatabaseUtils.doesTableExist(connection, SCHEMA_VERSION_TABLE_NAME))
+         {
+         LOG.debug("DatabaseSchemaMigrator.migrate(): Creating table " + SCHEMA_VERSION_TABLE_NAME + "...");
+         execute(connection, "CREATE TABLE " + SCHEMA_VERSION_TABLE_NAME + " (\n" +
+                             "   version                      INTEGER      NOT NULL,\n" +
+                             "   description                  VARCHAR(255) NOT NULL,\n" +
+                             "   applied_timestamp_utc_millis BIGINT       NOT NULL,\n" +
+                             "   CONSTRAINT SchemaVersion_PrimaryKey PRIMARY KEY (version)\n" +
+                             ")");
+         }
+
+      int currentVersion = getCurrentVersion(connection);
+      if (currentVersion > getLatestVersion())
+         {
+         throw new SQLException("The database schema version (" + currentVersion + ") is newer than the latest version known to this software (" + getLatestVersion() + ")");
+         }
+
+      for (final Migration migration : migrations)
+         {
+         if (migration.getVersion() > currentVersion)
+            {
+            LOG.info("DatabaseSchemaMigrator.migrate(): Migrating schema from version " + currentVersion + " to " + migration.getVersion() + ": " + migration.getDescription());
+            final long startTime = System.currentTimeMillis();
+            final boolean wasAutoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try
+               {
+               migration.migrate(connection);
+               recordVersion(connection, migration);
+               connection.commit();
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseSchemaMigrator.migrate(): SQLException while migrating schema to version " + migration.getVersion() + ", rolling back", e);
+               connection.rollback();
+               throw e;
+               }
+            finally
+               {
+               connection.setAutoCommit(wasAutoCommit);
+               }
+            currentVersion = migration.getVersion();
+            LOG.info("DatabaseSchemaMigrator.migrate(): Migration to version " + currentVersion + " completed in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+         }
+
+      return currentVersion;
+      }
+
+   private static int getCurrentVersion(@NotNull final Connection connection) throws SQLException
+      {
+      final Statement statement = connection.createStatement();
+      try
+         {
+         final ResultSet resultSet = statement.executeQuery("SELECT MAX(version) FROM " + SCHEMA_VERSION_TABLE_NAME);
+         return resultSet.next() ? resultSet.getInt(1) : 0;    // MAX() of no rows is NULL, which getInt() returns as 0
+         }
+      finally
+         {
+         statement.close();
+         }
+      }
+
+   private static void recordVersion(@NotNull final Connection connection, @NotNull final Migration migration) throws SQLException
+      {
+      final PreparedStatement statement = connection.prepareStatement("INSERT INTO " + SCHEMA_VERSION_TABLE_NAME + " (version, description, applied_timestamp_utc_millis) VALUES (?, ?, ?)");
+      try
+         {
+         statement.setInt(1, migration.getVersion());
+         statement.setString(2, migration.getDescription());
+         statement.setLong(3, System.currentTimeMillis());
+         statement.executeUpdate();
+         }
+      finally
+         {
+         statement.close();
+         }
+      }
+
+   /** Executes the given SQL, which must not return results. */
+   public static void execute(@NotNull final Connection connection, @NotNull final String sql) throws SQLException
+      {
+      final Statement statement = connection.createStatement();
+      try
+         {
+         statement.execute(sql);
+         }
+      finally
+         {
+         statement.close();
+         }
+      }
+   }
@@ -19,6 +19,31 @@ public final class DatabaseUtils
       return tableNames.contains(tableName.toLowerCase());
       }
 
+   public static boolean doesIndexExist(@NotNull final Connection connection, @NotNull final String tableName, @NotNull final String indexName) throws SQLException
+      {
+      // Derby stores unquoted identifiers in upper case
+      final ResultSet rs = connection.getMetaData().getIndexInfo(null,                      // catalog
+                                                                 null,                      // schema
+                                                                 tableName.toUpperCase(),   // table
+                                                                 false,                     // unique only
+                                                                 true);                     // approximate
+      try
+         {
+         while (rs.next())
+            {
+            if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+               {
+               return true;
+               }
+            }
+         return false;
+         }
+      finally
+         {
+         rs.close();
+         }
+      }
+
    // Got this from: http://stackoverflow.com/questions/5866154/how-to-create-table-if-it-doesnt-exist-using-derby-db
    @NotNull
    private static Set<String> getTableNames(@NotNull final Connection connection) throws SQLException
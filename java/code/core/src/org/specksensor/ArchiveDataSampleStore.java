@@ -0,0 +1,914 @@
+package org.specksensor;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>ArchiveDataSampleStore</code> keeps the long-term history of {@link Speck.DataSample data samples} in a
+ * columnar format designed for fast scans over time ranges.  Does not support uploading.
+ * </p>
+ * <p>
+ * The archive lives in the <code>archive</code> subdirectory of the Speck's data directory, split into numbered
+ * segment files of up to {@link #ROWS_PER_SEGMENT_SYSTEM_PROPERTY a fixed number} of samples each.  Each segment file
+ * holds, in order:
+ * <ol>
+ *    <li>a header containing the row count, the time range of the segment's samples, and the number of bytes used by the
+ *    time column</li>
+ *    <li>a sparse time index, with one entry per block of {@link #ROWS_PER_BLOCK} rows holding the block's first sample
+ *    time, its time range, and the offset of the block's data in the time column</li>
+ *    <li>one fixed-width column each for the raw particle count, particle count, temperature, and humidity</li>
+ *    <li>the time column, holding the difference between each sample's time and the previous one's, zig-zag and then
+ *    varint encoded, so a sample downloaded in sequence usually takes a single byte</li>
+ * </ol>
+ * Samples being appended are collected in memory, and written to the segment being appended to at the end of each
+ * block and of each group of samples, with a single positional write per column.  When the segment fills, it's forced
+ * to disk and the unused space at the end of its time column is truncated.  Segments are never memory mapped, since a
+ * mapped file can't be truncated on Windows, and a mapping is only released once it's garbage collected.
+ * </p>
+ * <p>
+ * {@link #scan(int, int, SampleVisitor) Scans} read the time index of each segment overlapping the requested time
+ * range, skip blocks which the index shows can't match, and read only the matching blocks' columns, with positional
+ * reads into buffers which are reused from block to block.  Each matching sample's fields are handed to a
+ * {@link SampleVisitor} straight from those buffers, without creating any per-sample objects.
+ * </p>
+ * <p>
+ * The archive also keeps {@link SampleRollups rollups} of the samples at one minute, one hour and one day resolution
+ * in its <code>rollups</code> subdirectory, updating them as each sample is appended, so that
+ * {@link #getRollups(SampleHistory.Resolution, int, int) rollup queries} over long time ranges only read one small
+ * record per bucket.  If the gateway didn't shut down cleanly, the rollups are rebuilt from the segments when the
+ * archive is reopened.
+ * </p>
+ * <p>
+ * Like the CSV file, the archive is a copy of the samples saved to the primary store, so it isn't forced to disk after
+ * every save.  The header is only updated after a group of samples has been completely written, so if the gateway
+ * crashes, the archive is still consistent when reopened, though samples saved shortly before an operating system
+ * crash may be missing.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class ArchiveDataSampleStore implements DataSampleStore, SampleHistory
+   {
+   private static final Logger LOG = Logger.getLogger(ArchiveDataSampleStore.class);
+
+   public static final String ROWS_PER_SEGMENT_SYSTEM_PROPERTY = "org.specksensor.ArchiveDataSampleStore.rows-per-segment";
+
+   /** Number of rows covered by each entry in a segment's time index */
+   static final int ROWS_PER_BLOCK = 256;
+
+   /** The number of rows per segment, rounded up to a whole number of blocks */
+   private static final int ROWS_PER_SEGMENT = roundUpToBlock(SystemPropertyUtils.getInt(ROWS_PER_SEGMENT_SYSTEM_PROPERTY, 262144, 1));
+
+   private static final String ARCHIVE_DIRECTORY_NAME = "archive";
+   private static final String SEGMENT_FILENAME_PREFIX = "segment-";
+   private static final String SEGMENT_FILENAME_SUFFIX = ".archive";
+   private static final String ROLLUPS_DIRECTORY_NAME = "rollups";
+
+   private static final int MAGIC = 0x53504B41;    // "SPKA"
+   private static final int FORMAT_VERSION = 1;
+
+   private static final int HEADER_SIZE = 64;
+   private static final int HEADER_MAGIC_OFFSET = 0;
+   private static final int HEADER_VERSION_OFFSET = 4;
+   private static final int HEADER_CAPACITY_OFFSET = 8;
+   private static final int HEADER_ROW_COUNT_OFFSET = 12;
+   private static final int HEADER_MIN_TIME_OFFSET = 16;
+   private static final int HEADER_MAX_TIME_OFFSET = 20;
+   private static final int HEADER_TIME_BYTES_USED_OFFSET = 24;
+
+   /** First sample time, minimum time, maximum time, and time column offset (all ints) */
+   private static final int INDEX_ENTRY_SIZE = 16;
+   private static final int INDEX_FIRST_TIME_OFFSET = 0;
+   private static final int INDEX_MIN_TIME_OFFSET = 4;
+   private static final int INDEX_MAX_TIME_OFFSET = 8;
+   private static final int INDEX_TIME_COLUMN_OFFSET = 12;
+
+   private static final int NUM_VALUE_COLUMNS = 4;
+
+   /** A zig-zag encoded int takes at most 5 bytes as a varint. */
+   private static final int MAX_TIME_DELTA_SIZE = 5;
+
+   /** The layout of a segment file with the given capacity */
+   private static final class Layout
+      {
+      private final int capacity;
+      private final int indexOffset;
+      private final int[] valueColumnOffsets = new int[NUM_VALUE_COLUMNS];
+      private final int timeColumnOffset;
+
+      private Layout(final int capacity)
+         {
+         this.capacity = capacity;
+         indexOffset = HEADER_SIZE;
+         int offset = indexOffset + (capacity / ROWS_PER_BLOCK) * INDEX_ENTRY_SIZE;
+         for (int i = 0; i < NUM_VALUE_COLUMNS; i++)
+            {
+            valueColumnOffsets[i] = offset;
+            offset += capacity * 4;
+            }
+         timeColumnOffset = offset;
+         }
+
+      private int getMaxFileSize()
+         {
+         return timeColumnOffset + capacity * MAX_TIME_DELTA_SIZE;
+         }
+
+      private int getIndexEntryOffset(final int block)
+         {
+         return indexOffset + block * INDEX_ENTRY_SIZE;
+         }
+      }
+
+   /** What's kept in memory about each segment, so scans only need to open the segments overlapping their time range */
+   private static final class SegmentSummary
+      {
+      @NotNull
+      private final File file;
+      private int rowCount;
+      private int minTime;
+      private int maxTime;
+
+      private SegmentSummary(@NotNull final File file, final int rowCount, final int minTime, final int maxTime)
+         {
+         this.file = file;
+         this.rowCount = rowCount;
+         this.minTime = minTime;
+         this.maxTime = maxTime;
+         }
+
+      private boolean overlaps(final int fromTimeInclusive, final int toTimeExclusive)
+         {
+         return rowCount > 0 && minTime < toTimeExclusive && maxTime >= fromTimeInclusive;
+         }
+      }
+
+   private static int roundUpToBlock(final int numRows)
+      {
+      return ((numRows + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK) * ROWS_PER_BLOCK;
+      }
+
+   @NotNull
+   private final File archiveDirectory;
+
+   /** Summaries of the sealed segments, oldest first */
+   private final List<SegmentSummary> sealedSegments = new ArrayList<SegmentSummary>();
+
+   /** The segment being appended to.  Its summary only counts the rows which have been written to the file. */
+   private int activeSegmentNumber;
+   private SegmentSummary activeSegment;
+   private Layout activeLayout;
+   private RandomAccessFile activeFile;
+   private FileChannel activeChannel;
+   private int activeTimeBytesUsed;
+   private int lastSampleTime;
+
+   /** The index entry of the active segment's last block, as last written */
+   private final ByteBuffer activeIndexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+   /**
+    * The rows which have been appended, but not yet written to the active segment.  They're always in the active
+    * segment's last block, since they're written whenever a block fills.
+    */
+   private final ByteBuffer[] pendingValueColumns = new ByteBuffer[NUM_VALUE_COLUMNS];
+   private final ByteBuffer pendingTimeColumn = ByteBuffer.allocate(ROWS_PER_BLOCK * MAX_TIME_DELTA_SIZE);
+   private final int[] pendingSampleTimes = new int[ROWS_PER_BLOCK];
+   private int numPendingRows = 0;
+
+   /** The number of rows written to any segment since the archive was opened, so a save can tell how far it got. */
+   private int numRowsWritten = 0;
+
+   private final ByteBuffer indexEntryUpdate = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+   private final ByteBuffer headerUpdate = ByteBuffer.allocate(HEADER_TIME_BYTES_USED_OFFSET + 4 - HEADER_ROW_COUNT_OFFSET);
+
+   private SampleRollups rollups;
+   private boolean isShutDown = false;
+   private final Lock lock = new ReentrantLock();
+
+   /** Provides the columnar archive as the <code>archive</code> store. */
+   public static final class Provider implements DataSampleStoreProvider
+      {
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return "archive";
+         }
+
+      @Override
+      public boolean canBePrimaryStore()
+         {
+         return false;
+         }
+
+      @Override
+      public boolean hasOwnWriteQueue()
+         {
+         return false;
+         }
+
+      @NotNull
+      @Override
+      public DataSampleStore createDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
+         {
+         return new ArchiveDataSampleStore(speckConfig);
+         }
+      }
+
+   ArchiveDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
+      {
+      archiveDirectory = new File(SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig), ARCHIVE_DIRECTORY_NAME);
+      for (int i = 0; i < NUM_VALUE_COLUMNS; i++)
+         {
+         pendingValueColumns[i] = ByteBuffer.allocate(ROWS_PER_BLOCK * 4);
+         }
+      //noinspection ResultOfMethodCallIgnored
+      archiveDirectory.mkdirs();
+
+      try
+         {
+         final File[] files = archiveDirectory.listFiles(
+               new FilenameFilter()
+               {
+               @Override
+               public boolean accept(final File dir, final String name)
+                  {
+                  return name.startsWith(SEGMENT_FILENAME_PREFIX) && name.endsWith(SEGMENT_FILENAME_SUFFIX);
+                  }
+               });
+         if (files != null)
+            {
+            // the numbers are zero padded, so sorting by name sorts by number
+            Arrays.sort(files);
+            }
+
+         SegmentSummary lastSegment = null;
+         if (files != null)
+            {
+            for (final File file : files)
+               {
+               final SegmentSummary segment = readSummary(file);
+               if (segment != null)
+                  {
+                  if (lastSegment != null)
+                     {
+                     sealedSegments.add(lastSegment);
+                     }
+                  lastSegment = segment;
+                  }
+               }
+            }
+
+         if (lastSegment == null)
+            {
+            createSegment(0);
+            }
+         else
+            {
+            activeSegmentNumber = getSegmentNumber(lastSegment.file);
+            openActiveSegment(lastSegment);
+            }
+
+         rollups = new SampleRollups(new File(archiveDirectory, ROLLUPS_DIRECTORY_NAME));
+         if (!rollups.wasShutDownCleanly())
+            {
+            rebuildRollups();
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("ArchiveDataSampleStore.ArchiveDataSampleStore(): IOException while trying to open the archive [" + archiveDirectory + "]", e);
+         closeActiveSegment();
+         throw new InitializationException(e);
+         }
+      catch (NumberFormatException e)
+         {
+         LOG.error("ArchiveDataSampleStore.ArchiveDataSampleStore(): NumberFormatException while trying to open the archive [" + archiveDirectory + "]", e);
+         closeActiveSegment();
+         throw new InitializationException(e);
+         }
+
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("ArchiveDataSampleStore.ArchiveDataSampleStore(): Opened archive [" + archiveDirectory + "] with " + (sealedSegments.size() + 1) + " segment(s)");
+         }
+      }
+
+   /** Deletes the rollups and adds every archived sample to them again. */
+   private void rebuildRollups() throws IOException
+      {
+      LOG.info("ArchiveDataSampleStore.rebuildRollups(): Rebuilding the rollups, since the archive wasn't shut down cleanly");
+      final long startTime = System.currentTimeMillis();
+      rollups.clear();
+      final int count = scan(Integer.MIN_VALUE, Integer.MAX_VALUE,
+                             new SampleVisitor()
+                             {
+                             @Override
+                             public void visit(final int sampleTime,
+                                               final int rawParticleCount,
+                                               final int particleCountOrConcentration,
+                                               final int temperatureInTenthsOfDegreeF,
+                                               final int humidity)
+                                {
+                                rollups.add(sampleTime, rawParticleCount, particleCountOrConcentration, temperatureInTenthsOfDegreeF, humidity);
+                                }
+                             });
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("ArchiveDataSampleStore.rebuildRollups(): Rebuilt the rollups from " + count + " samples in " + (System.currentTimeMillis() - startTime) + " ms");
+         }
+      }
+
+   /** Reads the summary from the given segment's header, or returns <code>null</code> (after renaming the file) if the header is invalid. */
+   @Nullable
+   private SegmentSummary readSummary(@NotNull final File file) throws IOException
+      {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try
+         {
+         final FileChannel channel = randomAccessFile.getChannel();
+         while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+            {
+            // keep reading until the header is full or the end of the file is reached
+            }
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+
+      if (!header.hasRemaining() &&
+          header.getInt(HEADER_MAGIC_OFFSET) == MAGIC &&
+          header.getInt(HEADER_VERSION_OFFSET) == FORMAT_VERSION &&
+          header.getInt(HEADER_CAPACITY_OFFSET) > 0 &&
+          header.getInt(HEADER_CAPACITY_OFFSET) % ROWS_PER_BLOCK == 0 &&
+          header.getInt(HEADER_ROW_COUNT_OFFSET) >= 0 &&
+          header.getInt(HEADER_ROW_COUNT_OFFSET) <= header.getInt(HEADER_CAPACITY_OFFSET))
+         {
+         return new SegmentSummary(file,
+                                   header.getInt(HEADER_ROW_COUNT_OFFSET),
+                                   header.getInt(HEADER_MIN_TIME_OFFSET),
+                                   header.getInt(HEADER_MAX_TIME_OFFSET));
+         }
+
+      final File renamedFile = new File(file.getPath() + ".corrupt");
+      LOG.error("ArchiveDataSampleStore.readSummary(): Segment [" + file + "] has an invalid header, renaming it to [" + renamedFile + "] and skipping it");
+      if (!file.renameTo(renamedFile))
+         {
+         throw new IOException("Failed to rename corrupt segment [" + file + "]");
+         }
+      return null;
+      }
+
+   private static int getSegmentNumber(@NotNull final File file)
+      {
+      final String name = file.getName();
+      return Integer.parseInt(name.substring(SEGMENT_FILENAME_PREFIX.length(), name.length() - SEGMENT_FILENAME_SUFFIX.length()));
+      }
+
+   private void createSegment(final int segmentNumber) throws IOException
+      {
+      final File file = new File(archiveDirectory, SEGMENT_FILENAME_PREFIX + String.format("%06d", segmentNumber) + SEGMENT_FILENAME_SUFFIX);
+      final Layout layout = new Layout(ROWS_PER_SEGMENT);
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try
+         {
+         randomAccessFile.setLength(0);
+         randomAccessFile.setLength(layout.getMaxFileSize());
+         final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+         header.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+         header.putInt(HEADER_VERSION_OFFSET, FORMAT_VERSION);
+         header.putInt(HEADER_CAPACITY_OFFSET, layout.capacity);
+         header.putInt(HEADER_ROW_COUNT_OFFSET, 0);
+         header.putInt(HEADER_MIN_TIME_OFFSET, Integer.MAX_VALUE);
+         header.putInt(HEADER_MAX_TIME_OFFSET, Integer.MIN_VALUE);
+         header.putInt(HEADER_TIME_BYTES_USED_OFFSET, 0);
+         randomAccessFile.getChannel().write(header, 0);
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+
+      activeSegmentNumber = segmentNumber;
+      openActiveSegment(new SegmentSummary(file, 0, Integer.MAX_VALUE, Integer.MIN_VALUE));
+      }
+
+   private void openActiveSegment(@NotNull final SegmentSummary segment) throws IOException
+      {
+      activeFile = new RandomAccessFile(segment.file, "rw");
+      activeChannel = activeFile.getChannel();
+      activeSegment = segment;
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(activeChannel, header, 0);
+      activeLayout = new Layout(header.getInt(HEADER_CAPACITY_OFFSET));
+      activeTimeBytesUsed = header.getInt(HEADER_TIME_BYTES_USED_OFFSET);
+      if (activeFile.length() < activeLayout.getMaxFileSize())
+         {
+         // the segment was sealed, so it needs to be extended before it can be appended to
+         activeFile.setLength(activeLayout.getMaxFileSize());
+         }
+
+      // find the time of the last sample, by decoding the last block
+      lastSampleTime = 0;
+      activeIndexEntry.clear();
+      if (segment.rowCount > 0)
+         {
+         final int lastBlock = (segment.rowCount - 1) / ROWS_PER_BLOCK;
+         readFully(activeChannel, activeIndexEntry, activeLayout.getIndexEntryOffset(lastBlock));
+         lastSampleTime = activeIndexEntry.getInt(INDEX_FIRST_TIME_OFFSET);
+         final int timeColumnStart = activeIndexEntry.getInt(INDEX_TIME_COLUMN_OFFSET);
+         final ByteBuffer timeColumn = ByteBuffer.allocate(activeTimeBytesUsed - timeColumnStart);
+         readFully(activeChannel, timeColumn, activeLayout.timeColumnOffset + timeColumnStart);
+         for (int row = lastBlock * ROWS_PER_BLOCK + 1; row < segment.rowCount; row++)
+            {
+            lastSampleTime += readTimeDelta(timeColumn);
+            }
+         }
+      }
+
+   /** Fills the given buffer from the given position in the channel, and then flips it so it can be read. */
+   private static void readFully(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long position) throws IOException
+      {
+      long readPosition = position;
+      while (buffer.hasRemaining())
+         {
+         final int numBytesRead = channel.read(buffer, readPosition);
+         if (numBytesRead < 0)
+            {
+            throw new EOFException("Unexpected end of file while reading " + buffer.remaining() + " bytes at position " + readPosition);
+            }
+         readPosition += numBytesRead;
+         }
+      buffer.flip();
+      }
+
+   private static void writeFully(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long position) throws IOException
+      {
+      long writePosition = position;
+      while (buffer.hasRemaining())
+         {
+         writePosition += channel.write(buffer, writePosition);
+         }
+      }
+
+   /** Decodes a zig-zag and varint encoded time difference, starting at the given buffer's position. */
+   private static int readTimeDelta(@NotNull final ByteBuffer buffer)
+      {
+      int zigZag = 0;
+      int shift = 0;
+      byte b;
+      do
+         {
+         b = buffer.get();
+         zigZag |= (b & 0x7f) << shift;
+         shift += 7;
+         }
+      while (b < 0);
+      return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+
+   /**
+    * Writes any pending rows and the header, truncates the unused part of the active segment's time column, and forces
+    * it to disk.  MUST be called from within a lock block.
+    */
+   private void sealActiveSegment() throws IOException
+      {
+      writePendingRows();
+      writeHeader();
+      activeFile.setLength(activeLayout.timeColumnOffset + activeTimeBytesUsed);
+      activeChannel.force(true);
+      activeFile.close();
+      activeFile = null;
+      activeChannel = null;
+      sealedSegments.add(activeSegment);
+      }
+
+   private void closeActiveSegment()
+      {
+      if (activeFile != null)
+         {
+         try
+            {
+            activeChannel.force(true);
+            activeFile.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("ArchiveDataSampleStore.closeActiveSegment(): IOException while trying to close segment [" + activeSegment.file + "]", e);
+            }
+         activeFile = null;
+         activeChannel = null;
+         }
+      }
+
+   @Override
+   @NotNull
+   public SaveResult save(@NotNull final Speck.DataSample dataSample)
+      {
+      return save(Collections.singletonList(dataSample)).get(0);
+      }
+
+   @Override
+   @NotNull
+   public List<SaveResult> save(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (isShutDown)
+            {
+            LOG.error("ArchiveDataSampleStore.save(): Cannot save samples after the archive has been shut down");
+            return Collections.nCopies(dataSamples.size(), SaveResult.FAILURE_ERROR);
+            }
+
+         final int numRowsWrittenBefore = numRowsWritten;
+         try
+            {
+            for (final Speck.DataSample dataSample : dataSamples)
+               {
+               // the active segment could be missing if creating the next one failed during an earlier save
+               if (activeChannel == null || activeSegment.rowCount + numPendingRows == activeLayout.capacity)
+                  {
+                  if (activeChannel != null)
+                     {
+                     sealActiveSegment();
+                     }
+                  createSegment(activeSegmentNumber + 1);
+                  }
+               append(dataSample);
+               if ((activeSegment.rowCount + numPendingRows) % ROWS_PER_BLOCK == 0)
+                  {
+                  writePendingRows();
+                  }
+               }
+            writePendingRows();
+            }
+         catch (IOException e)
+            {
+            LOG.error("ArchiveDataSampleStore.save(): IOException while trying to save " + dataSamples.size() + " samples", e);
+            discardPendingRows();
+
+            // rows are written in order and stay written, so the samples before the failed ones were saved
+            final int numSaved = numRowsWritten - numRowsWrittenBefore;
+            final List<SaveResult> saveResults = new ArrayList<SaveResult>(dataSamples.size());
+            saveResults.addAll(Collections.nCopies(numSaved, SaveResult.SUCCESS));
+            saveResults.addAll(Collections.nCopies(dataSamples.size() - numSaved, SaveResult.FAILURE_ERROR));
+            return saveResults;
+            }
+         finally
+            {
+            // record the rows which were written, even if the group couldn't be written completely
+            if (activeChannel != null)
+               {
+               try
+                  {
+                  writeHeader();
+                  }
+               catch (IOException e)
+                  {
+                  LOG.error("ArchiveDataSampleStore.save(): IOException while trying to update the header of segment [" + activeSegment.file + "]", e);
+                  }
+               }
+            }
+
+         return Collections.nCopies(dataSamples.size(), SaveResult.SUCCESS);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Adds the sample to the pending rows.  MUST be called from within a lock block. */
+   private void append(@NotNull final Speck.DataSample dataSample)
+      {
+      final int sampleTime = dataSample.getSampleTime();
+      if ((activeSegment.rowCount + numPendingRows) % ROWS_PER_BLOCK != 0)
+         {
+         // the first sample in a block is stored only in the index, so the block can be decoded on its own
+         final int delta = sampleTime - (numPendingRows > 0 ? pendingSampleTimes[numPendingRows - 1] : lastSampleTime);
+         int zigZag = (delta << 1) ^ (delta >> 31);
+         while ((zigZag & ~0x7f) != 0)
+            {
+            pendingTimeColumn.put((byte)((zigZag & 0x7f) | 0x80));
+            zigZag >>>= 7;
+            }
+         pendingTimeColumn.put((byte)zigZag);
+         }
+
+      pendingValueColumns[0].putInt(dataSample.getRawParticleCount());
+      pendingValueColumns[1].putInt(dataSample.getParticleCountOrConcentration());
+      pendingValueColumns[2].putInt(dataSample.getTemperatureInTenthsOfADegreeF());
+      pendingValueColumns[3].putInt(dataSample.getHumidity());
+      pendingSampleTimes[numPendingRows++] = sampleTime;
+      }
+
+   /**
+    * Writes the pending rows to the active segment, along with its last block's index entry, and adds them to the
+    * rollups.  The pending rows are discarded if they can't be written.  MUST be called from within a lock block.
+    */
+   private void writePendingRows() throws IOException
+      {
+      if (numPendingRows == 0)
+         {
+         return;
+         }
+
+      final int firstRow = activeSegment.rowCount;
+      final boolean isNewBlock = firstRow % ROWS_PER_BLOCK == 0;
+      int minTime = isNewBlock ? Integer.MAX_VALUE : activeIndexEntry.getInt(INDEX_MIN_TIME_OFFSET);
+      int maxTime = isNewBlock ? Integer.MIN_VALUE : activeIndexEntry.getInt(INDEX_MAX_TIME_OFFSET);
+      for (int i = 0; i < numPendingRows; i++)
+         {
+         minTime = Math.min(minTime, pendingSampleTimes[i]);
+         maxTime = Math.max(maxTime, pendingSampleTimes[i]);
+         }
+      indexEntryUpdate.clear();
+      indexEntryUpdate.putInt(INDEX_FIRST_TIME_OFFSET, isNewBlock ? pendingSampleTimes[0] : activeIndexEntry.getInt(INDEX_FIRST_TIME_OFFSET));
+      indexEntryUpdate.putInt(INDEX_MIN_TIME_OFFSET, minTime);
+      indexEntryUpdate.putInt(INDEX_MAX_TIME_OFFSET, maxTime);
+      indexEntryUpdate.putInt(INDEX_TIME_COLUMN_OFFSET, isNewBlock ? activeTimeBytesUsed : activeIndexEntry.getInt(INDEX_TIME_COLUMN_OFFSET));
+
+      pendingTimeColumn.flip();
+      final int numTimeBytes = pendingTimeColumn.remaining();
+      try
+         {
+         for (int i = 0; i < NUM_VALUE_COLUMNS; i++)
+            {
+            pendingValueColumns[i].flip();
+            writeFully(activeChannel, pendingValueColumns[i], activeLayout.valueColumnOffsets[i] + firstRow * 4L);
+            }
+         writeFully(activeChannel, pendingTimeColumn, activeLayout.timeColumnOffset + activeTimeBytesUsed);
+         writeFully(activeChannel, indexEntryUpdate, activeLayout.getIndexEntryOffset(firstRow / ROWS_PER_BLOCK));
+         }
+      catch (IOException e)
+         {
+         discardPendingRows();
+         throw e;
+         }
+
+      indexEntryUpdate.clear();
+      activeIndexEntry.clear();
+      activeIndexEntry.put(indexEntryUpdate);
+      activeTimeBytesUsed += numTimeBytes;
+      lastSampleTime = pendingSampleTimes[numPendingRows - 1];
+      activeSegment.minTime = Math.min(activeSegment.minTime, minTime);
+      activeSegment.maxTime = Math.max(activeSegment.maxTime, maxTime);
+      activeSegment.rowCount += numPendingRows;
+      numRowsWritten += numPendingRows;
+      for (int i = 0; i < numPendingRows; i++)
+         {
+         rollups.add(pendingSampleTimes[i],
+                     pendingValueColumns[0].getInt(i * 4),
+                     pendingValueColumns[1].getInt(i * 4),
+                     pendingValueColumns[2].getInt(i * 4),
+                     pendingValueColumns[3].getInt(i * 4));
+         }
+      discardPendingRows();
+      }
+
+   private void discardPendingRows()
+      {
+      for (final ByteBuffer pendingValueColumn : pendingValueColumns)
+         {
+         pendingValueColumn.clear();
+         }
+      pendingTimeColumn.clear();
+      numPendingRows = 0;
+      }
+
+   /** Records the rows written so far in the active segment's header.  MUST be called from within a lock block. */
+   private void writeHeader() throws IOException
+      {
+      headerUpdate.clear();
+      headerUpdate.putInt(HEADER_ROW_COUNT_OFFSET - HEADER_ROW_COUNT_OFFSET, activeSegment.rowCount);
+      headerUpdate.putInt(HEADER_MIN_TIME_OFFSET - HEADER_ROW_COUNT_OFFSET, activeSegment.minTime);
+      headerUpdate.putInt(HEADER_MAX_TIME_OFFSET - HEADER_ROW_COUNT_OFFSET, activeSegment.maxTime);
+      headerUpdate.putInt(HEADER_TIME_BYTES_USED_OFFSET - HEADER_ROW_COUNT_OFFSET, activeTimeBytesUsed);
+      writeFully(activeChannel, headerUpdate, HEADER_ROW_COUNT_OFFSET);
+      }
+
+   @Override
+   public int scan(final int fromTimeInclusive, final int toTimeExclusive, @NotNull final SampleVisitor visitor) throws IOException
+      {
+      final List<SegmentSummary> segmentsToScan = new ArrayList<SegmentSummary>();
+      lock.lock();  // block until condition holds
+      try
+         {
+         for (final SegmentSummary segment : sealedSegments)
+            {
+            if (segment.overlaps(fromTimeInclusive, toTimeExclusive))
+               {
+               segmentsToScan.add(segment);
+               }
+            }
+
+         // rows are never modified once written, so the active segment's written rows can be read outside the lock
+         if (activeChannel != null && activeSegment.overlaps(fromTimeInclusive, toTimeExclusive))
+            {
+            segmentsToScan.add(new SegmentSummary(activeSegment.file, activeSegment.rowCount, activeSegment.minTime, activeSegment.maxTime));
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+
+      final SegmentScanner segmentScanner = new SegmentScanner();
+      int count = 0;
+      for (final SegmentSummary segment : segmentsToScan)
+         {
+         count += segmentScanner.scan(segment, fromTimeInclusive, toTimeExclusive, visitor);
+         }
+      return count;
+      }
+
+   @NotNull
+   @Override
+   public List<Rollup> getRollups(@NotNull final Resolution resolution, final int fromTimeInclusive, final int toTimeExclusive) throws IOException
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (isShutDown)
+            {
+            throw new IOException("Cannot read the rollups after the archive has been shut down");
+            }
+         return rollups.get(resolution, fromTimeInclusive, toTimeExclusive);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Scans segments with positional reads, reusing its buffers from one block (and segment) to the next */
+   private static final class SegmentScanner
+      {
+      private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      private ByteBuffer index = ByteBuffer.allocate(0);
+      private final ByteBuffer[] valueColumns = new ByteBuffer[NUM_VALUE_COLUMNS];
+      private final ByteBuffer timeColumn = ByteBuffer.allocate(ROWS_PER_BLOCK * MAX_TIME_DELTA_SIZE);
+
+      private SegmentScanner()
+         {
+         for (int i = 0; i < NUM_VALUE_COLUMNS; i++)
+            {
+            valueColumns[i] = ByteBuffer.allocate(ROWS_PER_BLOCK * 4);
+            }
+         }
+
+      /** Hands the samples within the given time range among the segment's first <code>rowCount</code> rows to the visitor. */
+      private int scan(@NotNull final SegmentSummary segment,
+                       final int fromTimeInclusive,
+                       final int toTimeExclusive,
+                       @NotNull final SampleVisitor visitor) throws IOException
+         {
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(segment.file, "r");
+         try
+            {
+            final FileChannel channel = randomAccessFile.getChannel();
+            header.clear();
+            readFully(channel, header, 0);
+            final Layout layout = new Layout(header.getInt(HEADER_CAPACITY_OFFSET));
+            final int timeBytesUsed = header.getInt(HEADER_TIME_BYTES_USED_OFFSET);
+
+            final int numBlocks = (segment.rowCount + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+            if (index.capacity() < numBlocks * INDEX_ENTRY_SIZE)
+               {
+               index = ByteBuffer.allocate(numBlocks * INDEX_ENTRY_SIZE);
+               }
+            index.clear();
+            index.limit(numBlocks * INDEX_ENTRY_SIZE);
+            readFully(channel, index, layout.indexOffset);
+
+            int count = 0;
+            for (int block = 0; block < numBlocks; block++)
+               {
+               final int indexEntryOffset = block * INDEX_ENTRY_SIZE;
+               if (index.getInt(indexEntryOffset + INDEX_MIN_TIME_OFFSET) >= toTimeExclusive ||
+                   index.getInt(indexEntryOffset + INDEX_MAX_TIME_OFFSET) < fromTimeInclusive)
+                  {
+                  continue;
+                  }
+
+               final int firstRow = block * ROWS_PER_BLOCK;
+               final int numRows = Math.min(ROWS_PER_BLOCK, segment.rowCount - firstRow);
+               for (int i = 0; i < NUM_VALUE_COLUMNS; i++)
+                  {
+                  valueColumns[i].clear();
+                  valueColumns[i].limit(numRows * 4);
+                  readFully(channel, valueColumns[i], layout.valueColumnOffsets[i] + firstRow * 4L);
+                  }
+
+               // The active segment may have had rows added since its row count was read, so don't read further than
+               // this block's rows can need.
+               final int timeColumnStart = index.getInt(indexEntryOffset + INDEX_TIME_COLUMN_OFFSET);
+               final int timeColumnEnd = (block + 1 < numBlocks) ? index.getInt(indexEntryOffset + INDEX_ENTRY_SIZE + INDEX_TIME_COLUMN_OFFSET) : timeBytesUsed;
+               timeColumn.clear();
+               timeColumn.limit(Math.min(timeColumnEnd - timeColumnStart, (numRows - 1) * MAX_TIME_DELTA_SIZE));
+               readFully(channel, timeColumn, layout.timeColumnOffset + timeColumnStart);
+
+               int sampleTime = index.getInt(indexEntryOffset + INDEX_FIRST_TIME_OFFSET);
+               for (int row = 0; row < numRows; row++)
+                  {
+                  if (row > 0)
+                     {
+                     sampleTime += readTimeDelta(timeColumn);
+                     }
+
+                  if (sampleTime >= fromTimeInclusive && sampleTime < toTimeExclusive)
+                     {
+                     final int columnOffset = row * 4;
+                     visitor.visit(sampleTime,
+                                   valueColumns[0].getInt(columnOffset),
+                                   valueColumns[1].getInt(columnOffset),
+                                   valueColumns[2].getInt(columnOffset),
+                                   valueColumns[3].getInt(columnOffset));
+                     count++;
+                     }
+                  }
+               }
+            return count;
+            }
+         finally
+            {
+            randomAccessFile.close();
+            }
+         }
+      }
+
+   /** Not supported, does nothing. */
+   @Override
+   public void resetStateOfUploadingSamples()
+      {
+      // not supported
+      }
+
+   /** Not supported, so the returned {@link DataSampleSet} will never contain any data samples. */
+   @NotNull
+   @Override
+   public DataSampleSet getDataSamplesToUpload(final int maxNumberRequested)
+      {
+      return new DataSampleSetImpl(null);
+      }
+
+   /** Not supported, does nothing. */
+   @Override
+   public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
+      {
+      // not supported
+      }
+
+   /** Not supported, does nothing. */
+   @Override
+   public void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet)
+      {
+      // not supported
+      }
+
+   /** Nothing to do, so always returns {@link MaintenanceResult#NONE}. */
+   @NotNull
+   @Override
+   public MaintenanceResult performMaintenance()
+      {
+      return MaintenanceResult.NONE;
+      }
+
+   @Override
+   public void shutdown()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (!isShutDown)
+            {
+            closeActiveSegment();
+            rollups.close();
+            isShutDown = true;
+            LOG.debug("ArchiveDataSampleStore.shutdown(): Successfully shut down the ArchiveDataSampleStore");
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+   }
@@ -0,0 +1,419 @@
+package org.specksensor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>CsvDataSampleImporter</code> loads the samples in CSV files written by the gateway (the
+ * <code>data_samples.csv</code> file, or the rotated segments in <code>csv_segments</code>, compressed or not) into a
+ * Speck's database, so that a rebuilt gateway host gets its history back.  The gateway must not be running for that
+ * Speck while importing, since only one process at a time can open its database.
+ * </p>
+ * <p>
+ * Each file's header must match the {@link ApiSupport#getDataSampleFieldNames() field names} of one of the protocol
+ * versions, which determines how its columns are parsed.  {@link #readFile(File) Reading} a file streams its lines into
+ * a staging file, skipping samples whose time is already in the database or was already read (a bit per second, in
+ * pages allocated as needed, is kept for every time seen), and lines which can't be parsed (e.g. a line left incomplete
+ * by a crash).  Once every file has been read, {@link #load()} loads the staging file into the database in a single
+ * call to Derby's import procedure, which loads the samples in bulk and builds the indexes once at the end if the
+ * database is empty, as it is on a rebuilt host.
+ * </p>
+ * <p>
+ * Imported samples taken before the given <code>uploadedBeforeTime</code> are marked as already uploaded, and the rest
+ * will be uploaded by the gateway as usual.  Since the CSV file doesn't record when samples were downloaded or
+ * uploaded, the time of the import is used for both.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class CsvDataSampleImporter
+   {
+   private static final Logger LOG = Logger.getLogger(CsvDataSampleImporter.class);
+
+   private static final String STAGING_FILENAME = "csv_import.tmp";
+   private static final String COMPRESSED_EXTENSION = ".gz";
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   /** The number of lines found in a file, and what happened to them. */
+   public static final class Result
+      {
+      private final int numLines;
+      private final int numNew;
+      private final int numDuplicates;
+      private final int numMalformed;
+      private final long elapsedMillis;
+
+      private Result(final int numLines, final int numNew, final int numDuplicates, final int numMalformed, final long elapsedMillis)
+         {
+         this.numLines = numLines;
+         this.numNew = numNew;
+         this.numDuplicates = numDuplicates;
+         this.numMalformed = numMalformed;
+         this.elapsedMillis = elapsedMillis;
+         }
+
+      /** Returns the number of lines read, not including the header. */
+      public int getNumLines()
+         {
+         return numLines;
+         }
+
+      /** Returns the number of samples which will be {@link #load() loaded}. */
+      public int getNumNew()
+         {
+         return numNew;
+         }
+
+      public int getNumDuplicates()
+         {
+         return numDuplicates;
+         }
+
+      public int getNumMalformed()
+         {
+         return numMalformed;
+         }
+
+      public long getElapsedMillis()
+         {
+         return elapsedMillis;
+         }
+
+      /** Returns the number of lines read per second. */
+      public double getLinesPerSecond()
+         {
+         return numLines * 1000.0 / Math.max(1, elapsedMillis);
+         }
+
+      @Override
+      public String toString()
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append("Result");
+         sb.append("{numLines=").append(numLines);
+         sb.append(", numNew=").append(numNew);
+         sb.append(", numDuplicates=").append(numDuplicates);
+         sb.append(", numMalformed=").append(numMalformed);
+         sb.append(", elapsedMillis=").append(elapsedMillis);
+         sb.append('}');
+         return sb.toString();
+         }
+      }
+
+   /** A set of sample times, with one bit per second in pages of 65536 seconds, which are allocated as needed. */
+   private static final class SampleTimeSet
+      {
+      private static final int PAGE_SHIFT = 16;
+      private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+      private final Map<Integer, long[]> pages = new HashMap<Integer, long[]>();
+      private int lastPageNumber = 0;
+      private long[] lastPage = null;
+
+      /** Adds the given time, and returns <code>true</code> if it wasn't already in the set. */
+      private boolean add(final int sampleTime)
+         {
+         final int pageNumber = sampleTime >> PAGE_SHIFT;
+         if (lastPage == null || pageNumber != lastPageNumber)
+            {
+            lastPage = pages.get(pageNumber);
+            if (lastPage == null)
+               {
+               lastPage = new long[(PAGE_MASK + 1) / 64];
+               pages.put(pageNumber, lastPage);
+               }
+            lastPageNumber = pageNumber;
+            }
+
+         final int bit = sampleTime & PAGE_MASK;
+         final long mask = 1L << (bit & 63);
+         if ((lastPage[bit >>> 6] & mask) != 0)
+            {
+            return false;
+            }
+         lastPage[bit >>> 6] |= mask;
+         return true;
+         }
+      }
+
+   @NotNull
+   private final SpeckConfig speckConfig;
+
+   private final int uploadedBeforeTime;
+
+   @NotNull
+   private final DatabaseDataSampleStore databaseDataSampleStore;
+
+   private final SampleTimeSet sampleTimes = new SampleTimeSet();
+
+   @NotNull
+   private final File stagingFile;
+
+   private BufferedWriter stagingWriter;
+
+   private int numStaged = 0;
+
+   private final long importTimestampUtcMillis = System.currentTimeMillis();
+
+   /**
+    * Opens the database of the Speck with the given {@link SpeckConfig}, and finds the samples already in it.
+    * Imported samples taken before <code>uploadedBeforeTime</code> (in seconds since the epoch) will be marked as
+    * already uploaded.  Use {@link Integer#MIN_VALUE} to mark none of them as uploaded, or {@link Integer#MAX_VALUE}
+    * to mark them all.  The importer must be {@link #close() closed} when done.
+    *
+    * @throws InitializationException if the database cannot be opened or read, or the staging file cannot be created
+    */
+   public CsvDataSampleImporter(@NotNull final SpeckConfig speckConfig, final int uploadedBeforeTime) throws InitializationException
+      {
+      this.speckConfig = speckConfig;
+      this.uploadedBeforeTime = uploadedBeforeTime;
+      stagingFile = new File(SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig), STAGING_FILENAME);
+      databaseDataSampleStore = new DatabaseDataSampleStore(speckConfig);
+      try
+         {
+         final int numExisting = databaseDataSampleStore.exportDataSamples(
+               new DatabaseDataSampleStore.ExportHandler()
+               {
+               @Override
+               public void handleDataSample(@NotNull final Speck.DataSample dataSample, final long downloadTimestampUtcMillis, final boolean wasUploaded)
+                  {
+                  sampleTimes.add(dataSample.getSampleTime());
+                  }
+               });
+         LOG.info("CsvDataSampleImporter.CsvDataSampleImporter(): The database for Speck " + speckConfig.getId() + " already contains " + numExisting + " samples");
+
+         stagingWriter = new BufferedWriter(new FileWriter(stagingFile), BUFFER_SIZE);
+         }
+      catch (SQLException e)
+         {
+         LOG.error("CsvDataSampleImporter.CsvDataSampleImporter(): SQLException while reading the existing samples", e);
+         databaseDataSampleStore.shutdown();
+         throw new InitializationException(e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("CsvDataSampleImporter.CsvDataSampleImporter(): IOException while creating the staging file " + stagingFile, e);
+         databaseDataSampleStore.shutdown();
+         throw new InitializationException(e);
+         }
+      }
+
+   /**
+    * Reads the samples in the given CSV file, which is read as gzipped if its name ends with <code>.gz</code>, and
+    * stages the new ones to be {@link #load() loaded}.
+    *
+    * @throws IOException if the file cannot be read, its header doesn't match any protocol version, or the staging
+    * file cannot be written
+    * @throws IllegalStateException if called after {@link #load()}
+    */
+   @NotNull
+   public Result readFile(@NotNull final File file) throws IOException
+      {
+      if (stagingWriter == null)
+         {
+         throw new IllegalStateException("Cannot read files after the staged samples have been loaded");
+         }
+
+      final long startTime = System.currentTimeMillis();
+      InputStream inputStream = new FileInputStream(file);
+      if (file.getName().endsWith(COMPRESSED_EXTENSION))
+         {
+         inputStream = new GZIPInputStream(inputStream, BUFFER_SIZE);
+         }
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream), BUFFER_SIZE);
+      try
+         {
+         final String header = reader.readLine();
+         final ApiSupport apiSupport = (header == null) ? null : findApiSupport(header);
+         if (apiSupport == null)
+            {
+            throw new IOException("The header of " + file + " [" + header + "] doesn't match the field names of any protocol version");
+            }
+
+         int numLines = 0;
+         int numNew = 0;
+         int numDuplicates = 0;
+         int numMalformed = 0;
+         final String[] fields = new String[apiSupport.getDataSampleFieldNames().size()];
+         String line;
+         while ((line = reader.readLine()) != null)
+            {
+            numLines++;
+            final Speck.DataSample dataSample = parse(line, apiSupport, fields);
+            if (dataSample == null)
+               {
+               numMalformed++;
+               if (LOG.isDebugEnabled())
+                  {
+                  LOG.debug("CsvDataSampleImporter.readFile(): Skipping malformed line " + (numLines + 1) + " of " + file + " [" + line + "]");
+                  }
+               }
+            else if (sampleTimes.add(dataSample.getSampleTime()))
+               {
+               DatabaseDataSampleStore.writeImportLine(stagingWriter,
+                                                       dataSample,
+                                                       importTimestampUtcMillis,
+                                                       dataSample.getSampleTime() < uploadedBeforeTime ? importTimestampUtcMillis : null);
+               numNew++;
+               }
+            else
+               {
+               numDuplicates++;
+               }
+            }
+         numStaged += numNew;
+
+         final Result result = new Result(numLines, numNew, numDuplicates, numMalformed, System.currentTimeMillis() - startTime);
+         if (LOG.isInfoEnabled())
+            {
+            LOG.info("CsvDataSampleImporter.readFile(): Read " + file + " for Speck " + speckConfig.getId() + ": " + result);
+            }
+         return result;
+         }
+      finally
+         {
+         reader.close();
+         }
+      }
+
+   /**
+    * Loads the samples staged by {@link #readFile(File)} into the database, all at once, and returns the number loaded.
+    * If loading fails, none are loaded.  No more files may be read afterwards.
+    *
+    * @throws IOException if the staging file cannot be completed, or the samples cannot be loaded
+    */
+   public int load() throws IOException
+      {
+      if (stagingWriter != null)
+         {
+         stagingWriter.close();
+         stagingWriter = null;
+         if (numStaged > 0)
+            {
+            final long startTime = System.currentTimeMillis();
+            try
+               {
+               databaseDataSampleStore.importDataSamples(stagingFile);
+               }
+            catch (SQLException e)
+               {
+               LOG.error("CsvDataSampleImporter.load(): SQLException while loading " + numStaged + " samples into the database", e);
+               throw new IOException("Failed to load the samples into the database: " + e.getMessage());
+               }
+            if (LOG.isInfoEnabled())
+               {
+               LOG.info("CsvDataSampleImporter.load(): Loaded " + numStaged + " samples for Speck " + speckConfig.getId() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+               }
+            }
+         }
+      return numStaged;
+      }
+
+   /** Deletes the staging file and closes the database, without loading any staged samples which haven't been {@link #load() loaded}. */
+   public void close()
+      {
+      if (stagingWriter != null)
+         {
+         try
+            {
+            stagingWriter.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvDataSampleImporter.close(): IOException while closing the staging file", e);
+            }
+         stagingWriter = null;
+         }
+      if (stagingFile.exists() && !stagingFile.delete())
+         {
+         LOG.error("CsvDataSampleImporter.close(): Failed to delete the staging file " + stagingFile);
+         }
+      databaseDataSampleStore.shutdown();
+      }
+
+   /** Returns the {@link ApiSupport} whose field names match the given header, preferring the Speck's own, or <code>null</code> if none match. */
+   @Nullable
+   private ApiSupport findApiSupport(@NotNull final String header)
+      {
+      final List<String> fieldNames = Arrays.asList(header.trim().split("\\s*,\\s*"));
+      if (speckConfig.getApiSupport().getDataSampleFieldNames().equals(fieldNames))
+         {
+         return speckConfig.getApiSupport();
+         }
+      for (int versionNumber = 1; ApiSupport.isVersionNumberValid(versionNumber); versionNumber++)
+         {
+         final ApiSupport apiSupport = ApiSupport.getInstance(versionNumber);
+         if (apiSupport.getDataSampleFieldNames().equals(fieldNames))
+            {
+            return apiSupport;
+            }
+         }
+      return null;
+      }
+
+   /**
+    * Parses a line written by {@link Speck.DataSample#toCsv(ApiSupport)}, using the given array to hold its fields, or
+    * returns <code>null</code> if it's malformed.
+    */
+   @Nullable
+   private static Speck.DataSample parse(@NotNull final String line, @NotNull final ApiSupport apiSupport, @NotNull final String[] fields)
+      {
+      int start = 0;
+      for (int i = 0; i < fields.length; i++)
+         {
+         final int comma = line.indexOf(',', start);
+         final boolean isLastField = i == fields.length - 1;
+         if (isLastField ? comma >= 0 : comma < 0)
+            {
+            // too many or too few fields
+            return null;
+            }
+         final int end = isLastField ? line.length() : comma;
+         fields[i] = line.substring(start, end).trim();
+         start = end + 1;
+         }
+
+      try
+         {
+         int field = 0;
+         final int sampleTime = Integer.parseInt(fields[field++]);
+         final int rawParticleCount = Integer.parseInt(fields[field++]);
+         int particleCountOrConcentration = 0;
+         if (apiSupport.hasParticleCount())
+            {
+            particleCountOrConcentration = Integer.parseInt(fields[field++]);
+            }
+         if (apiSupport.hasParticleConcentration())
+            {
+            particleCountOrConcentration = (int)Math.round(Double.parseDouble(fields[field++]) * 10);
+            }
+         int temperatureInTenthsOfDegreeF = 0;
+         if (apiSupport.hasTemperatureSensor())
+            {
+            temperatureInTenthsOfDegreeF = (int)Math.round(Double.parseDouble(fields[field++]) * 10);
+            }
+         final int humidity = Integer.parseInt(fields[field]);
+         return new DataSample(null, sampleTime, rawParticleCount, particleCountOrConcentration, temperatureInTenthsOfDegreeF, humidity);
+         }
+      catch (NumberFormatException ignored)
+         {
+         return null;
+         }
+      }
+   }
@@ -3,8 +3,22 @@ package org.specksensor;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -15,6 +29,40 @@ import org.jetbrains.annotations.NotNull;
  * as records with comma-delimited values.
  * Does not support retrieval.
  * </p>
+ * <p>
+ * Samples are converted to CSV on the calling thread and then handed to a dedicated writer thread through a bounded
+ * queue, so callers never wait on a <code>write(2)</code> per sample.  The writer flushes in groups: whenever
+ * {@link #FLUSH_MAX_SAMPLES_SYSTEM_PROPERTY} samples have been written since the last flush, or when the oldest
+ * unflushed sample has waited {@link #FLUSH_MAX_LATENCY_MILLIS_SYSTEM_PROPERTY} milliseconds.  The queue holds at most
+ * {@link #QUEUE_CAPACITY_SYSTEM_PROPERTY} samples.  When it's full, saving blocks until the writer catches up.
+ * </p>
+ * <p>
+ * The {@link #DURABILITY_SYSTEM_PROPERTY} system property chooses what a successful save guarantees:
+ * <ul>
+ *    <li><code>buffered</code> (the default): the save returns as soon as the samples are queued.  Samples still in
+ *    the queue or not yet flushed (at most one flush interval's worth, plus the queue) are lost if the gateway exits
+ *    abnormally, and write errors are only logged.</li>
+ *    <li><code>flushed</code>: the save returns once the samples have been handed to the operating system.  They
+ *    survive the gateway crashing, but not the operating system crashing or losing power.</li>
+ *    <li><code>synced</code>: the save returns once the samples have been flushed and the file has been
+ *    <code>fsync</code>'d, so they survive losing power.</li>
+ * </ul>
+ * In the <code>flushed</code> and <code>synced</code> modes the writer doesn't wait for the latency limit; it flushes
+ * as soon as the queue is empty, so concurrent saves still share a single flush.
+ * </p>
+ * <p>
+ * Since this store {@link Provider#hasOwnWriteQueue() has its own write queue}, the
+ * {@link MultiDestinationDataSampleStore} saves to it directly, on the download pipeline's thread, so these guarantees
+ * hold before the samples are deleted from the Speck.  Only the primary store's result decides whether a sample is
+ * deleted, though, so a sample whose write fails here is still deleted (it's safe in the primary store); the failure
+ * is logged and counted in the secondary destination statistics.
+ * </p>
+ * <p>
+ * The file is rotated once it reaches {@link #ROTATE_MAX_MEGABYTES_SYSTEM_PROPERTY} megabytes, and at every
+ * {@link #ROTATE_INTERVAL_HOURS_SYSTEM_PROPERTY} hour boundary (UTC), so by default each day's samples start a new
+ * file.  Rotated files are handed to the device's {@link CsvSegmentArchive}, which compresses and indexes them in the
+ * background.  Rotation only happens between flushes, so a group of samples is never split across files.
+ * </p>
  *
  * @author Chris Bartley (bartley@cmu.edu)
  */
@@ -22,25 +70,172 @@ final class CsvDataSampleStore implements DataSampleStore
    {
    private static final Logger LOG = Logger.getLogger(CsvDataSampleStore.class);
 
+   public static final String DURABILITY_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.durability";
+   private static final Durability DEFAULT_DURABILITY = Durability.BUFFERED;
+   private static final Durability DURABILITY;
+
+   public static final String QUEUE_CAPACITY_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.queue-capacity";
+   private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+   private static final int QUEUE_CAPACITY;
+
+   public static final String FLUSH_MAX_SAMPLES_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.flush-max-samples";
+   private static final int DEFAULT_FLUSH_MAX_SAMPLES = 1000;
+   private static final int FLUSH_MAX_SAMPLES;
+
+   public static final String FLUSH_MAX_LATENCY_MILLIS_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.flush-max-latency-millis";
+   private static final long DEFAULT_FLUSH_MAX_LATENCY_MILLIS = 1000;
+   private static final long FLUSH_MAX_LATENCY_MILLIS;
+
+   public static final String ROTATE_MAX_MEGABYTES_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.rotate-max-megabytes";
+   private static final int DEFAULT_ROTATE_MAX_MEGABYTES = 64;
+   private static final int ROTATE_MAX_MEGABYTES;
+
+   public static final String ROTATE_INTERVAL_HOURS_SYSTEM_PROPERTY = "org.specksensor.CsvDataSampleStore.rotate-interval-hours";
+   private static final int DEFAULT_ROTATE_INTERVAL_HOURS = 24;
+   private static final int ROTATE_INTERVAL_HOURS;
+
+   private static final String DATA_FILENAME = "data_samples.csv";
+
+   /** How long {@link #shutdown()} waits for the writer thread to drain the queue */
+   private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 30;
+
+   private enum Durability
+      {
+         BUFFERED, FLUSHED, SYNCED
+      }
+
+   static
+      {
+      final String durability = System.getProperty(DURABILITY_SYSTEM_PROPERTY, DEFAULT_DURABILITY.name()).trim();
+      Durability durabilityToUse = DEFAULT_DURABILITY;
+      try
+         {
+         durabilityToUse = Durability.valueOf(durability.toUpperCase());
+         }
+      catch (IllegalArgumentException ignored)
+         {
+         LOG.error("CsvDataSampleStore.<clinit>(): Unknown durability [" + durability + "], defaulting to " + DEFAULT_DURABILITY.name().toLowerCase());
+         }
+      DURABILITY = durabilityToUse;
+      QUEUE_CAPACITY = SystemPropertyUtils.getInt(QUEUE_CAPACITY_SYSTEM_PROPERTY, DEFAULT_QUEUE_CAPACITY, 1);
+      FLUSH_MAX_SAMPLES = SystemPropertyUtils.getInt(FLUSH_MAX_SAMPLES_SYSTEM_PROPERTY, DEFAULT_FLUSH_MAX_SAMPLES, 1);
+      FLUSH_MAX_LATENCY_MILLIS = SystemPropertyUtils.getLong(FLUSH_MAX_LATENCY_MILLIS_SYSTEM_PROPERTY, DEFAULT_FLUSH_MAX_LATENCY_MILLIS, 0);
+      ROTATE_MAX_MEGABYTES = SystemPropertyUtils.getInt(ROTATE_MAX_MEGABYTES_SYSTEM_PROPERTY, DEFAULT_ROTATE_MAX_MEGABYTES, -1);
+      ROTATE_INTERVAL_HOURS = SystemPropertyUtils.getInt(ROTATE_INTERVAL_HOURS_SYSTEM_PROPERTY, DEFAULT_ROTATE_INTERVAL_HOURS, -1);
+      }
+
+   /** Lines queued by a single call to save, which the caller may wait on. */
+   private static final class PendingWrite
+      {
+      @NotNull
+      private final List<String> lines;
+      private final int numPermits;
+
+      /** Guarded by the store's <code>lock</code> */
+      private boolean isComplete = false;
+
+      /** Guarded by the store's <code>lock</code> */
+      private boolean wasSuccessful = false;
+
+      private PendingWrite(@NotNull final List<String> lines, final int numPermits)
+         {
+         this.lines = lines;
+         this.numPermits = numPermits;
+         }
+      }
+
+   /** Tells the writer thread to flush what it has and then close the file */
+   private static final PendingWrite SHUTDOWN = new PendingWrite(Collections.<String>emptyList(), 0);
+
    @NotNull
    private final SpeckConfig speckConfig;
 
+   @NotNull
+   private final File dataFile;
+
+   @NotNull
+   private final String header;
+
+   /** The size of a file containing only the header, in bytes */
+   private final long headerLength;
+
+   @NotNull
+   private CsvSegmentArchive csvSegmentArchive;
+
+   /** Only used by the writer thread (once the constructor has returned) */
+   @NotNull
+   private FileOutputStream fileOutputStream;
+
+   /** The rotation interval the current file was opened in.  Only used by the writer thread. */
+   private long rotationInterval;
+
    @NotNull
    private BufferedWriter writer;
 
+   @NotNull
+   private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+   /** One permit per sample the queue has room for */
+   @NotNull
+   private final Semaphore queueCapacity = new Semaphore(QUEUE_CAPACITY);
+
+   @NotNull
+   private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(this.getClass() + ".writerExecutor"));
+
+   @NotNull
+   private final Lock lock = new ReentrantLock();
+   @NotNull
+   private final Condition writeCompleted = lock.newCondition();
+
+   private volatile boolean isShutdown = false;
+
+   /** Provides the CSV file as the <code>csv</code> store. */
+   public static final class Provider implements DataSampleStoreProvider
+      {
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return "csv";
+         }
+
+      @Override
+      public boolean canBePrimaryStore()
+         {
+         return false;
+         }
+
+      @Override
+      public boolean hasOwnWriteQueue()
+         {
+         return true;
+         }
+
+      @NotNull
+      @Override
+      public DataSampleStore createDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
+         {
+         return new CsvDataSampleStore(speckConfig);
+         }
+      }
+
    CsvDataSampleStore(@NotNull final SpeckConfig speckConfig)
       {
       this.speckConfig = speckConfig;
       final File dataFileDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
-      final File dataFile = new File(dataFileDirectory, "data_samples.csv");
-      final boolean doesFileAlreadyExist = dataFile.exists();
+      dataFile = new File(dataFileDirectory, DATA_FILENAME);
+      header = StringUtils.join(speckConfig.getApiSupport().getDataSampleFieldNames(), ',');
+      headerLength = (header + System.getProperty("line.separator")).getBytes().length;
       try
          {
-         writer = new BufferedWriter(new FileWriter(dataFile, true));
-         if (!doesFileAlreadyExist)
+         csvSegmentArchive = new CsvSegmentArchive(dataFileDirectory);
+
+         // the file may have been left over from an earlier interval, or from before rotation existed
+         if (dataFile.exists() && isRotationDue(dataFile.length(), getRotationInterval(dataFile.lastModified())))
             {
-            write(StringUtils.join(speckConfig.getApiSupport().getDataSampleFieldNames(), ','));
+            csvSegmentArchive.addSegment(dataFile);
             }
+         openDataFile();
          }
       catch (FileNotFoundException e)
          {
@@ -52,6 +247,39 @@ final class CsvDataSampleStore implements DataSampleStore
          LOG.error("CsvDataSampleStore.CsvDataSampleStore(): IOException while trying to create the BufferedWriter", e);
          System.exit(1);
          }
+
+      writerExecutor.execute(new WriterRunnable());
+      }
+
+   private void openDataFile() throws IOException
+      {
+      final boolean doesFileAlreadyExist = dataFile.exists();
+      fileOutputStream = new FileOutputStream(dataFile, true);
+      writer = new BufferedWriter(new OutputStreamWriter(fileOutputStream));
+      if (!doesFileAlreadyExist)
+         {
+         writer.write(header);
+         writer.newLine();
+         writer.flush();
+         }
+      rotationInterval = getRotationInterval(System.currentTimeMillis());
+      }
+
+   private static long getRotationInterval(final long timestampMillis)
+      {
+      return ROTATE_INTERVAL_HOURS > 0 ? timestampMillis / (ROTATE_INTERVAL_HOURS * 60L * 60L * 1000L) : 0;
+      }
+
+   /** Returns <code>true</code> if a file of the given size, opened in the given interval, should be rotated now. */
+   private boolean isRotationDue(final long fileLength, final long fileRotationInterval)
+      {
+      // never rotate a file which doesn't contain any samples
+      if (fileLength <= headerLength)
+         {
+         return false;
+         }
+      return (ROTATE_MAX_MEGABYTES > 0 && fileLength >= ROTATE_MAX_MEGABYTES * 1024L * 1024L) ||
+             fileRotationInterval != getRotationInterval(System.currentTimeMillis());
       }
 
    @Override
@@ -59,24 +287,262 @@ final class CsvDataSampleStore implements DataSampleStore
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
       {
       LOG.debug("CsvDataSampleStore.save(): saving sample " + dataSample.getSampleTime());
+      return enqueue(Collections.singletonList(dataSample.toCsv(speckConfig.getApiSupport())));
+      }
+
+   @Override
+   @NotNull
+   public List<SaveResult> save(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      LOG.debug("CsvDataSampleStore.save(): saving " + dataSamples.size() + " samples");
+      if (dataSamples.isEmpty())
+         {
+         return Collections.emptyList();
+         }
+
+      final List<String> lines = new ArrayList<String>(dataSamples.size());
+      for (final Speck.DataSample dataSample : dataSamples)
+         {
+         lines.add(dataSample.toCsv(speckConfig.getApiSupport()));
+         }
+      return Collections.nCopies(dataSamples.size(), enqueue(lines));
+      }
+
+   /** Returns the number of samples which have been queued, but not yet flushed. */
+   int getNumPendingSamples()
+      {
+      return QUEUE_CAPACITY - queueCapacity.availablePermits();
+      }
+
+   @NotNull
+   private SaveResult enqueue(@NotNull final List<String> lines)
+      {
+      if (isShutdown)
+         {
+         LOG.error("CsvDataSampleStore.enqueue(): Cannot save " + lines.size() + " samples since the store has been shut down");
+         return SaveResult.FAILURE_ERROR;
+         }
+
+      // a save larger than the whole queue only needs to wait for the queue to be empty
+      final PendingWrite pendingWrite = new PendingWrite(lines, Math.min(lines.size(), QUEUE_CAPACITY));
       try
          {
-         write(dataSample.toCsv(speckConfig.getApiSupport()));
+         queueCapacity.acquire(pendingWrite.numPermits);
          }
-      catch (IOException e)
+      catch (InterruptedException e)
          {
-         LOG.error("CsvDataSampleStore.save(): IOException while trying to write to the file", e);
+         LOG.error("CsvDataSampleStore.enqueue(): InterruptedException while waiting for room in the queue", e);
+         Thread.currentThread().interrupt();
          return SaveResult.FAILURE_ERROR;
          }
+      queue.add(pendingWrite);
+
+      if (Durability.BUFFERED.equals(DURABILITY))
+         {
+         return SaveResult.SUCCESS;
+         }
 
-      return SaveResult.SUCCESS;
+      lock.lock();  // block until condition holds
+      try
+         {
+         while (!pendingWrite.isComplete)
+            {
+            writeCompleted.await();
+            }
+         return pendingWrite.wasSuccessful ? SaveResult.SUCCESS : SaveResult.FAILURE_ERROR;
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("CsvDataSampleStore.enqueue(): InterruptedException while waiting for the samples to be written", e);
+         Thread.currentThread().interrupt();
+         return SaveResult.FAILURE_ERROR;
+         }
+      finally
+         {
+         lock.unlock();
+         }
       }
 
-   private void write(final String str) throws IOException
+   private final class WriterRunnable implements Runnable
       {
-      writer.write(str);
-      writer.newLine();
-      writer.flush();
+      private final List<PendingWrite> unflushedWrites = new ArrayList<PendingWrite>();
+      private int numUnflushedSamples = 0;
+      private long oldestUnflushedWriteTimestamp = 0;
+      private boolean hasWriteFailed = false;
+
+      @Override
+      public void run()
+         {
+         LOG.debug("CsvDataSampleStore$WriterRunnable.run(): writer thread started");
+         try
+            {
+            while (true)
+               {
+               final PendingWrite pendingWrite;
+               if (unflushedWrites.isEmpty())
+                  {
+                  pendingWrite = queue.take();
+                  }
+               else
+                  {
+                  // in the buffered mode, wait for more samples until the oldest unflushed one is due, otherwise
+                  // flush as soon as the queue is empty since callers are waiting
+                  long millisToWait = 0;
+                  if (Durability.BUFFERED.equals(DURABILITY))
+                     {
+                     millisToWait = Math.max(0, oldestUnflushedWriteTimestamp + FLUSH_MAX_LATENCY_MILLIS - System.currentTimeMillis());
+                     }
+                  pendingWrite = queue.poll(millisToWait, TimeUnit.MILLISECONDS);
+                  }
+
+               if (pendingWrite == SHUTDOWN)
+                  {
+                  flush();
+                  break;
+                  }
+
+               if (pendingWrite == null)
+                  {
+                  flush();
+                  }
+               else
+                  {
+                  write(pendingWrite);
+                  if (numUnflushedSamples >= FLUSH_MAX_SAMPLES)
+                     {
+                     flush();
+                     }
+                  }
+               }
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.run(): InterruptedException while waiting for samples to write", e);
+            flush();
+            }
+
+         // fail anything which raced with shutdown so that no caller waits forever
+         final List<PendingWrite> remainingWrites = new ArrayList<PendingWrite>();
+         queue.drainTo(remainingWrites);
+         remainingWrites.remove(SHUTDOWN);
+         if (!remainingWrites.isEmpty())
+            {
+            hasWriteFailed = true;
+            unflushedWrites.addAll(remainingWrites);
+            for (final PendingWrite pendingWrite : remainingWrites)
+               {
+               numUnflushedSamples += pendingWrite.lines.size();
+               }
+            flush();
+            }
+
+         try
+            {
+            writer.close();
+            LOG.debug("CsvDataSampleStore$WriterRunnable.run(): writer thread closed the file");
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.run(): IOException while trying to close the writer", e);
+            }
+         }
+
+      private void write(@NotNull final PendingWrite pendingWrite)
+         {
+         if (unflushedWrites.isEmpty())
+            {
+            oldestUnflushedWriteTimestamp = System.currentTimeMillis();
+            }
+         unflushedWrites.add(pendingWrite);
+         numUnflushedSamples += pendingWrite.lines.size();
+
+         // keep writing (and then fail the whole group) once anything fails, since the writer may recover
+         try
+            {
+            for (final String line : pendingWrite.lines)
+               {
+               writer.write(line);
+               writer.newLine();
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.write(): IOException while trying to write to the file", e);
+            hasWriteFailed = true;
+            }
+         }
+
+      private void flush()
+         {
+         if (unflushedWrites.isEmpty())
+            {
+            return;
+            }
+
+         boolean wasSuccessful = !hasWriteFailed;
+         try
+            {
+            writer.flush();
+            if (Durability.SYNCED.equals(DURABILITY))
+               {
+               fileOutputStream.getFD().sync();
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.flush(): IOException while trying to flush the file", e);
+            wasSuccessful = false;
+            }
+
+         if (!wasSuccessful && Durability.BUFFERED.equals(DURABILITY))
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.flush(): Failed to write " + numUnflushedSamples + " samples to the file");
+            }
+
+         int numPermits = 0;
+         lock.lock();  // block until condition holds
+         try
+            {
+            for (final PendingWrite pendingWrite : unflushedWrites)
+               {
+               pendingWrite.isComplete = true;
+               pendingWrite.wasSuccessful = wasSuccessful;
+               numPermits += pendingWrite.numPermits;
+               }
+            writeCompleted.signalAll();
+            }
+         finally
+            {
+            lock.unlock();
+            }
+         queueCapacity.release(numPermits);
+
+         unflushedWrites.clear();
+         numUnflushedSamples = 0;
+         hasWriteFailed = false;
+
+         if (wasSuccessful)
+            {
+            rotateIfDue();
+            }
+         }
+
+      private void rotateIfDue()
+         {
+         try
+            {
+            if (isRotationDue(fileOutputStream.getChannel().size(), rotationInterval))
+               {
+               writer.close();
+               csvSegmentArchive.addSegment(dataFile);
+               openDataFile();
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvDataSampleStore$WriterRunnable.rotateIfDue(): IOException while trying to rotate the file", e);
+            }
+         }
       }
 
    /** Not supported, does nothing. */
@@ -108,17 +574,40 @@ final class CsvDataSampleStore implements DataSampleStore
       // not supported
       }
 
+   /** Nothing to do, so always returns {@link MaintenanceResult#NONE}. */
+   @NotNull
+   @Override
+   public MaintenanceResult performMaintenance()
+      {
+      return MaintenanceResult.NONE;
+      }
+
+   /**
+    * Stops accepting samples and waits for the writer thread to write everything already queued.  A segment still
+    * being compressed is finished the next time the store is created.
+    */
    @Override
    public void shutdown()
       {
+      isShutdown = true;
+      queue.add(SHUTDOWN);
+      writerExecutor.shutdown();
       try
          {
-         writer.close();
-         LOG.debug("CsvDataSampleStore.shutdown(): Successfully shut down the CsvDataSampleStore");
+         if (writerExecutor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+            {
+            LOG.debug("CsvDataSampleStore.shutdown(): Successfully shut down the CsvDataSampleStore");
+            }
+         else
+            {
+            LOG.error("CsvDataSampleStore.shutdown(): Timed out waiting for the writer to write " + getNumPendingSamples() + " pending samples");
+            }
          }
-      catch (IOException e)
+      catch (InterruptedException e)
          {
-         LOG.error("CsvDataSampleStore.shutdown(): IOException while trying to close the writer", e);
+         LOG.error("CsvDataSampleStore.shutdown(): InterruptedException while waiting for the writer to finish", e);
+         Thread.currentThread().interrupt();
          }
+      csvSegmentArchive.shutdown();
       }
    }
@@ -0,0 +1,343 @@
+package org.specksensor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>CsvSegmentArchive</code> holds the closed segments of a device's CSV file.  {@link CsvDataSampleStore} hands
+ * it each segment it rotates out, and a background thread then gzips the segment and appends a line describing it
+ * to the <code>index.csv</code> file, so that readers can find the segments covering a time range without opening
+ * any of the others.  Each line of the index has the segment's file name, the first and last sample times in it (in
+ * seconds since the epoch), the number of samples and the compressed size in bytes.  Segments are numbered in the
+ * order they were closed.
+ * </p>
+ * <p>
+ * A segment is only added to the index once its compressed file is complete, so a segment left uncompressed or
+ * unindexed by a crash is finished the next time the archive is opened.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class CsvSegmentArchive
+   {
+   private static final Logger LOG = Logger.getLogger(CsvSegmentArchive.class);
+
+   private static final String DIRECTORY_NAME = "csv_segments";
+   private static final String INDEX_FILENAME = "index.csv";
+   private static final String INDEX_HEADER = "segment,first_sample_timestamp_utc_secs,last_sample_timestamp_utc_secs,num_samples,compressed_bytes";
+   private static final String SEGMENT_FILENAME_FORMAT = "data_samples-%06d.csv";
+   private static final Pattern SEGMENT_FILENAME_PATTERN = Pattern.compile("data_samples-(\\d{6,})\\.csv(\\.gz)?");
+   private static final String COMPRESSED_EXTENSION = ".gz";
+   private static final String TEMPORARY_EXTENSION = ".tmp";
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   /** How long {@link #shutdown()} waits for pending segments before leaving them for the next startup */
+   private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 5;
+
+   @NotNull
+   private final File directory;
+
+   @NotNull
+   private final File indexFile;
+
+   @NotNull
+   private final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(this.getClass() + ".executor"));
+
+   /** Only used by the thread which adds segments */
+   private int nextSegmentNumber = 1;
+
+   /**
+    * Opens the archive in the given device data directory, and resumes compressing and indexing any segments left
+    * unfinished by a previous run.
+    *
+    * @throws IOException if the archive's directory cannot be created or its index cannot be read
+    */
+   CsvSegmentArchive(@NotNull final File dataDirectory) throws IOException
+      {
+      directory = new File(dataDirectory, DIRECTORY_NAME);
+      indexFile = new File(directory, INDEX_FILENAME);
+      if (!directory.isDirectory() && !directory.mkdirs())
+         {
+         throw new IOException("Failed to create the CSV segment directory " + directory);
+         }
+
+      final Set<String> indexedSegmentNames = readIndexedSegmentNames();
+
+      // find the existing segments, in order, so that unfinished ones are finished in the order they were closed
+      final SortedMap<Integer, File> unfinishedSegments = new TreeMap<Integer, File>();
+      final File[] files = directory.listFiles();
+      if (files != null)
+         {
+         for (final File file : files)
+            {
+            if (file.getName().endsWith(TEMPORARY_EXTENSION))
+               {
+               if (!file.delete())
+                  {
+                  LOG.error("CsvSegmentArchive.CsvSegmentArchive(): Failed to delete incomplete file " + file);
+                  }
+               continue;
+               }
+
+            final Matcher matcher = SEGMENT_FILENAME_PATTERN.matcher(file.getName());
+            if (matcher.matches())
+               {
+               final int segmentNumber = Integer.parseInt(matcher.group(1));
+               nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber + 1);
+
+               final boolean isCompressed = matcher.group(2) != null;
+               if (!isCompressed && indexedSegmentNames.contains(file.getName() + COMPRESSED_EXTENSION))
+                  {
+                  // already archived, but deleting the original failed last time
+                  if (!file.delete())
+                     {
+                     LOG.error("CsvSegmentArchive.CsvSegmentArchive(): Failed to delete already archived file " + file);
+                     }
+                  continue;
+                  }
+               if (!isCompressed || !indexedSegmentNames.contains(file.getName()))
+                  {
+                  // an uncompressed copy wins, since it's only deleted once the compressed one is complete
+                  if (!isCompressed || !unfinishedSegments.containsKey(segmentNumber))
+                     {
+                     unfinishedSegments.put(segmentNumber, file);
+                     }
+                  }
+               }
+            }
+         }
+
+      for (final File segment : unfinishedSegments.values())
+         {
+         LOG.info("CsvSegmentArchive.CsvSegmentArchive(): Resuming unfinished segment " + segment.getName());
+         executor.execute(new SegmentRunnable(segment));
+         }
+      }
+
+   /**
+    * Moves the given (closed) CSV file into the archive as its newest segment, and schedules it to be compressed and
+    * indexed.  Returns <code>false</code> if the file couldn't be moved, in which case it's left where it was.
+    */
+   boolean addSegment(@NotNull final File csvFile)
+      {
+      final File segment = new File(directory, String.format(SEGMENT_FILENAME_FORMAT, nextSegmentNumber));
+      if (!csvFile.renameTo(segment))
+         {
+         LOG.error("CsvSegmentArchive.addSegment(): Failed to move " + csvFile + " to " + segment);
+         return false;
+         }
+      nextSegmentNumber++;
+
+      LOG.info("CsvSegmentArchive.addSegment(): Added segment " + segment.getName());
+      executor.execute(new SegmentRunnable(segment));
+      return true;
+      }
+
+   void shutdown()
+      {
+      executor.shutdown();
+      try
+         {
+         if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+            {
+            LOG.info("CsvSegmentArchive.shutdown(): Leaving unfinished segments to be finished at the next startup");
+            }
+         }
+      catch (InterruptedException e)
+         {
+         LOG.error("CsvSegmentArchive.shutdown(): InterruptedException while waiting for the compression to finish", e);
+         Thread.currentThread().interrupt();
+         }
+      }
+
+   @NotNull
+   private Set<String> readIndexedSegmentNames() throws IOException
+      {
+      final Set<String> names = new HashSet<String>();
+      if (indexFile.exists())
+         {
+         final BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+         try
+            {
+            String line;
+            while ((line = reader.readLine()) != null)
+               {
+               final int commaPosition = line.indexOf(',');
+               if (commaPosition > 0)
+                  {
+                  names.add(line.substring(0, commaPosition));
+                  }
+               }
+            }
+         finally
+            {
+            reader.close();
+            }
+         }
+      return names;
+      }
+
+   /** Compresses (if necessary) and then indexes a single segment.  Only ever run on the archive's executor. */
+   private final class SegmentRunnable implements Runnable
+      {
+      @NotNull
+      private final File segment;
+
+      private int firstSampleTime = 0;
+      private int lastSampleTime = 0;
+      private int numSamples = 0;
+
+      private SegmentRunnable(@NotNull final File segment)
+         {
+         this.segment = segment;
+         }
+
+      @Override
+      public void run()
+         {
+         try
+            {
+            final File compressedSegment;
+            if (segment.getName().endsWith(COMPRESSED_EXTENSION))
+               {
+               compressedSegment = segment;
+               scan(new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(segment), BUFFER_SIZE))), null);
+               }
+            else
+               {
+               compressedSegment = compress();
+               }
+
+            appendToIndex(compressedSegment);
+            LOG.info("CsvSegmentArchive$SegmentRunnable.run(): Archived " + numSamples + " samples in " + compressedSegment.getName() + " (" + compressedSegment.length() + " bytes)");
+            }
+         catch (IOException e)
+            {
+            LOG.error("CsvSegmentArchive$SegmentRunnable.run(): IOException while archiving segment " + segment.getName() + ", will retry at the next startup", e);
+            }
+         }
+
+      @NotNull
+      private File compress() throws IOException
+         {
+         final File compressedSegment = new File(directory, segment.getName() + COMPRESSED_EXTENSION);
+         final File temporaryFile = new File(directory, compressedSegment.getName() + TEMPORARY_EXTENSION);
+
+         final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temporaryFile), BUFFER_SIZE)));
+         try
+            {
+            scan(new BufferedReader(new FileReader(segment), BUFFER_SIZE), writer);
+            }
+         finally
+            {
+            writer.close();
+            }
+
+         if (compressedSegment.exists() && !compressedSegment.delete())
+            {
+            throw new IOException("Failed to replace the existing " + compressedSegment);
+            }
+         if (!temporaryFile.renameTo(compressedSegment))
+            {
+            throw new IOException("Failed to rename " + temporaryFile + " to " + compressedSegment);
+            }
+         if (!segment.delete())
+            {
+            LOG.error("CsvSegmentArchive$SegmentRunnable.compress(): Failed to delete " + segment + " after compressing it");
+            }
+         return compressedSegment;
+         }
+
+      /** Reads every line, copying them to the given writer (if any), and gathers the time range of the samples. */
+      private void scan(@NotNull final BufferedReader reader, @Nullable final BufferedWriter writer) throws IOException
+         {
+         try
+            {
+            String line;
+            while ((line = reader.readLine()) != null)
+               {
+               if (writer != null)
+                  {
+                  writer.write(line);
+                  writer.newLine();
+                  }
+
+               // the sample time is the first field, and the header (or a partially-written line) won't parse
+               final int commaPosition = line.indexOf(',');
+               if (commaPosition > 0)
+                  {
+                  try
+                     {
+                     final int sampleTime = Integer.parseInt(line.substring(0, commaPosition));
+                     if (numSamples == 0 || sampleTime < firstSampleTime)
+                        {
+                        firstSampleTime = sampleTime;
+                        }
+                     if (numSamples == 0 || sampleTime > lastSampleTime)
+                        {
+                        lastSampleTime = sampleTime;
+                        }
+                     numSamples++;
+                     }
+                  catch (NumberFormatException ignored)
+                     {
+                     // not a sample
+                     }
+                  }
+               }
+            }
+         finally
+            {
+            reader.close();
+            }
+         }
+
+      private void appendToIndex(@NotNull final File compressedSegment) throws IOException
+         {
+         final boolean isNewIndex = !indexFile.exists();
+         final BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, true));
+         try
+            {
+            if (isNewIndex)
+               {
+               writer.write(INDEX_HEADER);
+               writer.newLine();
+               }
+            writer.write(compressedSegment.getName() + "," +
+                         (numSamples > 0 ? firstSampleTime : "") + "," +
+                         (numSamples > 0 ? lastSampleTime : "") + "," +
+                         numSamples + "," +
+                         compressedSegment.length());
+            writer.newLine();
+            }
+         finally
+            {
+            writer.close();
+            }
+         }
+      }
+   }
@@ -106,6 +106,31 @@ public final class DataSampleDownloader
       return new DownloadResponse(failureCause, dataSample);
       }
 
+   /**
+    * Returns the number of samples currently available on the device, or <code>null</code> if the device can't report
+    * it (see {@link ApiSupport#canGetNumberOfDataSamples()}) or the request failed.
+    */
+   @Nullable
+   public Integer getNumberOfAvailableSamples()
+      {
+      if (device.getSpeckConfig().getApiSupport().canGetNumberOfDataSamples())
+         {
+         try
+            {
+            return device.getNumberOfAvailableSamples();
+            }
+         catch (CommunicationException e)
+            {
+            LOG.error("DataSampleDownloader.getNumberOfAvailableSamples(): CommunicationException while trying to read the number of available samples.", e);
+            }
+         catch (UnsupportedOperationException e)
+            {
+            LOG.error("DataSampleDownloader.getNumberOfAvailableSamples(): UnsupportedOperationException while trying to read the number of available samples.", e);
+            }
+         }
+      return null;
+      }
+
    public boolean deleteDataSample(@Nullable final Speck.DataSample dataSample)
       {
       boolean wasDeleteSuccessful = false;
@@ -2,14 +2,17 @@ package org.specksensor;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,7 +44,17 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             DELETES_FAILED,
             SAVES_REQUESTED,
             SAVES_SUCCESSFUL,
-            SAVES_FAILED
+            SAVES_FAILED,
+            BACKLOG_REMAINING,
+            BACKLOG_DOWNLOAD_RATE,
+            BACKLOG_ETA_SECONDS,
+            NEXT_DOWNLOAD_DELAY_MILLIS,
+            CONSECUTIVE_DOWNLOAD_FAILURES,
+            SAMPLES_PURGED,
+            KILOBYTES_RECLAIMED,
+            UPLOAD_WINDOW_SIZE,
+            UPLOADS_IN_FLIGHT,
+            UPLOAD_BATCH_SIZE
          }
 
       interface Listener
@@ -57,15 +70,63 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
    private static final Logger LOG = Logger.getLogger(DataSampleManager.class);
    private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
 
+   public static final String CATCH_UP_MODE_THRESHOLD_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.catch-up-mode-threshold";
+   private static final int DEFAULT_CATCH_UP_MODE_THRESHOLD = 10;
+   private static final int CATCH_UP_MODE_THRESHOLD;
+
+   public static final String MAINTENANCE_INTERVAL_MINUTES_SYSTEM_PROPERTY = "org.specksensor.DataSampleManager.maintenance-interval-minutes";
+   private static final long DEFAULT_MAINTENANCE_INTERVAL_MINUTES = 60;
+   private static final long MAINTENANCE_INTERVAL_MINUTES;
+
+   /** How often (in samples) catch-up mode re-reads the number of available samples from the device */
+   private static final int CATCH_UP_MODE_RESYNC_INTERVAL = 500;
+
+   /** How often catch-up mode publishes its progress to the statistics listeners */
+   private static final long CATCH_UP_MODE_PUBLISH_INTERVAL_IN_MILLIS = 1000;
+
+   static
+      {
+      CATCH_UP_MODE_THRESHOLD = SystemPropertyUtils.getInt(CATCH_UP_MODE_THRESHOLD_SYSTEM_PROPERTY, DEFAULT_CATCH_UP_MODE_THRESHOLD, 1);
+      MAINTENANCE_INTERVAL_MINUTES = SystemPropertyUtils.getLong(MAINTENANCE_INTERVAL_MINUTES_SYSTEM_PROPERTY, DEFAULT_MAINTENANCE_INTERVAL_MINUTES, 1);
+      }
+
    @Nullable
    private final DataSampleDownloader dataSampleDownloader;
 
    @NotNull
-   private final DataSampleStore dataSampleStore;
+   private final MultiDestinationDataSampleStore dataSampleStore;
 
    @Nullable
    private DataSampleUploader dataSampleUploader = null;
 
+   /** Limits the number of upload batches in flight at once; created along with the {@link #dataSampleUploader} */
+   @Nullable
+   private UploadWindow uploadWindow = null;
+
+   /** Chooses the number of samples in each upload batch */
+   @NotNull
+   private final UploadBatchSizer uploadBatchSizer = new UploadBatchSizer();
+
+   /** The size at which each upload batch in flight was requested, and the time at which it was submitted */
+   @NotNull
+   private final Map<DataSampleSet, UploadBatch> uploadBatchesInFlight = Collections.synchronizedMap(new IdentityHashMap<DataSampleSet, UploadBatch>());
+
+   private static final class UploadBatch
+      {
+      private final int requestedSize;
+      private final long submissionTimeMillis;
+
+      private UploadBatch(final int requestedSize, final long submissionTimeMillis)
+         {
+         this.requestedSize = requestedSize;
+         this.submissionTimeMillis = submissionTimeMillis;
+         }
+      }
+
+   /** Whether a delayed check for samples to upload is already scheduled, so that at most one is pending at a time */
+   @NotNull
+   private final AtomicBoolean isDelayedUploadScheduled = new AtomicBoolean(false);
+
    private boolean isRunning = false;
    private boolean hasBeenShutdown = false;
 
@@ -78,6 +139,28 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
    @NotNull
    private final StatisticsImpl statistics = new StatisticsImpl();
 
+   /** The number of samples deleted from the device.  Only accessed by the download runnable. */
+   private int numDataSamplesDeleted = 0;
+
+   /** Only accessed by the download runnable */
+   private boolean isBacklogCheckNeeded = true;
+
+   /**
+    * Whether catch-up mode is running, in which case progress is logged to the console once a second rather than for
+    * every sample.  Only accessed by the download runnable.
+    */
+   private boolean isInCatchUpMode = false;
+
+   /** Only accessed by the download runnable */
+   @NotNull
+   private final DownloadScheduler downloadScheduler = new DownloadScheduler();
+
+   /**
+    * Downloads a sample from the device, saves it, and deletes it from the device, and then reschedules itself.  These
+    * steps can't overlap, since the Speck keeps handing out its oldest sample until that sample is deleted, and a sample
+    * mustn't be deleted until it has been saved.  If a sizeable backlog is found on the device, this switches into
+    * catch-up mode (see {@link #downloadBacklog(int)}) until the backlog has been drained.
+    */
    @NotNull
    private final Runnable downloadDataSampleRunnable =
          new Runnable()
@@ -87,124 +170,98 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             {
             if (dataSampleDownloader != null)
                {
-               CONSOLE_LOG.info("Downloading data sample from device...");
-
-               // try to download a data sample
-               final DataSampleDownloader.DownloadResponse downloadResponse = dataSampleDownloader.downloadDataSample();
-
-               final int delayInSecondsUntilNextDataSampleRequest;
-               final DataSampleDownloader.DownloadResponse.Status status = downloadResponse.getStatus();
-               switch (status)
+               // see whether there's a backlog worth draining in catch-up mode
+               boolean isDataAvailable = true;
+               if (isBacklogCheckNeeded)
                   {
-                  case OK:
-                     statistics.incrementDownloadsRequested();
-                     statistics.incrementDownloadsSuccessful();
-
-                     // make sure the data sample is non-null
-                     final Speck.DataSample dataSample = downloadResponse.getDataSample();
-                     if (dataSample == null)
+                  isBacklogCheckNeeded = false;
+                  final Integer numAvailableSamples = dataSampleDownloader.getNumberOfAvailableSamples();
+                  if (numAvailableSamples != null)
+                     {
+                     if (numAvailableSamples >= CATCH_UP_MODE_THRESHOLD)
                         {
-                        LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Failed to save data sample because it was null.  This shouldn't ever happen!");
+                        downloadBacklog(numAvailableSamples);
                         }
-                     else
+                     else if (numAvailableSamples == 0)
                         {
-                        if (CONSOLE_LOG.isInfoEnabled())
-                           {
-                           CONSOLE_LOG.info("Got data sample " + dataSample.getSampleTime());
-                           CONSOLE_LOG.info("Saving data sample " + dataSample.getSampleTime() + "...");
-                           }
+                        // no need to spend a read on the device
+                        isDataAvailable = false;
+                        }
+                     }
+                  }
 
-                        // try to save the data sample
-                        statistics.incrementSavesRequested();
-                        final DataSampleStore.SaveResult saveResult = dataSampleStore.save(dataSample);
+               if (Thread.currentThread().isInterrupted())
+                  {
+                  return;
+                  }
 
-                        if (saveResult.wasSuccessful())
-                           {
-                           statistics.incrementSavesSuccessful();
-
-                           LOG.debug("DataSampleManager.downloadDataSampleRunnable.run(): Saved data sample [" + dataSample.getSampleTime() + "]");
-
-                           if (CONSOLE_LOG.isInfoEnabled())
-                              {
-                              CONSOLE_LOG.info("Saved data sample " + dataSample.getSampleTime());
-                              CONSOLE_LOG.info("Deleting data sample " + dataSample.getSampleTime() + " from device...");
-                              }
-
-                           // submit a request to delete the sample from the device
-                           statistics.incrementDeletesRequested();
-                           final boolean wasDeleteSuccessful = dataSampleDownloader.deleteDataSample(dataSample);
-
-                           if (wasDeleteSuccessful)
-                              {
-                              statistics.incrementDeletesSuccessful();
-
-                              if (CONSOLE_LOG.isInfoEnabled())
-                                 {
-                                 CONSOLE_LOG.info("Data sample " + dataSample.getSampleTime() + " was successfully deleted from the device.");
-                                 }
-                              }
-                           else
-                              {
-                              statistics.incrementDeletesFailed();
-
-                              if (CONSOLE_LOG.isInfoEnabled())
-                                 {
-                                 CONSOLE_LOG.error("Data sample " + dataSample.getSampleTime() + " could not be deleted from the device.");
-                                 }
-                              }
-                           }
-                        else
-                           {
-                           statistics.incrementSavesFailed();
+               final DataSampleDownloader.DownloadResponse.Status status = isDataAvailable ? downloadAndSaveDataSample() : DataSampleDownloader.DownloadResponse.Status.NO_DATA_AVAILABLE;
 
-                           LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Failed to save data sample [" + dataSample + "]");
-                           CONSOLE_LOG.error("Failed to save data sample " + dataSample.getSampleTime());
-                           }
-                        }
-                     delayInSecondsUntilNextDataSampleRequest = 0;
+               final long delayInMillisUntilNextDataSampleRequest;
+               if (Thread.currentThread().isInterrupted())
+                  {
+                  // we were interrupted, probably due to shutdown, so don't reschedule
+                  delayInMillisUntilNextDataSampleRequest = -1;
+                  }
+               else
+                  {
+                  switch (status)
+                     {
+                     case OK:
+                        delayInMillisUntilNextDataSampleRequest = downloadScheduler.computeDelayAfterDataSampleDownloaded();
 
-                     break;
-                  case NO_DATA_AVAILABLE:
+                        break;
+                     case NO_DATA_AVAILABLE:
 
-                     delayInSecondsUntilNextDataSampleRequest = 30;
+                        delayInMillisUntilNextDataSampleRequest = downloadScheduler.computeDelayAfterNoDataAvailable();
 
-                     if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
-                        {
-                        final String message = "No data currently available.  Will try again in " + delayInSecondsUntilNextDataSampleRequest + " seconds.";
-                        LOG.info("DataSampleManager.downloadDataSampleRunnable.run(): " + message);
-                        CONSOLE_LOG.info(message);
+                        if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+                           {
+                           final String message = "No data currently available.  Will try again in " + delayInMillisUntilNextDataSampleRequest + " milliseconds.";
+                           LOG.info("DataSampleManager.downloadDataSampleRunnable.run(): " + message);
+                           CONSOLE_LOG.info(message);
 
-                        final String stats = getStatisticsAsString();
-                        LOG.info(stats);
-                        CONSOLE_LOG.info(stats);
-                        }
+                           final String stats = getStatisticsAsString();
+                           LOG.info(stats);
+                           CONSOLE_LOG.info(stats);
+                           }
 
-                     break;
-                  case COMMUNICATION_FAILURE:
-                     statistics.incrementDownloadsRequested();
-                     statistics.incrementDownloadsFailed();
+                        break;
+                     case COMMUNICATION_FAILURE:
 
-                     delayInSecondsUntilNextDataSampleRequest = 5;
+                        delayInMillisUntilNextDataSampleRequest = downloadScheduler.computeDelayAfterCommunicationFailure();
 
-                     LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Download failed due to a communication failure.");
-                     CONSOLE_LOG.error("Data sample download failed due to a communication error.  Will try again in " + delayInSecondsUntilNextDataSampleRequest + " seconds.");
+                        CONSOLE_LOG.error("Data sample download failed due to a communication error.  Will try again in " + delayInMillisUntilNextDataSampleRequest + " milliseconds.");
 
-                     break;
-                  default:
-                     delayInSecondsUntilNextDataSampleRequest = -1;
-                     LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Unexpected DownloadResponse.Status: " + status);
+                        break;
+                     default:
+                        delayInMillisUntilNextDataSampleRequest = -1;
+                        LOG.error("DataSampleManager.downloadDataSampleRunnable.run(): Unexpected DownloadResponse.Status: " + status);
 
-                     break;
+                        break;
+                     }
                   }
 
-               if (delayInSecondsUntilNextDataSampleRequest >= 0)
+               if (delayInMillisUntilNextDataSampleRequest >= 0)
                   {
-                  scheduleDataSampleDownload(delayInSecondsUntilNextDataSampleRequest, TimeUnit.SECONDS);
+                  // a backlog may have built up while we were waiting
+                  if (delayInMillisUntilNextDataSampleRequest > 0)
+                     {
+                     isBacklogCheckNeeded = true;
+                     }
+                  statistics.setNextDownloadDelayInMillis((int)delayInMillisUntilNextDataSampleRequest);
+                  statistics.setConsecutiveDownloadFailures(downloadScheduler.getNumConsecutiveFailures());
+                  scheduleDataSampleDownload(delayInMillisUntilNextDataSampleRequest, TimeUnit.MILLISECONDS);
                   }
                }
             }
          };
 
+   /**
+    * Fills the {@link UploadWindow}, submitting batches of samples to upload until the window is full or there are no
+    * more full batches waiting.  The data store marks the samples in each batch as in progress, so every batch in
+    * flight holds different samples.
+    */
    @NotNull
    private final Runnable uploadDataSampleRunnable =
          new Runnable()
@@ -212,42 +269,86 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          @Override
          public void run()
             {
-            if (dataSampleUploader != null)
+            if (dataSampleUploader != null && uploadWindow != null)
                {
                CONSOLE_LOG.info("Uploading data samples...");
 
-               final DataSampleSet dataSampleSet = dataSampleStore.getDataSamplesToUpload(DataSampleSet.DEFAULT_SIZE);
-
-               if (dataSampleSet.isEmpty())
+               while (uploadWindow.tryAcquire())
                   {
-                  if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+                  final int batchSize = uploadBatchSizer.getSize();
+                  final DataSampleSet dataSampleSet = dataSampleStore.getDataSamplesToUpload(batchSize);
+
+                  if (dataSampleSet.isEmpty())
                      {
-                     final String msg = "No samples found which need to be uploaded.  Will retry in 15 seconds.";
-                     LOG.info("DataSampleManager.uploadDataSampleRunnable(): " + msg);
-                     CONSOLE_LOG.info(msg);
+                     uploadWindow.release();
+                     updateUploadWindowStatistics();
+
+                     // if uploads are still in flight, their completion will check again
+                     if (uploadWindow.getNumInFlight() == 0)
+                        {
+                        if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+                           {
+                           final String msg = "No samples found which need to be uploaded.  Will retry in 15 seconds.";
+                           LOG.info("DataSampleManager.uploadDataSampleRunnable(): " + msg);
+                           CONSOLE_LOG.info(msg);
+                           }
+
+                        scheduleDataSampleUpload(15, TimeUnit.SECONDS);
+                        }
+                     break;
                      }
 
-                  scheduleDataSampleUpload(15, TimeUnit.SECONDS);
-                  }
-               else
-                  {
                   if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
                      {
                      final String msg = "Found " + dataSampleSet.size() + " samples to upload.";
-                     LOG.info("DataSampleManager.uploadDataSampleRunnable(): " + msg);
+                     LOG.info("DataSampleManager.uploadDataSampleRunnable(): " + msg + "  " + uploadWindow);
                      CONSOLE_LOG.info(msg);
                      }
 
-                  dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
+                  submitDataSampleSet(dataSampleSet, batchSize);
 
-                  // update statistics
-                  statistics.incrementFileUploadsRequested();
-                  statistics.incrementSampleUploadsRequested(dataSampleSet.size());
+                  // a partial batch means there are no more samples waiting, so leave the rest of the window for later
+                  if (dataSampleSet.size() < batchSize)
+                     {
+                     break;
+                     }
                   }
                }
             }
          };
 
+   /**
+    * Periodically lets the data store purge uploaded samples and reclaim space, on the executor rather than on any of
+    * the download pipeline's threads.
+    */
+   @NotNull
+   private final Runnable maintenanceRunnable =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            try
+               {
+               final DataSampleStore.MaintenanceResult maintenanceResult = dataSampleStore.performMaintenance();
+               LOG.debug("DataSampleManager.maintenanceRunnable.run(): " + maintenanceResult);
+               if (maintenanceResult.getNumSamplesPurged() > 0)
+                  {
+                  statistics.incrementSamplesPurged(maintenanceResult.getNumSamplesPurged());
+                  }
+               if (maintenanceResult.getNumBytesReclaimed() > 0)
+                  {
+                  statistics.incrementKilobytesReclaimed((int)(maintenanceResult.getNumBytesReclaimed() / 1024));
+                  }
+               }
+            catch (Exception e)
+               {
+               // don't let an unexpected exception cancel future maintenance
+               LOG.error("DataSampleManager.maintenanceRunnable.run(): Exception while performing maintenance on the data store", e);
+               }
+            }
+         };
+
    public DataSampleManager(@NotNull final SpeckConfig speckConfig,
                             @Nullable final DataSampleDownloader dataSampleDownloader) throws InitializationException
       {
@@ -271,6 +372,7 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          {
          if (dataSampleUploader != null)
             {
+            this.uploadWindow = new UploadWindow(dataSampleUploader.getSimultaneousUploadCount());
             this.dataSampleUploader = dataSampleUploader;
 
             // register self as a listener to the uploader so we can get notified when uploads are complete
@@ -311,6 +413,8 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
 
             // schedule the command to get available data samples, which will reschedule itself upon completion
             scheduleDataSampleDownload(0, TimeUnit.SECONDS);
+
+            executor.scheduleWithFixedDelay(maintenanceRunnable, MAINTENANCE_INTERVAL_MINUTES, MAINTENANCE_INTERVAL_MINUTES, TimeUnit.MINUTES);
             }
          else
             {
@@ -331,7 +435,214 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          }
       }
 
-   private void scheduleDataSampleDownload(final int delay, final TimeUnit timeUnit)
+   /**
+    * Downloads a single sample from the device and, if successful, saves it and then deletes it from the device.
+    * Returns the status of the download.
+    */
+   @NotNull
+   private DataSampleDownloader.DownloadResponse.Status downloadAndSaveDataSample()
+      {
+      if (dataSampleDownloader == null)
+         {
+         return DataSampleDownloader.DownloadResponse.Status.NO_DATA_AVAILABLE;
+         }
+
+      if (isLoggingEachSampleToConsole())
+         {
+         CONSOLE_LOG.info("Downloading data sample from device...");
+         }
+
+      // try to download a data sample
+      final DataSampleDownloader.DownloadResponse downloadResponse = dataSampleDownloader.downloadDataSample();
+
+      final DataSampleDownloader.DownloadResponse.Status status = downloadResponse.getStatus();
+      switch (status)
+         {
+         case OK:
+            statistics.incrementDownloadsRequested();
+            statistics.incrementDownloadsSuccessful();
+
+            // make sure the data sample is non-null
+            final Speck.DataSample dataSample = downloadResponse.getDataSample();
+            if (dataSample == null)
+               {
+               LOG.error("DataSampleManager.downloadAndSaveDataSample(): Failed to save data sample because it was null.  This shouldn't ever happen!");
+               }
+            else
+               {
+               if (isLoggingEachSampleToConsole())
+                  {
+                  CONSOLE_LOG.info("Got data sample " + dataSample.getSampleTime());
+                  }
+               downloadScheduler.recordDataSampleDownloaded(dataSample.getSampleTime());
+               saveAndDeleteDataSample(dataSample);
+               }
+            break;
+         case COMMUNICATION_FAILURE:
+            statistics.incrementDownloadsRequested();
+            statistics.incrementDownloadsFailed();
+
+            LOG.error("DataSampleManager.downloadAndSaveDataSample(): Download failed due to a communication failure.");
+
+            break;
+         default:
+            // nothing to do
+         }
+
+      return status;
+      }
+
+   /**
+    * Saves the given sample and, only once the save has succeeded, deletes it from the device.  If either fails, the
+    * sample remains on the device and will be downloaded again.
+    */
+   private void saveAndDeleteDataSample(@NotNull final Speck.DataSample dataSample)
+      {
+      if (isLoggingEachSampleToConsole())
+         {
+         CONSOLE_LOG.info("Saving data sample " + dataSample.getSampleTime() + "...");
+         }
+
+      // try to save the data sample
+      statistics.incrementSavesRequested();
+      final DataSampleStore.SaveResult saveResult = dataSampleStore.save(dataSample);
+
+      if (saveResult.wasSuccessful())
+         {
+         statistics.incrementSavesSuccessful();
+
+         LOG.debug("DataSampleManager.saveAndDeleteDataSample(): Saved data sample [" + dataSample.getSampleTime() + "]");
+
+         if (isLoggingEachSampleToConsole())
+            {
+            CONSOLE_LOG.info("Saved data sample " + dataSample.getSampleTime());
+            CONSOLE_LOG.info("Deleting data sample " + dataSample.getSampleTime() + " from device...");
+            }
+
+         // submit a request to delete the sample from the device
+         statistics.incrementDeletesRequested();
+         final boolean wasDeleteSuccessful = dataSampleDownloader != null && dataSampleDownloader.deleteDataSample(dataSample);
+
+         if (wasDeleteSuccessful)
+            {
+            numDataSamplesDeleted++;
+            statistics.incrementDeletesSuccessful();
+
+            if (isLoggingEachSampleToConsole())
+               {
+               CONSOLE_LOG.info("Data sample " + dataSample.getSampleTime() + " was successfully deleted from the device.");
+               }
+            }
+         else
+            {
+            statistics.incrementDeletesFailed();
+
+            if (CONSOLE_LOG.isInfoEnabled())
+               {
+               CONSOLE_LOG.error("Data sample " + dataSample.getSampleTime() + " could not be deleted from the device.");
+               }
+            }
+         }
+      else
+         {
+         statistics.incrementSavesFailed();
+
+         LOG.error("DataSampleManager.saveAndDeleteDataSample(): Failed to save data sample [" + dataSample + "]");
+         CONSOLE_LOG.error("Failed to save data sample " + dataSample.getSampleTime());
+         }
+      }
+
+   private boolean isLoggingEachSampleToConsole()
+      {
+      return !isInCatchUpMode && CONSOLE_LOG.isInfoEnabled();
+      }
+
+   /**
+    * Catch-up mode: downloads samples in a tight loop (i.e. without going back through the scheduler between samples)
+    * until the given number of samples have been deleted from the device, the device runs out of data, a download,
+    * save or delete fails, or the thread is interrupted.  Only samples which have been deleted from the device count
+    * as progress, since any other sample will be handed out again.  Progress (remaining samples, download rate, and
+    * ETA) is published through the {@link Statistics}, and logged to the console once a second instead of logging
+    * every sample.
+    */
+   private void downloadBacklog(final int backlogSize)
+      {
+      if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+         {
+         final String msg = "Found a backlog of " + backlogSize + " samples on the device.  Entering catch-up mode.";
+         LOG.info("DataSampleManager.downloadBacklog(): " + msg);
+         CONSOLE_LOG.info(msg);
+         }
+
+      isInCatchUpMode = true;
+      final long startTime = System.currentTimeMillis();
+      long lastPublishTime = startTime;
+      int numDownloaded = 0;
+      int numRemaining = backlogSize;
+      statistics.setBacklogRemaining(numRemaining);
+
+      while (numRemaining > 0 && !Thread.currentThread().isInterrupted())
+         {
+         final int numDeletedBefore = numDataSamplesDeleted;
+         final DataSampleDownloader.DownloadResponse.Status status = downloadAndSaveDataSample();
+         if (!DataSampleDownloader.DownloadResponse.Status.OK.equals(status) || numDataSamplesDeleted == numDeletedBefore)
+            {
+            break;
+            }
+         numDownloaded++;
+         numRemaining--;
+
+         // The device keeps logging while we drain it, so periodically resync with its count
+         if (numDownloaded % CATCH_UP_MODE_RESYNC_INTERVAL == 0 && dataSampleDownloader != null)
+            {
+            final Integer numAvailableSamples = dataSampleDownloader.getNumberOfAvailableSamples();
+            if (numAvailableSamples != null)
+               {
+               numRemaining = numAvailableSamples;
+               }
+            }
+
+         final long now = System.currentTimeMillis();
+         if (now - lastPublishTime >= CATCH_UP_MODE_PUBLISH_INTERVAL_IN_MILLIS)
+            {
+            lastPublishTime = now;
+            publishBacklogProgress(numDownloaded, numRemaining, now - startTime);
+            }
+         }
+
+      isInCatchUpMode = false;
+      final long elapsedMillis = System.currentTimeMillis() - startTime;
+      if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+         {
+         final String msg = "Leaving catch-up mode after downloading " + numDownloaded + " samples in " + (elapsedMillis / 1000) + " seconds (" + computeRate(numDownloaded, elapsedMillis) + " samples/sec).";
+         LOG.info("DataSampleManager.downloadBacklog(): " + msg);
+         CONSOLE_LOG.info(msg);
+         }
+
+      statistics.setBacklogRemaining(0);
+      statistics.setBacklogDownloadRate(0);
+      statistics.setBacklogEtaInSeconds(0);
+      }
+
+   private void publishBacklogProgress(final int numDownloaded, final int numRemaining, final long elapsedMillis)
+      {
+      final int samplesPerSecond = computeRate(numDownloaded, elapsedMillis);
+      statistics.setBacklogRemaining(numRemaining);
+      statistics.setBacklogDownloadRate(samplesPerSecond);
+      statistics.setBacklogEtaInSeconds(samplesPerSecond > 0 ? numRemaining / samplesPerSecond : 0);
+
+      if (CONSOLE_LOG.isInfoEnabled())
+         {
+         CONSOLE_LOG.info("Catch-up mode: " + numRemaining + " samples remaining at " + samplesPerSecond + " samples/sec.");
+         }
+      }
+
+   private static int computeRate(final int count, final long elapsedMillis)
+      {
+      return elapsedMillis > 0 ? (int)(count * 1000L / elapsedMillis) : 0;
+      }
+
+   private void scheduleDataSampleDownload(final long delay, final TimeUnit timeUnit)
       {
       if (dataSampleDownloader != null)
          {
@@ -343,8 +654,54 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
       {
       if (isDataSampleUploaderDefined())
          {
-         executor.schedule(uploadDataSampleRunnable, delay, timeUnit);
+         if (delay <= 0)
+            {
+            executor.schedule(uploadDataSampleRunnable, 0, timeUnit);
+            }
+         else if (isDelayedUploadScheduled.compareAndSet(false, true))
+            {
+            executor.schedule(
+                  new Runnable()
+                  {
+                  @Override
+                  public void run()
+                     {
+                     isDelayedUploadScheduled.set(false);
+                     uploadDataSampleRunnable.run();
+                     }
+                  },
+                  delay,
+                  timeUnit);
+            }
+         }
+      }
+
+   /**
+    * Submits the given batch, which was requested at the given size, to the uploader.  The batch must hold a place in
+    * the {@link #uploadWindow}.
+    */
+   private void submitDataSampleSet(@NotNull final DataSampleSet dataSampleSet, final int requestedSize)
+      {
+      if (dataSampleUploader != null)
+         {
+         uploadBatchesInFlight.put(dataSampleSet, new UploadBatch(requestedSize, System.currentTimeMillis()));
+         dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
+
+         // update statistics
+         statistics.incrementFileUploadsRequested();
+         statistics.incrementSampleUploadsRequested(dataSampleSet.size());
+         updateUploadWindowStatistics();
+         }
+      }
+
+   private void updateUploadWindowStatistics()
+      {
+      if (uploadWindow != null)
+         {
+         statistics.setUploadWindowSize(uploadWindow.getSize());
+         statistics.setUploadsInFlight(uploadWindow.getNumInFlight());
          }
+      statistics.setUploadBatchSize(uploadBatchSizer.getSize());
       }
 
    /**
@@ -398,8 +755,13 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
       LOG.debug("DataSampleManager.handleDataSamplesUploadedEvent(" + dataSampleSet + ", " + uploadResponse + ")");
       if (!dataSampleSet.isEmpty())
          {
+         final UploadBatch uploadBatch = uploadBatchesInFlight.remove(dataSampleSet);
+         final int requestedSize = (uploadBatch == null) ? dataSampleSet.size() : uploadBatch.requestedSize;
+         final long latencyMillis = (uploadBatch == null) ? 0 : System.currentTimeMillis() - uploadBatch.submissionTimeMillis;
          if (uploadResponse == null)
             {
+            uploadBatchSizer.complete(requestedSize, dataSampleSet.size(), latencyMillis, false, null);
+
             // update statistics
             statistics.incrementFileUploadsFailed();
             statistics.incrementSampleUploadsFailed(dataSampleSet.size());
@@ -417,14 +779,8 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                   @Override
                   public void run()
                      {
-                     if (dataSampleUploader != null)
-                        {
-                        dataSampleUploader.submitUploadDataSampleSetTask(dataSampleSet);
-
-                        // update statistics
-                        statistics.incrementFileUploadsRequested();
-                        statistics.incrementSampleUploadsRequested(dataSampleSet.size());
-                        }
+                     // the batch keeps its place in the upload window until the retry completes
+                     submitDataSampleSet(dataSampleSet, requestedSize);
                      }
                   },
                   1,
@@ -432,6 +788,18 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
             }
          else
             {
+            final DataSampleSetUploadResponse.Payload uploadResponsePayload = uploadResponse.getPayload();
+            uploadBatchSizer.complete(requestedSize,
+                                      dataSampleSet.size(),
+                                      latencyMillis,
+                                      uploadResponse.wasSuccessful(),
+                                      (uploadResponsePayload == null) ? null : uploadResponsePayload.getNumFailedRecords());
+            if (uploadWindow != null)
+               {
+               uploadWindow.complete(latencyMillis, dataSampleSet.size(), uploadResponse.wasSuccessful());
+               }
+            updateUploadWindowStatistics();
+
             if (uploadResponse.wasSuccessful())
                {
                // update statistics
@@ -458,18 +826,31 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
                CONSOLE_LOG.error("Upload failure: Failed records = " + numFailures + " and failureMessage(s) [" + failureMessage + "|" + payloadFailureMessage + "].  Samples have been flagged as failed.");
                }
 
-            // schedule another upload (wait 15 seconds if the last set had fewer than the default size, otherwise try again right away)
-            scheduleDataSampleUpload(dataSampleSet.size() < DataSampleSet.DEFAULT_SIZE ? 15 : 0, TimeUnit.SECONDS);
+            // refill the upload window (wait 15 seconds if the last set failed or had fewer samples than were requested,
+            // otherwise try again right away)
+            scheduleDataSampleUpload(uploadResponse.wasSuccessful() && dataSampleSet.size() >= requestedSize ? 0 : 15, TimeUnit.SECONDS);
             }
          }
       }
 
+   /**
+    * Returns the {@link SampleHistory} for querying the samples kept locally, or <code>null</code> if none of the
+    * configured stores provides one (by default, the archive does).
+    */
+   @Nullable
+   public SampleHistory getSampleHistory()
+      {
+      return dataSampleStore.getSampleHistory();
+      }
+
    public String getStatisticsAsString()
       {
       lock.lock();  // block until condition holds
       try
          {
-         return statistics.toString();
+         return statistics.toString() +
+                dataSampleStore.getSecondaryDestinationStatisticsAsString() +
+                (isDataSampleUploaderDefined() ? UploadConnectionPool.getStatisticsAsString() : "");
          }
       finally
          {
@@ -574,6 +955,56 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          return incrementValueAndPublishToListeners(Category.SAVES_FAILED);
          }
 
+      private void setBacklogRemaining(final int numSamples)
+         {
+         setValueAndPublishToListeners(Category.BACKLOG_REMAINING, numSamples);
+         }
+
+      private void setBacklogDownloadRate(final int samplesPerSecond)
+         {
+         setValueAndPublishToListeners(Category.BACKLOG_DOWNLOAD_RATE, samplesPerSecond);
+         }
+
+      private void setBacklogEtaInSeconds(final int seconds)
+         {
+         setValueAndPublishToListeners(Category.BACKLOG_ETA_SECONDS, seconds);
+         }
+
+      private void setNextDownloadDelayInMillis(final int millis)
+         {
+         setValueAndPublishToListeners(Category.NEXT_DOWNLOAD_DELAY_MILLIS, millis);
+         }
+
+      private void setConsecutiveDownloadFailures(final int count)
+         {
+         setValueAndPublishToListeners(Category.CONSECUTIVE_DOWNLOAD_FAILURES, count);
+         }
+
+      private void setUploadWindowSize(final int numBatches)
+         {
+         setValueAndPublishToListeners(Category.UPLOAD_WINDOW_SIZE, numBatches);
+         }
+
+      private void setUploadsInFlight(final int numBatches)
+         {
+         setValueAndPublishToListeners(Category.UPLOADS_IN_FLIGHT, numBatches);
+         }
+
+      private void setUploadBatchSize(final int numSamples)
+         {
+         setValueAndPublishToListeners(Category.UPLOAD_BATCH_SIZE, numSamples);
+         }
+
+      private int incrementSamplesPurged(final int count)
+         {
+         return incrementValueAndPublishToListeners(Category.SAMPLES_PURGED, count);
+         }
+
+      private int incrementKilobytesReclaimed(final int count)
+         {
+         return incrementValueAndPublishToListeners(Category.KILOBYTES_RECLAIMED, count);
+         }
+
       private int incrementValueAndPublishToListeners(final Category category)
          {
          return incrementValueAndPublishToListeners(category, 1);
@@ -589,6 +1020,15 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          return newValue;
          }
 
+      private void setValueAndPublishToListeners(final Category category, final int newValue)
+         {
+         statisticsMap.get(category).set(newValue);
+         for (final Listener listener : listeners)
+            {
+            listener.handleValueChange(category, newValue);
+            }
+         }
+
       @Override
       public String toString()
          {
@@ -605,6 +1045,24 @@ public final class DataSampleManager implements DataSampleUploader.EventListener
          printWriter.printf("| Samples Deleted from Device         %6d       %6d   %6d |\n", statisticsMap.get(Category.DELETES_REQUESTED).get(), statisticsMap.get(Category.DELETES_SUCCESSFUL).get(), statisticsMap.get(Category.DELETES_FAILED).get());
          printWriter.printf("| Samples Uploaded to Server          %6d       %6d   %6d |\n", statisticsMap.get(Category.SAMPLE_UPLOADS_REQUESTED).get(), statisticsMap.get(Category.SAMPLE_UPLOADS_SUCCESSFUL).get(), statisticsMap.get(Category.SAMPLE_UPLOADS_FAILED).get());
          printWriter.printf("| Files Uploaded to Server            %6d       %6d   %6d |\n", statisticsMap.get(Category.FILE_UPLOADS_REQUESTED).get(), statisticsMap.get(Category.FILE_UPLOADS_SUCCESSFUL).get(), statisticsMap.get(Category.FILE_UPLOADS_FAILED).get());
+         printWriter.printf("|                                                                  |\n");
+         printWriter.printf("| Next Download In (ms)       %8d   Consecutive Failures %4d |\n", statisticsMap.get(Category.NEXT_DOWNLOAD_DELAY_MILLIS).get(), statisticsMap.get(Category.CONSECUTIVE_DOWNLOAD_FAILURES).get());
+         if (statisticsMap.get(Category.UPLOAD_WINDOW_SIZE).get() > 0)
+            {
+            printWriter.printf("| Upload Window (batches)     %8d   Uploads In Flight    %4d |\n", statisticsMap.get(Category.UPLOAD_WINDOW_SIZE).get(), statisticsMap.get(Category.UPLOADS_IN_FLIGHT).get());
+            printWriter.printf("| Upload Batch Size (samples) %8d                             |\n", statisticsMap.get(Category.UPLOAD_BATCH_SIZE).get());
+            }
+         if (statisticsMap.get(Category.BACKLOG_REMAINING).get() > 0)
+            {
+            final int etaInSeconds = statisticsMap.get(Category.BACKLOG_ETA_SECONDS).get();
+            printWriter.printf("|                                                                  |\n");
+            printWriter.printf("| Catch-up: %9d remaining  %6d samples/sec  ETA %3d:%02d:%02d |\n", statisticsMap.get(Category.BACKLOG_REMAINING).get(), statisticsMap.get(Category.BACKLOG_DOWNLOAD_RATE).get(), etaInSeconds / 3600, (etaInSeconds / 60) % 60, etaInSeconds % 60);
+            }
+         if (statisticsMap.get(Category.SAMPLES_PURGED).get() > 0 || statisticsMap.get(Category.KILOBYTES_RECLAIMED).get() > 0)
+            {
+            printWriter.printf("|                                                                  |\n");
+            printWriter.printf("| Purged: %9d uploaded samples   Reclaimed: %9d KB     |\n", statisticsMap.get(Category.SAMPLES_PURGED).get(), statisticsMap.get(Category.KILOBYTES_RECLAIMED).get());
+            }
          printWriter.printf("|__________________________________________________________________|\n");
 
          return stringWriter.toString();
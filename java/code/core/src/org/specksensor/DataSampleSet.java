@@ -4,9 +4,14 @@ import java.util.SortedSet;
 import org.jetbrains.annotations.NotNull;
 
 /**
+ * <p>
+ * <code>DataSampleSet</code> is a set of {@link Speck.DataSample data samples} to upload, ordered by sample time.
+ * {@link DataSampleStore} implementations can create one with {@link DataSampleSetImpl}.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
-interface DataSampleSet
+public interface DataSampleSet
    {
    int DEFAULT_SIZE = 500;
 
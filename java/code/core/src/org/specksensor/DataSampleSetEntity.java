@@ -0,0 +1,164 @@
+package org.specksensor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>DataSampleSetEntity</code> is an {@link org.apache.http.HttpEntity} which writes a {@link DataSampleSet} in
+ * the JSON format expected by the upload API straight to the connection as the request is sent, so that uploading a
+ * batch takes the same small amount of memory regardless of its size, rather than building the whole body as a
+ * {@link String} first.
+ * </p>
+ * <p>
+ * The content length is found by writing the JSON once without keeping it, so that the request doesn't need to use
+ * chunked encoding.  The entity is repeatable, since the samples are simply written again.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class DataSampleSetEntity extends AbstractHttpEntity
+   {
+   private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+   static
+      {
+      // the stream belongs to the caller (for uploads, it's the connection's stream)
+      JSON_FACTORY.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      }
+
+   /**
+    * Writes the given {@link DataSampleSet} with the given {@link JsonGenerator}, including only the fields supported
+    * by the given {@link ApiSupport}, and flushes the generator.
+    */
+   static void writeJson(@NotNull final JsonGenerator generator,
+                         @NotNull final DataSampleSet dataSampleSet,
+                         @NotNull final ApiSupport apiSupport) throws IOException
+      {
+      generator.writeStartObject();
+
+      generator.writeArrayFieldStart("channel_names");
+      generator.writeString("raw_particles");
+      if (apiSupport.hasParticleCount())
+         {
+         generator.writeString("particle_count");
+         }
+      if (apiSupport.hasParticleConcentration())
+         {
+         generator.writeString("particle_concentration");
+         }
+      if (apiSupport.hasTemperatureSensor())
+         {
+         generator.writeString("temperature");
+         }
+      generator.writeString("humidity");
+      generator.writeEndArray();
+
+      // each sample is written the same way as by Speck.DataSample.toJsonArray()
+      generator.writeArrayFieldStart("data");
+      for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+         {
+         generator.writeStartArray();
+         generator.writeNumber(dataSample.getSampleTime());
+         generator.writeNumber(dataSample.getRawParticleCount());
+         if (apiSupport.hasParticleCount())
+            {
+            generator.writeNumber(dataSample.getParticleCountOrConcentration());
+            }
+         if (apiSupport.hasParticleConcentration())
+            {
+            generator.writeNumber(dataSample.getParticleConcentration());
+            }
+         if (apiSupport.hasTemperatureSensor())
+            {
+            generator.writeNumber(dataSample.getTemperatureInDegreesF());
+            }
+         generator.writeNumber(dataSample.getHumidity());
+         generator.writeEndArray();
+         }
+      generator.writeEndArray();
+
+      generator.writeEndObject();
+      generator.flush();
+      }
+
+   @NotNull
+   private final DataSampleSet dataSampleSet;
+
+   @NotNull
+   private final ApiSupport apiSupport;
+
+   private long contentLength = -1;
+
+   DataSampleSetEntity(@NotNull final DataSampleSet dataSampleSet, @NotNull final ApiSupport apiSupport)
+      {
+      this.dataSampleSet = dataSampleSet;
+      this.apiSupport = apiSupport;
+      setContentType(ContentType.APPLICATION_JSON.toString());
+      }
+
+   @Override
+   public boolean isRepeatable()
+      {
+      return true;
+      }
+
+   @Override
+   public long getContentLength()
+      {
+      if (contentLength < 0)
+         {
+         final CountingOutputStream countingOutputStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+         try
+            {
+            writeTo(countingOutputStream);
+            contentLength = countingOutputStream.getByteCount();
+            }
+         catch (IOException ignored)
+            {
+            // can't happen when writing to a NullOutputStream, but if it does, the length is simply unknown
+            }
+         }
+      return contentLength;
+      }
+
+   /** Returns the JSON in a new stream.  Since this requires building the whole body in memory, uploads don't use it. */
+   @Override
+   public InputStream getContent() throws IOException
+      {
+      final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+      writeTo(byteArrayOutputStream);
+      return new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+      }
+
+   @Override
+   public void writeTo(final OutputStream outputStream) throws IOException
+      {
+      final JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8);
+      try
+         {
+         writeJson(generator, dataSampleSet, apiSupport);
+         }
+      finally
+         {
+         generator.close();
+         }
+      }
+
+   @Override
+   public boolean isStreaming()
+      {
+      return false;
+      }
+   }
@@ -1,19 +1,22 @@
 package org.specksensor;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Collections;
-import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import org.apache.commons.lang3.StringUtils;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
-final class DataSampleSetImpl implements DataSampleSet
+public final class DataSampleSetImpl implements DataSampleSet
    {
+   private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
    private final SortedSet<Speck.DataSample> dataSamples;
 
    /**
@@ -21,7 +24,7 @@ final class DataSampleSetImpl implements DataSampleSet
     * by copying all the samples into a new collection.  If the given <code>dataSamples</code> is <code>null</code>,
     * this <code>DataSampleSet</code> simply has no data samples.
     */
-   DataSampleSetImpl(@Nullable final SortedSet<Speck.DataSample> dataSamples)
+   public DataSampleSetImpl(@Nullable final SortedSet<Speck.DataSample> dataSamples)
       {
       this.dataSamples = new TreeSet<Speck.DataSample>();
       if (dataSamples != null)
@@ -56,31 +59,18 @@ final class DataSampleSetImpl implements DataSampleSet
    @Override
    public String toJson(@NotNull final ApiSupport apiSupport)
       {
-      final StringBuilder data = new StringBuilder("[");
-      if (!isEmpty())
-         {
-         final List<String> dataSamplesAsJson = new ArrayList<String>(dataSamples.size());
-         for (final Speck.DataSample dataSample : dataSamples)
-            {
-            dataSamplesAsJson.add(dataSample.toJsonArray(apiSupport));
-            }
-         data.append(StringUtils.join(dataSamplesAsJson, ','));
-         }
-      data.append("]");
-      final StringBuilder channelNames = new StringBuilder("{\"channel_names\":[\"raw_particles\"");
-      if (apiSupport.hasParticleCount())
-         {
-         channelNames.append(",\"particle_count\"");
-         }
-      if (apiSupport.hasParticleConcentration())
+      final StringWriter writer = new StringWriter();
+      try
          {
-         channelNames.append(",\"particle_concentration\"");
+         final JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+         DataSampleSetEntity.writeJson(generator, this, apiSupport);
+         generator.close();
          }
-      if (apiSupport.hasTemperatureSensor())
+      catch (IOException e)
          {
-         channelNames.append(",\"temperature\"");
+         // can't happen when writing to a StringWriter
+         throw new IllegalStateException("IOException while writing JSON to a String", e);
          }
-      channelNames.append(",\"humidity\"],\"data\":" + data + "}");
-      return channelNames.toString();
+      return writer.toString();
       }
    }
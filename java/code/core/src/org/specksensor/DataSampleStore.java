@@ -1,15 +1,23 @@
 package org.specksensor;
 
+import java.util.List;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * <p>
  * <code>DataSampleStore</code> handles storage and retrieval of {@link Speck.DataSample data samples}.
  * </p>
+ * <p>
+ * Stores are plugged into the gateway through a {@link DataSampleStoreProvider}.  A store may be called from several
+ * threads at once (saving, uploading and maintenance all happen on different threads), so implementations must be
+ * thread safe.  Stores which are only used as secondary destinations need not detect duplicates or support uploads,
+ * in which case {@link #getDataSamplesToUpload(int)} should always return an empty {@link DataSampleSet}, and the
+ * other upload methods should do nothing.
+ * </p>
  *
  * @author Chris Bartley (bartley@cmu.edu)
  */
-interface DataSampleStore
+public interface DataSampleStore
    {
    enum SaveResult
       {
@@ -37,19 +45,64 @@ interface DataSampleStore
          }
       }
 
+   final class MaintenanceResult
+      {
+      public static final MaintenanceResult NONE = new MaintenanceResult(0, 0);
+
+      private final int numSamplesPurged;
+      private final long numBytesReclaimed;
+
+      public MaintenanceResult(final int numSamplesPurged, final long numBytesReclaimed)
+         {
+         this.numSamplesPurged = numSamplesPurged;
+         this.numBytesReclaimed = numBytesReclaimed;
+         }
+
+      public int getNumSamplesPurged()
+         {
+         return numSamplesPurged;
+         }
+
+      public long getNumBytesReclaimed()
+         {
+         return numBytesReclaimed;
+         }
+
+      @Override
+      public String toString()
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append("MaintenanceResult");
+         sb.append("{numSamplesPurged=").append(numSamplesPurged);
+         sb.append(", numBytesReclaimed=").append(numBytesReclaimed);
+         sb.append('}');
+         return sb.toString();
+         }
+      }
+
    /** Saves the given {@link Speck.DataSample sample} and returns the appropriate {@link SaveResult}. */
    @NotNull
    SaveResult save(@NotNull Speck.DataSample dataSample);
 
+   /**
+    * Saves the given {@link Speck.DataSample samples} as a group and returns a {@link List} containing the
+    * {@link SaveResult} for each sample, in the same order as the given samples.  Implementations may write the group
+    * in a single transaction, but a sample must be durably saved by the time this method returns a successful result
+    * for it.
+    */
+   @NotNull
+   List<SaveResult> save(@NotNull List<Speck.DataSample> dataSamples);
+
    /** Finds all samples which are in the uploading state, and resets them so that an upload will be retried. */
    void resetStateOfUploadingSamples();
 
    /**
     * Returns a {@link DataSampleSet} containing up to <code>maxNumberRequested</code>
-    * {@link Speck.DataSample data samples}.  This method finds data samples which currently have an upload status of
-    * {@link DataSampleUploadStatus#NOT_ATTEMPTED} and marks them as {@link DataSampleUploadStatus#IN_PROGRESS} before
-    * returning.  Defaults to returning no more than {@link DataSampleSet#DEFAULT_SIZE} data samples if the
-    * <code>maxNumberRequested</code> is non-positive.
+    * {@link Speck.DataSample data samples}.  This method finds the oldest data samples (by sample time, although stores
+    * which keep samples in the order they were saved may go by that order instead) which currently have an upload
+    * status of {@link DataSampleUploadStatus#NOT_ATTEMPTED} or {@link DataSampleUploadStatus#FAILURE} and marks them as
+    * {@link DataSampleUploadStatus#IN_PROGRESS} before returning.  Defaults to returning no more than
+    * {@link DataSampleSet#DEFAULT_SIZE} data samples if the <code>maxNumberRequested</code> is non-positive.
     */
    @NotNull
    DataSampleSet getDataSamplesToUpload(final int maxNumberRequested);
@@ -66,6 +119,14 @@ interface DataSampleStore
     */
    void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet);
 
+   /**
+    * Performs any periodic housekeeping, such as deleting uploaded samples which the retention policy no longer
+    * requires to be kept, and reclaiming the space they occupied.  Called periodically from a background thread, and
+    * must not block saving for long.  Returns a {@link MaintenanceResult} describing what was done.
+    */
+   @NotNull
+   MaintenanceResult performMaintenance();
+
    /** Perform any required shutdown tasks. */
    void shutdown();
    }
\ No newline at end of file
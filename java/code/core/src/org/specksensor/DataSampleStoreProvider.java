@@ -0,0 +1,54 @@
+package org.specksensor;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>DataSampleStoreProvider</code> is the service provider interface for plugging a {@link DataSampleStore} into
+ * the gateway.  Providers are discovered with {@link java.util.ServiceLoader}, so to add one, implement this interface
+ * in a public class with a public no-arg constructor, list the class's name in a
+ * <code>META-INF/services/org.specksensor.DataSampleStoreProvider</code> file in its jar, and put the jar on the
+ * gateway's classpath.  The store is then selected by its {@link #getName() name}, either as the primary store or as
+ * one of the secondary destinations (see {@link MultiDestinationDataSampleStore#PRIMARY_STORE_SYSTEM_PROPERTY} and
+ * {@link MultiDestinationDataSampleStore#SECONDARY_STORES_SYSTEM_PROPERTY}).
+ * </p>
+ * <p>
+ * Implementations can be checked against the {@link DataSampleStore} contract, and their throughput compared with
+ * the built-in stores, with the <code>org.specksensor.applications.DataSampleStoreConformance</code> tool.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public interface DataSampleStoreProvider
+   {
+   /**
+    * Returns the name used to select this store in the configuration.  Names are compared ignoring case, so they
+    * should be lower case.  The built-in stores are named <code>database</code>, <code>journal</code>,
+    * <code>csv</code> and <code>archive</code>.
+    */
+   @NotNull
+   String getName();
+
+   /**
+    * Returns <code>true</code> if the store can be the primary store, meaning that it detects duplicate samples and
+    * keeps track of which samples have been uploaded, as described by {@link DataSampleStore}.  Stores which can't
+    * may only be used as secondary destinations.
+    */
+   boolean canBePrimaryStore();
+
+   /**
+    * Returns <code>true</code> if the store's saves hand the samples to a bounded queue of its own, which a thread of
+    * its own writes from, and block while that queue is full.  As a secondary destination, such a store is saved to
+    * directly, rather than through a second queue in front of its own.
+    */
+   boolean hasOwnWriteQueue();
+
+   /**
+    * Creates a store for the Speck with the given {@link SpeckConfig}, keeping its files (if any) in the directory
+    * returned by {@link SpeckConstants.FilePaths#getDeviceDataDirectory(SpeckConfig)}.
+    *
+    * @throws InitializationException if the store cannot be created
+    */
+   @NotNull
+   DataSampleStore createDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException;
+   }
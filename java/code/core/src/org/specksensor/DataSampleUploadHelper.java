@@ -7,21 +7,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -47,36 +44,82 @@ public final class DataSampleUploadHelper
     */
    public static final int SOCKET_TIMEOUT_IN_MILLIS = 5 * 60 * 1000; // 5 minutes
 
+   /**
+    * The gzip compression level for upload bodies, from 1 (fastest) to 9 (smallest), or 0 to upload them uncompressed
+    * (the default).
+    */
+   public static final String COMPRESSION_LEVEL_SYSTEM_PROPERTY = "org.specksensor.DataSampleUploadHelper.compression-level";
+   private static final int DEFAULT_COMPRESSION_LEVEL = UploadEntity.NO_COMPRESSION;
+   private static final int MAX_COMPRESSION_LEVEL = 9;
+   private static final int COMPRESSION_LEVEL = Math.min(MAX_COMPRESSION_LEVEL, SystemPropertyUtils.getInt(COMPRESSION_LEVEL_SYSTEM_PROPERTY, DEFAULT_COMPRESSION_LEVEL, UploadEntity.NO_COMPRESSION));
+
    @NotNull
    public static String getUploadUrl(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
       {
       return "http://" + remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort() + "/api/bodytrack/jupload?dev_nickname=" + remoteStorageCredentials.getDeviceName();
       }
 
+   /**
+    * Uploads the given {@link HttpEntity} to the datastore for the given {@link RemoteStorageCredentials}, gzip
+    * compressing it if a {@link #COMPRESSION_LEVEL_SYSTEM_PROPERTY compression level} is configured.  If the server
+    * rejects a compressed upload as an unsupported media type, or as a bad request without the usual JSON response, and
+    * the entity is repeatable, it's sent again uncompressed, and if that works, later uploads to that host are no
+    * longer compressed.  Any other error (such as a server error) fails the upload as usual, so that it's retried
+    * later, still compressed.
+    */
    @NotNull
    public static DataSampleSetUploadResponse upload(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
                                                     @NotNull final HttpEntity entity)
       {
-      // set timeouts
-      final HttpParams httpParams = new BasicHttpParams();
+      final UploadConnectionPool uploadConnectionPool = UploadConnectionPool.getInstance(remoteStorageCredentials);
+      if (COMPRESSION_LEVEL != UploadEntity.NO_COMPRESSION && uploadConnectionPool.isCompressionSupported())
+         {
+         final DataSampleSetUploadResponse dataSampleSetUploadResponse = upload(remoteStorageCredentials, uploadConnectionPool, new UploadEntity(entity, COMPRESSION_LEVEL));
+         if (dataSampleSetUploadResponse != null)
+            {
+            return dataSampleSetUploadResponse;
+            }
+         if (!entity.isRepeatable())
+            {
+            return DataSampleSetUploadResponseImpl.createFailedResponse("Compressed upload rejected, and cannot be retried uncompressed");
+            }
 
-      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, connect operations
-      // will not time out (infinite timeout).
-      httpParams.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, HTTP_TIMEOUT_IN_MILLIS);
+         LOG.info("DataSampleUploadHelper.upload(): Compressed upload rejected, retrying uncompressed");
+         final DataSampleSetUploadResponse uncompressedDataSampleSetUploadResponse = upload(remoteStorageCredentials, uploadConnectionPool, new UploadEntity(entity, UploadEntity.NO_COMPRESSION));
+         if (uncompressedDataSampleSetUploadResponse != null && uncompressedDataSampleSetUploadResponse.wasSuccessful())
+            {
+            LOG.warn("DataSampleUploadHelper.upload(): The server [" + remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort() + "] doesn't accept compressed uploads, so they will no longer be compressed");
+            uploadConnectionPool.setCompressionSupported(false);
+            }
+         return uncompressedDataSampleSetUploadResponse == null ? DataSampleSetUploadResponseImpl.createFailedResponse("Upload rejected") : uncompressedDataSampleSetUploadResponse;
+         }
 
-      // This parameter expects a value of type java.lang.Integer. If this parameter is not set, read operations will
-      // not time out (infinite timeout).
-      httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, SOCKET_TIMEOUT_IN_MILLIS);
+      final DataSampleSetUploadResponse dataSampleSetUploadResponse = upload(remoteStorageCredentials, uploadConnectionPool, new UploadEntity(entity, UploadEntity.NO_COMPRESSION));
+      return dataSampleSetUploadResponse == null ? DataSampleSetUploadResponseImpl.createFailedResponse("Upload rejected") : dataSampleSetUploadResponse;
+      }
 
+   /**
+    * Uploads the given {@link UploadEntity}.  Returns <code>null</code> if the entity is compressed and the server
+    * responded with {@link HttpStatus#SC_UNSUPPORTED_MEDIA_TYPE}, or with {@link HttpStatus#SC_BAD_REQUEST} and a
+    * response which isn't the usual JSON, either of which means that it doesn't accept compressed uploads.
+    */
+   @Nullable
+   private static DataSampleSetUploadResponse upload(@NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                                                     @NotNull final UploadConnectionPool uploadConnectionPool,
+                                                     @NotNull final UploadEntity uploadEntity)
+      {
       final HttpHost targetHost = new HttpHost(remoteStorageCredentials.getHostName(), remoteStorageCredentials.getHostPort(), "http");
 
-      final DefaultHttpClient httpClient = new DefaultHttpClient(httpParams);
-
-      @NotNull DataSampleSetUploadResponse dataSampleSetUploadResponse;
+      final long startTime = System.nanoTime();
+      CloseableHttpResponse response = null;
+      @Nullable DataSampleSetUploadResponse dataSampleSetUploadResponse;
+      boolean wasResponseParsed = false;
       try
          {
-         // Set up basic auth (got this code from http://hc.apache.org/httpcomponents-client-ga/httpclient/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java)
-         httpClient.getCredentialsProvider().setCredentials(
+         // Set up preemptive basic auth (got this code from http://hc.apache.org/httpcomponents-client-ga/httpclient/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java).
+         // The credentials go in the context, rather than the client, since the client is shared by all uploads to this host.
+         final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+         credentialsProvider.setCredentials(
                new AuthScope(targetHost.getHostName(), targetHost.getPort()),
                new UsernamePasswordCredentials(remoteStorageCredentials.getUsername(), remoteStorageCredentials.getPassword()));
 
@@ -87,14 +130,15 @@ public final class DataSampleUploadHelper
          final BasicScheme basicAuth = new BasicScheme();
          authCache.put(targetHost, basicAuth);
 
-         // Add AuthCache to the execution context
-         final BasicHttpContext localContext = new BasicHttpContext();
-         localContext.setAttribute(ClientContext.AUTH_CACHE, authCache);
+         // Add the credentials and AuthCache to the execution context
+         final HttpClientContext localContext = HttpClientContext.create();
+         localContext.setCredentialsProvider(credentialsProvider);
+         localContext.setAuthCache(authCache);
 
          final HttpPost httpPost = new HttpPost(getUploadUrl(remoteStorageCredentials));
-         httpPost.setEntity(entity);
+         httpPost.setEntity(uploadEntity);
 
-         final HttpResponse response = httpClient.execute(targetHost, httpPost, localContext);
+         response = uploadConnectionPool.getHttpClient().execute(targetHost, httpPost, localContext);
          final HttpEntity responseEntity = response.getEntity();
          if (LOG.isDebugEnabled())
             {
@@ -107,6 +151,11 @@ public final class DataSampleUploadHelper
             LOG.error("DataSampleUploadHelper.upload(): " + message);
             dataSampleSetUploadResponse = DataSampleSetUploadResponseImpl.createFailedResponse(message);
             }
+         else if (uploadEntity.isCompressed() && HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE == response.getStatusLine().getStatusCode())
+            {
+            LOG.error("DataSampleUploadHelper.upload(): Compressed upload rejected with status [" + response.getStatusLine() + "]");
+            dataSampleSetUploadResponse = null;
+            }
          else
             {
             if (responseEntity == null)
@@ -161,6 +210,7 @@ public final class DataSampleUploadHelper
                         {
                         final ObjectMapper mapper = new ObjectMapper();
                         dataSampleSetUploadResponse = mapper.readValue(json, DataSampleSetUploadResponseImpl.class);
+                        wasResponseParsed = true;
                         }
                      catch (IOException e)
                         {
@@ -191,6 +241,13 @@ public final class DataSampleUploadHelper
                }
             }
 
+         // a bad request without the usual JSON response means the server couldn't make sense of the compressed body
+         if (uploadEntity.isCompressed() && !wasResponseParsed && HttpStatus.SC_BAD_REQUEST == response.getStatusLine().getStatusCode())
+            {
+            LOG.error("DataSampleUploadHelper.upload(): Compressed upload rejected with status [" + response.getStatusLine() + "] and no JSON response");
+            dataSampleSetUploadResponse = null;
+            }
+
          EntityUtils.consume(responseEntity);
          }
       catch (ClientProtocolException e)
@@ -213,11 +270,25 @@ public final class DataSampleUploadHelper
          }
       finally
          {
-         // When the HttpClient instance is no longer needed, shut down the connection manager to ensure immediate
-         // deallocation of all system resources
-         httpClient.getConnectionManager().shutdown();
+         // Closing the response returns its connection to the pool if the response was fully consumed, or closes the
+         // connection otherwise (the client itself is long-lived, and must not be closed)
+         if (response != null)
+            {
+            try
+               {
+               response.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("DataSampleUploadHelper.upload(): IOException while closing the response", e);
+               }
+            }
          }
 
+      uploadConnectionPool.recordRequest(System.nanoTime() - startTime,
+                                         dataSampleSetUploadResponse != null && dataSampleSetUploadResponse.wasSuccessful(),
+                                         uploadEntity.getNumBytes(),
+                                         uploadEntity.getNumBytesSent());
       return dataSampleSetUploadResponse;
       }
 
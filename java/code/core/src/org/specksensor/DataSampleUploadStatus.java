@@ -12,16 +12,18 @@ import org.jetbrains.annotations.NotNull;
  */
 enum DataSampleUploadStatus
    {
-      NOT_ATTEMPTED("not_attempted"),
-      IN_PROGRESS("in_progress"),
-      SUCCESS("success"),
-      FAILURE("failure");
+      NOT_ATTEMPTED("not_attempted", 0),
+      IN_PROGRESS("in_progress", 1),
+      SUCCESS("success", 2),
+      FAILURE("failure", 3);
 
    private final String name;
+   private final short code;
 
-   private DataSampleUploadStatus(@NotNull final String name)
+   private DataSampleUploadStatus(@NotNull final String name, final int code)
       {
       this.name = name;
+      this.code = (short)code;
       }
 
    @NotNull
@@ -30,6 +32,14 @@ enum DataSampleUploadStatus
       return name;
       }
 
+   /**
+    * Returns the code used to store this status in the database.  Codes are persisted, so they must never change.
+    */
+   public short getCode()
+      {
+      return code;
+      }
+
    /**
     * Simply returns the name.
     *
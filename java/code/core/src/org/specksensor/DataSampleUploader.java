@@ -5,8 +5,6 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -20,7 +18,7 @@ public final class DataSampleUploader
    private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
 
    public static final String MAX_NUM_UPLOAD_THREADS_SYSTEM_PROPERTY = "org.specksensor.DataSampleUploader.max-num-upload-threads";
-   private static final int DEFAULT_MAX_NUM_UPLOAD_THREADS = 1;
+   private static final int DEFAULT_MAX_NUM_UPLOAD_THREADS = 4;
    private static final int MAX_NUM_UPLOAD_THREADS;
 
    static
@@ -61,7 +59,18 @@ public final class DataSampleUploader
       void handleDataSamplesUploadedEvent(@NotNull final DataSampleSet dataSampleSet, @Nullable final DataSampleSetUploadResponse uploadResponse);
       }
 
-   private final ExecutorService executor = Executors.newFixedThreadPool(MAX_NUM_UPLOAD_THREADS, new DaemonThreadFactory(this.getClass() + ".executor"));
+   /**
+    * Creates an {@link ExecutorService} suitable for running uploads, using up to the configured maximum number of
+    * upload threads.  Uploaders for multiple Specks may share a single executor.
+    */
+   @NotNull
+   static ExecutorService createExecutor()
+      {
+      return Executors.newFixedThreadPool(MAX_NUM_UPLOAD_THREADS, new DaemonThreadFactory(DataSampleUploader.class + ".executor"));
+      }
+
+   @NotNull
+   private final ExecutorService executor;
    private final Set<EventListener> eventListeners = new HashSet<EventListener>();
 
    /**
@@ -69,7 +78,19 @@ public final class DataSampleUploader
     */
    public DataSampleUploader(@NotNull final SpeckConfig speckConfig, @NotNull final RemoteStorageCredentials remoteStorageCredentials)
       {
+      this(speckConfig, remoteStorageCredentials, createExecutor());
+      }
+
+   /**
+    * Constructs a <code>DataSampleUploader</code> for the given {@link SpeckConfig} and {@link RemoteStorageCredentials}
+    * which runs its uploads using the given {@link ExecutorService}.
+    */
+   DataSampleUploader(@NotNull final SpeckConfig speckConfig,
+                      @NotNull final RemoteStorageCredentials remoteStorageCredentials,
+                      @NotNull final ExecutorService executor)
+      {
       this.speckConfig = speckConfig;
+      this.executor = executor;
       this.remoteStorageCredentials = remoteStorageCredentials;
 
       if (LOG.isInfoEnabled())
@@ -121,7 +142,7 @@ public final class DataSampleUploader
       public void run()
          {
          final DataSampleSetUploadResponse dataSampleSetUploadResponse = DataSampleUploadHelper.upload(remoteStorageCredentials,
-                                                                                                       new StringEntity(dataSampleSet.toJson(speckConfig.getApiSupport()), ContentType.APPLICATION_JSON));
+                                                                                                       new DataSampleSetEntity(dataSampleSet, speckConfig.getApiSupport()));
          // notify listeners
          for (final EventListener listener : eventListeners)
             {
@@ -1,13 +1,18 @@
 package org.specksensor;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,8 +21,8 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.persistence.DatabaseSchemaMigrator;
 import edu.cmu.ri.createlab.persistence.DatabaseUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -27,9 +32,9 @@ import org.jetbrains.annotations.Nullable;
  * <code>DatabaseDataSampleStore</code> handles storage and retrieval of {@link Speck.DataSample data samples}, storing
  * them in a local database.
  * </p>
- * <p>By default, if the database doesn't exist it will be created in a subdirectory of the user's home directory
- * (e.g. <code>~/CREATELab/Speck/Speck00343135321504100f17/database</code>).  This can be overridden by specifying a
- * different directory in the <code>derby.system.home</code> system property.
+ * <p>If the database doesn't exist it will be created in a subdirectory of the user's home directory
+ * (e.g. <code>~/CREATELab/Speck/Speck00343135321504100f17/database/db</code>).  Each Speck's database is referenced by
+ * its absolute path, and is shut down individually, so stores for multiple Specks may be open at the same time.
  * </p>
  * <p>
  * Much of this code is taken from the Apache Derby project's <a href="http://svn.apache.org/repos/asf/db/derby/code/trunk/java/demo/simple/SimpleApp.java">SimpleApp example</a>.
@@ -43,6 +48,30 @@ final class DatabaseDataSampleStore implements DataSampleStore
    private static final Logger LOG = Logger.getLogger(DatabaseDataSampleStore.class);
    private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
 
+   public static final String RETENTION_MAX_AGE_DAYS_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.retention-max-age-days";
+   public static final String RETENTION_MAX_UPLOADED_SAMPLES_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.retention-max-uploaded-samples";
+   public static final String PURGE_CHUNK_SIZE_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.purge-chunk-size";
+   public static final String COMPRESS_MIN_FREE_PERCENT_SYSTEM_PROPERTY = "org.specksensor.DatabaseDataSampleStore.compress-min-free-percent";
+
+   /** Uploaded samples older than this many days are purged, or -1 to keep them regardless of age. */
+   private static final int RETENTION_MAX_AGE_DAYS = SystemPropertyUtils.getInt(RETENTION_MAX_AGE_DAYS_SYSTEM_PROPERTY, -1, -1);
+
+   /** The oldest uploaded samples beyond this many are purged, or -1 to keep them regardless of number. */
+   private static final int RETENTION_MAX_UPLOADED_SAMPLES = SystemPropertyUtils.getInt(RETENTION_MAX_UPLOADED_SAMPLES_SYSTEM_PROPERTY, -1, -1);
+
+   /** How many samples to purge per transaction.  The store is unlocked between chunks, so saving is never blocked for long. */
+   private static final int PURGE_CHUNK_SIZE = SystemPropertyUtils.getInt(PURGE_CHUNK_SIZE_SYSTEM_PROPERTY, 1000, 1);
+
+   /** The table is compressed once at least this percentage of its space is free pages. */
+   private static final int COMPRESS_MIN_FREE_PERCENT = SystemPropertyUtils.getInt(COMPRESS_MIN_FREE_PERCENT_SYSTEM_PROPERTY, 25, 0);
+
+   /**
+    * The table is only compressed once nothing has been saved for this long.  Samples arrive many times a second while
+    * a backlog is being downloaded, and only once per sample interval otherwise, so this defers the compress until the
+    * backlog has been caught up.
+    */
+   private static final long COMPRESS_MIN_IDLE_MILLIS = 10000;
+
    private static final String DERBY_SYSTEM_HOME_PROPERTY_KEY = "derby.system.home";
 
    private static final String DATABASE_NAME = "db";
@@ -56,25 +85,155 @@ final class DatabaseDataSampleStore implements DataSampleStore
    private static final String STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS = "update_all_samples_having_status";
    private static final String STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS = "UPDATE SpeckSamples SET UPLOAD_STATUS = ? WHERE UPLOAD_STATUS = ?";
 
-   private static final String STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED = "select_samples_needing_to_be_uploaded";
-   private static final String STATEMENT_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED = "SELECT\n" +
-                                                                                 "   *\n" +
-                                                                                 "FROM\n" +
-                                                                                 "   (SELECT\n" +
-                                                                                 "       ROW_NUMBER()\n" +
-                                                                                 "       OVER () AS NUM_ROWS,\n" +
-                                                                                 "       SpeckSamples.id,\n" +
-                                                                                 "       SpeckSamples.SAMPLE_TIMESTAMP_UTC_SECS,\n" +
-                                                                                 "       SpeckSamples.RAW_PARTICLE_COUNT,\n" +
-                                                                                 "       SpeckSamples.PARTICLE_COUNT,\n" +
-                                                                                 "       SpeckSamples.TEMPERATURE,\n" +
-                                                                                 "       SpeckSamples.HUMIDITY\n" +
-                                                                                 "    FROM SpeckSamples\n" +
-                                                                                 "    WHERE\n" +
-                                                                                 "       SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.NOT_ATTEMPTED.getName() + "' OR\n" +
-                                                                                 "       SpeckSamples.UPLOAD_STATUS = '" + DataSampleUploadStatus.FAILURE.getName() + "'\n" +
-                                                                                 "   ) AS TEMP\n" +
-                                                                                 "WHERE NUM_ROWS <= ?\n";
+   private static final String STATEMENT_NAME_DELETE_SAMPLES_IN_ID_RANGE_HAVING_STATUS = "delete_samples_in_id_range_having_status";
+   private static final String STATEMENT_DELETE_SAMPLES_IN_ID_RANGE_HAVING_STATUS = "DELETE FROM SpeckSamples WHERE ID >= ? AND ID <= ? AND UPLOAD_STATUS = ?";
+
+   private static final String STATEMENT_NAME_COUNT_SAMPLES_HAVING_STATUS = "count_samples_having_status";
+   private static final String STATEMENT_COUNT_SAMPLES_HAVING_STATUS = "SELECT COUNT(*) FROM SpeckSamples WHERE UPLOAD_STATUS = ?";
+
+   /** The total and free bytes of the SpeckSamples table and its indexes */
+   private static final String STATEMENT_SELECT_SPACE_USAGE = "SELECT SUM((NUMALLOCATEDPAGES + NUMFREEPAGES) * PAGESIZE), SUM(NUMFREEPAGES * PAGESIZE) FROM TABLE (SYSCS_DIAG.SPACE_TABLE('SPECKSAMPLES')) T";
+
+   /** The columns of each line of a file loaded by {@link #importDataSamples(File)}, in order */
+   private static final String IMPORT_COLUMNS = "RAW_PARTICLE_COUNT,PARTICLE_COUNT,TEMPERATURE,HUMIDITY,SAMPLE_TIMESTAMP_UTC_SECS,DOWNLOAD_TIMESTAMP_UTC_MILLIS,UPLOAD_TIMESTAMP_UTC_MILLIS,UPLOAD_STATUS";
+   private static final String STATEMENT_IMPORT_DATA = "CALL SYSCS_UTIL.SYSCS_IMPORT_DATA(CURRENT SCHEMA, 'SPECKSAMPLES', '" + IMPORT_COLUMNS + "', NULL, ?, ',', NULL, NULL, 0)";
+
+   private static final String STATEMENT_COMPRESS_TABLE = "CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE(CURRENT SCHEMA, 'SPECKSAMPLES', 1, 1, 1)";
+
+   private static final String STATEMENT_NAME_UPDATE_STATUS_OF_SAMPLES_IN_ID_RANGE = "update_status_of_samples_in_id_range";
+   // Derby estimates that BETWEEN on parameters selects a quarter of the table, and compiles it into a table scan, so
+   // this is written as two comparisons instead, which it estimates as selective enough to use the primary key index.
+   private static final String STATEMENT_UPDATE_STATUS_OF_SAMPLES_IN_ID_RANGE = "UPDATE SpeckSamples SET UPLOAD_STATUS = ?, UPLOAD_TIMESTAMP_UTC_MILLIS = ? WHERE ID >= ? AND ID <= ?";
+
+   /**
+    * Selects the oldest samples having a given upload status.  The equality on upload_status and the ordering by
+    * sample time match the SpeckSamples_UploadStatus_SampleTimestamp index, so Derby walks the index from the start
+    * of the status' key range and stops after the requested number of rows, rather than scanning every candidate row.
+    * Samples handed out for upload leave the key range (they're marked in_progress), so each call starts right where
+    * the previous one left off without needing an explicit keyset cursor.
+    */
+   private static final String STATEMENT_NAME_SELECT_SAMPLES_HAVING_STATUS = "select_samples_having_status";
+   private static final String STATEMENT_SELECT_SAMPLES_HAVING_STATUS = "SELECT\n" +
+                                                                        "   id,\n" +
+                                                                        "   sample_timestamp_utc_secs,\n" +
+                                                                        "   raw_particle_count,\n" +
+                                                                        "   particle_count,\n" +
+                                                                        "   temperature,\n" +
+                                                                        "   humidity\n" +
+                                                                        "FROM SpeckSamples\n" +
+                                                                        "WHERE upload_status = ?\n" +
+                                                                        "ORDER BY sample_timestamp_utc_secs\n" +
+                                                                        "FETCH FIRST ? ROWS ONLY";
+
+   /**
+    * The schema migrations, in order.  Version 1 is the original schema, which databases created before schema
+    * versioning already have.  Never change a released migration; add a new one instead.
+    */
+   private static final DatabaseSchemaMigrator SCHEMA_MIGRATOR = new DatabaseSchemaMigrator(Arrays.<DatabaseSchemaMigrator.Migration>asList(
+         new DatabaseSchemaMigrator.Migration()
+         {
+         @Override
+         public int getVersion()
+            {
+            return 1;
+            }
+
+         @NotNull
+         @Override
+         public String getDescription()
+            {
+            return "Create the SpeckSamples table";
+            }
+
+         @Override
+         public void migrate(@NotNull final Connection connection) throws SQLException
+            {
+            // databases created before schema versioning already have the table
+            if (!DatabaseUtils.doesTableExist(connection, "SpeckSamples"))
+               {
+               DatabaseSchemaMigrator.execute(connection, "CREATE TABLE SpeckSamples (\n" +
+                                                          "   id                            INTEGER     NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n" +
+                                                          "   raw_particle_count            INTEGER     NOT NULL,\n" +
+                                                          "   particle_count                INTEGER     NOT NULL,\n" +
+                                                          "   temperature                   INTEGER     NOT NULL,\n" +
+                                                          "   humidity                      INTEGER     NOT NULL,\n" +
+                                                          "   sample_timestamp_utc_secs     INTEGER     NOT NULL,\n" +
+                                                          "   download_timestamp_utc_millis BIGINT      NOT NULL,\n" +
+                                                          "   upload_timestamp_utc_millis   BIGINT,\n" +
+                                                          "   upload_status                 VARCHAR(13) NOT NULL DEFAULT 'not_attempted',\n" +
+                                                          "   CONSTRAINT SpeckSamples_PrimaryKey PRIMARY KEY (id),\n" +
+                                                          "   CONSTRAINT SpeckSamples_SampleTimestamp_Unique UNIQUE (sample_timestamp_utc_secs),\n" +
+                                                          "   CONSTRAINT SpeckSamples_StatusContraint CHECK (upload_status IN\n" +
+                                                          "                                                   ('not_attempted',\n" +
+                                                          "                                                    'in_progress',\n" +
+                                                          "                                                    'success',\n" +
+                                                          "                                                    'failure'))\n" +
+                                                          ")");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_RawParticleCount ON SpeckSamples (raw_particle_count)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_ParticleCount ON SpeckSamples (particle_count)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_Temperature ON SpeckSamples (temperature)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_Humidity ON SpeckSamples (humidity)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_DownloadTimestamp ON SpeckSamples (download_timestamp_utc_millis)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_UploadTimestamp ON SpeckSamples (upload_timestamp_utc_millis)");
+               DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_UploadStatus ON SpeckSamples (upload_status)");
+               }
+            }
+         },
+         new DatabaseSchemaMigrator.Migration()
+         {
+         @Override
+         public int getVersion()
+            {
+            return 2;
+            }
+
+         @NotNull
+         @Override
+         public String getDescription()
+            {
+            return "Replace the single-column indexes with a composite upload status index, and store the upload status as a SMALLINT code";
+            }
+
+         @Override
+         public void migrate(@NotNull final Connection connection) throws SQLException
+            {
+            // None of these indexes serve any of our queries, but every insert has to maintain them all.  The
+            // primary key and the unique constraint on the sample time (which also catches duplicate samples) remain.
+            for (final String indexName : new String[]{"SpeckSamples_RawParticleCount",
+                                                       "SpeckSamples_ParticleCount",
+                                                       "SpeckSamples_Temperature",
+                                                       "SpeckSamples_Humidity",
+                                                       "SpeckSamples_DownloadTimestamp",
+                                                       "SpeckSamples_UploadTimestamp",
+                                                       "SpeckSamples_UploadStatus"})
+               {
+               if (DatabaseUtils.doesIndexExist(connection, "SpeckSamples", indexName))
+                  {
+                  DatabaseSchemaMigrator.execute(connection, "DROP INDEX " + indexName);
+                  }
+               }
+
+            // Convert the upload status from a string to a code. Derby can't change a column's type in place, so
+            // add a new column, copy the converted values over, and then swap it for the old one.
+            DatabaseSchemaMigrator.execute(connection, "ALTER TABLE SpeckSamples DROP CONSTRAINT SpeckSamples_StatusContraint");
+            DatabaseSchemaMigrator.execute(connection, "ALTER TABLE SpeckSamples ADD COLUMN upload_status_code SMALLINT NOT NULL DEFAULT " + DataSampleUploadStatus.NOT_ATTEMPTED.getCode());
+            final StringBuilder sql = new StringBuilder("UPDATE SpeckSamples SET upload_status_code = CASE");
+            final StringBuilder codes = new StringBuilder();
+            for (final DataSampleUploadStatus status : DataSampleUploadStatus.values())
+               {
+               sql.append(" WHEN upload_status = '").append(status.getName()).append("' THEN ").append(status.getCode());
+               codes.append(codes.length() > 0 ? ", " : "").append(status.getCode());
+               }
+            sql.append(" END WHERE upload_status <> '").append(DataSampleUploadStatus.NOT_ATTEMPTED.getName()).append("'");
+            DatabaseSchemaMigrator.execute(connection, sql.toString());
+            DatabaseSchemaMigrator.execute(connection, "ALTER TABLE SpeckSamples DROP COLUMN upload_status");
+            DatabaseSchemaMigrator.execute(connection, "RENAME COLUMN SpeckSamples.upload_status_code TO upload_status");
+            DatabaseSchemaMigrator.execute(connection, "ALTER TABLE SpeckSamples ADD CONSTRAINT SpeckSamples_UploadStatus_Check CHECK (upload_status IN (" + codes + "))");
+
+            // serves both selecting the oldest samples to upload, and resetting samples stuck in progress
+            DatabaseSchemaMigrator.execute(connection, "CREATE INDEX SpeckSamples_UploadStatus_SampleTimestamp ON SpeckSamples (upload_status, sample_timestamp_utc_secs)");
+            }
+         }));
 
    private static final String SQL_STATE_DUPLICATE_KEY = "23505";
    private static final int SQL_ERROR_CODE_DUPLICATE_KEY = 30000;
@@ -102,29 +261,68 @@ final class DatabaseDataSampleStore implements DataSampleStore
       return s.toString();
       }
 
+   /**
+    * The number of open stores using each database, keyed by the database's absolute path.  A database may be opened by
+    * more than one store at once (e.g. the journal imports it while the database is also the primary store), and Derby
+    * shuts down a database for every connection at once, so it's only shut down once its last store is.
+    */
+   private static final Map<String, Integer> NUM_OPEN_STORES_BY_DATABASE = new HashMap<String, Integer>();
+
+   @NotNull
+   private final File databaseDirectory;
    private Connection connection = null;
    private final Map<String, PreparedStatement> preparedStatements = new HashMap<String, PreparedStatement>();
    private boolean isShutDown = false;
    private final Lock lock = new ReentrantLock();
+   private volatile long lastSaveTimeMillis = 0;
+
+   /** Provides the database as the <code>database</code> store. */
+   public static final class Provider implements DataSampleStoreProvider
+      {
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return "database";
+         }
+
+      @Override
+      public boolean canBePrimaryStore()
+         {
+         return true;
+         }
+
+      @Override
+      public boolean hasOwnWriteQueue()
+         {
+         return false;
+         }
+
+      @NotNull
+      @Override
+      public DataSampleStore createDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
+         {
+         return new DatabaseDataSampleStore(speckConfig);
+         }
+      }
 
    DatabaseDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
       {
       lock.lock();  // block until condition holds
       try
          {
-         // Define the Derby home directory.  We do this because the database will be created under the directory
-         // specified by the derby.system.home system property.
-         if (LOG.isInfoEnabled())
+         // Each Speck gets its own database, referenced by absolute path so that multiple stores (i.e. one per
+         // connected Speck) can coexist in the same JVM.  We only define the Derby home directory (which is where
+         // derby.log gets written) if it hasn't already been defined.
+         databaseDirectory = getDatabaseDirectory(speckConfig);
+         final File databaseParentDirectory = databaseDirectory.getParentFile();
+         if (System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) == null)
             {
-            LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): Previous value of System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
+            System.setProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY, databaseParentDirectory.getAbsolutePath());
             }
-         final File dataDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
-         final File databaseParentDirectory = new File(dataDirectory, "database");
-         final File databaseDirectory = new File(databaseParentDirectory, DATABASE_NAME);
-         System.setProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY, databaseParentDirectory.getAbsolutePath());
          if (LOG.isInfoEnabled())
             {
-            LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): New value of System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
+            LOG.info("DatabaseDataSampleStore.DatabaseDataSampleStore(): System.getProperty(" + DERBY_SYSTEM_HOME_PROPERTY_KEY + ") = [" + System.getProperty(DERBY_SYSTEM_HOME_PROPERTY_KEY) + "]");
             }
 
          // Make sure the database directory parent exists
@@ -148,19 +346,17 @@ final class DatabaseDataSampleStore implements DataSampleStore
             System.exit(1);
             }
 
-         // Define connection properties. Providing a user name and password is optional in the embedded framework, but,
-         // by default, the schema APP will be used when no username is provided. Otherwise, the schema name is the same
-         // as the user name.
-         final Properties properties = new Properties();
-         properties.put("user", "speck");
-         properties.put("password", "speck");
-
          try
             {
             // This connection specifies create=true in the connection URL to cause the database to be created when connecting
             // for the first time. To remove the database, remove the directory derbyDB (the same as the database name) and
             // its contents.
-            connection = DriverManager.getConnection(PROTOCOL + DATABASE_NAME + ";create=true", properties);
+            connection = DriverManager.getConnection(PROTOCOL + databaseDirectory.getAbsolutePath() + ";create=true", getConnectionProperties());
+            synchronized (NUM_OPEN_STORES_BY_DATABASE)
+               {
+               final Integer numOpenStores = NUM_OPEN_STORES_BY_DATABASE.get(databaseDirectory.getAbsolutePath());
+               NUM_OPEN_STORES_BY_DATABASE.put(databaseDirectory.getAbsolutePath(), numOpenStores == null ? 1 : numOpenStores + 1);
+               }
             }
          catch (SQLException e)
             {
@@ -178,13 +374,16 @@ final class DatabaseDataSampleStore implements DataSampleStore
                // there's no harm in making it explicit here.
                connection.setAutoCommit(true);
 
-               // Creates tables, if necessary
-               initializeDatabase(connection);
+               // Creates tables, if necessary, and brings the schema up to date
+               SCHEMA_MIGRATOR.migrate(connection);
 
                // create prepared statements for insert and update
                preparedStatements.put(STATEMENT_NAME_INSERT_SAMPLE, connection.prepareStatement(STATEMENT_INSERT_SAMPLE));
                preparedStatements.put(STATEMENT_NAME_UPDATE_ALL_SAMPLES_HAVING_STATUS, connection.prepareStatement(STATEMENT_UPDATE_ALL_SAMPLES_HAVING_STATUS));
-               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED, connection.prepareStatement(STATEMENT_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED));
+               preparedStatements.put(STATEMENT_NAME_UPDATE_STATUS_OF_SAMPLES_IN_ID_RANGE, connection.prepareStatement(STATEMENT_UPDATE_STATUS_OF_SAMPLES_IN_ID_RANGE));
+               preparedStatements.put(STATEMENT_NAME_SELECT_SAMPLES_HAVING_STATUS, connection.prepareStatement(STATEMENT_SELECT_SAMPLES_HAVING_STATUS));
+               preparedStatements.put(STATEMENT_NAME_DELETE_SAMPLES_IN_ID_RANGE_HAVING_STATUS, connection.prepareStatement(STATEMENT_DELETE_SAMPLES_IN_ID_RANGE_HAVING_STATUS));
+               preparedStatements.put(STATEMENT_NAME_COUNT_SAMPLES_HAVING_STATUS, connection.prepareStatement(STATEMENT_COUNT_SAMPLES_HAVING_STATUS));
 
                wasSetupSuccessful = true;
                }
@@ -214,6 +413,20 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       }
 
+   /**
+    * Defines connection properties. Providing a user name and password is optional in the embedded framework, but, by
+    * default, the schema APP will be used when no username is provided. Otherwise, the schema name is the same as the
+    * user name.
+    */
+   @NotNull
+   private static Properties getConnectionProperties()
+      {
+      final Properties properties = new Properties();
+      properties.put("user", "speck");
+      properties.put("password", "speck");
+      return properties;
+      }
+
    @Override
    @NotNull
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
@@ -221,6 +434,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
       lock.lock();  // block until condition holds
       try
          {
+         lastSaveTimeMillis = System.currentTimeMillis();
          final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_SAMPLE);
 
          boolean isDuplicate = false;
@@ -228,12 +442,7 @@ final class DatabaseDataSampleStore implements DataSampleStore
             {
             try
                {
-               insertStatement.setInt(1, dataSample.getRawParticleCount());
-               insertStatement.setInt(2, dataSample.getParticleCountOrConcentration());
-               insertStatement.setInt(3, dataSample.getTemperatureInTenthsOfADegreeF());
-               insertStatement.setInt(4, dataSample.getHumidity());
-               insertStatement.setInt(5, dataSample.getSampleTime());
-               insertStatement.setLong(6, dataSample.getDownloadTime());
+               setInsertStatementParameters(insertStatement, dataSample);
                insertStatement.executeUpdate();
 
                if (LOG.isDebugEnabled())
@@ -268,6 +477,283 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       }
 
+   /**
+    * Saves the given samples in a single transaction using a JDBC batch, so that the whole group pays for only one log
+    * force.  Derby stops executing a batch at the first failed insert (e.g. a duplicate), but the inserts before it
+    * remain part of the transaction, so we record the failure and resume the batch with the sample after it.  A
+    * sample's result is only reported as {@link SaveResult#SUCCESS} once the transaction has been committed.
+    * <p>
+    * The download loop saves one sample at a time, since the Speck only hands out its next sample once the previous one
+    * has been saved and deleted, so groups only form where samples queue up, e.g. when the database is a secondary
+    * destination of the {@link MultiDestinationDataSampleStore}, which hands it up to 1000 queued samples at once.
+    * </p>
+    */
+   @Override
+   @NotNull
+   public List<SaveResult> save(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         lastSaveTimeMillis = System.currentTimeMillis();
+         final SaveResult[] saveResults = new SaveResult[dataSamples.size()];
+         Arrays.fill(saveResults, SaveResult.FAILURE_ERROR);
+
+         final PreparedStatement insertStatement = preparedStatements.get(STATEMENT_NAME_INSERT_SAMPLE);
+         if (insertStatement == null)
+            {
+            LOG.error("DatabaseDataSampleStore.save(): Save failed because no insert statement is defined!");
+            }
+         else if (!dataSamples.isEmpty())
+            {
+            // indices of the samples which were inserted, but not yet committed
+            final List<Integer> insertedIndices = new ArrayList<Integer>(dataSamples.size());
+            try
+               {
+               connection.setAutoCommit(false);
+
+               int batchStartIndex = 0;
+               while (batchStartIndex < dataSamples.size())
+                  {
+                  for (int i = batchStartIndex; i < dataSamples.size(); i++)
+                     {
+                     setInsertStatementParameters(insertStatement, dataSamples.get(i));
+                     insertStatement.addBatch();
+                     }
+
+                  try
+                     {
+                     insertStatement.executeBatch();
+                     for (int i = batchStartIndex; i < dataSamples.size(); i++)
+                        {
+                        insertedIndices.add(i);
+                        }
+                     batchStartIndex = dataSamples.size();
+                     }
+                  catch (BatchUpdateException e)
+                     {
+                     insertStatement.clearBatch();
+
+                     // the update counts tell us how many inserts succeeded before the failed one
+                     final int[] updateCounts = e.getUpdateCounts();
+                     final int failedIndex = batchStartIndex + (updateCounts == null ? 0 : updateCounts.length);
+                     for (int i = batchStartIndex; i < failedIndex; i++)
+                        {
+                        insertedIndices.add(i);
+                        }
+
+                     if (isDuplicateKeyException(e))
+                        {
+                        LOG.error("DatabaseDataSampleStore.save(): Saved failed because a sample with timestamp [" + dataSamples.get(failedIndex).getSampleTime() + "] already exists.  Duplicate sample timestamps are not allowed.");
+                        saveResults[failedIndex] = SaveResult.FAILURE_DUPLICATE;
+                        }
+                     else
+                        {
+                        LOG.error("DatabaseDataSampleStore.save(): SQLException while trying to save data sample [" + dataSamples.get(failedIndex).getSampleTime() + "] " + getSqlExceptionAsString(e));
+                        }
+                     batchStartIndex = failedIndex + 1;
+                     }
+                  }
+
+               connection.commit();
+               for (final int i : insertedIndices)
+                  {
+                  saveResults[i] = SaveResult.SUCCESS;
+                  }
+
+               if (LOG.isDebugEnabled())
+                  {
+                  LOG.debug("DatabaseDataSampleStore.save(): Saved [" + insertedIndices.size() + "] of [" + dataSamples.size() + "] data samples to the database.");
+                  }
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.save(): SQLException while trying to save a batch of [" + dataSamples.size() + "] data samples, rolling back " + getSqlExceptionAsString(e));
+               try
+                  {
+                  insertStatement.clearBatch();
+                  connection.rollback();
+                  }
+               catch (SQLException e1)
+                  {
+                  LOG.error("DatabaseDataSampleStore.save(): SQLException while trying to roll back " + getSqlExceptionAsString(e1));
+                  }
+               }
+            finally
+               {
+               try
+                  {
+                  connection.setAutoCommit(true);
+                  }
+               catch (SQLException e)
+                  {
+                  LOG.error("DatabaseDataSampleStore.save(): SQLException while trying to restore auto commit " + getSqlExceptionAsString(e));
+                  }
+               }
+            }
+
+         return Arrays.asList(saveResults);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   private static void setInsertStatementParameters(@NotNull final PreparedStatement insertStatement, @NotNull final Speck.DataSample dataSample) throws SQLException
+      {
+      insertStatement.setInt(1, dataSample.getRawParticleCount());
+      insertStatement.setInt(2, dataSample.getParticleCountOrConcentration());
+      insertStatement.setInt(3, dataSample.getTemperatureInTenthsOfADegreeF());
+      insertStatement.setInt(4, dataSample.getHumidity());
+      insertStatement.setInt(5, dataSample.getSampleTime());
+      insertStatement.setLong(6, dataSample.getDownloadTime());
+      }
+
+   /**
+    * Returns <code>true</code> if the given exception (or one chained to it) was caused by a duplicate key.  Only the
+    * SQL state is checked, since within a transaction Derby reports a duplicate with statement severity (error code
+    * 20000) rather than the {@link #SQL_ERROR_CODE_DUPLICATE_KEY} reported when auto commit is on.
+    */
+   private static boolean isDuplicateKeyException(@NotNull final SQLException sqlException)
+      {
+      SQLException e = sqlException;
+      while (e != null)
+         {
+         if (SQL_STATE_DUPLICATE_KEY.equals(e.getSQLState()))
+            {
+            return true;
+            }
+         e = e.getNextException();
+         }
+      return false;
+      }
+
+   /** Receives the samples exported by {@link #exportDataSamples(ExportHandler)}. */
+   interface ExportHandler
+      {
+      void handleDataSample(@NotNull final Speck.DataSample dataSample, final long downloadTimestampUtcMillis, final boolean wasUploaded) throws IOException;
+      }
+
+   /**
+    * Passes every sample in the database to the given handler, in order of sample time, and returns the number of
+    * samples exported.  Samples are streamed, so this works for databases of any size.
+    */
+   int exportDataSamples(@NotNull final ExportHandler handler) throws SQLException, IOException
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         int count = 0;
+         final Statement statement = connection.createStatement();
+         try
+            {
+            statement.setFetchSize(1000);
+            final ResultSet resultSet = statement.executeQuery("SELECT id, sample_timestamp_utc_secs, raw_particle_count, particle_count, temperature, humidity, download_timestamp_utc_millis, upload_status " +
+                                                               "FROM SpeckSamples ORDER BY sample_timestamp_utc_secs");
+            while (resultSet.next())
+               {
+               handler.handleDataSample(new DataSample(resultSet.getInt(1),         // databaseId
+                                                       resultSet.getInt(2),         // sampleTimeUtcSeconds
+                                                       resultSet.getInt(3),         // rawParticleCount
+                                                       resultSet.getInt(4),         // particleCount
+                                                       resultSet.getInt(5),         // temperatureInTenthsOfDegreeF
+                                                       resultSet.getInt(6)),        // humidity
+                                        resultSet.getLong(7),
+                                        resultSet.getShort(8) == DataSampleUploadStatus.SUCCESS.getCode());
+               count++;
+               }
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         return count;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Writes a line describing the given sample to a file to be loaded by {@link #importDataSamples(File)}.  The sample
+    * is marked as uploaded at the given time, or as not yet uploaded if the time is <code>null</code>.
+    */
+   static void writeImportLine(@NotNull final Writer writer,
+                               @NotNull final Speck.DataSample dataSample,
+                               final long downloadTimestampUtcMillis,
+                               @Nullable final Long uploadTimestampUtcMillis) throws IOException
+      {
+      writer.write(String.valueOf(dataSample.getRawParticleCount()));
+      writer.write(',');
+      writer.write(String.valueOf(dataSample.getParticleCountOrConcentration()));
+      writer.write(',');
+      writer.write(String.valueOf(dataSample.getTemperatureInTenthsOfADegreeF()));
+      writer.write(',');
+      writer.write(String.valueOf(dataSample.getHumidity()));
+      writer.write(',');
+      writer.write(String.valueOf(dataSample.getSampleTime()));
+      writer.write(',');
+      writer.write(String.valueOf(downloadTimestampUtcMillis));
+      writer.write(',');
+      if (uploadTimestampUtcMillis == null)
+         {
+         // an empty field is imported as NULL
+         writer.write(',');
+         writer.write(String.valueOf(DataSampleUploadStatus.NOT_ATTEMPTED.getCode()));
+         }
+      else
+         {
+         writer.write(String.valueOf(uploadTimestampUtcMillis));
+         writer.write(',');
+         writer.write(String.valueOf(DataSampleUploadStatus.SUCCESS.getCode()));
+         }
+      writer.write('\n');
+      }
+
+   /**
+    * Loads the samples in the given file, written with {@link #writeImportLine(Writer, Speck.DataSample, long, Long)},
+    * with Derby's <code>SYSCS_UTIL.SYSCS_IMPORT_DATA</code> procedure.  The file must not contain any duplicates, of
+    * each other or of samples already in the database, since the whole import fails if any sample can't be inserted.
+    * If the table is empty, Derby loads the samples in bulk, without logging each insert, and then builds the indexes
+    * once, which is much faster than inserting them one at a time.
+    */
+   void importDataSamples(@NotNull final File file) throws SQLException
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final PreparedStatement statement = connection.prepareStatement(STATEMENT_IMPORT_DATA);
+         try
+            {
+            statement.setString(1, file.getAbsolutePath());
+            statement.execute();
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Returns <code>true</code> if a database has already been created for the given Speck. */
+   static boolean doesDatabaseExist(@NotNull final SpeckConfig speckConfig)
+      {
+      return getDatabaseDirectory(speckConfig).isDirectory();
+      }
+
+   @NotNull
+   private static File getDatabaseDirectory(@NotNull final SpeckConfig speckConfig)
+      {
+      final File dataDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
+      return new File(new File(dataDirectory, "database"), DATABASE_NAME);
+      }
+
    @Override
    public void resetStateOfUploadingSamples()
       {
@@ -279,8 +765,8 @@ final class DatabaseDataSampleStore implements DataSampleStore
             {
             try
                {
-               updateStatement.setString(1, DataSampleUploadStatus.NOT_ATTEMPTED.getName());
-               updateStatement.setString(2, DataSampleUploadStatus.IN_PROGRESS.getName());
+               updateStatement.setShort(1, DataSampleUploadStatus.NOT_ATTEMPTED.getCode());
+               updateStatement.setShort(2, DataSampleUploadStatus.IN_PROGRESS.getCode());
                updateStatement.executeUpdate();
 
                if (LOG.isDebugEnabled())
@@ -311,30 +797,28 @@ final class DatabaseDataSampleStore implements DataSampleStore
       lock.lock();  // block until condition holds
       try
          {
-         final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
-         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLES_NEEDING_TO_BE_UPLOADED);
+         final TreeSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
+         final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLES_HAVING_STATUS);
          if (selectStatement != null)
             {
             final int maxNumberToGet = (maxNumberRequested < 1) ? DataSampleSet.DEFAULT_SIZE : maxNumberRequested;
             try
                {
-               selectStatement.setInt(1, maxNumberToGet);
-
-               final ResultSet resultSet = selectStatement.executeQuery();
+               // Get the oldest samples for each of the two statuses, and then keep only the oldest overall.  Doing
+               // this with two index range scans is much cheaper than a single query with an OR on the status, which
+               // Derby can't satisfy with an ordered index scan.
+               selectDataSamplesHavingStatus(selectStatement, DataSampleUploadStatus.FAILURE, maxNumberToGet, dataSamples);
+               selectDataSamplesHavingStatus(selectStatement, DataSampleUploadStatus.NOT_ATTEMPTED, maxNumberToGet, dataSamples);
+               while (dataSamples.size() > maxNumberToGet)
+                  {
+                  dataSamples.pollLast();
+                  }
 
-               // Build up our DataSampleSet, but also build the List of IDs so we can create
-               // a query to mark all these samples' upload state as IN_PROGRESS.
-               final List<Integer> ids = new ArrayList<Integer>();
-               while (resultSet.next())
+               // build the List of IDs so we can mark all these samples' upload state as IN_PROGRESS
+               final List<Integer> ids = new ArrayList<Integer>(dataSamples.size());
+               for (final Speck.DataSample dataSample : dataSamples)
                   {
-                  final int id = resultSet.getInt(2);
-                  ids.add(id);
-                  dataSamples.add(new DataSample(id,                         // databaseId
-                                                 resultSet.getInt(3),        // sampleTimeUtcSeconds
-                                                 resultSet.getInt(4),        // rawParticleCount
-                                                 resultSet.getInt(5),        // particleCount
-                                                 resultSet.getInt(6),        // temperatureInTenthsOfDegreeF
-                                                 resultSet.getInt(7)));      // humidity
+                  ids.add(dataSample.getDatabaseId());
                   }
 
                // if the update failed, then we should just return an empty DataSampleSet
@@ -346,11 +830,12 @@ final class DatabaseDataSampleStore implements DataSampleStore
             catch (SQLException e)
                {
                LOG.error("DatabaseDataSampleStore.getDataSamplesToUpload(): SQLException while trying to get data samples to upload", e);
+               dataSamples.clear();
                }
             }
          else
             {
-            LOG.error("DatabaseDataSampleStore.resetStateOfUploadingSamples(): Reset failed because no update statement is defined!");
+            LOG.error("DatabaseDataSampleStore.getDataSamplesToUpload(): Select failed because no select statement is defined!");
             }
 
          return new DataSampleSetImpl(dataSamples);
@@ -361,6 +846,36 @@ final class DatabaseDataSampleStore implements DataSampleStore
          }
       }
 
+   /**
+    * Adds up to <code>maxNumberToGet</code> of the oldest samples having the given status to the given set.  MUST be
+    * called from within a lock block.
+    */
+   private static void selectDataSamplesHavingStatus(@NotNull final PreparedStatement selectStatement,
+                                                     @NotNull final DataSampleUploadStatus status,
+                                                     final int maxNumberToGet,
+                                                     @NotNull final SortedSet<Speck.DataSample> dataSamples) throws SQLException
+      {
+      selectStatement.setShort(1, status.getCode());
+      selectStatement.setInt(2, maxNumberToGet);
+      final ResultSet resultSet = selectStatement.executeQuery();
+      try
+         {
+         while (resultSet.next())
+            {
+            dataSamples.add(new DataSample(resultSet.getInt(1),        // databaseId
+                                           resultSet.getInt(2),        // sampleTimeUtcSeconds
+                                           resultSet.getInt(3),        // rawParticleCount
+                                           resultSet.getInt(4),        // particleCount
+                                           resultSet.getInt(5),        // temperatureInTenthsOfDegreeF
+                                           resultSet.getInt(6)));      // humidity
+            }
+         }
+      finally
+         {
+         resultSet.close();
+         }
+      }
+
    @Override
    public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
       {
@@ -415,32 +930,66 @@ final class DatabaseDataSampleStore implements DataSampleStore
    /**
     * Marks the samples associated with the given IDs with the given status.  MUST be called from within a lock block.
     * Returns <code>true</code> upon success, <code>false</code> otherwise.
+    * <p>
+    * The IDs are sorted and coalesced into runs of consecutive IDs, and each run is updated with a single execution of
+    * the prepared <code>WHERE ID &gt;= ? AND ID &lt;= ?</code> statement.  Samples handed out for upload are typically
+    * consecutive rows, so this is usually just one or a few executions of a statement which Derby only compiles once,
+    * rather than a new <code>IN</code> list statement to parse and compile for every batch.  All runs are updated in
+    * a single transaction, so either all or none of the samples are marked.
+    * </p>
     */
    private boolean markDataSamplesWithStatus(@NotNull final List<Integer> dataSamplesIds, @NotNull final DataSampleUploadStatus status, @Nullable final Long timestampUtcMillis)
       {
       boolean wasSuccessful = false;
-      if (!dataSamplesIds.isEmpty())
+      final PreparedStatement updateStatement = preparedStatements.get(STATEMENT_NAME_UPDATE_STATUS_OF_SAMPLES_IN_ID_RANGE);
+      if (updateStatement == null)
+         {
+         LOG.error("DatabaseDataSampleStore.markDataSamplesWithStatus(): Update failed because no update statement is defined!");
+         }
+      else if (!dataSamplesIds.isEmpty())
          {
-         Statement updateStatement = null;
+         final int[] ids = new int[dataSamplesIds.size()];
+         for (int i = 0; i < ids.length; i++)
+            {
+            ids[i] = dataSamplesIds.get(i);
+            }
+         Arrays.sort(ids);
+
          try
             {
-            final String updateSql = "UPDATE SpeckSamples " +
-                                     "SET " +
-                                     "   UPLOAD_STATUS='" + status.getName() + "', " +
-                                     "   UPLOAD_TIMESTAMP_UTC_MILLIS=" + timestampUtcMillis + " " +
-                                     "WHERE ID IN (" + StringUtils.join(dataSamplesIds, ",") + ")";
+            connection.setAutoCommit(false);
+            try
+               {
+               updateStatement.setShort(1, status.getCode());
+               if (timestampUtcMillis == null)
+                  {
+                  updateStatement.setNull(2, Types.BIGINT);
+                  }
+               else
+                  {
+                  updateStatement.setLong(2, timestampUtcMillis);
+                  }
 
-            updateStatement = connection.createStatement();
-            updateStatement.executeUpdate(updateSql);
-            wasSuccessful = true;
+               addIdRangesToBatch(updateStatement, 3, ids);
+               updateStatement.executeBatch();
+               connection.commit();
+               wasSuccessful = true;
+               }
+            catch (SQLException e)
+               {
+               LOG.error("DatabaseDataSampleStore.markDataSamplesWithStatus(): SQLException while trying to mark data samples as " + status, e);
+               updateStatement.clearBatch();
+               connection.rollback();
+               }
+            finally
+               {
+               connection.setAutoCommit(true);
+               }
             }
          catch (SQLException e)
             {
-            LOG.error("DatabaseDataSampleStore.markDataSamplesWithStatus(): SQLException while trying to mark data samples as " + status, e);
-            }
-         finally
-            {
-            closeStatement(updateStatement);
+            LOG.error("DatabaseDataSampleStore.markDataSamplesWithStatus(): SQLException while trying to end the transaction for marking data samples as " + status, e);
+            wasSuccessful = false;
             }
          }
 
@@ -459,36 +1008,265 @@ final class DatabaseDataSampleStore implements DataSampleStore
       return wasSuccessful;
       }
 
-   public void shutdown()
+   /**
+    * Coalesces the given sorted IDs into runs of consecutive IDs, and adds each run to the given statement's batch,
+    * setting the first and last ID of the run as the parameters at <code>firstIdParameterIndex</code> and the one after
+    * it.  MUST be called from within a lock block.
+    */
+   private static void addIdRangesToBatch(@NotNull final PreparedStatement statement, final int firstIdParameterIndex, @NotNull final int[] sortedIds) throws SQLException
       {
-      lock.lock();  // block until condition holds
+      int runStart = 0;
+      for (int i = 1; i <= sortedIds.length; i++)
+         {
+         // end the current run at the end of the array, or when the next ID isn't consecutive (duplicates are harmless)
+         if (i == sortedIds.length || sortedIds[i] - sortedIds[i - 1] > 1)
+            {
+            statement.setInt(firstIdParameterIndex, sortedIds[runStart]);
+            statement.setInt(firstIdParameterIndex + 1, sortedIds[i - 1]);
+            statement.addBatch();
+            runStart = i;
+            }
+         }
+      }
+
+   /**
+    * Purges uploaded samples which the retention policy no longer requires to be kept (see
+    * {@link #RETENTION_MAX_AGE_DAYS_SYSTEM_PROPERTY} and {@link #RETENTION_MAX_UPLOADED_SAMPLES_SYSTEM_PROPERTY}), and
+    * then compresses the table if enough of it is free space (see {@link #COMPRESS_MIN_FREE_PERCENT_SYSTEM_PROPERTY}).
+    * Does nothing if neither retention limit is set.
+    */
+   @NotNull
+   @Override
+   public MaintenanceResult performMaintenance()
+      {
+      if (RETENTION_MAX_AGE_DAYS < 0 && RETENTION_MAX_UPLOADED_SAMPLES < 0)
+         {
+         return MaintenanceResult.NONE;
+         }
+
+      final int numSamplesPurged = purgeUploadedDataSamples();
+      final long numBytesReclaimed = compressTableIfWorthwhile();
+      return new MaintenanceResult(numSamplesPurged, numBytesReclaimed);
+      }
+
+   /**
+    * Deletes the oldest uploaded samples which are either older than the maximum age, or in excess of the maximum
+    * number of uploaded samples, and returns the number deleted.  Samples are deleted in chunks of
+    * {@link #PURGE_CHUNK_SIZE}, each in its own transaction, and the lock is released between chunks so that saves and
+    * uploads can proceed.
+    */
+   private int purgeUploadedDataSamples()
+      {
+      final int minSampleTimeToKeep = (RETENTION_MAX_AGE_DAYS < 0) ? Integer.MIN_VALUE : (int)(System.currentTimeMillis() / 1000 - RETENTION_MAX_AGE_DAYS * 24L * 60 * 60);
+      int numExcessSamples = 0;
+      int numSamplesPurged = 0;
       try
          {
-         if (!isShutDown)
+         if (RETENTION_MAX_UPLOADED_SAMPLES >= 0)
             {
-            LOG.debug("DatabaseDataSampleStore.shutdown(): Shutting down...");
-            CONSOLE_LOG.info("Shutting down the database...");
+            lock.lock();  // block until condition holds
             try
                {
-               // the shutdown=true attribute shuts down Derby
-               DriverManager.getConnection(PROTOCOL + ";shutdown=true");
+               final PreparedStatement countStatement = preparedStatements.get(STATEMENT_NAME_COUNT_SAMPLES_HAVING_STATUS);
+               if (isShutDown || countStatement == null)
+                  {
+                  return 0;
+                  }
+               countStatement.setShort(1, DataSampleUploadStatus.SUCCESS.getCode());
+               final ResultSet resultSet = countStatement.executeQuery();
+               try
+                  {
+                  numExcessSamples = resultSet.next() ? Math.max(0, resultSet.getInt(1) - RETENTION_MAX_UPLOADED_SAMPLES) : 0;
+                  }
+               finally
+                  {
+                  resultSet.close();
+                  }
                }
-            catch (SQLException e)
+            finally
+               {
+               lock.unlock();
+               }
+            }
+
+         boolean isDone = false;
+         while (!isDone && !Thread.currentThread().isInterrupted())
+            {
+            lock.lock();  // block until condition holds
+            try
                {
-               if (((e.getErrorCode() == 50000) && ("XJ015".equals(e.getSQLState()))))
+               final PreparedStatement selectStatement = preparedStatements.get(STATEMENT_NAME_SELECT_SAMPLES_HAVING_STATUS);
+               final PreparedStatement deleteStatement = preparedStatements.get(STATEMENT_NAME_DELETE_SAMPLES_IN_ID_RANGE_HAVING_STATUS);
+               if (isShutDown || selectStatement == null || deleteStatement == null)
                   {
-                  // we got the expected exception
-                  LOG.info("DatabaseDataSampleStore.shutdown(): Derby shut down normally");
-                  CONSOLE_LOG.info("Database shut down normally");
+                  break;
                   }
-               else
+
+               // the oldest uploaded samples, in order of sample time, so the ones to purge are at the start
+               final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
+               selectDataSamplesHavingStatus(selectStatement, DataSampleUploadStatus.SUCCESS, PURGE_CHUNK_SIZE, dataSamples);
+               final List<Integer> idsToPurge = new ArrayList<Integer>(dataSamples.size());
+               for (final Speck.DataSample dataSample : dataSamples)
+                  {
+                  if (dataSample.getSampleTime() >= minSampleTimeToKeep && numSamplesPurged + idsToPurge.size() >= numExcessSamples)
+                     {
+                     break;
+                     }
+                  idsToPurge.add(dataSample.getDatabaseId());
+                  }
+               isDone = idsToPurge.size() < PURGE_CHUNK_SIZE;
+
+               if (!idsToPurge.isEmpty())
                   {
-                  // if the error code or SQLState is different, we have
-                  // an unexpected exception (shutdown failed)
-                  LOG.error("DatabaseDataSampleStore.shutdown(): Derby did not shut down normally: " + getSqlExceptionAsString(e), e);
-                  CONSOLE_LOG.error("Database did not shut down normally: " + getSqlExceptionAsString(e));
+                  final int[] ids = new int[idsToPurge.size()];
+                  for (int i = 0; i < ids.length; i++)
+                     {
+                     ids[i] = idsToPurge.get(i);
+                     }
+                  Arrays.sort(ids);
+
+                  connection.setAutoCommit(false);
+                  try
+                     {
+                     deleteStatement.setShort(3, DataSampleUploadStatus.SUCCESS.getCode());
+                     addIdRangesToBatch(deleteStatement, 1, ids);
+                     deleteStatement.executeBatch();
+                     connection.commit();
+                     numSamplesPurged += ids.length;
+                     }
+                  catch (SQLException e)
+                     {
+                     deleteStatement.clearBatch();
+                     connection.rollback();
+                     throw e;
+                     }
+                  finally
+                     {
+                     connection.setAutoCommit(true);
+                     }
                   }
                }
+            finally
+               {
+               lock.unlock();
+               }
+            }
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.purgeUploadedDataSamples(): SQLException while trying to purge uploaded data samples " + getSqlExceptionAsString(e));
+         }
+
+      if (numSamplesPurged > 0 && (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled()))
+         {
+         final String message = "Purged " + numSamplesPurged + " uploaded samples from the database";
+         LOG.info("DatabaseDataSampleStore.purgeUploadedDataSamples(): " + message);
+         CONSOLE_LOG.info(message);
+         }
+      return numSamplesPurged;
+      }
+
+   /**
+    * Compresses the SpeckSamples table if at least {@link #COMPRESS_MIN_FREE_PERCENT} of its space is free pages, and
+    * returns the number of bytes reclaimed.  Derby reuses the space of deleted rows for new ones, but never returns it to
+    * the file system without a compress.  The compress runs in place on its own connection, so the store isn't locked
+    * while it runs and Derby doesn't lock the whole table, but moving rows to the front of the table still holds up
+    * concurrent inserts, so it's deferred until nothing has been saved for {@link #COMPRESS_MIN_IDLE_MILLIS}, i.e. until
+    * any backlog has been downloaded.  A deferred compress is retried at the next maintenance.
+    */
+   private long compressTableIfWorthwhile()
+      {
+      final Connection maintenanceConnection;
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (isShutDown || System.currentTimeMillis() - lastSaveTimeMillis < COMPRESS_MIN_IDLE_MILLIS)
+            {
+            return 0;
+            }
+         maintenanceConnection = DriverManager.getConnection(PROTOCOL + databaseDirectory.getAbsolutePath(), getConnectionProperties());
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.compressTableIfWorthwhile(): SQLException while trying to open the maintenance connection " + getSqlExceptionAsString(e));
+         return 0;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+
+      try
+         {
+         final long[] spaceUsageBefore = getSpaceUsage(maintenanceConnection);
+         if (spaceUsageBefore[1] == 0 || spaceUsageBefore[1] * 100 < spaceUsageBefore[0] * COMPRESS_MIN_FREE_PERCENT)
+            {
+            return 0;
+            }
+
+         final long startTime = System.currentTimeMillis();
+         final Statement statement = maintenanceConnection.createStatement();
+         try
+            {
+            statement.execute(STATEMENT_COMPRESS_TABLE);
+            }
+         finally
+            {
+            closeStatement(statement);
+            }
+         final long numBytesReclaimed = Math.max(0, spaceUsageBefore[0] - getSpaceUsage(maintenanceConnection)[0]);
+
+         if (LOG.isInfoEnabled() || CONSOLE_LOG.isInfoEnabled())
+            {
+            final String message = "Compressed the database, reclaiming " + numBytesReclaimed + " bytes in " + (System.currentTimeMillis() - startTime) + " ms";
+            LOG.info("DatabaseDataSampleStore.compressTableIfWorthwhile(): " + message);
+            CONSOLE_LOG.info(message);
+            }
+         return numBytesReclaimed;
+         }
+      catch (SQLException e)
+         {
+         LOG.error("DatabaseDataSampleStore.compressTableIfWorthwhile(): SQLException while trying to compress the table " + getSqlExceptionAsString(e));
+         return 0;
+         }
+      finally
+         {
+         try
+            {
+            maintenanceConnection.close();
+            }
+         catch (SQLException e)
+            {
+            LOG.error("DatabaseDataSampleStore.compressTableIfWorthwhile(): SQLException while trying to close the maintenance connection " + getSqlExceptionAsString(e));
+            }
+         }
+      }
+
+   /** Returns the total bytes and the free bytes used by the SpeckSamples table and its indexes. */
+   @NotNull
+   private long[] getSpaceUsage(@NotNull final Connection maintenanceConnection) throws SQLException
+      {
+      final Statement statement = maintenanceConnection.createStatement();
+      try
+         {
+         final ResultSet resultSet = statement.executeQuery(STATEMENT_SELECT_SPACE_USAGE);
+         return resultSet.next() ? new long[]{resultSet.getLong(1), resultSet.getLong(2)} : new long[]{0, 0};
+         }
+      finally
+         {
+         closeStatement(statement);
+         }
+      }
+
+   public void shutdown()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (!isShutDown)
+            {
+            LOG.debug("DatabaseDataSampleStore.shutdown(): Shutting down...");
+            CONSOLE_LOG.info("Shutting down the database...");
 
             // close the prepared statements
             for (final String statementName : preparedStatements.keySet())
@@ -515,6 +1293,46 @@ final class DatabaseDataSampleStore implements DataSampleStore
                LOG.error("DatabaseDataSampleStore.shutdown(): SQLException while closing the connection" + getSqlExceptionAsString(e));
                }
 
+            // shut down this database (but not the whole Derby system, since other stores may still be using it), unless
+            // another store still has it open
+            boolean isLastOpenStore = true;
+            synchronized (NUM_OPEN_STORES_BY_DATABASE)
+               {
+               final Integer numOpenStores = NUM_OPEN_STORES_BY_DATABASE.remove(databaseDirectory.getAbsolutePath());
+               if (numOpenStores != null && numOpenStores > 1)
+                  {
+                  NUM_OPEN_STORES_BY_DATABASE.put(databaseDirectory.getAbsolutePath(), numOpenStores - 1);
+                  isLastOpenStore = false;
+                  }
+               }
+            if (isLastOpenStore)
+               {
+               try
+                  {
+                  DriverManager.getConnection(PROTOCOL + databaseDirectory.getAbsolutePath() + ";shutdown=true");
+                  }
+               catch (SQLException e)
+                  {
+                  if (((e.getErrorCode() == 45000) && ("08006".equals(e.getSQLState()))))
+                     {
+                     // we got the expected exception
+                     LOG.info("DatabaseDataSampleStore.shutdown(): Derby shut down the database normally");
+                     CONSOLE_LOG.info("Database shut down normally");
+                     }
+                  else
+                     {
+                     // if the error code or SQLState is different, we have
+                     // an unexpected exception (shutdown failed)
+                     LOG.error("DatabaseDataSampleStore.shutdown(): Derby did not shut down the database normally: " + getSqlExceptionAsString(e), e);
+                     CONSOLE_LOG.error("Database did not shut down normally: " + getSqlExceptionAsString(e));
+                     }
+                  }
+               }
+            else
+               {
+               LOG.info("DatabaseDataSampleStore.shutdown(): Not shutting down the database since another store still has it open");
+               }
+
             isShutDown = true;
             }
          }
@@ -573,54 +1391,6 @@ final class DatabaseDataSampleStore implements DataSampleStore
       return false;
       }
 
-   private void initializeDatabase(@NotNull final Connection connection) throws SQLException
-      {
-      if (!DatabaseUtils.doesTableExist(connection, "SpeckSamples"))
-         {
-         Statement statement = null;
-
-         try
-            {
-            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating table SpeckSamples...");
-            statement = connection.createStatement();
-            statement.execute("CREATE TABLE SpeckSamples (\n" +
-                              "   id                            INTEGER     NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n" +
-                              "   raw_particle_count            INTEGER     NOT NULL,\n" +
-                              "   particle_count                INTEGER     NOT NULL,\n" +
-                              "   temperature                   INTEGER     NOT NULL,\n" +
-                              "   humidity                      INTEGER     NOT NULL,\n" +
-                              "   sample_timestamp_utc_secs     INTEGER     NOT NULL,\n" +
-                              "   download_timestamp_utc_millis BIGINT      NOT NULL,\n" +
-                              "   upload_timestamp_utc_millis   BIGINT,\n" +
-                              "   upload_status                 VARCHAR(13) NOT NULL DEFAULT 'not_attempted',\n" +
-                              "   CONSTRAINT SpeckSamples_PrimaryKey PRIMARY KEY (id),\n" +
-                              "   CONSTRAINT SpeckSamples_SampleTimestamp_Unique UNIQUE (sample_timestamp_utc_secs),\n" +
-                              "   CONSTRAINT SpeckSamples_StatusContraint CHECK (upload_status IN\n" +
-                              "                                                   ('not_attempted',\n" +
-                              "                                                    'in_progress',\n" +
-                              "                                                    'success',\n" +
-                              "                                                    'failure'))\n" +
-                              ")");
-
-            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Creating indeces for table SpeckSamples...");
-
-            statement.execute("CREATE INDEX SpeckSamples_RawParticleCount ON SpeckSamples (raw_particle_count)");
-            statement.execute("CREATE INDEX SpeckSamples_ParticleCount ON SpeckSamples (particle_count)");
-            statement.execute("CREATE INDEX SpeckSamples_Temperature ON SpeckSamples (temperature)");
-            statement.execute("CREATE INDEX SpeckSamples_Humidity ON SpeckSamples (humidity)");
-            statement.execute("CREATE INDEX SpeckSamples_DownloadTimestamp ON SpeckSamples (download_timestamp_utc_millis)");
-            statement.execute("CREATE INDEX SpeckSamples_UploadTimestamp ON SpeckSamples (upload_timestamp_utc_millis)");
-            statement.execute("CREATE INDEX SpeckSamples_UploadStatus ON SpeckSamples (upload_status)");
-
-            LOG.debug("DatabaseDataSampleStore.initializeDatabase(): Database initialization complete!");
-            }
-         finally
-            {
-            closeStatement(statement);
-            }
-         }
-      }
-
    private boolean closeStatement(@Nullable final Statement statement)
       {
       try
@@ -0,0 +1,144 @@
+package org.specksensor;
+
+import java.util.Random;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>DownloadScheduler</code> decides how long the {@link DataSampleManager} should wait before asking a Speck for
+ * another data sample.  Instead of fixed delays, it predicts when the next sample will become available from the
+ * timestamp of the most recently downloaded sample and the rate at which the device records samples while connected
+ * (see {@link SpeckConfig#getLoggingInterval()}), and backs off exponentially (with jitter) upon consecutive
+ * communication failures.
+ * </p>
+ * <p>
+ * The delay bounds can be tuned with the following system properties (all in milliseconds):
+ * <ul>
+ *    <li><code>org.specksensor.DownloadScheduler.min-delay-millis</code> (default 1000)</li>
+ *    <li><code>org.specksensor.DownloadScheduler.max-delay-millis</code> (default 300000)</li>
+ *    <li><code>org.specksensor.DownloadScheduler.failure-base-delay-millis</code> (default 1000)</li>
+ *    <li><code>org.specksensor.DownloadScheduler.failure-max-delay-millis</code> (default 60000)</li>
+ * </ul>
+ * </p>
+ * <p>
+ * This class is not thread safe, and is meant to be used only by the download thread.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class DownloadScheduler
+   {
+   private static final Logger LOG = Logger.getLogger(DownloadScheduler.class);
+
+   public static final String MIN_DELAY_MILLIS_SYSTEM_PROPERTY = "org.specksensor.DownloadScheduler.min-delay-millis";
+   public static final String MAX_DELAY_MILLIS_SYSTEM_PROPERTY = "org.specksensor.DownloadScheduler.max-delay-millis";
+   public static final String FAILURE_BASE_DELAY_MILLIS_SYSTEM_PROPERTY = "org.specksensor.DownloadScheduler.failure-base-delay-millis";
+   public static final String FAILURE_MAX_DELAY_MILLIS_SYSTEM_PROPERTY = "org.specksensor.DownloadScheduler.failure-max-delay-millis";
+
+   private static final long MIN_DELAY_MILLIS = SystemPropertyUtils.getLong(MIN_DELAY_MILLIS_SYSTEM_PROPERTY, 1000, 0);
+   private static final long MAX_DELAY_MILLIS = Math.max(MIN_DELAY_MILLIS, SystemPropertyUtils.getLong(MAX_DELAY_MILLIS_SYSTEM_PROPERTY, 300000, 0));
+   private static final long FAILURE_BASE_DELAY_MILLIS = SystemPropertyUtils.getLong(FAILURE_BASE_DELAY_MILLIS_SYSTEM_PROPERTY, 1000, 1);
+   private static final long FAILURE_MAX_DELAY_MILLIS = Math.max(FAILURE_BASE_DELAY_MILLIS, SystemPropertyUtils.getLong(FAILURE_MAX_DELAY_MILLIS_SYSTEM_PROPERTY, 60000, 1));
+
+   /**
+    * While connected to the gateway, a Speck records a sample every second, regardless of its configured
+    * {@link SpeckConfig#getLoggingInterval() logging interval}, which only applies while disconnected.
+    */
+   private static final int CONNECTED_SAMPLE_INTERVAL_IN_SECONDS = 1;
+
+   /** Extra time to wait beyond the predicted time of the next sample, to allow the device to finish recording it */
+   private static final long SLACK_IN_MILLIS = 250;
+
+   @NotNull
+   private final Random random = new Random();
+
+   private int lastSampleTimeInSeconds = -1;
+   private int numConsecutiveFailures = 0;
+
+   /** Records that the sample with the given timestamp was successfully downloaded. */
+   void recordDataSampleDownloaded(final int sampleTimeInSeconds)
+      {
+      numConsecutiveFailures = 0;
+      lastSampleTimeInSeconds = Math.max(lastSampleTimeInSeconds, sampleTimeInSeconds);
+      }
+
+   /**
+    * Returns the delay after a successful download.  If the sample just downloaded is older than the sample interval,
+    * then there's probably more history waiting on the device, so this returns 0.  Otherwise the device has been
+    * drained, and the delay until the next sample is expected is returned.
+    */
+   long computeDelayAfterDataSampleDownloaded()
+      {
+      numConsecutiveFailures = 0;
+      final long millisUntilNextSample = computeMillisUntilNextSample();
+      if (millisUntilNextSample < 0)
+         {
+         return 0;
+         }
+      return clamp(millisUntilNextSample);
+      }
+
+   /** Returns the delay after the device reported that it has no data available. */
+   long computeDelayAfterNoDataAvailable()
+      {
+      numConsecutiveFailures = 0;
+      final long millisUntilNextSample = computeMillisUntilNextSample();
+      if (millisUntilNextSample < -getSampleIntervalInMillis())
+         {
+         // We expected a sample a while ago, so either we haven't seen one yet, or the device and host clocks
+         // disagree.  Either way, we can't trust the prediction, so just wait a single sample interval.
+         return clamp(getSampleIntervalInMillis() + SLACK_IN_MILLIS);
+         }
+      return clamp(millisUntilNextSample);
+      }
+
+   /** Returns the delay after a communication failure, backing off exponentially with jitter. */
+   long computeDelayAfterCommunicationFailure()
+      {
+      numConsecutiveFailures++;
+
+      // cap the shift so we don't overflow
+      final int exponent = Math.min(numConsecutiveFailures - 1, 20);
+      final long ceiling = Math.min(FAILURE_MAX_DELAY_MILLIS, FAILURE_BASE_DELAY_MILLIS << exponent);
+
+      // wait somewhere between half the ceiling and the ceiling, so that multiple devices don't retry in lockstep
+      final long halfCeiling = ceiling / 2;
+      final long delay = halfCeiling + (long)(random.nextDouble() * (ceiling - halfCeiling + 1));
+
+      if (LOG.isDebugEnabled())
+         {
+         LOG.debug("DownloadScheduler.computeDelayAfterCommunicationFailure(): failure #" + numConsecutiveFailures + ", delay is " + delay + " ms");
+         }
+      return delay;
+      }
+
+   int getNumConsecutiveFailures()
+      {
+      return numConsecutiveFailures;
+      }
+
+   /**
+    * Returns the number of milliseconds until the next sample is expected to become available, which may be negative
+    * if it's overdue.  Returns {@link Long#MIN_VALUE} if no sample has been downloaded yet.
+    */
+   private long computeMillisUntilNextSample()
+      {
+      if (lastSampleTimeInSeconds < 0)
+         {
+         return Long.MIN_VALUE;
+         }
+      final long nextSampleTimeInMillis = (lastSampleTimeInSeconds * 1000L) + getSampleIntervalInMillis() + SLACK_IN_MILLIS;
+      return nextSampleTimeInMillis - System.currentTimeMillis();
+      }
+
+   private long getSampleIntervalInMillis()
+      {
+      return CONNECTED_SAMPLE_INTERVAL_IN_SECONDS * 1000L;
+      }
+
+   private static long clamp(final long delay)
+      {
+      return Math.min(MAX_DELAY_MILLIS, Math.max(MIN_DELAY_MILLIS, delay));
+      }
+   }
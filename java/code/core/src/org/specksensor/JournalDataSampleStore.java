@@ -0,0 +1,1221 @@
+package org.specksensor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>JournalDataSampleStore</code> handles storage and retrieval of {@link Speck.DataSample data samples}, storing
+ * them in a segmented, append-only journal of fixed-width binary records instead of a database.  The gateway only
+ * ever appends samples, scans for the ones not yet uploaded, and marks them uploaded, so this avoids the cost of a
+ * general purpose SQL engine (startup, transaction log forcing, and B-tree maintenance) on small machines.
+ * </p>
+ * <p>
+ * The journal lives in the <code>journal</code> subdirectory of the Speck's data directory.  It is split into segment
+ * files of up to {@link #RECORDS_PER_SEGMENT_SYSTEM_PROPERTY a fixed number} of records each, named after the sequence
+ * number of their first record.  A sample's sequence number is its position in the journal, and serves as its
+ * {@link Speck.DataSample#getDatabaseId() database ID}.  Each record holds the sample, its download time, and a CRC32
+ * of both.  Appends are forced to disk once per {@link #save(List) group} of samples before success is reported.
+ * </p>
+ * <p>
+ * Upload state isn't stored per record.  Instead, the <code>upload-state</code> file holds a cursor, before which
+ * every record has been uploaded, plus a bitmap of the records after the cursor which have been uploaded out of order.
+ * The file is small (since the cursor advances as uploads succeed) and is replaced atomically.  Samples in the
+ * process of being uploaded are only tracked in memory, since they must be retried after a restart anyway.
+ * </p>
+ * <p>
+ * Upon startup, every segment is scanned and each record's CRC is verified.  Invalid records at the end of the last
+ * segment are the remains of a write interrupted by a crash (and thus were never reported as saved), so they're
+ * truncated.  Invalid records anywhere else are logged and skipped.
+ * </p>
+ * <p>
+ * Segments are compacted away during {@link #performMaintenance() maintenance} once every record in them has been
+ * uploaded, keeping only the most recent {@link #RETAINED_UPLOADED_SEGMENTS_SYSTEM_PROPERTY number of such segments}.
+ * By default all segments are retained, like the database.  Duplicates are detected only against retained segments,
+ * which is fine because a Speck only re-sends a sample if it wasn't deleted from the device after being saved.
+ * </p>
+ * <p>
+ * The first time the journal is created for a Speck which already has a database, the database's samples (and which
+ * of them have been uploaded) are imported into the journal.  The database itself is left untouched.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class JournalDataSampleStore implements DataSampleStore
+   {
+   private static final Logger LOG = Logger.getLogger(JournalDataSampleStore.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   public static final String RECORDS_PER_SEGMENT_SYSTEM_PROPERTY = "org.specksensor.JournalDataSampleStore.records-per-segment";
+   public static final String RETAINED_UPLOADED_SEGMENTS_SYSTEM_PROPERTY = "org.specksensor.JournalDataSampleStore.retained-uploaded-segments";
+
+   private static final int RECORDS_PER_SEGMENT = SystemPropertyUtils.getInt(RECORDS_PER_SEGMENT_SYSTEM_PROPERTY, 65536, 1);
+
+   /** The number of fully uploaded segments to keep, or -1 to keep them all. */
+   private static final int RETAINED_UPLOADED_SEGMENTS = SystemPropertyUtils.getInt(RETAINED_UPLOADED_SEGMENTS_SYSTEM_PROPERTY, -1, -1);
+
+   private static final String JOURNAL_DIRECTORY_NAME = "journal";
+   private static final String IMPORT_DIRECTORY_NAME = "journal.importing";
+   private static final String SEGMENT_FILENAME_PREFIX = "segment-";
+   private static final String SEGMENT_FILENAME_SUFFIX = ".journal";
+   private static final String UPLOAD_STATE_FILENAME = "upload-state";
+   private static final String UPLOAD_STATE_TEMP_FILENAME = "upload-state.tmp";
+
+   private static final int SEGMENT_MAGIC = 0x53504B4A;        // "SPKJ"
+   private static final int UPLOAD_STATE_MAGIC = 0x53504B55;   // "SPKU"
+   private static final int FORMAT_VERSION = 1;
+
+   /** Magic number, format version, sequence number of the first record, and a reserved int. */
+   private static final int SEGMENT_HEADER_SIZE = 16;
+
+   /**
+    * Sample time, raw particle count, particle count, temperature, humidity (5 ints), download time (long), and
+    * finally the CRC32 of everything before it (int).
+    */
+   private static final int RECORD_SIZE = 32;
+   private static final int RECORD_PAYLOAD_SIZE = RECORD_SIZE - 4;
+
+   /** How many records to read from disk at a time when scanning a segment */
+   private static final int RECORDS_PER_READ = 2048;
+
+   /** How many sealed segments' sorted sample times to keep in memory for duplicate detection */
+   private static final int MAX_CACHED_SEGMENT_SAMPLE_TIMES = 4;
+
+   private static final class Segment
+      {
+      @NotNull
+      private final File file;
+      private final int baseSequence;
+      @Nullable
+      private RandomAccessFile randomAccessFile = null;
+      private int recordCount = 0;
+      private int minSampleTime = Integer.MAX_VALUE;
+      private int maxSampleTime = Integer.MIN_VALUE;
+
+      private Segment(@NotNull final File file, final int baseSequence)
+         {
+         this.file = file;
+         this.baseSequence = baseSequence;
+         }
+
+      private int getEndSequence()
+         {
+         return baseSequence + recordCount;
+         }
+
+      private long getPosition(final int sequence)
+         {
+         return SEGMENT_HEADER_SIZE + (long)(sequence - baseSequence) * RECORD_SIZE;
+         }
+
+      private boolean mightContainSampleTime(final int sampleTime)
+         {
+         return minSampleTime <= sampleTime && sampleTime <= maxSampleTime;
+         }
+
+      private void includeSampleTime(final int sampleTime)
+         {
+         minSampleTime = Math.min(minSampleTime, sampleTime);
+         maxSampleTime = Math.max(maxSampleTime, sampleTime);
+         }
+
+      @NotNull
+      private FileChannel getChannel() throws IOException
+         {
+         if (randomAccessFile == null)
+            {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            }
+         return randomAccessFile.getChannel();
+         }
+
+      private void close()
+         {
+         if (randomAccessFile != null)
+            {
+            try
+               {
+               randomAccessFile.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("JournalDataSampleStore$Segment.close(): IOException while trying to close segment [" + file + "]", e);
+               }
+            randomAccessFile = null;
+            }
+         }
+      }
+
+   /** Provides the journal as the <code>journal</code> store. */
+   public static final class Provider implements DataSampleStoreProvider
+      {
+      @NotNull
+      @Override
+      public String getName()
+         {
+         return "journal";
+         }
+
+      @Override
+      public boolean canBePrimaryStore()
+         {
+         return true;
+         }
+
+      @Override
+      public boolean hasOwnWriteQueue()
+         {
+         return false;
+         }
+
+      @NotNull
+      @Override
+      public DataSampleStore createDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
+         {
+         return create(speckConfig);
+         }
+      }
+
+   /**
+    * Creates the store for the given Speck, first importing the Speck's existing database if the journal doesn't yet
+    * exist.  The import is written to a separate directory which is only renamed into place once complete, so an
+    * interrupted import is simply redone.
+    */
+   @NotNull
+   static JournalDataSampleStore create(@NotNull final SpeckConfig speckConfig) throws InitializationException
+      {
+      final File dataDirectory = SpeckConstants.FilePaths.getDeviceDataDirectory(speckConfig);
+      final File journalDirectory = new File(dataDirectory, JOURNAL_DIRECTORY_NAME);
+      if (!journalDirectory.isDirectory() && DatabaseDataSampleStore.doesDatabaseExist(speckConfig))
+         {
+         final File importDirectory = new File(dataDirectory, IMPORT_DIRECTORY_NAME);
+         deleteDirectory(importDirectory);
+         importDatabase(speckConfig, importDirectory);
+         if (!importDirectory.renameTo(journalDirectory))
+            {
+            throw new InitializationException("Failed to rename the imported journal [" + importDirectory + "] to [" + journalDirectory + "]");
+            }
+         }
+      return new JournalDataSampleStore(journalDirectory);
+      }
+
+   private static void importDatabase(@NotNull final SpeckConfig speckConfig, @NotNull final File importDirectory) throws InitializationException
+      {
+      final String message = "Importing the database into the journal...";
+      LOG.info("JournalDataSampleStore.importDatabase(): " + message);
+      CONSOLE_LOG.info(message);
+      final long startTime = System.currentTimeMillis();
+
+      final DatabaseDataSampleStore databaseDataSampleStore = new DatabaseDataSampleStore(speckConfig);
+      final JournalDataSampleStore journalDataSampleStore = new JournalDataSampleStore(importDirectory);
+      try
+         {
+         final int count = databaseDataSampleStore.exportDataSamples(
+               new DatabaseDataSampleStore.ExportHandler()
+               {
+               @Override
+               public void handleDataSample(@NotNull final Speck.DataSample dataSample, final long downloadTimestampUtcMillis, final boolean wasUploaded) throws IOException
+                  {
+                  journalDataSampleStore.importDataSample(dataSample, downloadTimestampUtcMillis, wasUploaded);
+                  }
+               });
+         journalDataSampleStore.finishImport();
+
+         final String completionMessage = "Imported " + count + " samples from the database into the journal in " + (System.currentTimeMillis() - startTime) + " ms";
+         LOG.info("JournalDataSampleStore.importDatabase(): " + completionMessage);
+         CONSOLE_LOG.info(completionMessage);
+         }
+      catch (SQLException e)
+         {
+         LOG.error("JournalDataSampleStore.importDatabase(): SQLException while trying to read the database", e);
+         throw new InitializationException(e);
+         }
+      catch (IOException e)
+         {
+         LOG.error("JournalDataSampleStore.importDatabase(): IOException while trying to write the journal", e);
+         throw new InitializationException(e);
+         }
+      finally
+         {
+         journalDataSampleStore.shutdown();
+         databaseDataSampleStore.shutdown();
+         }
+      }
+
+   private static void deleteDirectory(@NotNull final File directory)
+      {
+      final File[] files = directory.listFiles();
+      if (files != null)
+         {
+         for (final File file : files)
+            {
+            if (!file.delete())
+               {
+               LOG.error("JournalDataSampleStore.deleteDirectory(): Failed to delete [" + file + "]");
+               }
+            }
+         }
+      if (directory.exists() && !directory.delete())
+         {
+         LOG.error("JournalDataSampleStore.deleteDirectory(): Failed to delete [" + directory + "]");
+         }
+      }
+
+   @NotNull
+   private final File journalDirectory;
+
+   /** The segments, keyed by the sequence number of their first record.  The last one is the one being appended to. */
+   private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+   /** The sample times in the segment being appended to */
+   private final Set<Integer> activeSegmentSampleTimes = new HashSet<Integer>();
+
+   /** Sorted sample times of recently used sealed segments, keyed by the sequence number of their first record */
+   @SuppressWarnings("serial")
+   private final Map<Integer, int[]> sealedSegmentSampleTimes = new LinkedHashMap<Integer, int[]>(16, 0.75f, true)
+   {
+   @Override
+   protected boolean removeEldestEntry(final Map.Entry<Integer, int[]> eldest)
+      {
+      return size() > MAX_CACHED_SEGMENT_SAMPLE_TIMES;
+      }
+   };
+
+   /** Every record before this sequence number has been uploaded (or is unreadable). */
+   private int uploadCursor;
+
+   /** Bit i is set if the record at sequence number <code>uploadCursor + i</code> has been uploaded. */
+   @NotNull
+   private BitSet uploadedAfterCursor = new BitSet();
+
+   /** Bit i is set if the record at sequence number <code>uploadCursor + i</code> is currently being uploaded. */
+   @NotNull
+   private BitSet inProgressAfterCursor = new BitSet();
+
+   private final CRC32 crc = new CRC32();
+   private final ByteBuffer readBuffer = ByteBuffer.allocate(RECORDS_PER_READ * RECORD_SIZE);
+   @NotNull
+   private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * RECORD_SIZE);
+   private boolean isShutDown = false;
+   private final Lock lock = new ReentrantLock();
+
+   private JournalDataSampleStore(@NotNull final File journalDirectory) throws InitializationException
+      {
+      this.journalDirectory = journalDirectory;
+      //noinspection ResultOfMethodCallIgnored
+      journalDirectory.mkdirs();
+
+      try
+         {
+         final List<Integer> corruptSequences = openSegments();
+         if (segments.isEmpty())
+            {
+            createSegment(0);
+            }
+         loadUploadState();
+
+         // skip unreadable records, so they're never handed out for upload
+         for (final int sequence : corruptSequences)
+            {
+            if (sequence >= uploadCursor)
+               {
+               uploadedAfterCursor.set(sequence - uploadCursor);
+               }
+            }
+         advanceUploadCursor();
+         }
+      catch (IOException e)
+         {
+         final String message = "IOException while trying to open the journal [" + journalDirectory + "]";
+         LOG.error("JournalDataSampleStore.JournalDataSampleStore(): " + message, e);
+         CONSOLE_LOG.error(message);
+         closeSegments();
+         throw new InitializationException(e);
+         }
+
+      if (LOG.isInfoEnabled())
+         {
+         LOG.info("JournalDataSampleStore.JournalDataSampleStore(): Opened journal [" + journalDirectory + "] with " + segments.size() + " segment(s), records [" + segments.firstEntry().getValue().baseSequence + ", " + getNextSequence() + "), upload cursor at " + uploadCursor);
+         }
+      }
+
+   /**
+    * Opens and verifies the existing segments, truncating any partially written records at the end of the last one.
+    * Returns the sequence numbers of invalid records found elsewhere.
+    */
+   @NotNull
+   private List<Integer> openSegments() throws IOException
+      {
+      final File[] files = journalDirectory.listFiles(
+            new FilenameFilter()
+            {
+            @Override
+            public boolean accept(final File dir, final String name)
+               {
+               return name.startsWith(SEGMENT_FILENAME_PREFIX) && name.endsWith(SEGMENT_FILENAME_SUFFIX);
+               }
+            });
+
+      final TreeMap<Integer, File> filesBySequence = new TreeMap<Integer, File>();
+      if (files != null)
+         {
+         for (final File file : files)
+            {
+            final String name = file.getName();
+            try
+               {
+               filesBySequence.put(Integer.parseInt(name.substring(SEGMENT_FILENAME_PREFIX.length(), name.length() - SEGMENT_FILENAME_SUFFIX.length())), file);
+               }
+            catch (NumberFormatException ignored)
+               {
+               LOG.error("JournalDataSampleStore.openSegments(): Ignoring unexpected file [" + file + "]");
+               }
+            }
+         }
+
+      final List<Integer> corruptSequences = new ArrayList<Integer>();
+      for (final Map.Entry<Integer, File> entry : filesBySequence.entrySet())
+         {
+         final boolean isLastSegment = entry.getKey().equals(filesBySequence.lastKey());
+         final Segment segment = new Segment(entry.getValue(), entry.getKey());
+         if (isValidSegmentHeader(segment))
+            {
+            verifySegment(segment, isLastSegment, corruptSequences);
+            segments.put(segment.baseSequence, segment);
+            }
+         else if (isLastSegment && segment.file.length() < SEGMENT_HEADER_SIZE)
+            {
+            // a crash while creating the segment, so it never held any records
+            LOG.info("JournalDataSampleStore.openSegments(): Deleting incomplete segment [" + segment.file + "]");
+            segment.close();
+            if (!segment.file.delete())
+               {
+               throw new IOException("Failed to delete incomplete segment [" + segment.file + "]");
+               }
+            }
+         else
+            {
+            segment.close();
+            final File renamedFile = new File(segment.file.getPath() + ".corrupt");
+            LOG.error("JournalDataSampleStore.openSegments(): Segment [" + segment.file + "] has an invalid header, renaming it to [" + renamedFile + "] and skipping it");
+            if (!segment.file.renameTo(renamedFile))
+               {
+               throw new IOException("Failed to rename corrupt segment [" + segment.file + "]");
+               }
+            }
+         }
+
+      if (!segments.isEmpty())
+         {
+         // get ready to append to the last segment
+         final Segment lastSegment = segments.lastEntry().getValue();
+         activeSegmentSampleTimes.clear();
+         for (final int sampleTime : readSampleTimes(lastSegment))
+            {
+            activeSegmentSampleTimes.add(sampleTime);
+            }
+         }
+
+      return corruptSequences;
+      }
+
+   private boolean isValidSegmentHeader(@NotNull final Segment segment) throws IOException
+      {
+      if (segment.file.length() < SEGMENT_HEADER_SIZE)
+         {
+         return false;
+         }
+      final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+      readFully(segment.getChannel(), header, 0);
+      header.flip();
+      return header.getInt() == SEGMENT_MAGIC &&
+             header.getInt() == FORMAT_VERSION &&
+             header.getInt() == segment.baseSequence;
+      }
+
+   /**
+    * Verifies the CRC of every record in the given segment, computing its record count and sample time range.  Adds
+    * the sequence numbers of invalid records to <code>corruptSequences</code>, except for invalid records at the end of
+    * the last segment, which are truncated.
+    */
+   private void verifySegment(@NotNull final Segment segment, final boolean isLastSegment, @NotNull final List<Integer> corruptSequences) throws IOException
+      {
+      final FileChannel channel = segment.getChannel();
+      final int recordsInFile = (int)((channel.size() - SEGMENT_HEADER_SIZE) / RECORD_SIZE);
+      final List<Integer> invalidSequences = new ArrayList<Integer>();
+      int numValidRecords = 0;
+      for (int index = 0; index < recordsInFile; index += RECORDS_PER_READ)
+         {
+         final int count = Math.min(RECORDS_PER_READ, recordsInFile - index);
+         readRecords(segment, segment.baseSequence + index, count);
+         for (int i = 0; i < count; i++)
+            {
+            final int sequence = segment.baseSequence + index + i;
+            if (isValidRecord(readBuffer, i))
+               {
+               segment.includeSampleTime(readBuffer.getInt(i * RECORD_SIZE));
+               numValidRecords = index + i + 1;
+               }
+            else
+               {
+               invalidSequences.add(sequence);
+               }
+            }
+         }
+
+      if (isLastSegment)
+         {
+         // Records after the last valid one were never completely written, so they were never reported as saved.
+         final long validLength = SEGMENT_HEADER_SIZE + (long)numValidRecords * RECORD_SIZE;
+         if (channel.size() > validLength)
+            {
+            LOG.info("JournalDataSampleStore.verifySegment(): Truncating " + (channel.size() - validLength) + " bytes of incomplete records from the end of [" + segment.file + "]");
+            channel.truncate(validLength);
+            channel.force(true);
+            }
+         segment.recordCount = numValidRecords;
+         }
+      else
+         {
+         segment.recordCount = recordsInFile;
+         }
+
+      for (final int sequence : invalidSequences)
+         {
+         if (sequence < segment.getEndSequence())
+            {
+            LOG.error("JournalDataSampleStore.verifySegment(): Skipping corrupt record " + sequence + " in segment [" + segment.file + "]");
+            corruptSequences.add(sequence);
+            }
+         }
+      }
+
+   private void createSegment(final int baseSequence) throws IOException
+      {
+      final Segment segment = new Segment(new File(journalDirectory, SEGMENT_FILENAME_PREFIX + String.format("%010d", baseSequence) + SEGMENT_FILENAME_SUFFIX), baseSequence);
+      final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+      header.putInt(SEGMENT_MAGIC);
+      header.putInt(FORMAT_VERSION);
+      header.putInt(baseSequence);
+      header.putInt(0);
+      header.flip();
+      final FileChannel channel = segment.getChannel();
+      channel.truncate(0);
+      writeFully(channel, header, 0);
+      channel.force(true);
+
+      // keep the sample times of the segment being sealed, since it's the most likely to be checked for duplicates
+      if (!segments.isEmpty())
+         {
+         final Segment sealedSegment = segments.lastEntry().getValue();
+         final int[] sampleTimes = new int[activeSegmentSampleTimes.size()];
+         int i = 0;
+         for (final int sampleTime : activeSegmentSampleTimes)
+            {
+            sampleTimes[i++] = sampleTime;
+            }
+         Arrays.sort(sampleTimes);
+         sealedSegmentSampleTimes.put(sealedSegment.baseSequence, sampleTimes);
+         }
+
+      activeSegmentSampleTimes.clear();
+      segments.put(baseSequence, segment);
+      }
+
+   @NotNull
+   private Segment getActiveSegment()
+      {
+      return segments.lastEntry().getValue();
+      }
+
+   private int getNextSequence()
+      {
+      return getActiveSegment().getEndSequence();
+      }
+
+   @Override
+   @NotNull
+   public SaveResult save(@NotNull final Speck.DataSample dataSample)
+      {
+      return save(Collections.singletonList(dataSample)).get(0);
+      }
+
+   @Override
+   @NotNull
+   public List<SaveResult> save(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final List<SaveResult> saveResults = new ArrayList<SaveResult>(Collections.nCopies(dataSamples.size(), SaveResult.FAILURE_ERROR));
+         if (isShutDown)
+            {
+            LOG.error("JournalDataSampleStore.save(): Cannot save samples after the store has been shut down");
+            return saveResults;
+            }
+
+         // indices of the samples waiting to be written to the active segment
+         final List<Integer> pending = new ArrayList<Integer>();
+         final Set<Integer> sampleTimesInGroup = new HashSet<Integer>();
+         try
+            {
+            for (int i = 0; i < dataSamples.size(); i++)
+               {
+               final Speck.DataSample dataSample = dataSamples.get(i);
+               if (!sampleTimesInGroup.add(dataSample.getSampleTime()) || isDuplicate(dataSample.getSampleTime()))
+                  {
+                  saveResults.set(i, SaveResult.FAILURE_DUPLICATE);
+                  continue;
+                  }
+
+               pending.add(i);
+               if (getActiveSegment().recordCount + pending.size() >= RECORDS_PER_SEGMENT)
+                  {
+                  append(dataSamples, pending, null, saveResults);
+                  createSegment(getNextSequence());
+                  }
+               }
+            append(dataSamples, pending, null, saveResults);
+            }
+         catch (IOException e)
+            {
+            LOG.error("JournalDataSampleStore.save(): IOException while trying to save " + pending.size() + " samples", e);
+            }
+
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("JournalDataSampleStore.save(): Saved group of " + dataSamples.size() + " samples: " + saveResults);
+            }
+         return saveResults;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Appends the pending samples to the active segment and forces them to disk, then marks them as successfully
+    * saved and clears <code>pending</code>.  If <code>downloadTimes</code> is non-<code>null</code>, it holds the
+    * download time of each pending sample; otherwise each sample's own download time is used.  If the write fails,
+    * the segment is truncated back to its previous length so no partial records remain.  MUST be called from within
+    * a lock block.
+    */
+   private void append(@NotNull final List<Speck.DataSample> dataSamples,
+                       @NotNull final List<Integer> pending,
+                       @Nullable final long[] downloadTimes,
+                       @Nullable final List<SaveResult> saveResults) throws IOException
+      {
+      if (pending.isEmpty())
+         {
+         return;
+         }
+
+      final int requiredCapacity = pending.size() * RECORD_SIZE;
+      if (writeBuffer.capacity() < requiredCapacity)
+         {
+         writeBuffer = ByteBuffer.allocate(Math.max(requiredCapacity, writeBuffer.capacity() * 2));
+         }
+      writeBuffer.clear();
+      for (int i = 0; i < pending.size(); i++)
+         {
+         final Speck.DataSample dataSample = dataSamples.get(pending.get(i));
+         final int offset = writeBuffer.position();
+         writeBuffer.putInt(dataSample.getSampleTime());
+         writeBuffer.putInt(dataSample.getRawParticleCount());
+         writeBuffer.putInt(dataSample.getParticleCountOrConcentration());
+         writeBuffer.putInt(dataSample.getTemperatureInTenthsOfADegreeF());
+         writeBuffer.putInt(dataSample.getHumidity());
+         writeBuffer.putLong(downloadTimes == null ? dataSample.getDownloadTime() : downloadTimes[i]);
+         crc.reset();
+         crc.update(writeBuffer.array(), offset, RECORD_PAYLOAD_SIZE);
+         writeBuffer.putInt((int)crc.getValue());
+         }
+      writeBuffer.flip();
+
+      final Segment segment = getActiveSegment();
+      final FileChannel channel = segment.getChannel();
+      final long position = segment.getPosition(segment.getEndSequence());
+      try
+         {
+         writeFully(channel, writeBuffer, position);
+         if (saveResults != null)
+            {
+            channel.force(false);
+            }
+         }
+      catch (IOException e)
+         {
+         try
+            {
+            channel.truncate(position);
+            }
+         catch (IOException e2)
+            {
+            LOG.error("JournalDataSampleStore.append(): IOException while trying to truncate the partially written records", e2);
+            }
+         throw e;
+         }
+
+      for (final int index : pending)
+         {
+         final int sampleTime = dataSamples.get(index).getSampleTime();
+         segment.includeSampleTime(sampleTime);
+         activeSegmentSampleTimes.add(sampleTime);
+         if (saveResults != null)
+            {
+            saveResults.set(index, SaveResult.SUCCESS);
+            }
+         }
+      segment.recordCount += pending.size();
+      pending.clear();
+      }
+
+   /** Returns <code>true</code> if a sample with the given time is already in the journal.  MUST be called from within a lock block. */
+   private boolean isDuplicate(final int sampleTime) throws IOException
+      {
+      if (activeSegmentSampleTimes.contains(sampleTime))
+         {
+         return true;
+         }
+
+      // Samples are almost always saved in time order, so usually no sealed segment's time range will even overlap.
+      final Segment activeSegment = getActiveSegment();
+      for (final Segment segment : segments.descendingMap().values())
+         {
+         if (segment != activeSegment && segment.mightContainSampleTime(sampleTime))
+            {
+            int[] sampleTimes = sealedSegmentSampleTimes.get(segment.baseSequence);
+            if (sampleTimes == null)
+               {
+               sampleTimes = readSampleTimes(segment);
+               Arrays.sort(sampleTimes);
+               sealedSegmentSampleTimes.put(segment.baseSequence, sampleTimes);
+               }
+            if (Arrays.binarySearch(sampleTimes, sampleTime) >= 0)
+               {
+               return true;
+               }
+            }
+         }
+      return false;
+      }
+
+   /** Returns the sample times of the valid records in the given segment, in journal order. */
+   @NotNull
+   private int[] readSampleTimes(@NotNull final Segment segment) throws IOException
+      {
+      final int[] sampleTimes = new int[segment.recordCount];
+      int numSampleTimes = 0;
+      for (int index = 0; index < segment.recordCount; index += RECORDS_PER_READ)
+         {
+         final int count = Math.min(RECORDS_PER_READ, segment.recordCount - index);
+         readRecords(segment, segment.baseSequence + index, count);
+         for (int i = 0; i < count; i++)
+            {
+            if (isValidRecord(readBuffer, i))
+               {
+               sampleTimes[numSampleTimes++] = readBuffer.getInt(i * RECORD_SIZE);
+               }
+            }
+         }
+      return numSampleTimes == sampleTimes.length ? sampleTimes : Arrays.copyOf(sampleTimes, numSampleTimes);
+      }
+
+   /** Reads <code>count</code> records starting at the given sequence number into the read buffer. */
+   private void readRecords(@NotNull final Segment segment, final int sequence, final int count) throws IOException
+      {
+      readBuffer.clear();
+      readBuffer.limit(count * RECORD_SIZE);
+      readFully(segment.getChannel(), readBuffer, segment.getPosition(sequence));
+      readBuffer.flip();
+      }
+
+   private boolean isValidRecord(@NotNull final ByteBuffer buffer, final int index)
+      {
+      crc.reset();
+      crc.update(buffer.array(), index * RECORD_SIZE, RECORD_PAYLOAD_SIZE);
+      return buffer.getInt(index * RECORD_SIZE + RECORD_PAYLOAD_SIZE) == (int)crc.getValue();
+      }
+
+   @Override
+   public void resetStateOfUploadingSamples()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         inProgressAfterCursor.clear();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @NotNull
+   @Override
+   public DataSampleSet getDataSamplesToUpload(final int maxNumberRequested)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final SortedSet<Speck.DataSample> dataSamples = new TreeSet<Speck.DataSample>();
+         final int maxNumberToGet = (maxNumberRequested < 1) ? DataSampleSet.DEFAULT_SIZE : maxNumberRequested;
+         final BitSet unavailable = (BitSet)uploadedAfterCursor.clone();
+         unavailable.or(inProgressAfterCursor);
+         final int nextSequence = getNextSequence();
+         try
+            {
+            int sequence = uploadCursor + unavailable.nextClearBit(0);
+            while (dataSamples.size() < maxNumberToGet && sequence < nextSequence)
+               {
+               final Map.Entry<Integer, Segment> entry = segments.floorEntry(sequence);
+               if (entry == null || sequence >= entry.getValue().getEndSequence())
+                  {
+                  // a gap left by a corrupt segment, so skip ahead to the next segment
+                  final Integer nextBaseSequence = segments.higherKey(sequence);
+                  final int end = (nextBaseSequence == null) ? nextSequence : nextBaseSequence;
+                  uploadedAfterCursor.set(sequence - uploadCursor, end - uploadCursor);
+                  unavailable.set(sequence - uploadCursor, end - uploadCursor);
+                  sequence = uploadCursor + unavailable.nextClearBit(end - uploadCursor);
+                  continue;
+                  }
+
+               // read the run of available records, up to the end of the segment
+               final Segment segment = entry.getValue();
+               final int nextUnavailableIndex = unavailable.nextSetBit(sequence - uploadCursor);
+               final int runEnd = (nextUnavailableIndex < 0) ? segment.getEndSequence() : Math.min(uploadCursor + nextUnavailableIndex, segment.getEndSequence());
+               final int count = Math.min(Math.min(runEnd - sequence, maxNumberToGet - dataSamples.size()), RECORDS_PER_READ);
+               readRecords(segment, sequence, count);
+               for (int i = 0; i < count; i++)
+                  {
+                  if (isValidRecord(readBuffer, i))
+                     {
+                     final int offset = i * RECORD_SIZE;
+                     dataSamples.add(new DataSample(sequence + i,                           // databaseId
+                                                    readBuffer.getInt(offset),              // sampleTimeUtcSeconds
+                                                    readBuffer.getInt(offset + 4),          // rawParticleCount
+                                                    readBuffer.getInt(offset + 8),          // particleCount
+                                                    readBuffer.getInt(offset + 12),         // temperatureInTenthsOfDegreeF
+                                                    readBuffer.getInt(offset + 16)));       // humidity
+                     inProgressAfterCursor.set(sequence + i - uploadCursor);
+                     }
+                  else
+                     {
+                     LOG.error("JournalDataSampleStore.getDataSamplesToUpload(): Skipping corrupt record " + (sequence + i) + " in segment [" + segment.file + "]");
+                     uploadedAfterCursor.set(sequence + i - uploadCursor);
+                     }
+                  unavailable.set(sequence + i - uploadCursor);
+                  }
+               sequence = uploadCursor + unavailable.nextClearBit(sequence + count - uploadCursor);
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("JournalDataSampleStore.getDataSamplesToUpload(): IOException while trying to read data samples to upload", e);
+            for (final Speck.DataSample dataSample : dataSamples)
+               {
+               inProgressAfterCursor.clear(dataSample.getDatabaseId() - uploadCursor);
+               }
+            dataSamples.clear();
+            }
+
+         if (LOG.isInfoEnabled() && !dataSamples.isEmpty())
+            {
+            LOG.info("JournalDataSampleStore.getDataSamplesToUpload(): Marked [" + dataSamples.size() + "] samples' upload status as " + DataSampleUploadStatus.IN_PROGRESS);
+            }
+         return new DataSampleSetImpl(dataSamples);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+            {
+            final Integer sequence = dataSample.getDatabaseId();
+            if (sequence != null && sequence >= uploadCursor)
+               {
+               uploadedAfterCursor.set(sequence - uploadCursor);
+               inProgressAfterCursor.clear(sequence - uploadCursor);
+               }
+            }
+         advanceUploadCursor();
+         try
+            {
+            saveUploadState();
+            }
+         catch (IOException e)
+            {
+            LOG.error("JournalDataSampleStore.markDataSamplesAsUploaded(): IOException while trying to save the upload state", e);
+            }
+
+         if (LOG.isInfoEnabled())
+            {
+            LOG.info("JournalDataSampleStore.markDataSamplesAsUploaded(): Marked [" + dataSampleSet.size() + "] samples' upload status as " + DataSampleUploadStatus.SUCCESS);
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         for (final Speck.DataSample dataSample : dataSampleSet.getDataSamples())
+            {
+            final Integer sequence = dataSample.getDatabaseId();
+            if (sequence != null && sequence >= uploadCursor)
+               {
+               inProgressAfterCursor.clear(sequence - uploadCursor);
+               }
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Moves the upload cursor past every uploaded record immediately following it.  MUST be called from within a lock block. */
+   private void advanceUploadCursor()
+      {
+      final int numUploaded = uploadedAfterCursor.nextClearBit(0);
+      if (numUploaded > 0)
+         {
+         uploadedAfterCursor = uploadedAfterCursor.get(numUploaded, Math.max(numUploaded, uploadedAfterCursor.length()));
+         inProgressAfterCursor = inProgressAfterCursor.get(numUploaded, Math.max(numUploaded, inProgressAfterCursor.length()));
+         uploadCursor += numUploaded;
+         }
+      }
+
+   /** Deletes the oldest fully uploaded segments beyond the number to be retained. */
+   @NotNull
+   @Override
+   public MaintenanceResult performMaintenance()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (RETAINED_UPLOADED_SEGMENTS < 0 || isShutDown)
+            {
+            return MaintenanceResult.NONE;
+            }
+
+         final List<Segment> uploadedSegments = new ArrayList<Segment>();
+         for (final Segment segment : segments.values())
+            {
+            if (segment != getActiveSegment() && segment.getEndSequence() <= uploadCursor)
+               {
+               uploadedSegments.add(segment);
+               }
+            }
+
+         int numSamplesPurged = 0;
+         long numBytesReclaimed = 0;
+         for (final Iterator<Segment> iterator = uploadedSegments.iterator(); uploadedSegments.size() > RETAINED_UPLOADED_SEGMENTS && iterator.hasNext(); )
+            {
+            final Segment segment = iterator.next();
+            segment.close();
+            final long length = segment.file.length();
+            if (segment.file.delete())
+               {
+               LOG.info("JournalDataSampleStore.performMaintenance(): Deleted fully uploaded segment [" + segment.file + "]");
+               segments.remove(segment.baseSequence);
+               sealedSegmentSampleTimes.remove(segment.baseSequence);
+               iterator.remove();
+               numSamplesPurged += segment.recordCount;
+               numBytesReclaimed += length;
+               }
+            else
+               {
+               LOG.error("JournalDataSampleStore.performMaintenance(): Failed to delete fully uploaded segment [" + segment.file + "]");
+               break;
+               }
+            }
+         return new MaintenanceResult(numSamplesPurged, numBytesReclaimed);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Writes the upload cursor and bitmap to a temporary file, forces it to disk, and then renames it over the upload
+    * state file.  MUST be called from within a lock block.
+    */
+   private void saveUploadState() throws IOException
+      {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(UPLOAD_STATE_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(uploadCursor);
+      final int numBits = uploadedAfterCursor.length();
+      out.writeInt(numBits);
+      for (int i = 0; i < numBits; i += 8)
+         {
+         int b = 0;
+         for (int bit = 0; bit < 8; bit++)
+            {
+            if (uploadedAfterCursor.get(i + bit))
+               {
+               b |= 1 << bit;
+               }
+            }
+         out.writeByte(b);
+         }
+      out.flush();
+      crc.reset();
+      crc.update(bytes.toByteArray());
+      out.writeInt((int)crc.getValue());
+      out.close();
+
+      final File tempFile = new File(journalDirectory, UPLOAD_STATE_TEMP_FILENAME);
+      final FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+      try
+         {
+         bytes.writeTo(fileOutputStream);
+         fileOutputStream.getFD().sync();
+         }
+      finally
+         {
+         fileOutputStream.close();
+         }
+
+      final File stateFile = new File(journalDirectory, UPLOAD_STATE_FILENAME);
+      // renameTo() won't replace an existing file on all platforms, in which case the temp file is still valid
+      // and will be used by loadUploadState() should we crash before the second rename
+      if (!tempFile.renameTo(stateFile) && !(stateFile.delete() && tempFile.renameTo(stateFile)))
+         {
+         throw new IOException("Failed to rename [" + tempFile + "] to [" + stateFile + "]");
+         }
+      }
+
+   /** Loads the upload state, falling back to the temp file if the state file is missing or invalid. */
+   private void loadUploadState() throws IOException
+      {
+      final int firstSequence = segments.firstKey();
+      if (!loadUploadState(new File(journalDirectory, UPLOAD_STATE_FILENAME)) && !loadUploadState(new File(journalDirectory, UPLOAD_STATE_TEMP_FILENAME)))
+         {
+         if (getNextSequence() > firstSequence)
+            {
+            LOG.error("JournalDataSampleStore.loadUploadState(): No valid upload state found, so all samples in the journal will be uploaded");
+            }
+         uploadCursor = firstSequence;
+         uploadedAfterCursor = new BitSet();
+         }
+
+      // the cursor can't be before the first segment, nor (after losing records) beyond the end of the journal
+      if (uploadCursor < firstSequence)
+         {
+         uploadedAfterCursor.set(0, firstSequence - uploadCursor);
+         }
+      else if (uploadCursor > getNextSequence())
+         {
+         LOG.error("JournalDataSampleStore.loadUploadState(): Upload cursor " + uploadCursor + " is beyond the end of the journal (" + getNextSequence() + ")");
+         uploadCursor = getNextSequence();
+         uploadedAfterCursor = new BitSet();
+         }
+      inProgressAfterCursor = new BitSet();
+      }
+
+   private boolean loadUploadState(@NotNull final File file)
+      {
+      if (!file.isFile())
+         {
+         return false;
+         }
+      try
+         {
+         final byte[] bytes = new byte[(int)file.length()];
+         final DataInputStream in = new DataInputStream(new FileInputStream(file));
+         try
+            {
+            in.readFully(bytes);
+            }
+         finally
+            {
+            in.close();
+            }
+         if (bytes.length < 20)
+            {
+            LOG.error("JournalDataSampleStore.loadUploadState(): Upload state file [" + file + "] is truncated");
+            return false;
+            }
+
+         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+         crc.reset();
+         crc.update(bytes, 0, bytes.length - 4);
+         if (buffer.getInt(bytes.length - 4) != (int)crc.getValue() || buffer.getInt() != UPLOAD_STATE_MAGIC || buffer.getInt() != FORMAT_VERSION)
+            {
+            LOG.error("JournalDataSampleStore.loadUploadState(): Upload state file [" + file + "] is corrupt");
+            return false;
+            }
+
+         final int cursor = buffer.getInt();
+         final int numBits = buffer.getInt();
+         final BitSet bitSet = new BitSet(numBits);
+         for (int i = 0; i < numBits; i++)
+            {
+            if ((bytes[16 + i / 8] & (1 << (i % 8))) != 0)
+               {
+               bitSet.set(i);
+               }
+            }
+         uploadCursor = cursor;
+         uploadedAfterCursor = bitSet;
+         return true;
+         }
+      catch (IOException e)
+         {
+         LOG.error("JournalDataSampleStore.loadUploadState(): IOException while trying to read upload state file [" + file + "]", e);
+         }
+      catch (IndexOutOfBoundsException e)
+         {
+         LOG.error("JournalDataSampleStore.loadUploadState(): Upload state file [" + file + "] is truncated", e);
+         }
+      return false;
+      }
+
+   /** Samples read from the database during an import, waiting to be appended */
+   private final List<Speck.DataSample> importedDataSamples = new ArrayList<Speck.DataSample>();
+   private final List<Integer> importPending = new ArrayList<Integer>();
+   private final long[] importDownloadTimes = new long[RECORDS_PER_READ];
+
+   /** Appends a sample read from the database during an import.  Writes are batched, and only forced by {@link #finishImport()}. */
+   private void importDataSample(@NotNull final Speck.DataSample dataSample, final long downloadTimestampUtcMillis, final boolean wasUploaded) throws IOException
+      {
+      final int sequence = getNextSequence() + importedDataSamples.size();
+      if (wasUploaded)
+         {
+         uploadedAfterCursor.set(sequence - uploadCursor);
+         }
+      importDownloadTimes[importedDataSamples.size()] = downloadTimestampUtcMillis;
+      importPending.add(importedDataSamples.size());
+      importedDataSamples.add(dataSample);
+      if (importedDataSamples.size() == RECORDS_PER_READ || getActiveSegment().recordCount + importedDataSamples.size() >= RECORDS_PER_SEGMENT)
+         {
+         flushImportedDataSamples();
+         }
+      }
+
+   private void flushImportedDataSamples() throws IOException
+      {
+      append(importedDataSamples, importPending, importDownloadTimes, null);
+      importedDataSamples.clear();
+      if (getActiveSegment().recordCount >= RECORDS_PER_SEGMENT)
+         {
+         getActiveSegment().getChannel().force(false);
+         createSegment(getNextSequence());
+         }
+      }
+
+   private void finishImport() throws IOException
+      {
+      flushImportedDataSamples();
+      getActiveSegment().getChannel().force(false);
+      advanceUploadCursor();
+      saveUploadState();
+      }
+
+   private void closeSegments()
+      {
+      for (final Segment segment : segments.values())
+         {
+         segment.close();
+         }
+      }
+
+   @Override
+   public void shutdown()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (!isShutDown)
+            {
+            LOG.debug("JournalDataSampleStore.shutdown(): Shutting down...");
+            try
+               {
+               saveUploadState();
+               }
+            catch (IOException e)
+               {
+               LOG.error("JournalDataSampleStore.shutdown(): IOException while trying to save the upload state", e);
+               }
+            closeSegments();
+            isShutDown = true;
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   private static void readFully(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long position) throws IOException
+      {
+      long currentPosition = position;
+      while (buffer.hasRemaining())
+         {
+         final int numBytesRead = channel.read(buffer, currentPosition);
+         if (numBytesRead < 0)
+            {
+            throw new IOException("Unexpected end of file at position " + currentPosition);
+            }
+         currentPosition += numBytesRead;
+         }
+      }
+
+   private static void writeFully(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long position) throws IOException
+      {
+      long currentPosition = position;
+      while (buffer.hasRemaining())
+         {
+         currentPosition += channel.write(buffer, currentPosition);
+         }
+      }
+   }
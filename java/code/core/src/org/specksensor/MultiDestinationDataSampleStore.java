@@ -1,66 +1,483 @@
 package org.specksensor;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
+ * <p>
+ * <code>MultiDestinationDataSampleStore</code> saves samples to a primary store, which also tracks upload state, and
+ * then fans them out to any number of secondary destinations.  Stores are named by their
+ * {@link DataSampleStoreProvider}, which is found with {@link ServiceLoader}, so stores from other jars on the
+ * classpath can be used too.  The primary store is the database by default, or the store named by the
+ * {@link #PRIMARY_STORE_SYSTEM_PROPERTY} system property (e.g. <code>journal</code>).  The secondary destinations are
+ * a CSV file and the {@link ArchiveDataSampleStore columnar archive} by default, or the comma-delimited list of store
+ * names in the {@link #SECONDARY_STORES_SYSTEM_PROPERTY} system property, which may be empty.
+ * </p>
+ * <p>
+ * Only the primary store is written synchronously, and only its {@link SaveResult} is returned, so once a save returns
+ * successfully the samples are safe to delete from the device.  Only the samples which the primary store saved
+ * successfully are then queued for each secondary destination, each of which is written on its own thread, so a
+ * sample which failed stays on the device to be downloaded again rather than being written twice.  Each
+ * destination's queue holds at most {@link #SECONDARY_QUEUE_CAPACITY_SYSTEM_PROPERTY} samples.  If a destination
+ * can't keep up and its queue fills, saving blocks until there's room, which slows down the download pipeline rather
+ * than losing samples.  Stores which {@link DataSampleStoreProvider#hasOwnWriteQueue() have a write queue of their
+ * own} (such as the CSV file) are saved to directly instead, so their own queue applies the same backpressure, and
+ * their durability guarantees hold by the time the save returns.  The number of samples queued, written and failed,
+ * and the age of the oldest queued sample, are tracked for each destination and shown by
+ * {@link #getSecondaryDestinationStatisticsAsString()}.
+ * </p>
+ * <p>
+ * If any of the stores also implements {@link SampleHistory} (as the archive does), it answers queries over the local
+ * sample history through {@link #getSampleHistory()}.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
 final class MultiDestinationDataSampleStore implements DataSampleStore
    {
+   private static final Logger LOG = Logger.getLogger(MultiDestinationDataSampleStore.class);
+
+   public static final String PRIMARY_STORE_SYSTEM_PROPERTY = "org.specksensor.MultiDestinationDataSampleStore.primary-store";
+   private static final String DEFAULT_PRIMARY_STORE = "database";
+
+   public static final String SECONDARY_STORES_SYSTEM_PROPERTY = "org.specksensor.MultiDestinationDataSampleStore.secondary-stores";
+   private static final String DEFAULT_SECONDARY_STORES = "csv,archive";
+
+   public static final String SECONDARY_QUEUE_CAPACITY_SYSTEM_PROPERTY = "org.specksensor.MultiDestinationDataSampleStore.secondary-queue-capacity";
+   private static final int DEFAULT_SECONDARY_QUEUE_CAPACITY = 10000;
+   private static final int SECONDARY_QUEUE_CAPACITY = SystemPropertyUtils.getInt(SECONDARY_QUEUE_CAPACITY_SYSTEM_PROPERTY, DEFAULT_SECONDARY_QUEUE_CAPACITY, 1);
+
+   /** The most samples a secondary destination is given in a single save */
+   private static final int SECONDARY_MAX_GROUP_SIZE = 1000;
+
+   /** How often an idle secondary destination's thread checks whether it should stop */
+   private static final long SECONDARY_POLL_INTERVAL_MILLIS = 100;
+
+   /** How long {@link #shutdown()} waits for each secondary destination to write the samples already queued */
+   private static final long SHUTDOWN_TIMEOUT_IN_SECONDS = 30;
+
+   @NotNull
+   private final DataSampleStore primaryDataSampleStore;
+
    @NotNull
-   private final DataSampleStore csvDataSampleStore;
-   private final DataSampleStore databaseDataSampleStore;
+   private final List<SecondaryDestination> secondaryDestinations = new ArrayList<SecondaryDestination>();
 
    MultiDestinationDataSampleStore(@NotNull final SpeckConfig speckConfig) throws InitializationException
       {
-      databaseDataSampleStore = new DatabaseDataSampleStore(speckConfig);
-      csvDataSampleStore = new CsvDataSampleStore(speckConfig);
+      final Map<String, DataSampleStoreProvider> providers = findDataSampleStoreProviders();
+
+      String primaryStore = System.getProperty(PRIMARY_STORE_SYSTEM_PROPERTY, DEFAULT_PRIMARY_STORE).trim().toLowerCase();
+      DataSampleStoreProvider primaryProvider = providers.get(primaryStore);
+      if (primaryProvider == null || !primaryProvider.canBePrimaryStore())
+         {
+         LOG.error("MultiDestinationDataSampleStore.MultiDestinationDataSampleStore(): " + (primaryProvider == null ? "Unknown" : "Unsuitable") + " primary store [" + primaryStore + "], defaulting to " + DEFAULT_PRIMARY_STORE);
+         primaryStore = DEFAULT_PRIMARY_STORE;
+         primaryProvider = providers.get(primaryStore);
+         if (primaryProvider == null)
+            {
+            throw new InitializationException("No provider found for the primary store [" + primaryStore + "]");
+            }
+         }
+      primaryDataSampleStore = primaryProvider.createDataSampleStore(speckConfig);
+
+      // use a map to ignore any secondary stores listed more than once
+      final Map<String, DataSampleStore> secondaryStores = new LinkedHashMap<String, DataSampleStore>();
+      final Map<String, Boolean> hasOwnWriteQueue = new LinkedHashMap<String, Boolean>();
+      for (final String name : System.getProperty(SECONDARY_STORES_SYSTEM_PROPERTY, DEFAULT_SECONDARY_STORES).split(","))
+         {
+         final String secondaryStore = name.trim().toLowerCase();
+         if (secondaryStore.length() > 0 && !secondaryStores.containsKey(secondaryStore))
+            {
+            if (secondaryStore.equals(primaryStore))
+               {
+               LOG.error("MultiDestinationDataSampleStore.MultiDestinationDataSampleStore(): Ignoring secondary store [" + secondaryStore + "] since it's already the primary store");
+               }
+            else
+               {
+               final DataSampleStoreProvider secondaryProvider = providers.get(secondaryStore);
+               if (secondaryProvider == null)
+                  {
+                  LOG.error("MultiDestinationDataSampleStore.MultiDestinationDataSampleStore(): Ignoring unknown secondary store [" + secondaryStore + "]");
+                  }
+               else
+                  {
+                  secondaryStores.put(secondaryStore, secondaryProvider.createDataSampleStore(speckConfig));
+                  hasOwnWriteQueue.put(secondaryStore, secondaryProvider.hasOwnWriteQueue());
+                  }
+               }
+            }
+         }
+      for (final Map.Entry<String, DataSampleStore> entry : secondaryStores.entrySet())
+         {
+         secondaryDestinations.add(new SecondaryDestination(entry.getKey(), entry.getValue(), hasOwnWriteQueue.get(entry.getKey())));
+         }
+      LOG.info("MultiDestinationDataSampleStore.MultiDestinationDataSampleStore(): Saving to " + primaryStore + ", and then to " + secondaryStores.keySet());
+      }
+
+   /**
+    * Returns the {@link DataSampleStoreProvider providers} found on the classpath, mapped by lower-case name.  If two
+    * providers have the same name, the first one found wins.
+    */
+   @NotNull
+   static Map<String, DataSampleStoreProvider> findDataSampleStoreProviders()
+      {
+      final Map<String, DataSampleStoreProvider> providers = new LinkedHashMap<String, DataSampleStoreProvider>();
+      for (final DataSampleStoreProvider provider : ServiceLoader.load(DataSampleStoreProvider.class))
+         {
+         final String name = provider.getName().toLowerCase();
+         if (providers.containsKey(name))
+            {
+            LOG.error("MultiDestinationDataSampleStore.findDataSampleStoreProviders(): Ignoring " + provider.getClass().getName() + " since a provider named [" + name + "] was already found");
+            }
+         else
+            {
+            providers.put(name, provider);
+            }
+         }
+      return providers;
       }
 
    @Override
    @NotNull
    public SaveResult save(@NotNull final Speck.DataSample dataSample)
       {
-      final SaveResult databaseSaveResult = databaseDataSampleStore.save(dataSample);
+      final SaveResult primarySaveResult = primaryDataSampleStore.save(dataSample);
 
-      // don't write to the CSV if it was a duplicate
-      if (!SaveResult.FAILURE_DUPLICATE.equals(databaseSaveResult))
+      // only send samples the primary store saved to the secondary destinations, since failed ones will be downloaded again
+      if (primarySaveResult.wasSuccessful())
          {
-         return csvDataSampleStore.save(dataSample);
+         for (final SecondaryDestination secondaryDestination : secondaryDestinations)
+            {
+            secondaryDestination.enqueue(Collections.singletonList(dataSample));
+            }
          }
 
-      return databaseSaveResult;
+      return primarySaveResult;
+      }
+
+   @Override
+   @NotNull
+   public List<SaveResult> save(@NotNull final List<Speck.DataSample> dataSamples)
+      {
+      final List<SaveResult> saveResults = primaryDataSampleStore.save(dataSamples);
+
+      // only send samples the primary store saved to the secondary destinations, since failed ones will be downloaded again
+      final List<Speck.DataSample> savedDataSamples = new ArrayList<Speck.DataSample>(dataSamples.size());
+      for (int i = 0; i < dataSamples.size(); i++)
+         {
+         if (saveResults.get(i).wasSuccessful())
+            {
+            savedDataSamples.add(dataSamples.get(i));
+            }
+         }
+
+      if (!savedDataSamples.isEmpty())
+         {
+         for (final SecondaryDestination secondaryDestination : secondaryDestinations)
+            {
+            secondaryDestination.enqueue(savedDataSamples);
+            }
+         }
+
+      return saveResults;
+      }
+
+   /**
+    * Returns the first store (checking the primary store first) which implements {@link SampleHistory}, or
+    * <code>null</code> if there isn't one.  A secondary destination's history lags behind the primary store by the
+    * samples still waiting in its queue.
+    */
+   @Nullable
+   SampleHistory getSampleHistory()
+      {
+      if (primaryDataSampleStore instanceof SampleHistory)
+         {
+         return (SampleHistory)primaryDataSampleStore;
+         }
+      for (final SecondaryDestination secondaryDestination : secondaryDestinations)
+         {
+         if (secondaryDestination.dataSampleStore instanceof SampleHistory)
+            {
+            return (SampleHistory)secondaryDestination.dataSampleStore;
+            }
+         }
+      return null;
+      }
+
+   /** Renders the statistics for each secondary destination in an ASCII table. */
+   @NotNull
+   String getSecondaryDestinationStatisticsAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf("\n");
+      printWriter.printf(" ________________________________________________________ \n");
+      printWriter.printf("|                                                        |\n");
+      printWriter.printf("| Destination   Queued   Lag (ms)     Written     Failed |\n");
+      printWriter.printf("| -----------   ------   --------     -------     ------ |\n");
+      for (final SecondaryDestination secondaryDestination : secondaryDestinations)
+         {
+         printWriter.printf("| %-11s   %6d   %8d   %9d   %8d |\n",
+                            secondaryDestination.name,
+                            secondaryDestination.queue.size(),
+                            secondaryDestination.getLagMillis(),
+                            secondaryDestination.numWritten.get(),
+                            secondaryDestination.numFailed.get());
+         }
+      printWriter.printf("|________________________________________________________|\n");
+
+      return stringWriter.toString();
       }
 
    @Override
    public void resetStateOfUploadingSamples()
       {
-      databaseDataSampleStore.resetStateOfUploadingSamples();
+      primaryDataSampleStore.resetStateOfUploadingSamples();
       }
 
    @NotNull
    @Override
    public DataSampleSet getDataSamplesToUpload(final int maxNumberRequested)
       {
-      return databaseDataSampleStore.getDataSamplesToUpload(maxNumberRequested);
+      return primaryDataSampleStore.getDataSamplesToUpload(maxNumberRequested);
       }
 
    @Override
    public void markDataSamplesAsUploaded(@NotNull final DataSampleSet dataSampleSet, final long uploadTimestampUtcMillis)
       {
-      databaseDataSampleStore.markDataSamplesAsUploaded(dataSampleSet, uploadTimestampUtcMillis);
+      primaryDataSampleStore.markDataSamplesAsUploaded(dataSampleSet, uploadTimestampUtcMillis);
       }
 
    @Override
    public void markDataSamplesAsFailed(@NotNull final DataSampleSet dataSampleSet)
       {
-      databaseDataSampleStore.markDataSamplesAsFailed(dataSampleSet);
+      primaryDataSampleStore.markDataSamplesAsFailed(dataSampleSet);
+      }
+
+   @NotNull
+   @Override
+   public MaintenanceResult performMaintenance()
+      {
+      return primaryDataSampleStore.performMaintenance();
       }
 
+   /** Shuts down the primary store, and then each secondary destination once it has written its queued samples. */
    @Override
    public void shutdown()
       {
-      databaseDataSampleStore.shutdown();
-      csvDataSampleStore.shutdown();
+      primaryDataSampleStore.shutdown();
+      for (final SecondaryDestination secondaryDestination : secondaryDestinations)
+         {
+         secondaryDestination.shutdown();
+         }
+      }
+
+   /**
+    * A secondary store, along with the queue of samples waiting to be written to it and the thread which writes them.
+    * A store with its own write queue is saved to directly, so its queue here is always empty and it has no thread.
+    */
+   private static final class SecondaryDestination implements Runnable
+      {
+      private static final class QueuedDataSample
+         {
+         @NotNull
+         private final Speck.DataSample dataSample;
+         private final long enqueueTimeMillis;
+
+         private QueuedDataSample(@NotNull final Speck.DataSample dataSample, final long enqueueTimeMillis)
+            {
+            this.dataSample = dataSample;
+            this.enqueueTimeMillis = enqueueTimeMillis;
+            }
+         }
+
+      @NotNull
+      private final String name;
+
+      @NotNull
+      private final DataSampleStore dataSampleStore;
+
+      @NotNull
+      private final BlockingQueue<QueuedDataSample> queue = new ArrayBlockingQueue<QueuedDataSample>(SECONDARY_QUEUE_CAPACITY);
+
+      @Nullable
+      private final ExecutorService executor;
+
+      private final AtomicLong numWritten = new AtomicLong(0);
+      private final AtomicLong numFailed = new AtomicLong(0);
+
+      /** Whether the queue is currently full, so that only the start and end of each episode are logged */
+      private final AtomicBoolean isQueueFull = new AtomicBoolean(false);
+
+      private volatile boolean isShuttingDown = false;
+
+      private SecondaryDestination(@NotNull final String name, @NotNull final DataSampleStore dataSampleStore, final boolean hasOwnWriteQueue)
+         {
+         this.name = name;
+         this.dataSampleStore = dataSampleStore;
+         if (hasOwnWriteQueue)
+            {
+            executor = null;
+            }
+         else
+            {
+            executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory(MultiDestinationDataSampleStore.class + "." + name + ".executor"));
+            executor.execute(this);
+            }
+         }
+
+      /**
+       * Queues the given samples for writing, blocking while the queue is full, or writes them directly if the store
+       * has its own write queue.
+       */
+      private void enqueue(@NotNull final List<Speck.DataSample> dataSamples)
+         {
+         if (executor == null)
+            {
+            write(dataSamples);
+            return;
+            }
+
+         final long now = System.currentTimeMillis();
+         for (int i = 0; i < dataSamples.size(); i++)
+            {
+            final QueuedDataSample queuedDataSample = new QueuedDataSample(dataSamples.get(i), now);
+            if (!queue.offer(queuedDataSample))
+               {
+               if (isQueueFull.compareAndSet(false, true))
+                  {
+                  LOG.warn("MultiDestinationDataSampleStore$SecondaryDestination.enqueue(): The " + name + " destination has fallen " + SECONDARY_QUEUE_CAPACITY + " samples behind, so saving will wait for it to catch up");
+                  }
+               try
+                  {
+                  queue.put(queuedDataSample);
+                  }
+               catch (InterruptedException e)
+                  {
+                  final int numNotQueued = dataSamples.size() - i;
+                  numFailed.addAndGet(numNotQueued);
+                  LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.enqueue(): InterruptedException while waiting to queue " + numNotQueued + " samples for " + name, e);
+                  Thread.currentThread().interrupt();
+                  return;
+                  }
+               }
+            }
+
+         if (queue.size() < SECONDARY_QUEUE_CAPACITY / 2 && isQueueFull.compareAndSet(true, false))
+            {
+            LOG.info("MultiDestinationDataSampleStore$SecondaryDestination.enqueue(): The " + name + " destination has caught up");
+            }
+         }
+
+      /** Returns how long the oldest queued sample has been waiting, in milliseconds, or 0 if the queue is empty. */
+      private int getLagMillis()
+         {
+         final QueuedDataSample oldest = queue.peek();
+         return oldest == null ? 0 : (int)Math.min(Integer.MAX_VALUE, System.currentTimeMillis() - oldest.enqueueTimeMillis);
+         }
+
+      @Override
+      public void run()
+         {
+         final List<QueuedDataSample> group = new ArrayList<QueuedDataSample>(SECONDARY_MAX_GROUP_SIZE);
+         final List<Speck.DataSample> dataSamples = new ArrayList<Speck.DataSample>(SECONDARY_MAX_GROUP_SIZE);
+         try
+            {
+            while (true)
+               {
+               final QueuedDataSample first = queue.poll(SECONDARY_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+               if (first == null)
+                  {
+                  if (isShuttingDown)
+                     {
+                     break;
+                     }
+                  continue;
+                  }
+
+               group.add(first);
+               queue.drainTo(group, SECONDARY_MAX_GROUP_SIZE - 1);
+               for (final QueuedDataSample queuedDataSample : group)
+                  {
+                  dataSamples.add(queuedDataSample.dataSample);
+                  }
+               write(dataSamples);
+               group.clear();
+               dataSamples.clear();
+               }
+            }
+         catch (InterruptedException e)
+            {
+            LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.run(): InterruptedException while waiting for samples to write to " + name, e);
+            }
+         }
+
+      private void write(@NotNull final List<Speck.DataSample> dataSamples)
+         {
+         try
+            {
+            int numFailedNow = 0;
+            for (final SaveResult saveResult : dataSampleStore.save(dataSamples))
+               {
+               // duplicates don't matter here, since the primary store decides what's a duplicate
+               if (SaveResult.FAILURE_ERROR.equals(saveResult))
+                  {
+                  numFailedNow++;
+                  }
+               }
+            numWritten.addAndGet(dataSamples.size() - numFailedNow);
+            if (numFailedNow > 0)
+               {
+               numFailed.addAndGet(numFailedNow);
+               LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.write(): Failed to write " + numFailedNow + " of " + dataSamples.size() + " samples to " + name);
+               }
+            }
+         catch (Exception e)
+            {
+            // don't let an unexpected exception stop this destination's thread
+            numFailed.addAndGet(dataSamples.size());
+            LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.write(): Exception while writing " + dataSamples.size() + " samples to " + name, e);
+            }
+         }
+
+      private void shutdown()
+         {
+         isShuttingDown = true;
+         if (executor != null)
+            {
+            executor.shutdown();
+            try
+               {
+               if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS))
+                  {
+                  LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.shutdown(): Timed out waiting to write " + queue.size() + " queued samples to " + name);
+                  }
+               }
+            catch (InterruptedException e)
+               {
+               LOG.error("MultiDestinationDataSampleStore$SecondaryDestination.shutdown(): InterruptedException while waiting to write the queued samples to " + name, e);
+               Thread.currentThread().interrupt();
+               }
+            }
+         dataSampleStore.shutdown();
+         }
       }
    }
@@ -0,0 +1,419 @@
+package org.specksensor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.device.CreateLabDevicePingFailureEventListener;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>MultiSpeckManager</code> connects to every Speck attached to the computer and runs a separate
+ * {@link DataSampleManager} for each one.  It periodically rescans for Specks, so devices can be plugged in or
+ * unplugged at any time.  All the managed Specks share a single upload executor and report their statistics to the
+ * same set of listeners.
+ * </p>
+ * <p>
+ * The rescan interval can be set with the <code>org.specksensor.MultiSpeckManager.rescan-interval-seconds</code>
+ * system property (default 10).
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class MultiSpeckManager
+   {
+   private static final Logger LOG = Logger.getLogger(MultiSpeckManager.class);
+   private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
+
+   public static final String RESCAN_INTERVAL_IN_SECONDS_SYSTEM_PROPERTY = "org.specksensor.MultiSpeckManager.rescan-interval-seconds";
+   private static final int RESCAN_INTERVAL_IN_SECONDS = SystemPropertyUtils.getInt(RESCAN_INTERVAL_IN_SECONDS_SYSTEM_PROPERTY, 10, 1);
+
+   public interface EventListener
+      {
+      void handleConnectionEvent(@NotNull final SpeckConfig speckConfig, @NotNull final String portName);
+
+      void handleDisconnectionEvent(@NotNull final SpeckConfig speckConfig);
+      }
+
+   public interface StatisticsListener
+      {
+      void handleValueChange(@NotNull final String speckId, @NotNull final DataSampleManager.Statistics.Category category, final int newValue);
+      }
+
+   private static final class ManagedSpeck
+      {
+      @NotNull
+      private final Speck device;
+
+      @NotNull
+      private final DataSampleManager dataSampleManager;
+
+      private ManagedSpeck(@NotNull final Speck device, @NotNull final DataSampleManager dataSampleManager)
+         {
+         this.device = device;
+         this.dataSampleManager = dataSampleManager;
+         }
+      }
+
+   @Nullable
+   private final EventListener eventListener;
+
+   @NotNull
+   private final SortedMap<String, ManagedSpeck> managedSpecks = new TreeMap<String, ManagedSpeck>();
+
+   @NotNull
+   private final Set<StatisticsListener> statisticsListeners = new CopyOnWriteArraySet<StatisticsListener>();
+
+   @Nullable
+   private RemoteStorageCredentials remoteStorageCredentials = null;
+
+   private boolean isRunning = false;
+   private boolean hasBeenShutdown = false;
+
+   @NotNull
+   private final Lock lock = new ReentrantLock();
+
+   @NotNull
+   private final ScheduledExecutorService scanExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(this.getClass() + ".scanExecutor"));
+
+   @NotNull
+   private final ExecutorService uploadExecutor = DataSampleUploader.createExecutor();
+
+   @NotNull
+   private final Runnable scanRunnable =
+         new Runnable()
+         {
+         @Override
+         public void run()
+            {
+            // Keep connecting until there are no more unclaimed Specks.  Specks which are already connected are skipped
+            // by the factory, so each successful call returns a different device.
+            Speck device;
+            while (!Thread.currentThread().isInterrupted() && (device = SpeckFactory.create()) != null)
+               {
+               handleNewDevice(device);
+               }
+            }
+         };
+
+   public MultiSpeckManager(@Nullable final EventListener eventListener)
+      {
+      this.eventListener = eventListener;
+      }
+
+   /**
+    * Starts scanning for Specks.  Scanning repeats periodically until {@link #shutdown()} is called.
+    */
+   public void startup()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (!isRunning && !hasBeenShutdown)
+            {
+            isRunning = true;
+            logInfo("Scanning for Specks every " + RESCAN_INTERVAL_IN_SECONDS + " seconds...");
+            scanExecutor.scheduleWithFixedDelay(scanRunnable, 0, RESCAN_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+            }
+         else
+            {
+            LOG.debug("MultiSpeckManager.startup(): Cannot startup since it's already running or has been shutdown.");
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Sets the credentials used for uploading.  Each Speck uploads to its own device, named by appending an underscore
+    * and the Speck's ID to the device name in the given credentials.  Can only be called once--subsequent calls are
+    * ignored.  Returns <code>true</code> if the credentials were set successfully, <code>false</code> otherwise.
+    */
+   public boolean setRemoteStorageCredentials(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (this.remoteStorageCredentials != null)
+            {
+            final String msg = "The remote storage credentials can only be set once.";
+            LOG.warn("MultiSpeckManager.setRemoteStorageCredentials(): " + msg);
+            CONSOLE_LOG.warn(msg);
+            return false;
+            }
+
+         this.remoteStorageCredentials = remoteStorageCredentials;
+         for (final ManagedSpeck managedSpeck : managedSpecks.values())
+            {
+            setDataSampleUploader(managedSpeck.device.getSpeckConfig(), managedSpeck.dataSampleManager);
+            }
+         return true;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   public boolean areRemoteStorageCredentialsSet()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return remoteStorageCredentials != null;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Returns the IDs of the currently connected Specks, in sorted order. */
+   @NotNull
+   public List<String> getSpeckIds()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return Collections.unmodifiableList(new ArrayList<String>(managedSpecks.keySet()));
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   public void addStatisticsListener(@Nullable final StatisticsListener listener)
+      {
+      if (listener != null)
+         {
+         statisticsListeners.add(listener);
+         }
+      }
+
+   /** Renders the statistics for every connected Speck. */
+   @NotNull
+   public String getStatisticsAsString()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final StringWriter stringWriter = new StringWriter();
+         final PrintWriter printWriter = new PrintWriter(stringWriter);
+         if (managedSpecks.isEmpty())
+            {
+            printWriter.printf("\nNo Specks connected.\n");
+            }
+         for (final Map.Entry<String, ManagedSpeck> entry : managedSpecks.entrySet())
+            {
+            printWriter.printf("\nSpeck [%s] on port [%s]:", entry.getKey(), entry.getValue().device.getPortName());
+            printWriter.print(entry.getValue().dataSampleManager.getStatisticsAsString());
+            }
+         return stringWriter.toString();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Shuts down the <code>MultiSpeckManager</code>, disconnecting from all Specks.  Once it is shut down, it cannot be
+    * started up again.
+    */
+   public void shutdown()
+      {
+      LOG.debug("MultiSpeckManager.shutdown()");
+
+      // stop scanning first, so we don't connect to any new devices while shutting down
+      try
+         {
+         scanExecutor.shutdownNow();
+         scanExecutor.awaitTermination(30, TimeUnit.SECONDS);
+         }
+      catch (Exception e)
+         {
+         LOG.error("MultiSpeckManager.shutdown(): Exception while trying to shut down the scan executor", e);
+         }
+
+      final List<ManagedSpeck> specksToShutdown;
+      lock.lock();  // block until condition holds
+      try
+         {
+         isRunning = false;
+         hasBeenShutdown = true;
+         specksToShutdown = new ArrayList<ManagedSpeck>(managedSpecks.values());
+         managedSpecks.clear();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+
+      for (final ManagedSpeck managedSpeck : specksToShutdown)
+         {
+         managedSpeck.dataSampleManager.shutdown();
+         managedSpeck.device.disconnect();
+         }
+
+      uploadExecutor.shutdownNow();
+      }
+
+   private void handleNewDevice(@NotNull final Speck device)
+      {
+      final SpeckConfig speckConfig = device.getSpeckConfig();
+      final String speckId = speckConfig.getId();
+
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (hasBeenShutdown || managedSpecks.containsKey(speckId))
+            {
+            LOG.info("MultiSpeckManager.handleNewDevice(): Ignoring Speck [" + speckId + "] since it's already managed or we've been shut down.");
+            device.disconnect();
+            return;
+            }
+
+         logInfo("Connection successful to Speck [" + speckId + "] on port [" + device.getPortName() + "].");
+
+         final DataSampleManager dataSampleManager;
+         try
+            {
+            dataSampleManager = new DataSampleManager(speckConfig, new DataSampleDownloader(device));
+            }
+         catch (InitializationException e)
+            {
+            LOG.error("MultiSpeckManager.handleNewDevice(): InitializationException while trying to create the DataSampleManager for Speck [" + speckId + "].  Disconnecting from it.", e);
+            CONSOLE_LOG.error("Failed to initialize data storage for Speck [" + speckId + "].  Disconnecting from it.");
+            device.disconnect();
+            return;
+            }
+
+         dataSampleManager.addStatisticsListener(
+               new DataSampleManager.Statistics.Listener()
+               {
+               @Override
+               public void handleValueChange(@NotNull final DataSampleManager.Statistics.Category category, final int newValue)
+                  {
+                  publishStatistic(speckId, category, newValue);
+                  }
+               });
+
+         device.addCreateLabDevicePingFailureEventListener(
+               new CreateLabDevicePingFailureEventListener()
+               {
+               public void handlePingFailureEvent()
+                  {
+                  logError("Connection failure detected for Speck [" + speckId + "].  Cleaning up...");
+
+                  // don't do the cleanup on the pinger's thread
+                  scanExecutor.execute(
+                        new Runnable()
+                        {
+                        @Override
+                        public void run()
+                           {
+                           handleDisconnectedDevice(speckId);
+                           }
+                        });
+                  }
+               });
+
+         managedSpecks.put(speckId, new ManagedSpeck(device, dataSampleManager));
+         if (remoteStorageCredentials != null)
+            {
+            setDataSampleUploader(speckConfig, dataSampleManager);
+            }
+         dataSampleManager.startup();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+
+      if (eventListener != null)
+         {
+         eventListener.handleConnectionEvent(speckConfig, device.getPortName());
+         }
+      }
+
+   private void handleDisconnectedDevice(@NotNull final String speckId)
+      {
+      final ManagedSpeck managedSpeck;
+      lock.lock();  // block until condition holds
+      try
+         {
+         managedSpeck = managedSpecks.remove(speckId);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+
+      if (managedSpeck != null)
+         {
+         managedSpeck.dataSampleManager.shutdown();
+         logInfo("Disconnected from Speck [" + speckId + "].");
+
+         if (eventListener != null)
+            {
+            eventListener.handleDisconnectionEvent(managedSpeck.device.getSpeckConfig());
+            }
+         }
+      }
+
+   /** Must be called while holding the lock. */
+   private void setDataSampleUploader(@NotNull final SpeckConfig speckConfig, @NotNull final DataSampleManager dataSampleManager)
+      {
+      if (remoteStorageCredentials != null)
+         {
+         final RemoteStorageCredentials deviceCredentials = new RemoteStorageCredentialsImpl(remoteStorageCredentials.getHostName(),
+                                                                                            remoteStorageCredentials.getHostPort(),
+                                                                                            remoteStorageCredentials.getUsername(),
+                                                                                            remoteStorageCredentials.getPassword(),
+                                                                                            remoteStorageCredentials.getDeviceName() + "_" + speckConfig.getId());
+         if (!dataSampleManager.setDataSampleUploader(new DataSampleUploader(speckConfig, deviceCredentials, uploadExecutor)))
+            {
+            logError("Failed to set the DataSampleUploader for Speck [" + speckConfig.getId() + "]");
+            }
+         }
+      }
+
+   private void publishStatistic(@NotNull final String speckId, @NotNull final DataSampleManager.Statistics.Category category, final int newValue)
+      {
+      for (final StatisticsListener listener : statisticsListeners)
+         {
+         listener.handleValueChange(speckId, category, newValue);
+         }
+      }
+
+   private static void logInfo(@NotNull final String message)
+      {
+      LOG.info("MultiSpeckManager: " + message);
+      CONSOLE_LOG.info(message);
+      }
+
+   private static void logError(@NotNull final String message)
+      {
+      LOG.error("MultiSpeckManager: " + message);
+      CONSOLE_LOG.error(message);
+      }
+   }
@@ -0,0 +1,159 @@
+package org.specksensor;
+
+import java.io.IOException;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>SampleHistory</code> answers queries over the {@link Speck.DataSample data samples} kept locally for a Speck,
+ * either by {@link #scan(int, int, SampleVisitor) scanning} the samples in a time range, or by returning
+ * {@link Rollup rollups} (the count, minimum, maximum and mean of each {@link Field field}) at one of the fixed
+ * {@link Resolution resolutions}.  Rollups are maintained as samples are saved, so querying them never requires
+ * reading the samples themselves.
+ * </p>
+ * <p>
+ * All times are in seconds since the epoch, and rollup buckets are aligned to UTC minutes, hours and days.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public interface SampleHistory
+   {
+   enum Resolution
+      {
+         MINUTE(60),
+         HOUR(60 * 60),
+         DAY(24 * 60 * 60);
+
+      private final int seconds;
+
+      private Resolution(final int seconds)
+         {
+         this.seconds = seconds;
+         }
+
+      /** Returns the length of a bucket at this resolution, in seconds. */
+      public int getSeconds()
+         {
+         return seconds;
+         }
+      }
+
+   /** The sample fields which are rolled up, in the order in which {@link SampleVisitor} receives them. */
+   enum Field
+      {
+         RAW_PARTICLE_COUNT,
+         PARTICLE_COUNT_OR_CONCENTRATION,
+         TEMPERATURE_IN_TENTHS_OF_A_DEGREE_F,
+         HUMIDITY
+      }
+
+   /** Receives the fields of each sample found by a {@link #scan(int, int, SampleVisitor) scan}. */
+   interface SampleVisitor
+      {
+      void visit(final int sampleTime,
+                 final int rawParticleCount,
+                 final int particleCountOrConcentration,
+                 final int temperatureInTenthsOfDegreeF,
+                 final int humidity);
+      }
+
+   /** The count, minimum, maximum and sum of each {@link Field} over the samples in a single bucket. */
+   final class Rollup
+      {
+      private final Resolution resolution;
+      private final int startTime;
+      private final int count;
+      private final int[] min;
+      private final int[] max;
+      private final long[] sum;
+
+      public Rollup(@NotNull final Resolution resolution,
+                    final int startTime,
+                    final int count,
+                    @NotNull final int[] min,
+                    @NotNull final int[] max,
+                    @NotNull final long[] sum)
+         {
+         this.resolution = resolution;
+         this.startTime = startTime;
+         this.count = count;
+         this.min = min.clone();
+         this.max = max.clone();
+         this.sum = sum.clone();
+         }
+
+      @NotNull
+      public Resolution getResolution()
+         {
+         return resolution;
+         }
+
+      /** Returns the time at which this rollup's bucket starts, in seconds since the epoch. */
+      public int getStartTime()
+         {
+         return startTime;
+         }
+
+      /** Returns the number of samples in this rollup's bucket. */
+      public int getCount()
+         {
+         return count;
+         }
+
+      public int getMin(@NotNull final Field field)
+         {
+         return min[field.ordinal()];
+         }
+
+      public int getMax(@NotNull final Field field)
+         {
+         return max[field.ordinal()];
+         }
+
+      public long getSum(@NotNull final Field field)
+         {
+         return sum[field.ordinal()];
+         }
+
+      public double getMean(@NotNull final Field field)
+         {
+         return (double)sum[field.ordinal()] / count;
+         }
+
+      @Override
+      public String toString()
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append("Rollup");
+         sb.append("{resolution=").append(resolution);
+         sb.append(", startTime=").append(startTime);
+         sb.append(", count=").append(count);
+         for (final Field field : Field.values())
+            {
+            sb.append(", ").append(field).append("=[").append(getMin(field)).append(", ").append(getMean(field)).append(", ").append(getMax(field)).append(']');
+            }
+         sb.append('}');
+         return sb.toString();
+         }
+      }
+
+   /**
+    * Hands every sample whose time is within the given range to the given {@link SampleVisitor}, and returns the
+    * number of samples found.  Samples are visited in the order in which they were saved, which is time order unless
+    * they were downloaded out of order.  Samples saved while the scan is running may or may not be visited.
+    *
+    * @throws IOException if the samples cannot be read
+    */
+   int scan(final int fromTimeInclusive, final int toTimeExclusive, @NotNull final SampleVisitor visitor) throws IOException;
+
+   /**
+    * Returns the non-empty rollups at the given {@link Resolution} whose buckets start within the given range, in time
+    * order.
+    *
+    * @throws IOException if the rollups cannot be read
+    */
+   @NotNull
+   List<Rollup> getRollups(@NotNull final Resolution resolution, final int fromTimeInclusive, final int toTimeExclusive) throws IOException;
+   }
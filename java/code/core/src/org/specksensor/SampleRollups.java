@@ -0,0 +1,378 @@
+package org.specksensor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>SampleRollups</code> maintains the {@link SampleHistory.Rollup rollups} of a Speck's samples at every
+ * {@link SampleHistory.Resolution resolution}, updating them as each sample is {@link #add added}.  It's used by
+ * {@link ArchiveDataSampleStore}, which calls it from within its own lock, so it isn't thread safe.
+ * </p>
+ * <p>
+ * Each resolution's rollups are kept in page files holding a fixed number of consecutive buckets (30 days of minutes,
+ * a year of hours, or ten years of days), so a bucket's record is found by arithmetic rather than by searching.  Each
+ * record holds the bucket's sample count, followed by the minimum, maximum and sum of each field.  A record with a
+ * count of zero is empty.  Pages are created when the first sample in their time range is added, and the most
+ * recently used pages of each resolution are kept memory mapped.
+ * </p>
+ * <p>
+ * Pages are only forced to disk by {@link #close()}, which then leaves a marker file behind.  If the marker is missing
+ * when the rollups are opened, the gateway didn't shut down cleanly (or the rollups are new), so the owner must
+ * {@link #clear()} them and add all of its samples again.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class SampleRollups
+   {
+   private static final Logger LOG = Logger.getLogger(SampleRollups.class);
+
+   private static final String CLEAN_SHUTDOWN_MARKER_FILENAME = "clean-shutdown";
+   private static final String PAGE_FILENAME_SUFFIX = ".rollups";
+
+   /** The number of pages of each resolution which are kept mapped */
+   private static final int MAX_MAPPED_PAGES_PER_RESOLUTION = 4;
+
+   private static final int NUM_FIELDS = SampleHistory.Field.values().length;
+
+   /** The count, followed by the minimum, maximum and sum of each field */
+   private static final int RECORD_COUNT_OFFSET = 0;
+   private static final int RECORD_FIELDS_OFFSET = 4;
+   private static final int FIELD_MIN_OFFSET = 0;
+   private static final int FIELD_MAX_OFFSET = 4;
+   private static final int FIELD_SUM_OFFSET = 8;
+   private static final int FIELD_SIZE = 16;
+   private static final int RECORD_SIZE = RECORD_FIELDS_OFFSET + NUM_FIELDS * FIELD_SIZE;
+
+   @NotNull
+   private final File directory;
+
+   @NotNull
+   private final File cleanShutdownMarker;
+
+   private final boolean wasShutDownCleanly;
+
+   /** Set once an update fails, so that the marker isn't written and the rollups are rebuilt at the next startup */
+   private boolean isConsistent = true;
+
+   private final Level[] levels = new Level[SampleHistory.Resolution.values().length];
+
+   /**
+    * Opens the rollups in the given directory, creating it if necessary.
+    *
+    * @throws IOException if the directory cannot be created, or the clean shutdown marker cannot be deleted
+    */
+   SampleRollups(@NotNull final File directory) throws IOException
+      {
+      this.directory = directory;
+      if (!directory.isDirectory() && !directory.mkdirs())
+         {
+         throw new IOException("Failed to create the rollup directory " + directory);
+         }
+
+      // the marker must not survive this run, since a crash would then leave it behind
+      cleanShutdownMarker = new File(directory, CLEAN_SHUTDOWN_MARKER_FILENAME);
+      wasShutDownCleanly = cleanShutdownMarker.exists();
+      if (wasShutDownCleanly && !cleanShutdownMarker.delete())
+         {
+         throw new IOException("Failed to delete " + cleanShutdownMarker);
+         }
+
+      for (final SampleHistory.Resolution resolution : SampleHistory.Resolution.values())
+         {
+         levels[resolution.ordinal()] = new Level(resolution);
+         }
+      }
+
+   /** Returns <code>true</code> if the rollups were closed cleanly, and so are consistent with the samples added so far. */
+   boolean wasShutDownCleanly()
+      {
+      return wasShutDownCleanly;
+      }
+
+   /**
+    * Deletes all the rollups.
+    *
+    * @throws IOException if a page file cannot be deleted
+    */
+   void clear() throws IOException
+      {
+      for (final Level level : levels)
+         {
+         level.unmapAll();
+         }
+
+      final File[] files = directory.listFiles(
+            new FilenameFilter()
+            {
+            @Override
+            public boolean accept(final File dir, final String name)
+               {
+               return name.endsWith(PAGE_FILENAME_SUFFIX);
+               }
+            });
+      if (files != null)
+         {
+         for (final File file : files)
+            {
+            if (!file.delete())
+               {
+               throw new IOException("Failed to delete " + file);
+               }
+            }
+         }
+      isConsistent = true;
+      }
+
+   /** Adds the given sample to the rollups at every resolution.  Samples with negative times are ignored. */
+   void add(final int sampleTime,
+            final int rawParticleCount,
+            final int particleCountOrConcentration,
+            final int temperatureInTenthsOfDegreeF,
+            final int humidity)
+      {
+      if (sampleTime >= 0)
+         {
+         try
+            {
+            for (final Level level : levels)
+               {
+               level.add(sampleTime, rawParticleCount, particleCountOrConcentration, temperatureInTenthsOfDegreeF, humidity);
+               }
+            }
+         catch (IOException e)
+            {
+            if (isConsistent)
+               {
+               LOG.error("SampleRollups.add(): IOException while updating the rollups, they will be rebuilt at the next startup", e);
+               isConsistent = false;
+               }
+            }
+         }
+      }
+
+   /** Returns the non-empty rollups at the given resolution whose buckets start within the given range, in time order. */
+   @NotNull
+   List<SampleHistory.Rollup> get(@NotNull final SampleHistory.Resolution resolution,
+                                  final int fromTimeInclusive,
+                                  final int toTimeExclusive) throws IOException
+      {
+      return levels[resolution.ordinal()].get(fromTimeInclusive, toTimeExclusive);
+      }
+
+   /** Forces the rollups to disk and, if they're consistent, writes the clean shutdown marker. */
+   void close()
+      {
+      try
+         {
+         for (final Level level : levels)
+            {
+            level.unmapAll();
+            }
+         if (isConsistent && !cleanShutdownMarker.createNewFile())
+            {
+            LOG.error("SampleRollups.close(): Failed to create " + cleanShutdownMarker + ", the rollups will be rebuilt at the next startup");
+            }
+         }
+      catch (IOException e)
+         {
+         LOG.error("SampleRollups.close(): IOException while closing the rollups, they will be rebuilt at the next startup", e);
+         }
+      }
+
+   /** The rollups at a single resolution */
+   private final class Level
+      {
+      @NotNull
+      private final SampleHistory.Resolution resolution;
+
+      private final int bucketsPerPage;
+
+      /** The mapped pages, by page number, least recently used first */
+      @SuppressWarnings("serial")
+      private final Map<Integer, MappedByteBuffer> mappedPages = new LinkedHashMap<Integer, MappedByteBuffer>(MAX_MAPPED_PAGES_PER_RESOLUTION * 2, 0.75f, true)
+      {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Integer, MappedByteBuffer> eldest)
+         {
+         if (size() > MAX_MAPPED_PAGES_PER_RESOLUTION)
+            {
+            eldest.getValue().force();
+            return true;
+            }
+         return false;
+         }
+      };
+
+      /** The page most recently added to, kept so that consecutive samples don't need a map lookup */
+      private int currentPageNumber = -1;
+      private MappedByteBuffer currentPage = null;
+
+      private Level(@NotNull final SampleHistory.Resolution resolution)
+         {
+         this.resolution = resolution;
+         switch (resolution)
+            {
+            case MINUTE:
+               bucketsPerPage = 30 * 24 * 60;
+               break;
+
+            case HOUR:
+               bucketsPerPage = 366 * 24;
+               break;
+
+            default:
+               bucketsPerPage = 3660;
+            }
+         }
+
+      private void add(final int sampleTime,
+                       final int rawParticleCount,
+                       final int particleCountOrConcentration,
+                       final int temperatureInTenthsOfDegreeF,
+                       final int humidity) throws IOException
+         {
+         final int bucket = sampleTime / resolution.getSeconds();
+         final int pageNumber = bucket / bucketsPerPage;
+         if (pageNumber != currentPageNumber || currentPage == null)
+            {
+            currentPage = getPage(pageNumber, true);
+            currentPageNumber = pageNumber;
+            }
+
+         final MappedByteBuffer page = currentPage;
+         final int recordOffset = (bucket % bucketsPerPage) * RECORD_SIZE;
+         final int count = page.getInt(recordOffset + RECORD_COUNT_OFFSET);
+         final boolean isFirst = count == 0;
+         addToField(page, recordOffset + RECORD_FIELDS_OFFSET, isFirst, rawParticleCount);
+         addToField(page, recordOffset + RECORD_FIELDS_OFFSET + FIELD_SIZE, isFirst, particleCountOrConcentration);
+         addToField(page, recordOffset + RECORD_FIELDS_OFFSET + 2 * FIELD_SIZE, isFirst, temperatureInTenthsOfDegreeF);
+         addToField(page, recordOffset + RECORD_FIELDS_OFFSET + 3 * FIELD_SIZE, isFirst, humidity);
+         page.putInt(recordOffset + RECORD_COUNT_OFFSET, count + 1);
+         }
+
+      @NotNull
+      private List<SampleHistory.Rollup> get(final int fromTimeInclusive, final int toTimeExclusive) throws IOException
+         {
+         final List<SampleHistory.Rollup> rollups = new ArrayList<SampleHistory.Rollup>();
+         final int seconds = resolution.getSeconds();
+
+         // the buckets starting within the range (computed as longs to avoid overflow when rounding up)
+         final long firstBucket = (Math.max(fromTimeInclusive, 0) + (long)seconds - 1) / seconds;
+         final long endBucket = (Math.max(toTimeExclusive, 0) + (long)seconds - 1) / seconds;
+
+         final int[] min = new int[NUM_FIELDS];
+         final int[] max = new int[NUM_FIELDS];
+         final long[] sum = new long[NUM_FIELDS];
+         long bucket = firstBucket;
+         while (bucket < endBucket)
+            {
+            final int pageNumber = (int)(bucket / bucketsPerPage);
+            final long endBucketInPage = Math.min(endBucket, (pageNumber + 1L) * bucketsPerPage);
+            final MappedByteBuffer page = getPage(pageNumber, false);
+            if (page != null)
+               {
+               for (long b = bucket; b < endBucketInPage; b++)
+                  {
+                  final int recordOffset = (int)(b % bucketsPerPage) * RECORD_SIZE;
+                  final int count = page.getInt(recordOffset + RECORD_COUNT_OFFSET);
+                  if (count > 0)
+                     {
+                     for (int field = 0; field < NUM_FIELDS; field++)
+                        {
+                        final int fieldOffset = recordOffset + RECORD_FIELDS_OFFSET + field * FIELD_SIZE;
+                        min[field] = page.getInt(fieldOffset + FIELD_MIN_OFFSET);
+                        max[field] = page.getInt(fieldOffset + FIELD_MAX_OFFSET);
+                        sum[field] = page.getLong(fieldOffset + FIELD_SUM_OFFSET);
+                        }
+                     rollups.add(new SampleHistory.Rollup(resolution, (int)(b * seconds), count, min, max, sum));
+                     }
+                  }
+               }
+            bucket = endBucketInPage;
+            }
+         return rollups;
+         }
+
+      /**
+       * Returns the given page, mapping it if necessary.  If the page's file doesn't exist, it's created if
+       * <code>willCreate</code> is <code>true</code>, otherwise <code>null</code> is returned.
+       */
+      @Nullable
+      private MappedByteBuffer getPage(final int pageNumber, final boolean willCreate) throws IOException
+         {
+         MappedByteBuffer page = mappedPages.get(pageNumber);
+         if (page == null)
+            {
+            final File file = new File(directory, resolution.name().toLowerCase() + "-" + String.format("%06d", pageNumber) + PAGE_FILENAME_SUFFIX);
+            if (!willCreate && !file.exists())
+               {
+               return null;
+               }
+
+            final long pageSize = (long)bucketsPerPage * RECORD_SIZE;
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try
+               {
+               if (randomAccessFile.length() != pageSize)
+                  {
+                  // new, or truncated by a crash while being created (the missing records are empty)
+                  randomAccessFile.setLength(pageSize);
+                  }
+
+               // the mapping remains valid after the file is closed
+               page = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
+               }
+            finally
+               {
+               randomAccessFile.close();
+               }
+            mappedPages.put(pageNumber, page);
+            }
+         return page;
+         }
+
+      private void unmapAll()
+         {
+         for (final MappedByteBuffer page : mappedPages.values())
+            {
+            page.force();
+            }
+         if (currentPage != null)
+            {
+            currentPage.force();
+            }
+         mappedPages.clear();
+         currentPage = null;
+         currentPageNumber = -1;
+         }
+      }
+
+   private static void addToField(@NotNull final MappedByteBuffer page, final int fieldOffset, final boolean isFirst, final int value)
+      {
+      if (isFirst)
+         {
+         page.putInt(fieldOffset + FIELD_MIN_OFFSET, value);
+         page.putInt(fieldOffset + FIELD_MAX_OFFSET, value);
+         page.putLong(fieldOffset + FIELD_SUM_OFFSET, value);
+         }
+      else
+         {
+         page.putInt(fieldOffset + FIELD_MIN_OFFSET, Math.min(value, page.getInt(fieldOffset + FIELD_MIN_OFFSET)));
+         page.putInt(fieldOffset + FIELD_MAX_OFFSET, Math.max(value, page.getInt(fieldOffset + FIELD_MAX_OFFSET)));
+         page.putLong(fieldOffset + FIELD_SUM_OFFSET, page.getLong(fieldOffset + FIELD_SUM_OFFSET) + value);
+         }
+      }
+   }
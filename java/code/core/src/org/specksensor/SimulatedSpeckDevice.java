@@ -0,0 +1,436 @@
+package org.specksensor;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.usb.hid.BaseHIDDevice;
+import edu.cmu.ri.createlab.usb.hid.HIDConnectionException;
+import edu.cmu.ri.createlab.usb.hid.HIDDeviceFailureException;
+import edu.cmu.ri.createlab.usb.hid.HIDDeviceNotConnectedException;
+import edu.cmu.ri.createlab.usb.hid.HIDDeviceNotFoundException;
+import edu.cmu.ri.createlab.usb.hid.HIDWriteStatus;
+import edu.cmu.ri.createlab.util.ByteUtils;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>SimulatedSpeckDevice</code> is an HID device which behaves like a Speck: it answers the same 'G', 'S', 'D',
+ * 'P', 'I', and 'i' commands with the same 15-byte, checksummed responses as the firmware.  Since it sits beneath the
+ * {@link SpeckProxy}, everything above it (the command strategies, the command queue, the pinger, and the
+ * {@link DataSampleManager}) runs unmodified.
+ * </p>
+ * <p>
+ * The device starts with a backlog of historic samples and, like the firmware, records a new sample every second
+ * while connected and every logging interval while disconnected.  Per-command latency, corrupted checksums, and
+ * unplugging are injected according to the {@link SpeckSimulator.Config}.  Instances are created and handed out by the
+ * {@link SpeckSimulator}.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class SimulatedSpeckDevice extends BaseHIDDevice
+   {
+   private static final Logger LOG = Logger.getLogger(SimulatedSpeckDevice.class);
+
+   private static final int RESPONSE_LENGTH_IN_BYTES = 15;
+   private static final int CHECKSUM_BYTE_INDEX = RESPONSE_LENGTH_IN_BYTES - 1;
+   private static final int UNIQUE_ID_LENGTH_IN_BYTES = 16;
+   private static final int HARDWARE_VERSION = 1;
+   private static final int FIRMWARE_VERSION = 1;
+
+   /** While connected, the firmware records a sample every second, regardless of the logging interval */
+   private static final int CONNECTED_SAMPLE_INTERVAL_IN_SECONDS = 1;
+
+   private final int deviceIndex;
+
+   @NotNull
+   private final SpeckSimulator.Config config;
+
+   @NotNull
+   private final ApiSupport apiSupport;
+
+   @NotNull
+   private final Random random;
+
+   @NotNull
+   private final String deviceFilename;
+
+   private final byte[] uniqueId = new byte[UNIQUE_ID_LENGTH_IN_BYTES];
+   private final TreeSet<Integer> sampleTimes = new TreeSet<Integer>();
+   private final Lock lock = new ReentrantLock();
+
+   private int loggingIntervalInSeconds;
+   private int lastRecordedSampleTimeInSecs;
+   private boolean isConnected = false;
+   private long unpluggedUntilTimeInMillis = 0;
+
+   @Nullable
+   private byte[] pendingResponse = null;
+
+   SimulatedSpeckDevice(final int deviceIndex, @NotNull final SpeckSimulator.Config config)
+      {
+      super(SpeckConstants.UsbHidConfiguration.HID_DEVICE_DESCRIPTOR);
+      this.deviceIndex = deviceIndex;
+      this.config = config;
+      this.apiSupport = ApiSupport.getInstance(config.getProtocolVersion());
+      this.random = new Random(config.getRandomSeed() + deviceIndex);
+      this.deviceFilename = "simulated-speck-" + deviceIndex;
+      this.loggingIntervalInSeconds = apiSupport.canMutateLoggingInterval() ? config.getLoggingIntervalInSeconds() : SpeckConstants.LoggingInterval.DEFAULT;
+
+      // use a fixed ID per device index so that each simulated device always maps to the same data directory
+      new Random(deviceIndex).nextBytes(uniqueId);
+
+      // fill the backlog with samples recorded at the logging interval, ending now
+      lastRecordedSampleTimeInSecs = getCurrentTimeInSecs();
+      for (int i = config.getBacklogSize() - 1; i >= 0; i--)
+         {
+         sampleTimes.add(lastRecordedSampleTimeInSecs - i * loggingIntervalInSeconds);
+         }
+      }
+
+   /**
+    * Returns <code>true</code> if the device is plugged in and nobody is connected to it.
+    */
+   boolean isAvailable()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return !isConnected && !isUnplugged();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public void connect() throws HIDDeviceNotFoundException, HIDConnectionException
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (isUnplugged())
+            {
+            throw new HIDDeviceNotFoundException("Simulated Speck [" + deviceFilename + "] is unplugged");
+            }
+         if (isConnected)
+            {
+            throw new HIDConnectionException("Simulated Speck [" + deviceFilename + "] is already connected");
+            }
+
+         // record whatever was logged while disconnected before switching to the connected sample rate
+         recordSamples();
+         isConnected = true;
+         pendingResponse = null;
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("SimulatedSpeckDevice.connect(): connected to [" + deviceFilename + "] with [" + sampleTimes.size() + "] samples available");
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public void connectExclusively() throws HIDDeviceNotFoundException, HIDConnectionException
+      {
+      connect();
+      }
+
+   @Override
+   public String getDeviceFilename()
+      {
+      return deviceFilename;
+      }
+
+   @Override
+   public boolean isReportIDIncludedInReadData()
+      {
+      return false;
+      }
+
+   @Override
+   public HIDWriteStatus write(final byte[] data) throws HIDDeviceNotConnectedException, HIDDeviceFailureException
+      {
+      if (data == null)
+         {
+         return HIDWriteStatus.WRITE_FAILED;
+         }
+
+      // simulate the time the device takes to process the command
+      final long latencyInMillis = computeLatencyInMillis();
+      if (latencyInMillis > 0)
+         {
+         try
+            {
+            Thread.sleep(latencyInMillis);
+            }
+         catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            return HIDWriteStatus.WRITE_FAILED;
+            }
+         }
+
+      lock.lock();  // block until condition holds
+      try
+         {
+         ensureConnectedAndPluggedIn();
+         recordSamples();
+
+         if (random.nextDouble() < config.getDisconnectRate())
+            {
+            unplug();
+            throw new HIDDeviceFailureException("Simulated Speck [" + deviceFilename + "] was unplugged");
+            }
+
+         final byte commandId = getCommandId();
+         final byte[] response = new byte[RESPONSE_LENGTH_IN_BYTES + 1];
+         response[response.length - 1] = commandId;
+
+         if (processCommand(data, response))
+            {
+            response[CHECKSUM_BYTE_INDEX] = computeChecksum(response);
+            if (random.nextDouble() < config.getChecksumErrorRate())
+               {
+               LOG.debug("SimulatedSpeckDevice.write(): corrupting the checksum of the response");
+               response[CHECKSUM_BYTE_INDEX]++;
+               }
+            pendingResponse = response;
+            }
+         else
+            {
+            pendingResponse = null;
+            }
+
+         return new HIDWriteStatus(data.length, data.length, true, ByteUtils.unsignedByteToInt(commandId));
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public byte[] read() throws HIDDeviceNotConnectedException, HIDDeviceFailureException
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         ensureConnectedAndPluggedIn();
+         final byte[] response = pendingResponse;
+         pendingResponse = null;
+         return response;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @Override
+   public boolean disconnect()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         // record whatever was logged while connected before switching to the disconnected sample rate
+         recordSamples();
+         isConnected = false;
+         pendingResponse = null;
+         return true;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Fills in the given response for the given command and returns <code>true</code>, or returns <code>false</code> if
+    * the command is unknown (in which case the device doesn't respond at all).
+    */
+   private boolean processCommand(@NotNull final byte[] command, @NotNull final byte[] response)
+      {
+      switch (command[0])
+         {
+         case 'G':
+            if (!sampleTimes.isEmpty())
+               {
+               writeSample(response, sampleTimes.first());
+               }
+            // otherwise the response stays all zeros, which means no data is available
+            return true;
+
+         case 'S':
+            writeSample(response, getCurrentTimeInSecs());
+            return true;
+
+         case 'D':
+            final int sampleTime = readInt(command, 5);
+            writeInt(response, 1, sampleTime);
+            response[5] = (byte)(sampleTimes.remove(sampleTime) ? 1 : 0);
+            return true;
+
+         case 'P':
+            if (apiSupport.canGetNumberOfDataSamples())
+               {
+               writeInt(response, 1, sampleTimes.size());
+               return true;
+               }
+            break;
+
+         case 'I':
+            final int requestedLoggingInterval = ByteUtils.unsignedByteToInt(command[5]);
+            if (requestedLoggingInterval != 0 && apiSupport.canMutateLoggingInterval())
+               {
+               loggingIntervalInSeconds = requestedLoggingInterval;
+               }
+            writeConfig(response);
+            return true;
+
+         case 'i':
+            if (apiSupport.hasExtendedId())
+               {
+               System.arraycopy(uniqueId, 8, response, 1, 8);
+               return true;
+               }
+            break;
+
+         default:
+            break;
+         }
+
+      LOG.warn("SimulatedSpeckDevice.processCommand(): ignoring unsupported command [" + (char)command[0] + "]");
+      return false;
+      }
+
+   private void writeConfig(@NotNull final byte[] response)
+      {
+      if (apiSupport.hasExtendedId())
+         {
+         System.arraycopy(uniqueId, 0, response, 1, 8);
+         }
+      else
+         {
+         System.arraycopy(uniqueId, 0, response, 1, 10);
+         }
+      if (apiSupport.hasDeviceVersionInfo())
+         {
+         response[10] = (byte)HARDWARE_VERSION;
+         response[13] = (byte)FIRMWARE_VERSION;
+         }
+      response[11] = (byte)apiSupport.getProtocolVersion();
+      response[12] = ByteUtils.intToUnsignedByte(loggingIntervalInSeconds);
+      }
+
+   /** Writes a sample with the given time and plausible, but deterministic, sensor values into the response. */
+   private void writeSample(@NotNull final byte[] response, final int sampleTime)
+      {
+      final int seed = sampleTime * 31 + deviceIndex;
+      final int particleCount = 50 + Math.abs(seed % 950);
+      writeInt(response, 1, sampleTime);
+      writeInt(response, 5, particleCount);
+      writeShort(response, 9, 650 + Math.abs(seed % 200));                 // temperature, in tenths of a degree F
+      response[11] = (byte)(20 + Math.abs(seed % 60));                      // humidity
+      writeShort(response, 12, particleCount / 10);                         // raw particle count
+      }
+
+   /**
+    * Adds the samples the device would have recorded since the last time this method was called.  Must be called
+    * before any change to the connection state, since that determines how often samples are recorded.
+    */
+   private void recordSamples()
+      {
+      final int now = getCurrentTimeInSecs();
+      final int interval = (isConnected && !isUnplugged()) ? CONNECTED_SAMPLE_INTERVAL_IN_SECONDS : loggingIntervalInSeconds;
+      while (lastRecordedSampleTimeInSecs + interval <= now)
+         {
+         lastRecordedSampleTimeInSecs += interval;
+         sampleTimes.add(lastRecordedSampleTimeInSecs);
+         }
+      }
+
+   private void unplug()
+      {
+      final long reconnectDelayInMillis = config.getReconnectDelayInMillis();
+      unpluggedUntilTimeInMillis = (reconnectDelayInMillis < 0) ? Long.MAX_VALUE : System.currentTimeMillis() + reconnectDelayInMillis;
+      pendingResponse = null;
+      LOG.info("SimulatedSpeckDevice.unplug(): simulating unplugging of [" + deviceFilename + "]");
+      }
+
+   private boolean isUnplugged()
+      {
+      return System.currentTimeMillis() < unpluggedUntilTimeInMillis;
+      }
+
+   private void ensureConnectedAndPluggedIn() throws HIDDeviceNotConnectedException, HIDDeviceFailureException
+      {
+      if (!isConnected)
+         {
+         throw new HIDDeviceNotConnectedException("Simulated Speck [" + deviceFilename + "] is not connected");
+         }
+      if (isUnplugged())
+         {
+         throw new HIDDeviceFailureException("Simulated Speck [" + deviceFilename + "] is unplugged");
+         }
+      }
+
+   private long computeLatencyInMillis()
+      {
+      long latency = config.getLatencyInMillis();
+      if (config.getLatencyJitterInMillis() > 0)
+         {
+         latency += (long)(random.nextDouble() * (config.getLatencyJitterInMillis() + 1));
+         }
+      if (random.nextDouble() < config.getLatencySpikeProbability())
+         {
+         latency += config.getLatencySpikeInMillis();
+         }
+      return latency;
+      }
+
+   private static int getCurrentTimeInSecs()
+      {
+      return (int)(System.currentTimeMillis() / 1000);
+      }
+
+   private static byte computeChecksum(@NotNull final byte[] data)
+      {
+      // same as the firmware: sum all the bytes before the checksum and keep the lowest 8 bits
+      int sum = 0;
+      for (int i = 0; i < CHECKSUM_BYTE_INDEX; i++)
+         {
+         sum += data[i];
+         }
+      return (byte)sum;
+      }
+
+   private static int readInt(@NotNull final byte[] src, final int offset)
+      {
+      return (src[offset] << 24) |
+             ((src[offset + 1] & 0xff) << 16) |
+             ((src[offset + 2] & 0xff) << 8) |
+             (src[offset + 3] & 0xff);
+      }
+
+   private static void writeInt(@NotNull final byte[] dest, final int offset, final int value)
+      {
+      dest[offset] = (byte)(value >>> 24);
+      dest[offset + 1] = (byte)(value >>> 16);
+      dest[offset + 2] = (byte)(value >>> 8);
+      dest[offset + 3] = (byte)value;
+      }
+
+   private static void writeShort(@NotNull final byte[] dest, final int offset, final int value)
+      {
+      dest[offset] = (byte)(value >>> 8);
+      dest[offset + 1] = (byte)value;
+      }
+   }
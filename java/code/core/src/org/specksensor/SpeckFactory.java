@@ -12,13 +12,17 @@ import org.jetbrains.annotations.Nullable;
 public class SpeckFactory
    {
    /**
-    * Tries to create a {@link Speck} by connecting to a Speck.  Returns <code>null</code> if the connection could not
-    * be established.
+    * Tries to create a {@link Speck} by connecting to a Speck, or to a simulated Speck if the {@link SpeckSimulator} is
+    * enabled.  Returns <code>null</code> if the connection could not be established.
     */
 
    @Nullable
    public static Speck create()
       {
+      if (SpeckSimulator.isEnabled())
+         {
+         return SpeckSimulator.create();
+         }
       return SpeckProxy.create();
       }
 
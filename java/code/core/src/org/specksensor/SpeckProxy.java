@@ -3,9 +3,12 @@ package org.specksensor;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import edu.cmu.ri.createlab.device.CreateLabDevicePingFailureEventListener;
@@ -36,7 +39,15 @@ class SpeckProxy implements Speck
    private static final Logger LOG = Logger.getLogger(SpeckProxy.class);
    private static final Logger CONSOLE_LOG = Logger.getLogger("ConsoleLog");
 
-   private static final int DELAY_IN_SECONDS_BETWEEN_PINGS = 5;
+   /**
+    * The pinger only sends an explicit ping once there has been no successful communication with the device for this
+    * long.  During normal operation the download and delete traffic itself serves as proof that the device is alive.
+    */
+   public static final String PING_IDLE_PERIOD_IN_MILLIS_SYSTEM_PROPERTY = "org.specksensor.SpeckProxy.ping-idle-period-millis";
+   private static final long PING_IDLE_PERIOD_IN_MILLIS = SystemPropertyUtils.getLong(PING_IDLE_PERIOD_IN_MILLIS_SYSTEM_PROPERTY, 3000, 100);
+
+   /** How often the pinger checks whether the device has been idle long enough to need a ping */
+   private static final long PINGER_CHECK_INTERVAL_IN_MILLIS = Math.min(1000, PING_IDLE_PERIOD_IN_MILLIS);
 
    /**
     * Tries to create a <code>SpeckProxy</code>. Returns <code>null</code> if the connection could not be established.
@@ -44,15 +55,23 @@ class SpeckProxy implements Speck
    @Nullable
    static SpeckProxy create()
       {
-      try
+      // create the HID device
+      if (LOG.isDebugEnabled())
          {
-         // create the HID device
-         if (LOG.isDebugEnabled())
-            {
-            LOG.debug("SpeckProxy.create(): creating HID device for vendor ID [" + Integer.toHexString(SpeckConstants.UsbHidConfiguration.USB_VENDOR_ID) + "] and product ID [" + Integer.toHexString(SpeckConstants.UsbHidConfiguration.USB_PRODUCT_ID) + "]");
-            }
-         final HIDDevice hidDevice = HIDDeviceFactory.create(SpeckConstants.UsbHidConfiguration.HID_DEVICE_DESCRIPTOR);
+         LOG.debug("SpeckProxy.create(): creating HID device for vendor ID [" + Integer.toHexString(SpeckConstants.UsbHidConfiguration.USB_VENDOR_ID) + "] and product ID [" + Integer.toHexString(SpeckConstants.UsbHidConfiguration.USB_PRODUCT_ID) + "]");
+         }
+      return create(HIDDeviceFactory.create(SpeckConstants.UsbHidConfiguration.HID_DEVICE_DESCRIPTOR));
+      }
 
+   /**
+    * Tries to create a <code>SpeckProxy</code> which communicates with the Speck through the given {@link HIDDevice}.
+    * Returns <code>null</code> if the connection could not be established.
+    */
+   @Nullable
+   static SpeckProxy create(@NotNull final HIDDevice hidDevice)
+      {
+      try
+         {
          LOG.debug("SpeckProxy.create(): attempting connection...");
          hidDevice.connectExclusively();
 
@@ -66,9 +85,11 @@ class SpeckProxy implements Speck
          {
          LOG.error("HIDConnectionException while trying to connect to the Speck, returning null", e);
          }
-      catch (HIDDeviceNotFoundException e)
+      catch (HIDDeviceNotFoundException ignored)
          {
-         LOG.error("HIDDeviceNotFoundException while trying to connect to the Speck, returning null", e);
+         // Not an error, since it just means that no Speck is plugged in (or they're all connected already).  This is
+         // expected every time the MultiSpeckManager rescans, and callers report a null return themselves.
+         LOG.debug("SpeckProxy.create(): No unclaimed Speck found, returning null");
          }
       catch (InitializationException e)
          {
@@ -81,12 +102,15 @@ class SpeckProxy implements Speck
    private final HIDDevice hidDevice;
 
    private final Pinger pinger = new Pinger();
+   private final AtomicLong lastSuccessfulCommunicationTimeInMillis = new AtomicLong(System.currentTimeMillis());
+   private final AtomicBoolean isConnectionSuspect = new AtomicBoolean(false);
    private final ScheduledExecutorService pingExecutorService = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(this.getClass() + ".pingExecutorService"));
    private final ScheduledFuture<?> pingScheduledFuture;
    private final Collection<CreateLabDevicePingFailureEventListener> createLabDevicePingFailureEventListeners = new HashSet<CreateLabDevicePingFailureEventListener>();
    private final GetDataSampleCommandStrategy getCurrentSampleCommandStrategy = GetDataSampleCommandStrategy.createGetCurrentSampleCommandStrategy();
    private final GetDataSampleCommandStrategy getHistoricSampleCommandStrategy = GetDataSampleCommandStrategy.createGetHistoricSampleCommandStrategy();
    private final GetDataSampleCountCommandStrategy getDataSampleCountCommandStrategy = new GetDataSampleCountCommandStrategy();
+   private final DeleteSampleCommandStrategy deleteSampleCommandStrategy = new DeleteSampleCommandStrategy(0);
    private final HIDDeviceReturnValueCommandExecutor<SpeckConfig> speckConfigReturnValueCommandExecutor;
    private final HIDDeviceReturnValueCommandExecutor<DataSample> getSampleCommandExecutor;
    private final HIDDeviceReturnValueCommandExecutor<Boolean> booleanReturnValueCommandExecutor;
@@ -192,12 +216,11 @@ class SpeckProxy implements Speck
          CONSOLE_LOG.info(message);
          }
 
-      // TODO: smarter pinging?
-      // schedule periodic pings
-      pingScheduledFuture = pingExecutorService.scheduleAtFixedRate(pinger,
-                                                                    DELAY_IN_SECONDS_BETWEEN_PINGS, // delay before first ping
-                                                                    DELAY_IN_SECONDS_BETWEEN_PINGS, // delay between pings
-                                                                    TimeUnit.SECONDS);
+      // schedule periodic checks of whether a ping is needed
+      pingScheduledFuture = pingExecutorService.scheduleWithFixedDelay(pinger,
+                                                                       PINGER_CHECK_INTERVAL_IN_MILLIS, // delay before first check
+                                                                       PINGER_CHECK_INTERVAL_IN_MILLIS, // delay between checks
+                                                                       TimeUnit.MILLISECONDS);
       }
 
    public String getPortName()
@@ -249,6 +272,7 @@ class SpeckProxy implements Speck
    private DataSample getSample(final GetDataSampleCommandStrategy sampleCommandStrategy) throws CommunicationException
       {
       final DataSample dataSample = getSampleCommandExecutor.execute(sampleCommandStrategy);
+      recordCommunicationResult(dataSample != null);
       if (dataSample == null)
          {
          throw new CommunicationException("Failed to read a sample from the Speck");
@@ -265,7 +289,14 @@ class SpeckProxy implements Speck
    @Override
    public boolean deleteSample(final int sampleTime) throws CommunicationException
       {
-      final Boolean success = booleanReturnValueCommandExecutor.execute(new DeleteSampleCommandStrategy(sampleTime));
+      // the delete strategy is reused, so make sure its sample time can't change while it's being executed
+      final Boolean success;
+      synchronized (deleteSampleCommandStrategy)
+         {
+         deleteSampleCommandStrategy.setSampleTime(sampleTime);
+         success = booleanReturnValueCommandExecutor.execute(deleteSampleCommandStrategy);
+         }
+      recordCommunicationResult(success != null);
       if (success == null)
          {
          throw new CommunicationException("Failed to delete a sample [" + sampleTime + "] from the Speck");
@@ -279,6 +310,7 @@ class SpeckProxy implements Speck
       if (speckConfigWrapper.getApiSupport().canGetNumberOfDataSamples())
          {
          final Integer count = integerReturnValueCommandExecutor.execute(getDataSampleCountCommandStrategy);
+         recordCommunicationResult(count != null);
          if (count == null)
             {
             throw new CommunicationException("Failed to read the number of available samples from the Speck");
@@ -288,12 +320,39 @@ class SpeckProxy implements Speck
       throw new UnsupportedOperationException("This Speck cannot report the number of available samples.");
       }
 
+   /**
+    * Records the outcome of a command sent to the device.  Successful commands postpone the need for a ping.  A failed
+    * command (i.e. one which completed without throwing, but returned no response) marks the connection as suspect and
+    * triggers an immediate ping to determine whether the device is still there.
+    */
+   private void recordCommunicationResult(final boolean wasSuccessful)
+      {
+      if (wasSuccessful)
+         {
+         lastSuccessfulCommunicationTimeInMillis.set(System.currentTimeMillis());
+         isConnectionSuspect.set(false);
+         }
+      else if (isConnectionSuspect.compareAndSet(false, true))
+         {
+         LOG.debug("SpeckProxy.recordCommunicationResult(): command failed, scheduling an immediate ping");
+         try
+            {
+            pingExecutorService.execute(pinger);
+            }
+         catch (RejectedExecutionException ignored)
+            {
+            LOG.debug("SpeckProxy.recordCommunicationResult(): ping rejected since the pinger has been shut down");
+            }
+         }
+      }
+
    @NotNull
    public SpeckConfig setLoggingInterval(final int loggingIntervalInSeconds) throws CommunicationException, UnsupportedOperationException
       {
       if (speckConfigWrapper.getApiSupport().canMutateLoggingInterval())
          {
          final SpeckConfig newConfig = speckConfigReturnValueCommandExecutor.execute(ReadWriteSpeckConfigCommandStrategy.createWriteableSpeckConfigCommandStrategy(loggingIntervalInSeconds));
+         recordCommunicationResult(newConfig != null);
          if (newConfig != null)
             {
             // get the extended config, if necessary
@@ -519,6 +578,10 @@ class SpeckProxy implements Speck
                {
                LOG.trace("SpeckProxy$Pinger.run(): not pinging because the pinger is paused");
                }
+            else if (!isConnectionSuspect.get() && System.currentTimeMillis() - lastSuccessfulCommunicationTimeInMillis.get() < PING_IDLE_PERIOD_IN_MILLIS)
+               {
+               LOG.trace("SpeckProxy$Pinger.run(): not pinging because there has been recent successful communication with the device");
+               }
             else
                {
                // try to read the current sample, but don't do anything with it.  If it fails, it'll throw a
@@ -0,0 +1,280 @@
+package org.specksensor;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>SpeckSimulator</code> provides simulated Specks for load and soak testing without hardware.  Once
+ * {@link #enable(String) enabled}, {@link SpeckFactory#create()} connects to simulated devices instead of scanning
+ * USB, so the gateway applications and the command line client run against the simulator unchanged.
+ * </p>
+ * <p>
+ * The simulator is configured with an optional properties file supporting the following keys:
+ * <ul>
+ *    <li><code>device-count</code>: number of simulated Specks (default 1)</li>
+ *    <li><code>protocol-version</code>: protocol version the devices report (default 3)</li>
+ *    <li><code>backlog-size</code>: number of historic samples on each device at startup (default 1000)</li>
+ *    <li><code>logging-interval</code>: logging interval, in seconds, used while disconnected (default 1)</li>
+ *    <li><code>latency-millis</code>: base per-command latency (default 2)</li>
+ *    <li><code>latency-jitter-millis</code>: uniformly distributed extra latency (default 3)</li>
+ *    <li><code>latency-spike-probability</code>: probability of a latency spike per command (default 0)</li>
+ *    <li><code>latency-spike-millis</code>: extra latency of a spike (default 1000)</li>
+ *    <li><code>checksum-error-rate</code>: probability of a corrupted response checksum (default 0)</li>
+ *    <li><code>disconnect-rate</code>: probability per command of the device being unplugged (default 0)</li>
+ *    <li><code>reconnect-delay-millis</code>: how long an unplugged device stays unplugged, or -1 for forever (default 5000)</li>
+ *    <li><code>random-seed</code>: seed for the injected latency and failures (default is random)</li>
+ * </ul>
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SpeckSimulator
+   {
+   private static final Logger LOG = Logger.getLogger(SpeckSimulator.class);
+
+   @Nullable
+   private static volatile List<SimulatedSpeckDevice> devices = null;
+
+   /**
+    * Enables the simulator, configuring it with the properties file at the given path, or with the defaults if the
+    * path is <code>null</code> or empty.  Returns <code>true</code> if the simulator was enabled, <code>false</code> if
+    * the config file could not be read.
+    */
+   public static synchronized boolean enable(@Nullable final String pathToConfigFile)
+      {
+      final Properties properties = new Properties();
+      if (pathToConfigFile != null && pathToConfigFile.length() > 0)
+         {
+         FileReader reader = null;
+         try
+            {
+            reader = new FileReader(new File(pathToConfigFile));
+            properties.load(reader);
+            }
+         catch (IOException e)
+            {
+            LOG.error("SpeckSimulator.enable(): IOException while trying to read the simulator config file [" + pathToConfigFile + "]", e);
+            return false;
+            }
+         finally
+            {
+            if (reader != null)
+               {
+               try
+                  {
+                  reader.close();
+                  }
+               catch (IOException ignored)
+                  {
+                  LOG.error("SpeckSimulator.enable(): IOException while trying to close the simulator config file [" + pathToConfigFile + "]");
+                  }
+               }
+            }
+         }
+
+      final Config config = new Config(properties);
+      final List<SimulatedSpeckDevice> newDevices = new ArrayList<SimulatedSpeckDevice>(config.getDeviceCount());
+      for (int i = 0; i < config.getDeviceCount(); i++)
+         {
+         newDevices.add(new SimulatedSpeckDevice(i, config));
+         }
+      devices = Collections.unmodifiableList(newDevices);
+
+      LOG.info("SpeckSimulator.enable(): Simulating " + config);
+      return true;
+      }
+
+   public static boolean isEnabled()
+      {
+      return devices != null;
+      }
+
+   /**
+    * Connects to the first simulated Speck which is plugged in and not already connected.  Returns <code>null</code>
+    * if there is no such device, or if the simulator isn't enabled.
+    */
+   @Nullable
+   static Speck create()
+      {
+      final List<SimulatedSpeckDevice> availableDevices = devices;
+      if (availableDevices != null)
+         {
+         for (final SimulatedSpeckDevice device : availableDevices)
+            {
+            if (device.isAvailable())
+               {
+               final Speck speck = SpeckProxy.create(device);
+               if (speck != null)
+                  {
+                  return speck;
+                  }
+               }
+            }
+         }
+      return null;
+      }
+
+   static final class Config
+      {
+      private final int deviceCount;
+      private final int protocolVersion;
+      private final int backlogSize;
+      private final int loggingIntervalInSeconds;
+      private final long latencyInMillis;
+      private final long latencyJitterInMillis;
+      private final double latencySpikeProbability;
+      private final long latencySpikeInMillis;
+      private final double checksumErrorRate;
+      private final double disconnectRate;
+      private final long reconnectDelayInMillis;
+      private final long randomSeed;
+
+      private Config(@NotNull final Properties properties)
+         {
+         deviceCount = (int)getLong(properties, "device-count", 1, 1);
+         protocolVersion = (int)getLong(properties, "protocol-version", 3, 1);
+         backlogSize = (int)getLong(properties, "backlog-size", 1000, 0);
+         loggingIntervalInSeconds = Math.min(SpeckConstants.LoggingInterval.MAX, (int)getLong(properties, "logging-interval", SpeckConstants.LoggingInterval.DEFAULT, SpeckConstants.LoggingInterval.MIN));
+         latencyInMillis = getLong(properties, "latency-millis", 2, 0);
+         latencyJitterInMillis = getLong(properties, "latency-jitter-millis", 3, 0);
+         latencySpikeProbability = getProbability(properties, "latency-spike-probability");
+         latencySpikeInMillis = getLong(properties, "latency-spike-millis", 1000, 0);
+         checksumErrorRate = getProbability(properties, "checksum-error-rate");
+         disconnectRate = getProbability(properties, "disconnect-rate");
+         reconnectDelayInMillis = getLong(properties, "reconnect-delay-millis", 5000, -1);
+         randomSeed = getLong(properties, "random-seed", System.nanoTime(), Long.MIN_VALUE);
+         }
+
+      int getDeviceCount()
+         {
+         return deviceCount;
+         }
+
+      int getProtocolVersion()
+         {
+         return protocolVersion;
+         }
+
+      int getBacklogSize()
+         {
+         return backlogSize;
+         }
+
+      int getLoggingIntervalInSeconds()
+         {
+         return loggingIntervalInSeconds;
+         }
+
+      long getLatencyInMillis()
+         {
+         return latencyInMillis;
+         }
+
+      long getLatencyJitterInMillis()
+         {
+         return latencyJitterInMillis;
+         }
+
+      double getLatencySpikeProbability()
+         {
+         return latencySpikeProbability;
+         }
+
+      long getLatencySpikeInMillis()
+         {
+         return latencySpikeInMillis;
+         }
+
+      double getChecksumErrorRate()
+         {
+         return checksumErrorRate;
+         }
+
+      double getDisconnectRate()
+         {
+         return disconnectRate;
+         }
+
+      long getReconnectDelayInMillis()
+         {
+         return reconnectDelayInMillis;
+         }
+
+      long getRandomSeed()
+         {
+         return randomSeed;
+         }
+
+      private static long getLong(@NotNull final Properties properties, @NotNull final String key, final long defaultValue, final long minValue)
+         {
+         final String valueStr = properties.getProperty(key);
+         long value = defaultValue;
+         if (valueStr != null)
+            {
+            try
+               {
+               value = Long.parseLong(valueStr.trim());
+               }
+            catch (NumberFormatException e)
+               {
+               LOG.error("SpeckSimulator$Config.getLong(): NumberFormatException while trying to parse [" + valueStr + "] for property [" + key + "].  Defaulting to " + defaultValue, e);
+               }
+            }
+         return Math.max(minValue, value);
+         }
+
+      /** Returns the probability for the given key, clamped to [0, 1], defaulting to 0. */
+      private static double getProbability(@NotNull final Properties properties, @NotNull final String key)
+         {
+         final String valueStr = properties.getProperty(key);
+         double value = 0;
+         if (valueStr != null)
+            {
+            try
+               {
+               value = Double.parseDouble(valueStr.trim());
+               }
+            catch (NumberFormatException e)
+               {
+               LOG.error("SpeckSimulator$Config.getProbability(): NumberFormatException while trying to parse [" + valueStr + "] for property [" + key + "].  Defaulting to 0", e);
+               }
+            }
+         return Math.min(1, Math.max(0, value));
+         }
+
+      @Override
+      public String toString()
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append("Config");
+         sb.append("{deviceCount=").append(deviceCount);
+         sb.append(", protocolVersion=").append(protocolVersion);
+         sb.append(", backlogSize=").append(backlogSize);
+         sb.append(", loggingIntervalInSeconds=").append(loggingIntervalInSeconds);
+         sb.append(", latencyInMillis=").append(latencyInMillis);
+         sb.append(", latencyJitterInMillis=").append(latencyJitterInMillis);
+         sb.append(", latencySpikeProbability=").append(latencySpikeProbability);
+         sb.append(", latencySpikeInMillis=").append(latencySpikeInMillis);
+         sb.append(", checksumErrorRate=").append(checksumErrorRate);
+         sb.append(", disconnectRate=").append(disconnectRate);
+         sb.append(", reconnectDelayInMillis=").append(reconnectDelayInMillis);
+         sb.append(", randomSeed=").append(randomSeed);
+         sb.append('}');
+         return sb.toString();
+         }
+      }
+
+   private SpeckSimulator()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,72 @@
+package org.specksensor;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>SystemPropertyUtils</code> provides helper methods for reading numeric tuning parameters from system
+ * properties.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class SystemPropertyUtils
+   {
+   private static final Logger LOG = Logger.getLogger(SystemPropertyUtils.class);
+
+   /**
+    * Returns the value of the system property with the given name parsed as an int, or the given
+    * <code>defaultValue</code> if the property is undefined or cannot be parsed.  The returned value will never be less
+    * than the given <code>minValue</code>.
+    */
+   static int getInt(@NotNull final String propertyName, final int defaultValue, final int minValue)
+      {
+      final String valueStr = System.getProperty(propertyName);
+      int value = defaultValue;
+      if (valueStr != null)
+         {
+         try
+            {
+            value = Integer.parseInt(valueStr.trim());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("SystemPropertyUtils.getInt(): NumberFormatException while trying to parse [" + valueStr + "] as an int for system property [" + propertyName + "].  Defaulting to " + defaultValue, e);
+            value = defaultValue;
+            }
+         }
+
+      return Math.max(minValue, value);
+      }
+
+   /**
+    * Returns the value of the system property with the given name parsed as a long, or the given
+    * <code>defaultValue</code> if the property is undefined or cannot be parsed.  The returned value will never be less
+    * than the given <code>minValue</code>.
+    */
+   static long getLong(@NotNull final String propertyName, final long defaultValue, final long minValue)
+      {
+      final String valueStr = System.getProperty(propertyName);
+      long value = defaultValue;
+      if (valueStr != null)
+         {
+         try
+            {
+            value = Long.parseLong(valueStr.trim());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("SystemPropertyUtils.getLong(): NumberFormatException while trying to parse [" + valueStr + "] as a long for system property [" + propertyName + "].  Defaulting to " + defaultValue, e);
+            value = defaultValue;
+            }
+         }
+
+      return Math.max(minValue, value);
+      }
+
+   private SystemPropertyUtils()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,100 @@
+package org.specksensor;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * <code>UploadBatchSizer</code> chooses how many samples a {@link DataSampleManager} puts in each upload batch, using
+ * additive increase and multiplicative decrease.  The size starts at {@link DataSampleSet#DEFAULT_SIZE}, and grows by
+ * {@link #ADDITIVE_INCREASE} samples after each full batch which is uploaded within {@link #TARGET_LATENCY_MILLIS}, so
+ * that a backlog is uploaded in fewer, larger requests.  It's halved when a batch fails (including timing out), takes
+ * longer than that, or comes back with some of its records rejected, so that slow links end up with batches they can
+ * upload well within the {@link DataSampleUploadHelper#HTTP_TIMEOUT_IN_MILLIS timeout}.
+ * </p>
+ * <p>
+ * Since several batches may be in flight at once, a batch which was requested before the size was last decreased
+ * can't decrease it again, so a single slow spell halves the size only once.  The size always stays between
+ * {@link #MIN_BATCH_SIZE_SYSTEM_PROPERTY} (50 by default) and {@link #MAX_BATCH_SIZE_SYSTEM_PROPERTY} (5000 by
+ * default).
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadBatchSizer
+   {
+   private static final Logger LOG = Logger.getLogger(UploadBatchSizer.class);
+
+   public static final String MIN_BATCH_SIZE_SYSTEM_PROPERTY = "org.specksensor.UploadBatchSizer.min-batch-size";
+   private static final int DEFAULT_MIN_BATCH_SIZE = 50;
+   private static final int MIN_BATCH_SIZE = SystemPropertyUtils.getInt(MIN_BATCH_SIZE_SYSTEM_PROPERTY, DEFAULT_MIN_BATCH_SIZE, 1);
+
+   public static final String MAX_BATCH_SIZE_SYSTEM_PROPERTY = "org.specksensor.UploadBatchSizer.max-batch-size";
+   private static final int DEFAULT_MAX_BATCH_SIZE = 5000;
+   private static final int MAX_BATCH_SIZE = SystemPropertyUtils.getInt(MAX_BATCH_SIZE_SYSTEM_PROPERTY, DEFAULT_MAX_BATCH_SIZE, MIN_BATCH_SIZE);
+
+   /** The number of samples added to the size after each full batch uploaded quickly enough */
+   private static final int ADDITIVE_INCREASE = 100;
+
+   /** The longest a batch may take to upload without decreasing the size, well within the upload timeout */
+   private static final long TARGET_LATENCY_MILLIS = DataSampleUploadHelper.HTTP_TIMEOUT_IN_MILLIS / 10;
+
+   private final Lock lock = new ReentrantLock();
+   private int size = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, DataSampleSet.DEFAULT_SIZE));
+
+   /** Returns the number of samples to request for the next batch. */
+   int getSize()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return size;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Adapts the size to the outcome of a batch which was requested at the given size, held the given number of
+    * samples, and completed after the given time.  The number of failed records is the number reported in the
+    * response's payload, if any.
+    */
+   void complete(final int requestedSize,
+                 final int numSamples,
+                 final long latencyMillis,
+                 final boolean wasSuccessful,
+                 @Nullable final Integer numFailedRecords)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final int previousSize = size;
+         if (!wasSuccessful || latencyMillis > TARGET_LATENCY_MILLIS || (numFailedRecords != null && numFailedRecords > 0))
+            {
+            // ignore batches requested before the last decrease
+            if (requestedSize >= size)
+               {
+               size = Math.max(MIN_BATCH_SIZE, size / 2);
+               }
+            }
+         else if (numSamples >= requestedSize)
+            {
+            // only full batches show that there's a backlog worth uploading in larger batches
+            size = Math.min(MAX_BATCH_SIZE, size + ADDITIVE_INCREASE);
+            }
+
+         if (size != previousSize && LOG.isDebugEnabled())
+            {
+            LOG.debug("UploadBatchSizer.complete(): Batch size changed from " + previousSize + " to " + size + " samples (batch of " + numSamples + " took " + latencyMillis + " ms, successful = " + wasSuccessful + ", failed records = " + numFailedRecords + ")");
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+   }
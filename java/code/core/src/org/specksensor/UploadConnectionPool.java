@@ -0,0 +1,300 @@
+package org.specksensor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.cmu.ri.createlab.util.thread.DaemonThreadFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>UploadConnectionPool</code> holds a long-lived {@link CloseableHttpClient} for each host to which samples are
+ * uploaded, so that uploads reuse persistent (keep-alive) connections instead of opening and closing a connection for
+ * every batch.  The pools are shared by every {@link RemoteStorageCredentials} with the same host and port, since the
+ * credentials are given with each request.
+ * </p>
+ * <p>
+ * Each pool keeps at most {@link #MAX_CONNECTIONS_PER_ROUTE_SYSTEM_PROPERTY} connections (4 by default).  Connections
+ * are kept alive for as long as the server allows, or {@link #IDLE_TIMEOUT_SECONDS_SYSTEM_PROPERTY} seconds (30 by
+ * default) if it doesn't say, and connections which have been idle for longer than that are closed in the background.
+ * The number of requests and of connections opened, their average latencies, and the number of bytes sent in request
+ * bodies (and so how well they compress) are tracked for each pool and shown by {@link #getStatisticsAsString()}.  Each
+ * pool also remembers whether its host accepts {@link UploadEntity compressed} uploads.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadConnectionPool
+   {
+   private static final Logger LOG = Logger.getLogger(UploadConnectionPool.class);
+
+   public static final String MAX_CONNECTIONS_PER_ROUTE_SYSTEM_PROPERTY = "org.specksensor.UploadConnectionPool.max-connections-per-route";
+   private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 4;
+   private static final int MAX_CONNECTIONS_PER_ROUTE = SystemPropertyUtils.getInt(MAX_CONNECTIONS_PER_ROUTE_SYSTEM_PROPERTY, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, 1);
+
+   public static final String IDLE_TIMEOUT_SECONDS_SYSTEM_PROPERTY = "org.specksensor.UploadConnectionPool.idle-timeout-seconds";
+   private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+   private static final int IDLE_TIMEOUT_SECONDS = SystemPropertyUtils.getInt(IDLE_TIMEOUT_SECONDS_SYSTEM_PROPERTY, DEFAULT_IDLE_TIMEOUT_SECONDS, 1);
+
+   /** How often idle and expired connections are closed */
+   private static final long EVICTION_INTERVAL_SECONDS = 5;
+
+   private static final Lock LOCK = new ReentrantLock();
+   private static final Map<String, UploadConnectionPool> POOLS = new HashMap<String, UploadConnectionPool>();
+   private static final ScheduledExecutorService EVICTION_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(UploadConnectionPool.class + ".evictionExecutor"));
+
+   static
+      {
+      EVICTION_EXECUTOR.scheduleWithFixedDelay(
+            new Runnable()
+            {
+            @Override
+            public void run()
+               {
+               LOCK.lock();  // block until condition holds
+               try
+                  {
+                  for (final UploadConnectionPool pool : POOLS.values())
+                     {
+                     pool.connectionManager.closeExpiredConnections();
+                     pool.connectionManager.closeIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                     }
+                  }
+               catch (Exception e)
+                  {
+                  LOG.error("UploadConnectionPool.run(): Exception while closing idle connections", e);
+                  }
+               finally
+                  {
+                  LOCK.unlock();
+                  }
+               }
+            },
+            EVICTION_INTERVAL_SECONDS,
+            EVICTION_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+      }
+
+   /** Returns the pool for the host of the given {@link RemoteStorageCredentials}, creating it if necessary. */
+   @NotNull
+   static UploadConnectionPool getInstance(@NotNull final RemoteStorageCredentials remoteStorageCredentials)
+      {
+      final String key = remoteStorageCredentials.getHostName() + ":" + remoteStorageCredentials.getHostPort();
+      LOCK.lock();  // block until condition holds
+      try
+         {
+         UploadConnectionPool pool = POOLS.get(key);
+         if (pool == null)
+            {
+            pool = new UploadConnectionPool(key);
+            POOLS.put(key, pool);
+            if (LOG.isInfoEnabled())
+               {
+               LOG.info("UploadConnectionPool.getInstance(): Created a pool of up to " + MAX_CONNECTIONS_PER_ROUTE + " connection(s) for [" + key + "]");
+               }
+            }
+         return pool;
+         }
+      finally
+         {
+         LOCK.unlock();
+         }
+      }
+
+   /** Renders the statistics for each pool in an ASCII table. */
+   @NotNull
+   static String getStatisticsAsString()
+      {
+      final StringWriter stringWriter = new StringWriter();
+      final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+      printWriter.printf("\n");
+      printWriter.printf(" ____________________________________________________________________________________________________________ \n");
+      printWriter.printf("|                                                                                                            |\n");
+      printWriter.printf("| Upload Host                Requests   Failed   Connections   Avg Conn   Avg Request   Sent (KB)   Compression |\n");
+      printWriter.printf("|                                                              (ms)       (ms)                      Ratio       |\n");
+      printWriter.printf("| -----------                --------   ------   -----------   --------   -----------   ---------   ----------- |\n");
+      LOCK.lock();  // block until condition holds
+      try
+         {
+         for (final UploadConnectionPool pool : POOLS.values())
+            {
+            final long numRequests = pool.numRequests.get();
+            final long numConnections = pool.numConnections.get();
+            final long numBytesSent = pool.numBytesSent.get();
+            final PoolStats poolStats = pool.connectionManager.getTotalStats();
+            printWriter.printf("| %-25s   %8d   %6d   %5d (%d/%d)   %8.1f   %11.1f   %9d   %11.2f |\n",
+                               pool.key.length() > 25 ? pool.key.substring(0, 25) : pool.key,
+                               numRequests,
+                               pool.numFailedRequests.get(),
+                               numConnections,
+                               poolStats.getLeased(),
+                               poolStats.getAvailable(),
+                               numConnections == 0 ? 0.0 : pool.connectNanos.get() / 1e6 / numConnections,
+                               numRequests == 0 ? 0.0 : pool.requestNanos.get() / 1e6 / numRequests,
+                               numBytesSent / 1024,
+                               numBytesSent == 0 ? 1.0 : (double)pool.numBytes.get() / numBytesSent);
+            }
+         }
+      finally
+         {
+         LOCK.unlock();
+         }
+      printWriter.printf("|____________________________________________________________________________________________________________|\n");
+      printWriter.printf("  Connections: the number opened so far, and the number (leased/idle) now open\n");
+      printWriter.printf("  Sent: the request bodies' bytes on the wire; Compression Ratio: their size before compression / after\n");
+
+      return stringWriter.toString();
+      }
+
+   @NotNull
+   private final String key;
+
+   @NotNull
+   private final PoolingHttpClientConnectionManager connectionManager;
+
+   @NotNull
+   private final CloseableHttpClient httpClient;
+
+   private final AtomicLong numRequests = new AtomicLong(0);
+   private final AtomicLong numFailedRequests = new AtomicLong(0);
+   private final AtomicLong requestNanos = new AtomicLong(0);
+   private final AtomicLong numConnections = new AtomicLong(0);
+   private final AtomicLong connectNanos = new AtomicLong(0);
+   private final AtomicLong numBytes = new AtomicLong(0);
+   private final AtomicLong numBytesSent = new AtomicLong(0);
+   private volatile boolean isCompressionSupported = true;
+
+   private UploadConnectionPool(@NotNull final String key)
+      {
+      this.key = key;
+
+      connectionManager = new PoolingHttpClientConnectionManager(
+            RegistryBuilder.<ConnectionSocketFactory>create()
+                  .register("http", new TimingConnectionSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+                  .build());
+      connectionManager.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE);
+      connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+      connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                                                     .setSoTimeout(DataSampleUploadHelper.SOCKET_TIMEOUT_IN_MILLIS)
+                                                     .setSoKeepAlive(true)
+                                                     .setTcpNoDelay(true)
+                                                     .build());
+
+      httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                                           .setConnectTimeout(DataSampleUploadHelper.HTTP_TIMEOUT_IN_MILLIS)
+                                           .setSocketTimeout(DataSampleUploadHelper.SOCKET_TIMEOUT_IN_MILLIS)
+                                           .setConnectionRequestTimeout(DataSampleUploadHelper.HTTP_TIMEOUT_IN_MILLIS)
+                                           .build())
+            .setKeepAliveStrategy(
+                  new ConnectionKeepAliveStrategy()
+                  {
+                  @Override
+                  public long getKeepAliveDuration(final HttpResponse response, final HttpContext context)
+                     {
+                     // use the server's keep-alive timeout, if it gave one
+                     final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                     return duration > 0 ? duration : IDLE_TIMEOUT_SECONDS * 1000L;
+                     }
+                  })
+            .build();
+      }
+
+   /** Returns the client for this pool, which must not be closed. */
+   @NotNull
+   CloseableHttpClient getHttpClient()
+      {
+      return httpClient;
+      }
+
+   /** Returns <code>false</code> if this host is known not to accept compressed uploads. */
+   boolean isCompressionSupported()
+      {
+      return isCompressionSupported;
+      }
+
+   void setCompressionSupported(final boolean isCompressionSupported)
+      {
+      this.isCompressionSupported = isCompressionSupported;
+      }
+
+   /**
+    * Records a request which took the given time, from sending the request until the response was consumed, and whose
+    * body was the given number of bytes before and after compression.
+    */
+   void recordRequest(final long elapsedNanos, final boolean wasSuccessful, final long numBodyBytes, final long numBodyBytesSent)
+      {
+      numRequests.incrementAndGet();
+      requestNanos.addAndGet(elapsedNanos);
+      if (!wasSuccessful)
+         {
+         numFailedRequests.incrementAndGet();
+         }
+      numBytes.addAndGet(numBodyBytes);
+      numBytesSent.addAndGet(numBodyBytesSent);
+      }
+
+   /** Counts the connections opened, and how long they took to open. */
+   private final class TimingConnectionSocketFactory implements ConnectionSocketFactory
+      {
+      @NotNull
+      private final ConnectionSocketFactory delegate;
+
+      private TimingConnectionSocketFactory(@NotNull final ConnectionSocketFactory delegate)
+         {
+         this.delegate = delegate;
+         }
+
+      @Override
+      public Socket createSocket(final HttpContext context) throws IOException
+         {
+         return delegate.createSocket(context);
+         }
+
+      @Override
+      public Socket connectSocket(final int connectTimeout,
+                                  final Socket socket,
+                                  final HttpHost host,
+                                  final InetSocketAddress remoteAddress,
+                                  final InetSocketAddress localAddress,
+                                  final HttpContext context) throws IOException
+         {
+         final long startTime = System.nanoTime();
+         final Socket connectedSocket = delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+         numConnections.incrementAndGet();
+         connectNanos.addAndGet(System.nanoTime() - startTime);
+         if (LOG.isDebugEnabled())
+            {
+            LOG.debug("UploadConnectionPool.connectSocket(): Opened connection " + numConnections.get() + " to [" + key + "] in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+            }
+         return connectedSocket;
+         }
+      }
+   }
@@ -0,0 +1,151 @@
+package org.specksensor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>UploadEntity</code> wraps the {@link HttpEntity} being uploaded, optionally gzip-compressing it as it's sent
+ * (with <code>Content-Encoding: gzip</code>), and counts the bytes written before and after compression.  Since the
+ * compressed length isn't known until the body has been written, compressed bodies are sent with chunked encoding.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadEntity extends HttpEntityWrapper
+   {
+   /** The compression level which sends the body uncompressed */
+   static final int NO_COMPRESSION = 0;
+
+   private static final String GZIP_CONTENT_ENCODING = "gzip";
+   private static final int BUFFER_SIZE = 8 * 1024;
+
+   private final int compressionLevel;
+   private long numBytes = 0;
+   private long numBytesSent = 0;
+
+   /**
+    * Wraps the given {@link HttpEntity}, compressing it at the given level (1 is fastest, 9 is smallest), or not at all
+    * if the level is {@link #NO_COMPRESSION}.
+    */
+   UploadEntity(@NotNull final HttpEntity wrappedEntity, final int compressionLevel)
+      {
+      super(wrappedEntity);
+      this.compressionLevel = compressionLevel;
+      }
+
+   boolean isCompressed()
+      {
+      return compressionLevel != NO_COMPRESSION;
+      }
+
+   /** Returns the number of bytes of the wrapped entity written so far, before any compression. */
+   long getNumBytes()
+      {
+      return numBytes;
+      }
+
+   /** Returns the number of bytes of the body written so far, after any compression. */
+   long getNumBytesSent()
+      {
+      return numBytesSent;
+      }
+
+   @Override
+   public Header getContentEncoding()
+      {
+      return isCompressed() ? new BasicHeader("Content-Encoding", GZIP_CONTENT_ENCODING) : super.getContentEncoding();
+      }
+
+   @Override
+   public long getContentLength()
+      {
+      return isCompressed() ? -1 : super.getContentLength();
+      }
+
+   @Override
+   public boolean isChunked()
+      {
+      return isCompressed() || super.isChunked();
+      }
+
+   /** Returns the body, compressed if necessary, in a new stream.  Uploads don't use it. */
+   @Override
+   public InputStream getContent() throws IOException
+      {
+      if (isCompressed())
+         {
+         final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+         writeTo(byteArrayOutputStream);
+         return new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+         }
+      return super.getContent();
+      }
+
+   @Override
+   public void writeTo(final OutputStream outputStream) throws IOException
+      {
+      final CountingOutputStream sentCountingOutputStream = new CountingOutputStream(outputStream);
+      try
+         {
+         if (isCompressed())
+            {
+            final DeflaterGZIPOutputStream gzipOutputStream = new DeflaterGZIPOutputStream(sentCountingOutputStream, compressionLevel);
+            final CountingOutputStream countingOutputStream = new CountingOutputStream(gzipOutputStream);
+            try
+               {
+               wrappedEntity.writeTo(countingOutputStream);
+               gzipOutputStream.finish();
+               }
+            finally
+               {
+               numBytes += countingOutputStream.getByteCount();
+
+               // release the deflater's native memory now, even if the upload failed, since the connection's stream isn't
+               // ours to close
+               gzipOutputStream.endDeflater();
+               }
+            }
+         else
+            {
+            try
+               {
+               wrappedEntity.writeTo(sentCountingOutputStream);
+               }
+            finally
+               {
+               numBytes += sentCountingOutputStream.getByteCount();
+               }
+            }
+         }
+      finally
+         {
+         numBytesSent += sentCountingOutputStream.getByteCount();
+         }
+      }
+
+   /** A {@link GZIPOutputStream} with the given compression level, whose deflater can be ended without closing the stream */
+   private static final class DeflaterGZIPOutputStream extends GZIPOutputStream
+      {
+      private DeflaterGZIPOutputStream(@NotNull final OutputStream outputStream, final int compressionLevel) throws IOException
+         {
+         super(outputStream, BUFFER_SIZE);
+         def.setLevel(compressionLevel);
+         }
+
+      private void endDeflater()
+         {
+         def.end();
+         }
+      }
+   }
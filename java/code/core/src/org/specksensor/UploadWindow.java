@@ -0,0 +1,187 @@
+package org.specksensor;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * <code>UploadWindow</code> limits how many upload batches a {@link DataSampleManager} keeps in flight at once.  A
+ * batch must {@link #tryAcquire() acquire} a place in the window before it's submitted, and gives it back when it
+ * {@link #complete(long, boolean) completes} (in any order), or {@link #release() releases} it if there turned out to
+ * be nothing to upload.
+ * </p>
+ * <p>
+ * The window starts at a single batch and adapts to how the server is coping, up to a fixed maximum.  It grows by one
+ * batch each time a full window's worth of batches succeeds, as long as the server's latency stays within
+ * {@link #LATENCY_TOLERANCE} times the lowest latency seen.  It shrinks by one batch when the latency rises beyond
+ * that, since that means the server (or the link) is queueing rather than working on more batches at once, and is
+ * halved when a batch fails.  Latencies are compared per sample, since the {@link UploadBatchSizer batch size} changes
+ * too.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class UploadWindow
+   {
+   private static final Logger LOG = Logger.getLogger(UploadWindow.class);
+
+   /** How much higher than the lowest latency seen the smoothed latency may be before the window shrinks */
+   private static final double LATENCY_TOLERANCE = 2.0;
+
+   /** The weight given to each new latency in the smoothed latency */
+   private static final double LATENCY_SMOOTHING_FACTOR = 0.25;
+
+   private final int maxSize;
+
+   private final Lock lock = new ReentrantLock();
+   private int size = 1;
+   private int numInFlight = 0;
+   private int numSuccessesSinceResize = 0;
+   private double minLatencyMillisPerSample = Double.MAX_VALUE;
+   private double smoothedLatencyMillisPerSample = 0;
+
+   UploadWindow(final int maxSize)
+      {
+      this.maxSize = Math.max(1, maxSize);
+      }
+
+   /** Takes a place in the window and returns <code>true</code>, or returns <code>false</code> if the window is full. */
+   boolean tryAcquire()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         if (numInFlight < size)
+            {
+            numInFlight++;
+            return true;
+            }
+         return false;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Gives back a place which was {@link #tryAcquire() acquired} but not used. */
+   void release()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         numInFlight = Math.max(0, numInFlight - 1);
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /**
+    * Gives back the place of a batch of the given number of samples which completed after the given time, and adapts
+    * the window to the outcome.
+    */
+   void complete(final long latencyMillis, final int numSamples, final boolean wasSuccessful)
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         numInFlight = Math.max(0, numInFlight - 1);
+         final int previousSize = size;
+         if (wasSuccessful)
+            {
+            final double latencyMillisPerSample = (double)Math.max(1, latencyMillis) / Math.max(1, numSamples);
+            if (latencyMillisPerSample < minLatencyMillisPerSample)
+               {
+               // the latencies seen so far were inflated (e.g. by setting up the first connection), so start afresh
+               minLatencyMillisPerSample = latencyMillisPerSample;
+               smoothedLatencyMillisPerSample = latencyMillisPerSample;
+               }
+            else
+               {
+               smoothedLatencyMillisPerSample += LATENCY_SMOOTHING_FACTOR * (latencyMillisPerSample - smoothedLatencyMillisPerSample);
+               }
+            if (smoothedLatencyMillisPerSample > LATENCY_TOLERANCE * minLatencyMillisPerSample)
+               {
+               if (size > 1)
+                  {
+                  size--;
+                  numSuccessesSinceResize = 0;
+                  }
+               }
+            else if (++numSuccessesSinceResize >= size && size < maxSize)
+               {
+               size++;
+               numSuccessesSinceResize = 0;
+               }
+            }
+         else
+            {
+            size = Math.max(1, size / 2);
+            numSuccessesSinceResize = 0;
+            }
+
+         if (size != previousSize && LOG.isDebugEnabled())
+            {
+            LOG.debug("UploadWindow.complete(): Window resized from " + previousSize + " to " + size + " batch(es) (latency " + latencyMillis + " ms for " + numSamples + " samples, smoothed " + smoothedLatencyMillisPerSample + " ms/sample, min " + minLatencyMillisPerSample + " ms/sample, successful = " + wasSuccessful + ")");
+            }
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   /** Returns the number of batches which may currently be in flight at once. */
+   int getSize()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return size;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   int getNumInFlight()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         return numInFlight;
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+
+   @NotNull
+   @Override
+   public String toString()
+      {
+      lock.lock();  // block until condition holds
+      try
+         {
+         final StringBuilder sb = new StringBuilder();
+         sb.append("UploadWindow");
+         sb.append("{size=").append(size);
+         sb.append(", maxSize=").append(maxSize);
+         sb.append(", numInFlight=").append(numInFlight);
+         sb.append(", minLatencyMillisPerSample=").append(minLatencyMillisPerSample);
+         sb.append(", smoothedLatencyMillisPerSample=").append(smoothedLatencyMillisPerSample);
+         sb.append('}');
+         return sb.toString();
+         }
+      finally
+         {
+         lock.unlock();
+         }
+      }
+   }
@@ -1,6 +1,6 @@
 package org.specksensor.commands;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
 import edu.cmu.ri.createlab.util.ByteUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -25,38 +25,61 @@ final class CommandStrategyHelper
       return SIZE_IN_BYTES_OF_EXPECTED_RESPONSE;
       }
 
-   /** Returns the given <code>int</code> as a <code>byte</code> array. */
-   static byte[] intToByteArray(final int value)
+   /** Writes the given <code>int</code> into the given array at the given offset, in big endian byte order. */
+   static void writeInt(@NotNull final byte[] dest, final int offset, final int value)
       {
-      // convert the int into bytes
-      final ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-      b.putInt(value);
-      return b.array();
+      dest[offset] = (byte)(value >>> 24);
+      dest[offset + 1] = (byte)(value >>> 16);
+      dest[offset + 2] = (byte)(value >>> 8);
+      dest[offset + 3] = (byte)value;
       }
 
+   /** Reads a big endian <code>int</code> from the given array at the given offset. */
+   static int readInt(@NotNull final byte[] src, final int offset)
+      {
+      return (src[offset] << 24) |
+             ((src[offset + 1] & 0xff) << 16) |
+             ((src[offset + 2] & 0xff) << 8) |
+             (src[offset + 3] & 0xff);
+      }
+
+   /** Reads a big endian (signed) <code>short</code> from the given array at the given offset. */
+   static short readShort(@NotNull final byte[] src, final int offset)
+      {
+      return (short)((src[offset] << 8) | (src[offset + 1] & 0xff));
+      }
+
+   /** Creates a new command array for the given command character.  See {@link #fillBaseCommand(byte[], byte)}. */
    static byte[] createBaseCommand(final byte commandCharacter)
+      {
+      final byte[] command = new byte[SpeckConstants.UsbHidConfiguration.REPORT_LENGTH_IN_BYTES];
+      fillBaseCommand(command, commandCharacter);
+      return command;
+      }
+
+   /**
+    * Fills the given command array (which must be {@link SpeckConstants.UsbHidConfiguration#REPORT_LENGTH_IN_BYTES}
+    * long) with the base command for the given command character: the command character, followed by the current time
+    * in seconds, followed by zeros and the checksum.  Strategies on the download path reuse a single command array
+    * with this method so that encoding a command doesn't allocate.  That's safe because the command is copied into
+    * the HID device's own buffer upon write, and each strategy instance is only executed by one thread at a time.
+    */
+   static void fillBaseCommand(@NotNull final byte[] command, final byte commandCharacter)
       {
       // get the current time in seconds, cast it to an int
       final int currentTimeInSecs = (int)(System.currentTimeMillis() / 1000);
 
-      final byte[] timeBytes = intToByteArray(currentTimeInSecs);
-
       // build the command
-      final byte[] command = new byte[SpeckConstants.UsbHidConfiguration.REPORT_LENGTH_IN_BYTES];
+      Arrays.fill(command, (byte)0);
       command[0] = commandCharacter;
-      command[1] = timeBytes[0];
-      command[2] = timeBytes[1];
-      command[3] = timeBytes[2];
-      command[4] = timeBytes[3];
+      writeInt(command, 1, currentTimeInSecs);
 
       command[ARRAY_INDEX_OF_CHECKSUM_BYTE] = computeChecksum(command);
 
       if (LOG.isTraceEnabled())
          {
-         LOG.trace("CommandStrategyHelper.createBaseCommand(): " + byteArrayToString(command) + ")");
+         LOG.trace("CommandStrategyHelper.fillBaseCommand(): " + byteArrayToString(command) + ")");
          }
-
-      return command;
       }
 
    static void updateCommandChecksum(@NotNull final byte[] command)
@@ -98,16 +121,13 @@ final class CommandStrategyHelper
    private static byte computeChecksum(@NotNull final byte[] data)
       {
       // Speck checksum simply sums all the bytes and then uses the lowest 8 bits
-      long sum = 0;
+      int sum = 0;
       for (int i = 0; i < SIZE_IN_BYTES_OF_EXPECTED_RESPONSE - 1; i++)
          {
          sum += data[i];
          }
 
-      final ByteBuffer byteBuffer = ByteBuffer.allocate(Long.SIZE / 8);
-      final byte[] bytes = byteBuffer.putLong(sum).array();
-
-      return bytes[bytes.length - 1];
+      return (byte)sum;
       }
 
    static String byteArrayToString(@Nullable final byte[] bytes)
@@ -4,6 +4,7 @@ import edu.cmu.ri.createlab.usb.hid.CreateLabHIDReturnValueCommandStrategy;
 import edu.cmu.ri.createlab.usb.hid.HIDCommandResponse;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
+import org.specksensor.SpeckConstants;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -13,12 +14,25 @@ public final class DeleteSampleCommandStrategy extends CreateLabHIDReturnValueCo
    private static final Logger LOG = Logger.getLogger(DeleteSampleCommandStrategy.class);
 
    private static final byte COMMAND_PREFIX = 'D';
-   private final byte[] sampleTimeBytes;
+   private int sampleTime;
 
+   /** Reused for every command to avoid allocation on the download path (see CommandStrategyHelper.fillBaseCommand()) */
+   private final byte[] command = new byte[SpeckConstants.UsbHidConfiguration.REPORT_LENGTH_IN_BYTES];
+
+   /**
+    * Creates a strategy for deleting the sample with the given time.  The same instance can be reused to delete other
+    * samples by calling {@link #setSampleTime(int)}, but callers must ensure that the sample time isn't changed while
+    * a command is being executed.
+    */
    public DeleteSampleCommandStrategy(final int sampleTime)
       {
-      // get the sample time as a byte array
-      sampleTimeBytes = CommandStrategyHelper.intToByteArray(sampleTime);
+      this.sampleTime = sampleTime;
+      }
+
+   /** Sets the time of the sample to be deleted by the next execution of this strategy. */
+   public void setSampleTime(final int sampleTime)
+      {
+      this.sampleTime = sampleTime;
       }
 
    @Override
@@ -31,13 +45,10 @@ public final class DeleteSampleCommandStrategy extends CreateLabHIDReturnValueCo
    protected byte[] getCommand()
       {
       // create the base command
-      final byte[] command = CommandStrategyHelper.createBaseCommand(COMMAND_PREFIX);
+      CommandStrategyHelper.fillBaseCommand(command, COMMAND_PREFIX);
 
       // copy the sample time to the command
-      command[5] = sampleTimeBytes[0];
-      command[6] = sampleTimeBytes[1];
-      command[7] = sampleTimeBytes[2];
-      command[8] = sampleTimeBytes[3];
+      CommandStrategyHelper.writeInt(command, 5, sampleTime);
 
       // update the command checksum
       CommandStrategyHelper.updateCommandChecksum(command);
@@ -65,11 +76,7 @@ public final class DeleteSampleCommandStrategy extends CreateLabHIDReturnValueCo
                }
 
             // make sure the delete was successful and that the requested sample time matches the deleted sample time
-            return data[5] == 1 &&
-                   data[1] == sampleTimeBytes[0] &&
-                   data[2] == sampleTimeBytes[1] &&
-                   data[3] == sampleTimeBytes[2] &&
-                   data[4] == sampleTimeBytes[3];
+            return data[5] == 1 && CommandStrategyHelper.readInt(data, 1) == sampleTime;
             }
          }
       LOG.error("DeleteSampleCommandStrategy.convertResponse(): Failure!  response = [" + response + "]");
@@ -1,13 +1,12 @@
 package org.specksensor.commands;
 
-import java.nio.ByteBuffer;
 import edu.cmu.ri.createlab.usb.hid.CreateLabHIDReturnValueCommandStrategy;
 import edu.cmu.ri.createlab.usb.hid.HIDCommandResponse;
-import edu.cmu.ri.createlab.util.ByteUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.specksensor.DataSample;
 import org.specksensor.Speck;
+import org.specksensor.SpeckConstants;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -31,6 +30,9 @@ public final class GetDataSampleCommandStrategy extends CreateLabHIDReturnValueC
 
    private final byte commandCharacter;
 
+   /** Reused for every command to avoid allocation on the download path (see CommandStrategyHelper.fillBaseCommand()) */
+   private final byte[] command = new byte[SpeckConstants.UsbHidConfiguration.REPORT_LENGTH_IN_BYTES];
+
    private GetDataSampleCommandStrategy(final byte commandCharacter)
       {
       this.commandCharacter = commandCharacter;
@@ -45,7 +47,8 @@ public final class GetDataSampleCommandStrategy extends CreateLabHIDReturnValueC
    @Override
    protected byte[] getCommand()
       {
-      return CommandStrategyHelper.createBaseCommand(commandCharacter);
+      CommandStrategyHelper.fillBaseCommand(command, commandCharacter);
+      return command;
       }
 
    @Nullable
@@ -63,11 +66,11 @@ public final class GetDataSampleCommandStrategy extends CreateLabHIDReturnValueC
          if (CommandStrategyHelper.isResponseDataValid(data))
             {
             return new DataSample(null,
-                                  ByteBuffer.wrap(data, 1, 4).getInt(),          // sampleTimeUtcSeconds
-                                  ByteBuffer.wrap(data, 12, 2).getShort(),       // rawParticleCount
-                                  ByteBuffer.wrap(data, 5, 4).getInt(),          // particleCount
-                                  ByteBuffer.wrap(data, 9, 2).getShort(),        // temperature
-                                  ByteUtils.unsignedByteToInt(data[11]));        // humidity
+                                  CommandStrategyHelper.readInt(data, 1),        // sampleTimeUtcSeconds
+                                  CommandStrategyHelper.readShort(data, 12),     // rawParticleCount
+                                  CommandStrategyHelper.readInt(data, 5),        // particleCount
+                                  CommandStrategyHelper.readShort(data, 9),      // temperature
+                                  data[11] & 0xff);                              // humidity
             }
          }
       LOG.error("GetDataSampleCommandStrategy.convertResponse(): Failure!  response = [" + response + "]");
@@ -1,10 +1,10 @@
 package org.specksensor.commands;
 
-import java.nio.ByteBuffer;
 import edu.cmu.ri.createlab.usb.hid.CreateLabHIDReturnValueCommandStrategy;
 import edu.cmu.ri.createlab.usb.hid.HIDCommandResponse;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
+import org.specksensor.SpeckConstants;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -15,6 +15,9 @@ public final class GetDataSampleCountCommandStrategy extends CreateLabHIDReturnV
 
    private static final byte COMMAND_PREFIX = 'P';
 
+   /** Reused for every command to avoid allocation (see CommandStrategyHelper.fillBaseCommand()) */
+   private final byte[] command = new byte[SpeckConstants.UsbHidConfiguration.REPORT_LENGTH_IN_BYTES];
+
    @Override
    protected int getSizeOfExpectedResponse()
       {
@@ -24,7 +27,8 @@ public final class GetDataSampleCountCommandStrategy extends CreateLabHIDReturnV
    @Override
    protected byte[] getCommand()
       {
-      return CommandStrategyHelper.createBaseCommand(COMMAND_PREFIX);
+      CommandStrategyHelper.fillBaseCommand(command, COMMAND_PREFIX);
+      return command;
       }
 
    @Nullable
@@ -42,7 +46,7 @@ public final class GetDataSampleCountCommandStrategy extends CreateLabHIDReturnV
          if (CommandStrategyHelper.isResponseDataValid(data))
             {
             // the count is 4 bytes long and lives in bytes 1-4
-            return ByteBuffer.wrap(data, 1, 4).getInt();
+            return CommandStrategyHelper.readInt(data, 1);
             }
          }
       LOG.error("GetDataSampleCountCommandStrategy.convertResponse(): Failure!  response = [" + response + "]");